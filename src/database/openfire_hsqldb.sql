@@ -323,6 +323,7 @@ CREATE TABLE ofPubsubItem (
   payload             VARCHAR(4000) NULL,
   CONSTRAINT ofPubsubItem_pk PRIMARY KEY (serviceID, nodeID, id)
 );
+CREATE INDEX ofPubsubItem_cDate_idx ON ofPubsubItem (serviceID, nodeID, creationDate);
 
 CREATE TABLE ofPubsubSubscription (
   serviceID           VARCHAR(100)  NOT NULL,
@@ -372,7 +373,7 @@ INSERT INTO ofID (idType, id) VALUES (19, 1);
 INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 21);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 22);
 
 // Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
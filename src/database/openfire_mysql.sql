@@ -310,7 +310,8 @@ CREATE TABLE ofPubsubItem (
   jid                 VARCHAR(255)  NOT NULL,
   creationDate        CHAR(15)      NOT NULL,
   payload             MEDIUMTEXT    NULL,
-  PRIMARY KEY (serviceID, nodeID, id)
+  PRIMARY KEY (serviceID, nodeID, id),
+  INDEX ofPubsubItem_cDate_idx (serviceID, nodeID, creationDate)
 );
 
 CREATE TABLE ofPubsubSubscription (
@@ -361,7 +362,7 @@ INSERT INTO ofID (idType, id) VALUES (19, 1);
 INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 21);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 22);
 
 # Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
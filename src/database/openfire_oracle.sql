@@ -320,6 +320,7 @@ CREATE TABLE ofPubsubItem (
   payload             VARCHAR(4000)  NULL,
   CONSTRAINT ofPubsubItem_pk PRIMARY KEY (serviceID, nodeID, id)
 );
+CREATE INDEX ofPubsubItem_cDate_idx ON ofPubsubItem (serviceID ASC, nodeID ASC, creationDate ASC);
 
 CREATE TABLE ofPubsubSubscription (
   serviceID           VARCHAR2(100)  NOT NULL,
@@ -369,7 +370,7 @@ INSERT INTO ofID (idType, id) VALUES (19, 1);
 INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 21);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 22);
 
 -- Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
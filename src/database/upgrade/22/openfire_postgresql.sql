@@ -0,0 +1,5 @@
+-- add index for loading the published items of a node by creation date
+CREATE INDEX ofPubsubItem_cDate_idx ON ofPubsubItem (serviceID, nodeID, creationDate);
+
+-- Update version
+UPDATE ofVersion SET version = 22 WHERE name = 'openfire';
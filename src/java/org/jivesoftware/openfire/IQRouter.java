@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.container.BasicModule;
@@ -36,7 +37,10 @@ import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.LatencyHistogram;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
@@ -52,7 +56,11 @@ import org.xmpp.packet.PacketError;
  * Routes iq packets throughout the server. Routing is based on the recipient
  * and sender addresses. The typical packet will often be routed twice, once
  * from the sender to some internal server component for handling or processing,
- * and then back to the router to be delivered to it's final destination.
+ * and then back to the router to be delivered to it's final destination.<p>
+ *
+ * The time spent by the handler of each namespace is available as the
+ * <tt>iqHandlerTime.[namespace]</tt> statistic, which is added the first time
+ * a request of the namespace is handled.
  *
  * @author Iain Shigeoka
  */
@@ -67,6 +75,11 @@ public class IQRouter extends BasicModule {
     private Map<String, IQHandler> namespace2Handlers = new ConcurrentHashMap<String, IQHandler>();
     private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
     private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    /**
+     * Time spent by the handlers processing IQ packets, keyed by namespace.
+     */
+    private ConcurrentMap<String, LatencyHistogram> handlerTimes =
+            new ConcurrentHashMap<String, LatencyHistogram>();
     private SessionManager sessionManager;
     private UserManager userManager;
 
@@ -189,7 +202,11 @@ public class IQRouter extends BasicModule {
             throw new IllegalArgumentException("Cannot remove an IQHandler provided by the server");
         }
         // Unregister the handler as the handler of the namespace
-        namespace2Handlers.remove(handler.getInfo().getNamespace());
+        String namespace = handler.getInfo().getNamespace();
+        namespace2Handlers.remove(namespace);
+        if (handlerTimes.remove(namespace) != null) {
+            StatisticsManager.getInstance().removeStatistic("iqHandlerTime." + namespace);
+        }
     }
 
     /**
@@ -369,7 +386,14 @@ public class IQRouter extends BasicModule {
                         }
                     }
                     else {
-                        handler.process(packet);
+                        LatencyHistogram handlerTime = getHandlerTime(namespace);
+                        long start = System.nanoTime();
+                        try {
+                            handler.process(packet);
+                        }
+                        finally {
+                            handlerTime.recordSince(start);
+                        }
                     }
                 }
             }
@@ -423,6 +447,24 @@ public class IQRouter extends BasicModule {
         return handler;
     }
 
+    /**
+     * Returns the histogram of the time spent by the handler of a namespace, adding the
+     * statistic of the namespace the first time it is requested.
+     */
+    private LatencyHistogram getHandlerTime(String namespace) {
+        LatencyHistogram handlerTime = handlerTimes.get(namespace);
+        if (handlerTime == null) {
+            handlerTime = new LatencyHistogram();
+            LatencyHistogram existing = handlerTimes.putIfAbsent(namespace, handlerTime);
+            if (existing != null) {
+                return existing;
+            }
+            StatisticsManager.getInstance().addStatistic("iqHandlerTime." + namespace,
+                    new LatencyStatistic("iq.handler_time", namespace, handlerTime));
+        }
+        return handlerTime;
+    }
+
     /**
      * Notification message indicating that a packet has failed to be routed to the receipient.
      *
@@ -0,0 +1,257 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
+
+/**
+ * Sorted views of the authenticated client sessions hosted by this JVM, used for paging
+ * through sessions without sorting all of them.<p>
+ *
+ * The user and the creation date of a session never change, so sessions are kept in sorted
+ * sets for both fields and orders. Each set remembers the last session of the previous page
+ * and its index, so the next page is read from that session on instead of walking the set
+ * from its start. The activity and packet counts of sessions keep changing, so pages sorted by these
+ * fields are selected from a snapshot of the values with a heap bounded by the end of the page,
+ * which avoids sorting sessions that are not part of the page.<p>
+ *
+ * Note that pages sorted by last activity or packet counts still scan every local session in
+ * {@link #selectPage}. No per-node index is kept for these fields since their values change
+ * with every packet.
+ */
+class LocalSessionIndex {
+
+    private final SortedSessions byUserAscending = new SortedSessions(
+            getComparator(SessionResultFilter.SORT_USER, SessionResultFilter.ASCENDING));
+    private final SortedSessions byUserDescending = new SortedSessions(
+            getComparator(SessionResultFilter.SORT_USER, SessionResultFilter.DESCENDING));
+    private final SortedSessions byCreationAscending = new SortedSessions(
+            getComparator(SessionResultFilter.SORT_CREATION_DATE, SessionResultFilter.ASCENDING));
+    private final SortedSessions byCreationDescending = new SortedSessions(
+            getComparator(SessionResultFilter.SORT_CREATION_DATE, SessionResultFilter.DESCENDING));
+
+    private static Comparator<ClientSession> getComparator(int sortField, int sortOrder) {
+        SessionResultFilter filter = new SessionResultFilter();
+        filter.setSortField(sortField);
+        filter.setSortOrder(sortOrder);
+        return filter.getSortComparator();
+    }
+
+    /**
+     * Adds a session that was authenticated and bound to a resource.
+     *
+     * @param session the session to add.
+     */
+    synchronized void add(LocalClientSession session) {
+        byUserAscending.add(session);
+        byUserDescending.add(session);
+        byCreationAscending.add(session);
+        byCreationDescending.add(session);
+    }
+
+    /**
+     * Removes a session that was previously added.
+     *
+     * @param session the session to remove.
+     */
+    synchronized void remove(LocalClientSession session) {
+        byUserAscending.remove(session);
+        byUserDescending.remove(session);
+        byCreationAscending.remove(session);
+        byCreationDescending.remove(session);
+    }
+
+    /**
+     * Returns the sessions from the specified start index up to the specified number of
+     * sessions, sorted as requested.
+     *
+     * @param sortField the sort field as defined in {@link SessionResultFilter}.
+     * @param sortOrder the sort order as defined in {@link SessionResultFilter}.
+     * @param startIndex the index of the first session to return.
+     * @param numResults the maximum number of sessions to return.
+     * @return the sessions of the page.
+     */
+    List<ClientSession> getPage(int sortField, int sortOrder, int startIndex, int numResults) {
+        List<ClientSession> page = new ArrayList<ClientSession>();
+        if (numResults <= 0) {
+            return page;
+        }
+        SortedSessions sorted = getSortedSet(sortField, sortOrder);
+        if (sorted != null) {
+            synchronized (this) {
+                sorted.getPage(startIndex, numResults, page);
+            }
+            return page;
+        }
+        return selectPage(sortField, sortOrder, startIndex, numResults);
+    }
+
+    private SortedSessions getSortedSet(int sortField, int sortOrder) {
+        boolean ascending = sortOrder == SessionResultFilter.ASCENDING;
+        switch (sortField) {
+            case SessionResultFilter.SORT_USER:
+                return ascending ? byUserAscending : byUserDescending;
+            case SessionResultFilter.SORT_CREATION_DATE:
+                return ascending ? byCreationAscending : byCreationDescending;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Selects a page of sessions sorted by a field whose value keeps changing. The values are
+     * read once so that the order does not change while selecting the page.
+     */
+    private List<ClientSession> selectPage(int sortField, final int sortOrder, int startIndex,
+            int numResults) {
+        Collection<ClientSession> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<ClientSession>(byUserAscending.sessions);
+        }
+        final Comparator<ClientSession> userComparator =
+                getComparator(SessionResultFilter.SORT_USER, SessionResultFilter.ASCENDING);
+        Comparator<Entry> comparator = new Comparator<Entry>() {
+            public int compare(Entry lhs, Entry rhs) {
+                int comparison = lhs.value < rhs.value ? -1 : (lhs.value == rhs.value ? 0 : 1);
+                if (sortOrder == SessionResultFilter.DESCENDING) {
+                    comparison *= -1;
+                }
+                if (comparison == 0) {
+                    comparison = userComparator.compare(lhs.session, rhs.session);
+                }
+                return comparison;
+            }
+        };
+        // Keep the sessions up to the end of the page with the last one at the head
+        int size = (int) Math.min((long) startIndex + numResults, sessions.size());
+        PriorityQueue<Entry> selected = new PriorityQueue<Entry>(Math.max(1, size),
+                Collections.reverseOrder(comparator));
+        for (ClientSession session : sessions) {
+            Entry entry = new Entry(session, SessionResultFilter.getSortValue(session, sortField));
+            if (selected.size() < size) {
+                selected.add(entry);
+            }
+            else if (size > 0 && comparator.compare(entry, selected.peek()) < 0) {
+                selected.poll();
+                selected.add(entry);
+            }
+        }
+        List<Entry> entries = new ArrayList<Entry>(selected);
+        Collections.sort(entries, comparator);
+        List<ClientSession> page = new ArrayList<ClientSession>();
+        for (int i = startIndex; i < entries.size(); i++) {
+            page.add(entries.get(i).session);
+        }
+        return page;
+    }
+
+    /**
+     * Sessions sorted by a field that never changes. The last session of the previous page
+     * is kept as a cursor whose index is updated when sessions are added or removed, so that
+     * reading the next page does not need to walk the sessions of the previous pages.
+     * Access must be synchronized on the index.
+     */
+    private static class SortedSessions {
+
+        private final Comparator<ClientSession> comparator;
+        private final TreeSet<ClientSession> sessions;
+        /**
+         * The last session of the previous page or <tt>null</tt> if there is none.
+         */
+        private ClientSession cursor;
+        /**
+         * The index of the cursor in the sorted sessions.
+         */
+        private int cursorIndex;
+
+        SortedSessions(Comparator<ClientSession> comparator) {
+            this.comparator = comparator;
+            this.sessions = new TreeSet<ClientSession>(comparator);
+        }
+
+        void add(ClientSession session) {
+            if (sessions.add(session) && cursor != null &&
+                    comparator.compare(session, cursor) < 0) {
+                cursorIndex++;
+            }
+        }
+
+        void remove(ClientSession session) {
+            if (!sessions.remove(session) || cursor == null) {
+                return;
+            }
+            int comparison = comparator.compare(session, cursor);
+            if (comparison == 0) {
+                cursor = null;
+            }
+            else if (comparison < 0) {
+                cursorIndex--;
+            }
+        }
+
+        void getPage(int startIndex, int numResults, List<ClientSession> page) {
+            Iterator<ClientSession> it;
+            int index;
+            if (cursor != null && cursorIndex < startIndex) {
+                // Continue from the last session of the previous page
+                it = sessions.tailSet(cursor).iterator();
+                index = cursorIndex;
+            }
+            else {
+                it = sessions.iterator();
+                index = 0;
+            }
+            for (; index < startIndex && it.hasNext(); index++) {
+                it.next();
+            }
+            ClientSession last = null;
+            while (it.hasNext() && page.size() < numResults) {
+                last = it.next();
+                page.add(last);
+            }
+            if (last != null) {
+                cursor = last;
+                cursorIndex = startIndex + page.size() - 1;
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final ClientSession session;
+        private final long value;
+
+        Entry(ClientSession session, long value) {
+            this.session = session;
+            this.value = value;
+        }
+    }
+}
@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire;
 
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.xmpp.packet.JID;
@@ -84,6 +85,18 @@ public interface PresenceManager {
      */
     public void probePresence(JID prober, JID probee);
 
+    /**
+     * Sends the presences of a local user to the prober. This is the answer to a probe of a
+     * local user whose available sessions were already looked up by the caller, which avoids
+     * looking them up again when the caller also needed them for something else. If the probee
+     * has no available session then its last unavailable presence is sent.
+     *
+     * @param prober the full JID of the user requesting the probe.
+     * @param probee the bare JID of the local user whose presence is probed.
+     * @param probeeSessions the available sessions of the probee.
+     */
+    public void probePresence(JID prober, JID probee, Collection<ClientSession> probeeSessions);
+
     /**
      * Handle a presence probe sent by a remote server. The logic to apply is the following: If
      * the remote user is not in the local user's roster with a subscription state of "From", or
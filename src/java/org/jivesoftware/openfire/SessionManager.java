@@ -24,6 +24,7 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -49,6 +50,7 @@ import org.jivesoftware.openfire.session.ClientSessionInfo;
 import org.jivesoftware.openfire.session.ComponentSession;
 import org.jivesoftware.openfire.session.ConnectionMultiplexerSession;
 import org.jivesoftware.openfire.session.GetSessionsCountTask;
+import org.jivesoftware.openfire.session.GetSessionsPageTask;
 import org.jivesoftware.openfire.session.IncomingServerSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalComponentSession;
@@ -58,6 +60,7 @@ import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.session.OutgoingServerSession;
 import org.jivesoftware.openfire.session.RemoteSessionLocator;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.session.SessionPageEntry;
 import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveGlobals;
@@ -164,6 +167,10 @@ public class SessionManager extends BasicModule implements ClusterEventListener
      * present in the routing table. 
      */
     private LocalSessionManager localSessionManager;
+    /**
+     * Sorted views of the authenticated client sessions hosted by this JVM.
+     */
+    private final LocalSessionIndex localSessionIndex = new LocalSessionIndex();
     /**
      * <p>Session manager must maintain the routing table as sessions are added and
      * removed.</p>
@@ -552,6 +559,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener
         localSessionManager.getPreAuthenticatedSessions().remove(session.getStreamID().toString());
         // Add session to the routing table (routing table will know session is not available yet)
         routingTable.addClientRoute(session.getAddress(), session);
+        localSessionIndex.add(session);
         SessionEventDispatcher.EventType event = session.getAuthToken().isAnonymous() ?
                 SessionEventDispatcher.EventType.anonymous_session_created :
                 SessionEventDispatcher.EventType.session_created;
@@ -747,43 +755,78 @@ public class SessionManager extends BasicModule implements ClusterEventListener
     }
 
 
+    /**
+     * Returns the page of client sessions of the cluster that is defined by the sort field,
+     * sort order, start index and number of results of the filter. Only the sessions up to
+     * the end of the page are read from the sorted sessions of each cluster node.
+     *
+     * @param filter the filter that defines the page of sessions.
+     * @return the page of client sessions or an empty collection if the filter is null.
+     */
     public Collection<ClientSession> getSessions(SessionResultFilter filter) {
-        List<ClientSession> results = new ArrayList<ClientSession>();
-        if (filter != null) {
-            // Grab all the matching sessions
-            results.addAll(getSessions());
-
-            // Now we have a copy of the references so we can spend some time
-            // doing the rest of the filtering without locking out session access
-            // so let's iterate and filter each session one by one
-            List<ClientSession> filteredResults = new ArrayList<ClientSession>();
-            for (ClientSession session : results) {
-                // Now filter on creation date if needed
-                filteredResults.add(session);
+        if (filter == null) {
+            return new ArrayList<ClientSession>();
+        }
+        int startIndex = filter.getStartIndex();
+        int maxResults = filter.getNumResults();
+        if (maxResults == SessionResultFilter.NO_RESULT_LIMIT) {
+            maxResults = Integer.MAX_VALUE;
+        }
+        if (!ClusterManager.isClusteringStarted()) {
+            return localSessionIndex.getPage(filter.getSortField(), filter.getSortOrder(),
+                    startIndex, maxResults);
+        }
+        // Every session of the page is among the first sessions of its cluster node
+        int numResults = (int) Math.min((long) startIndex + maxResults, Integer.MAX_VALUE);
+        List<ClientSession> localSessions = localSessionIndex.getPage(filter.getSortField(),
+                filter.getSortOrder(), 0, numResults);
+        Map<JID, ClientSession> sessionsByAddress = new HashMap<JID, ClientSession>();
+        List<SessionPageEntry> entries = new ArrayList<SessionPageEntry>();
+        for (ClientSession session : localSessions) {
+            sessionsByAddress.put(session.getAddress(), session);
+            entries.add(new SessionPageEntry(session, filter.getSortField()));
+        }
+        Collection<Object> results = CacheFactory.doSynchronousClusterTask(
+                new GetSessionsPageTask(filter.getSortField(), filter.getSortOrder(), numResults),
+                false);
+        for (Object result : results) {
+            if (result instanceof List) {
+                for (Object entry : (List<?>) result) {
+                    entries.add((SessionPageEntry) entry);
+                }
             }
+        }
+        Collections.sort(entries,
+                SessionPageEntry.getComparator(filter.getSortField(), filter.getSortOrder()));
 
-            // Sort list.
-            Collections.sort(filteredResults, filter.getSortComparator());
-
-            int maxResults = filter.getNumResults();
-            if (maxResults == SessionResultFilter.NO_RESULT_LIMIT) {
-                maxResults = filteredResults.size();
+        List<ClientSession> finalResults = new ArrayList<ClientSession>();
+        for (int i = startIndex; i < entries.size() && finalResults.size() < maxResults; i++) {
+            JID address = entries.get(i).getAddress();
+            ClientSession session = sessionsByAddress.get(address);
+            if (session == null) {
+                session = routingTable.getClientRoute(address);
             }
-
-            // Now generate the final list. I believe it's faster to to build up a new
-            // list than it is to remove items from head and tail of the sorted tree
-            List<ClientSession> finalResults = new ArrayList<ClientSession>();
-            int startIndex = filter.getStartIndex();
-            Iterator<ClientSession> sortedIter = filteredResults.iterator();
-            for (int i = 0; sortedIter.hasNext() && finalResults.size() < maxResults; i++) {
-                ClientSession result = sortedIter.next();
-                if (i >= startIndex) {
-                    finalResults.add(result);
-                }
+            if (session != null) {
+                finalResults.add(session);
             }
-            return finalResults;
         }
-        return results;
+        return finalResults;
+    }
+
+    /**
+     * Returns the page of authenticated client sessions hosted by this JVM that is defined by
+     * the sort field, sort order, start index and number of results of the filter.
+     *
+     * @param filter the filter that defines the page of sessions.
+     * @return the page of client sessions hosted by this JVM.
+     */
+    public List<ClientSession> getLocalSessions(SessionResultFilter filter) {
+        int maxResults = filter.getNumResults();
+        if (maxResults == SessionResultFilter.NO_RESULT_LIMIT) {
+            maxResults = Integer.MAX_VALUE;
+        }
+        return localSessionIndex.getPage(filter.getSortField(), filter.getSortOrder(),
+                filter.getStartIndex(), maxResults);
     }
 
     /**
@@ -1076,6 +1119,9 @@ public class SessionManager extends BasicModule implements ClusterEventListener
 
         // Remove route to the removed session (anonymous or not)
         boolean removed = routingTable.removeClientRoute(fullJID);
+        if (session instanceof LocalClientSession) {
+            localSessionIndex.remove((LocalClientSession) session);
+        }
 
         if (removed) {
             // Fire session event.
@@ -201,7 +201,8 @@ public class SessionResultFilter {
 
     /**
      * Returns a comparator that will sort a standard sorted set according
-     * to this filter's sort order.
+     * to this filter's sort order. Sessions with the same value of the sort field are
+     * sorted by user, resource and stream ID so that distinct sessions are never equal.
      *
      * @return a comparator that sorts Sessions matching the sort order for this filter.
      */
@@ -209,6 +210,41 @@ public class SessionResultFilter {
         return new SessionComparator();
     }
 
+    /**
+     * Returns the value of a numeric or date sort field of a session (dates are returned
+     * in milliseconds). Answers 0 for {@link #SORT_USER} since users are sorted by name.
+     *
+     * @param session the session.
+     * @param sortField the sort field.
+     * @return the value of the sort field of the session.
+     */
+    public static long getSortValue(ClientSession session, int sortField) {
+        switch (sortField) {
+            case SessionResultFilter.SORT_CREATION_DATE:
+                return session.getCreationDate().getTime();
+            case SessionResultFilter.SORT_LAST_ACTIVITY_DATE:
+                return session.getLastActiveDate().getTime();
+            case SessionResultFilter.SORT_NUM_CLIENT_PACKETS:
+                return session.getNumClientPackets();
+            case SessionResultFilter.SORT_NUM_SERVER_PACKETS:
+                return session.getNumServerPackets();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the name of the user of a session as sorted by {@link #SORT_USER}. Anonymous
+     * users are sorted before other users.
+     *
+     * @param session the session.
+     * @return the name of the user or an empty string for anonymous users.
+     */
+    public static String getSortUsername(ClientSession session) {
+        String username = session.isAnonymousUser() ? null : session.getAddress().getNode();
+        return username == null ? "" : username;
+    }
+
     /**
      * Compares sessions according to sort fields.
      *
@@ -218,35 +254,33 @@ public class SessionResultFilter {
 
         public int compare(ClientSession lhs, ClientSession rhs) {
             int comparison;
-            switch (sortField) {
-                case SessionResultFilter.SORT_CREATION_DATE:
-                    comparison = lhs.getCreationDate().compareTo(rhs.getCreationDate());
-                    break;
-                case SessionResultFilter.SORT_LAST_ACTIVITY_DATE:
-                    comparison = lhs.getLastActiveDate().compareTo(rhs.getCreationDate());
-                    break;
-                case SessionResultFilter.SORT_NUM_CLIENT_PACKETS:
-                    comparison = (int)(lhs.getNumClientPackets() - rhs.getNumClientPackets());
-                    break;
-                case SessionResultFilter.SORT_NUM_SERVER_PACKETS:
-                    comparison = (int)(lhs.getNumServerPackets() - rhs.getNumServerPackets());
-                    break;
-                case SessionResultFilter.SORT_USER:
-                    // sort first by name, then by resource
-                    String lUsername = lhs.isAnonymousUser() ? "" : lhs.getAddress().getNode();
-                    String rUsername = rhs.isAnonymousUser() ? "" : rhs.getAddress().getNode();
-                    comparison = compareString(lUsername, rUsername);
-                    if (comparison == 0) {
-                        comparison = compareString(lhs.getAddress().getResource(),
-                                rhs.getAddress().getResource());
-                    }
-                    break;
-                default:
-                    comparison = 0;
+            if (sortField == SessionResultFilter.SORT_USER) {
+                // sort first by name, then by resource
+                comparison = compareUser(lhs, rhs);
+            }
+            else {
+                long lValue = getSortValue(lhs, sortField);
+                long rValue = getSortValue(rhs, sortField);
+                comparison = lValue < rValue ? -1 : (lValue == rValue ? 0 : 1);
             }
             if (sortOrder == SessionResultFilter.DESCENDING) {
                 comparison *= -1; // Naturally ascending, flip sign if descending
             }
+            if (comparison == 0 && sortField != SessionResultFilter.SORT_USER) {
+                comparison = compareUser(lhs, rhs);
+            }
+            if (comparison == 0 && lhs != rhs) {
+                comparison = compareString(lhs.getStreamID().getID(), rhs.getStreamID().getID());
+            }
+            return comparison;
+        }
+
+        private int compareUser(ClientSession lhs, ClientSession rhs) {
+            int comparison = compareString(getSortUsername(lhs), getSortUsername(rhs));
+            if (comparison == 0) {
+                comparison = compareString(lhs.getAddress().getResource(),
+                        rhs.getAddress().getResource());
+            }
             return comparison;
         }
 
@@ -25,8 +25,9 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.audit.AuditManager;
 import org.jivesoftware.openfire.audit.Auditor;
 import org.jivesoftware.openfire.container.BasicModule;
+import org.jivesoftware.openfire.interceptor.FilteredPacketInterceptor;
+import org.jivesoftware.openfire.interceptor.InterceptorFilter;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
-import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.session.Session;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
@@ -280,7 +281,12 @@ public class AuditManagerImpl extends BasicModule implements AuditManager {
         }
     }
 
-    private class AuditorInterceptor implements PacketInterceptor {
+    private class AuditorInterceptor implements FilteredPacketInterceptor {
+
+        public InterceptorFilter getInterceptorFilter() {
+            // Packets are audited before they are processed
+            return new InterceptorFilter(null, null, false, null);
+        }
 
         public void interceptPacket(Packet packet, Session session, boolean read, boolean processed) {
             if (!processed) {
@@ -24,7 +24,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.lockout.LockOutManager;
+import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.Blowfish;
 import org.jivesoftware.util.ClassUtils;
@@ -42,7 +45,11 @@ import org.slf4j.LoggerFactory;
  * system property. For example, if you have configured Openfire to use LDAP for user information,
  * you'd want to send a custom implementation of AuthFactory to make LDAP auth queries.
  * After changing the <code>AuthProvider.className</code> system property, you must restart your
- * application server.
+ * application server.<p>
+ *
+ * Plain text authentications may be answered without calling the provider, either by sharing
+ * the result of a concurrent authentication of the same user or from a cache of password
+ * verifiers. See {@link AuthenticationCache} for the properties of the cache.
  *
  * @author Matt Tucker
  */
@@ -54,6 +61,7 @@ public class AuthFactory {
     private static MessageDigest digest;
     private static final Object DIGEST_LOCK = new Object();
     private static Blowfish cipher = null;
+    private static final AuthenticationCache authenticationCache = new AuthenticationCache();
 
     static {
         // Create a message digest instance.
@@ -87,6 +95,23 @@ public class AuthFactory {
             }
         };
         PropertyEventDispatcher.addListener(propListener);
+
+        // Forget the verifiers of users whose password changed or that were deleted
+        UserEventDispatcher.addListener(new UserEventListener() {
+            public void userCreated(User user, Map<String, Object> params) {
+                authenticationCache.invalidate(user.getUsername());
+            }
+
+            public void userDeleting(User user, Map<String, Object> params) {
+                authenticationCache.invalidate(user.getUsername());
+            }
+
+            public void userModified(User user, Map<String, Object> params) {
+                if ("passwordModified".equals(params.get("type"))) {
+                    authenticationCache.invalidate(user.getUsername());
+                }
+            }
+        });
     }
 
     private static void initProvider() {
@@ -100,6 +125,7 @@ public class AuthFactory {
             try {
                 Class c = ClassUtils.forName(className);
                 authProvider = (AuthProvider)c.newInstance();
+                authenticationCache.clear();
             }
             catch (Exception e) {
                 Log.error("Error loading auth provider: " + className, e);
@@ -173,7 +199,7 @@ public class AuthFactory {
             LockOutManager.getInstance().recordFailedLogin(username);
             throw new UnauthorizedException();
         }
-        authProvider.authenticate(username, password);
+        authenticationCache.authenticate(authProvider, username, password);
         return new AuthToken(username);
     }
 
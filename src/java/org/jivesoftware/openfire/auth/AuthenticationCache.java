@@ -0,0 +1,358 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+
+/**
+ * Shields the {@link AuthProvider} from repeated plain text authentications, such as the
+ * ones of clients reconnecting all at once after a network outage.<p>
+ *
+ * Concurrent authentications of the same user with the same password are always coalesced
+ * into a single call to the provider. When <tt>auth.verificationCache.enabled</tt> is true,
+ * successful authentications are also remembered for <tt>auth.verificationCache.ttl</tt>
+ * seconds (5 minutes by default). Passwords are never cached: the cache only holds a salted
+ * hash of the password that is iterated <tt>auth.verificationCache.iterations</tt> times
+ * (4096 by default). Failed authentications are not cached so that they are always counted
+ * by the lockout manager and reach the provider.
+ */
+class AuthenticationCache {
+
+    /**
+     * Name of the cache that holds the verifiers of the passwords of users.
+     */
+    static final String CACHE_NAME = "Authentication Verifiers";
+
+    private static final LatencyHistogram providerTime = new LatencyHistogram();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong coalescedAuthentications = new AtomicLong();
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Number of generation counters. Users share counters, so invalidating a user may also
+     * stop an authentication of another user from caching its verifier, which is harmless.
+     */
+    private static final int GENERATIONS = 256;
+
+    private volatile Cache<String, Verifier> cache;
+    /**
+     * Authentications in progress, keyed by username.
+     */
+    private final ConcurrentMap<String, PendingAuthentication> pending =
+            new ConcurrentHashMap<String, PendingAuthentication>();
+    /**
+     * Counters that are increased when the verifiers of users are invalidated. Authentications
+     * that started before an invalidation neither cache a verifier nor share their result
+     * with authentications that started after it, since they may have checked an old password.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    AuthenticationCache() {
+        StatisticsManager.getInstance().addStatistic("authProviderTime",
+                new LatencyStatistic("auth.provider_time", providerTime));
+        StatisticsManager.getInstance().addStatistic("authCacheHits",
+                new i18nStatistic("auth.cache_hits", Statistic.Type.count) {
+                    public double sample() {
+                        return cacheHits.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("authCoalesced",
+                new i18nStatistic("auth.coalesced", Statistic.Type.count) {
+                    public double sample() {
+                        return coalescedAuthentications.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Authenticates a user with a plain text password, using a cached verifier or the result
+     * of a concurrent authentication of the user with the same password when possible.
+     *
+     * @param provider the provider that authenticates the user.
+     * @param username the username.
+     * @param password the password.
+     * @throws UnauthorizedException if the username and password do not match.
+     * @throws ConnectionException if the provider could not be reached.
+     * @throws InternalUnauthenticatedException if the provider could not authenticate the user.
+     */
+    void authenticate(AuthProvider provider, String username, String password)
+            throws UnauthorizedException, ConnectionException, InternalUnauthenticatedException {
+        if (username == null || password == null) {
+            provider.authenticate(username, password);
+            return;
+        }
+        int generationIndex = getGenerationIndex(username);
+        long generation = generations.get(generationIndex);
+        Cache<String, Verifier> verifiers = getCache();
+        if (verifiers != null) {
+            Verifier verifier = verifiers.get(username);
+            if (verifier != null && verifier.matches(password)) {
+                cacheHits.incrementAndGet();
+                return;
+            }
+        }
+
+        PendingAuthentication authentication = new PendingAuthentication(password, generation);
+        PendingAuthentication existing = pending.putIfAbsent(username, authentication);
+        if (existing != null) {
+            if (existing.generation != generation) {
+                // The pending authentication started before the user was invalidated
+                if (!pending.replace(username, existing, authentication)) {
+                    authentication = null;
+                }
+            }
+            else if (existing.password.equals(password)) {
+                coalescedAuthentications.incrementAndGet();
+                existing.getResult();
+                return;
+            }
+            else {
+                // Another password is being checked so authenticate separately
+                authentication = null;
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            try {
+                provider.authenticate(username, password);
+            }
+            finally {
+                providerTime.recordSince(start);
+            }
+            if (authentication != null) {
+                authentication.setResult(null);
+            }
+        }
+        catch (Exception e) {
+            if (authentication != null) {
+                authentication.setResult(e);
+            }
+            rethrow(e);
+        }
+        finally {
+            if (authentication != null) {
+                pending.remove(username, authentication);
+            }
+        }
+        if (verifiers != null && generations.get(generationIndex) == generation) {
+            verifiers.put(username, new Verifier(password,
+                    JiveGlobals.getIntProperty("auth.verificationCache.iterations", 4096),
+                    JiveGlobals.getIntProperty("auth.verificationCache.ttl", 300) * 1000L));
+            if (generations.get(generationIndex) != generation) {
+                // The user was invalidated while the verifier was being cached
+                verifiers.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Removes the verifier of a user, for instance because the password of the user changed.
+     * Authentications of the user that are in progress will not cache their verifier.
+     *
+     * @param username the username.
+     */
+    void invalidate(String username) {
+        // Increase the generation before removing the verifier so that an authentication
+        // caching its verifier at the same time removes it again
+        generations.incrementAndGet(getGenerationIndex(username));
+        Cache<String, Verifier> verifiers = cache;
+        if (verifiers != null) {
+            verifiers.remove(username);
+        }
+    }
+
+    /**
+     * Removes all the verifiers, for instance because the provider changed.
+     */
+    void clear() {
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations.incrementAndGet(i);
+        }
+        Cache<String, Verifier> verifiers = cache;
+        if (verifiers != null) {
+            verifiers.clear();
+        }
+    }
+
+    /**
+     * Returns the cache of verifiers or <tt>null</tt> if verifiers are not cached.
+     */
+    private Cache<String, Verifier> getCache() {
+        if (!JiveGlobals.getBooleanProperty("auth.verificationCache.enabled", false)) {
+            return null;
+        }
+        if (cache == null) {
+            synchronized (this) {
+                if (cache == null) {
+                    cache = CacheFactory.createCache(CACHE_NAME);
+                }
+            }
+        }
+        return cache;
+    }
+
+    private static int getGenerationIndex(String username) {
+        return (username.hashCode() & 0x7fffffff) % GENERATIONS;
+    }
+
+    private static void rethrow(Exception e)
+            throws UnauthorizedException, ConnectionException, InternalUnauthenticatedException {
+        if (e instanceof UnauthorizedException) {
+            throw (UnauthorizedException) e;
+        }
+        else if (e instanceof ConnectionException) {
+            throw (ConnectionException) e;
+        }
+        else if (e instanceof InternalUnauthenticatedException) {
+            throw (InternalUnauthenticatedException) e;
+        }
+        else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        throw new InternalUnauthenticatedException(e);
+    }
+
+    /**
+     * Authentication in progress whose result is shared with the concurrent authentications
+     * of the same user with the same password.
+     */
+    private static class PendingAuthentication {
+
+        private final String password;
+        private final long generation;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception failure;
+
+        PendingAuthentication(String password, long generation) {
+            this.password = password;
+            this.generation = generation;
+        }
+
+        void setResult(Exception failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void getResult()
+                throws UnauthorizedException, ConnectionException, InternalUnauthenticatedException {
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InternalUnauthenticatedException(e);
+            }
+            if (failure != null) {
+                rethrow(failure);
+            }
+        }
+    }
+
+    /**
+     * Salted and iterated hash of a password that was successfully authenticated.
+     */
+    private static class Verifier implements Cacheable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+        private final long expires;
+
+        Verifier(String password, int iterations, long ttl) {
+            this.salt = new byte[16];
+            random.nextBytes(salt);
+            this.iterations = Math.max(1, iterations);
+            this.hash = hash(salt, password, this.iterations);
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        boolean matches(String password) {
+            if (System.currentTimeMillis() > expires) {
+                return false;
+            }
+            byte[] other = hash(salt, password, iterations);
+            if (hash == null || other == null || hash.length != other.length) {
+                return false;
+            }
+            // Compare all the bytes so that the time does not depend on the first difference
+            int difference = 0;
+            for (int i = 0; i < hash.length; i++) {
+                difference |= hash[i] ^ other[i];
+            }
+            return difference == 0;
+        }
+
+        private static byte[] hash(byte[] salt, String password, int iterations) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(salt);
+                byte[] hash = digest.digest(password.getBytes("UTF-8"));
+                for (int i = 1; i < iterations; i++) {
+                    digest.update(hash);
+                    digest.update(salt);
+                    hash = digest.digest();
+                }
+                return hash;
+            }
+            catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+
+        public int getCachedSize() {
+            return CacheSizes.sizeOfObject() + 2 * (CacheSizes.sizeOfObject() + 32) +
+                    CacheSizes.sizeOfInt() + CacheSizes.sizeOfLong();
+        }
+    }
+}
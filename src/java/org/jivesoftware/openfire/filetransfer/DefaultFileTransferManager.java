@@ -24,8 +24,9 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyConnectionManager;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyTransfer;
+import org.jivesoftware.openfire.interceptor.FilteredPacketInterceptor;
+import org.jivesoftware.openfire.interceptor.InterceptorFilter;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
-import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.JiveGlobals;
@@ -36,6 +37,7 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -177,7 +179,14 @@ public class DefaultFileTransferManager extends BasicModule implements FileTrans
     /**
      * Interceptor to grab and validate file transfer meta information.
      */
-    private class MetaFileTransferInterceptor implements PacketInterceptor {
+    private class MetaFileTransferInterceptor implements FilteredPacketInterceptor {
+
+        public InterceptorFilter getInterceptorFilter() {
+            // Only stream initiation requests received by the server are checked
+            return new InterceptorFilter(Collections.<Class<? extends Packet>>singleton(IQ.class),
+                    true, false, Collections.singleton(NAMESPACE_SI));
+        }
+
         public void interceptPacket(Packet packet, Session session, boolean incoming,
                                     boolean processed)
                 throws PacketRejectedException
@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.filetransfer.proxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Future;
 
 import org.jivesoftware.util.cache.CacheSizes;
@@ -50,7 +51,15 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
     private Future<?> future;
 
-    private long amountWritten;
+    private volatile long amountWritten;
+
+    /**
+     * Connections of the initiator and the target when they can be served by the
+     * {@link ProxyRelay}.
+     */
+    private transient SocketChannel initiatorChannel;
+
+    private transient SocketChannel targetChannel;
 
     private static final int BUFFER_SIZE = 8000;
 
@@ -106,6 +115,22 @@ public class DefaultProxyTransfer implements ProxyTransfer {
     }
 
 
+    SocketChannel getInitiatorChannel() {
+        return initiatorChannel;
+    }
+
+    void setInitiatorChannel(SocketChannel initiatorChannel) {
+        this.initiatorChannel = initiatorChannel;
+    }
+
+    SocketChannel getTargetChannel() {
+        return targetChannel;
+    }
+
+    void setTargetChannel(SocketChannel targetChannel) {
+        this.targetChannel = targetChannel;
+    }
+
     public boolean isActivatable() {
         return ((inputStream != null) && (outputStream != null));
     }
@@ -121,6 +146,10 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         return amountWritten;
     }
 
+    void addAmountTransfered(long amount) {
+        amountWritten += amount;
+    }
+
     public void doTransfer() throws IOException {
         if (!isActivatable()) {
             throw new IOException("Transfer missing party");
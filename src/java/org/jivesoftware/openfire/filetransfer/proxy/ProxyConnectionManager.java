@@ -25,11 +25,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.jivesoftware.openfire.auth.UnauthorizedException;
@@ -41,6 +42,7 @@ import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.ClassUtils;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,12 +66,17 @@ public class ProxyConnectionManager {
 
     private final Object connectionLock = new Object();
 
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    /**
+     * Runs the accepting loop and the transfers, which spend their time blocked on sockets.
+     */
+    private ExecutorService executor = TaskEngine.getInstance().newBlockingExecutor("proxy");
 
     private Future<?> socketProcess;
 
     private ServerSocket serverSocket;
 
+    private ProxyRelay relay;
+
     private int proxyPort;
 
     private FileTransferManager transferManager;
@@ -101,7 +108,10 @@ public class ProxyConnectionManager {
         socketProcess = executor.submit(new Runnable() {
             public void run() {
                 try {
-                    serverSocket = new ServerSocket(port, -1, bindInterface);
+                    // Accept connections through a channel so that transfers can be relayed
+                    // with non-blocking I/O
+                    serverSocket = ServerSocketChannel.open().socket();
+                    serverSocket.bind(new InetSocketAddress(bindInterface, port));
                 }
                 catch (IOException e) {
                     Log.error("Error creating server socket", e);
@@ -196,6 +206,9 @@ public class ProxyConnectionManager {
                 }
                 else {
                     transfer.setInputStream(connection.getInputStream());
+                    if (transfer instanceof DefaultProxyTransfer) {
+                        ((DefaultProxyTransfer) transfer).setInitiatorChannel(connection.getChannel());
+                    }
                 }
             }
             cmd = createOutgoingSocks5Message(0, responseDigest);
@@ -222,6 +235,9 @@ public class ProxyConnectionManager {
 
         provider.setTransferDigest(transferDigest);
         provider.setOutputStream(targetSocket.getOutputStream());
+        if (provider instanceof DefaultProxyTransfer) {
+            ((DefaultProxyTransfer) provider).setTargetChannel(targetSocket.getChannel());
+        }
         return provider;
     }
 
@@ -269,6 +285,10 @@ public class ProxyConnectionManager {
     synchronized void shutdown() {
         disable();
         executor.shutdown();
+        if (relay != null) {
+            relay.shutdown();
+            relay = null;
+        }
         StatisticsManager.getInstance().removeStatistic(proxyTransferRate);
     }
 
@@ -309,6 +329,9 @@ public class ProxyConnectionManager {
                     notifyFailure(transfer, e);
                     return;
                 }
+                if (relay(transfer, digest)) {
+                    return;
+                }
                 try {
                     transfer.doTransfer();
                 }
@@ -322,6 +345,42 @@ public class ProxyConnectionManager {
         }));
     }
 
+    /**
+     * Hands over a transfer to the {@link ProxyRelay} when both of its connections can use
+     * non-blocking I/O and the <tt>xmpp.proxy.transfer.nio</tt> property is true (the default).
+     *
+     * @return true if the transfer is served by the relay.
+     */
+    private boolean relay(ProxyTransfer transfer, final String digest) {
+        if (!(transfer instanceof DefaultProxyTransfer) ||
+                !JiveGlobals.getBooleanProperty("xmpp.proxy.transfer.nio", true)) {
+            return false;
+        }
+        DefaultProxyTransfer defaultTransfer = (DefaultProxyTransfer) transfer;
+        if (defaultTransfer.getInitiatorChannel() == null ||
+                defaultTransfer.getTargetChannel() == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (relay == null) {
+                try {
+                    relay = new ProxyRelay();
+                }
+                catch (IOException e) {
+                    Log.error("Error creating file transfer relay", e);
+                    return false;
+                }
+            }
+            relay.relay(defaultTransfer, defaultTransfer.getInitiatorChannel(),
+                    defaultTransfer.getTargetChannel(), new Runnable() {
+                public void run() {
+                    connectionMap.remove(digest);
+                }
+            });
+        }
+        return true;
+    }
+
     private void notifyFailure(ProxyTransfer transfer, FileTransferRejectedException e) {
 
     }
@@ -0,0 +1,334 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the data of activated bytestreams from the initiator to the target using
+ * non-blocking channels. A single thread serves all the transfers using a selector, and data
+ * is moved through a direct buffer per transfer so that it does not need to be copied into
+ * the Java heap.<p>
+ *
+ * The bandwidth of each transfer is limited by the <tt>xmpp.proxy.transfer.rate</tt> property
+ * and the bandwidth of all transfers by the <tt>xmpp.proxy.rate</tt> property. Both are in
+ * bytes per second and 0 (the default) means no limit. The size of the buffer of each
+ * transfer is defined by the <tt>xmpp.proxy.buffer.size</tt> property.
+ */
+class ProxyRelay implements Runnable {
+
+    private static final Logger Log = LoggerFactory.getLogger(ProxyRelay.class);
+
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /**
+     * Transfers waiting to be registered with the selector.
+     */
+    private final Queue<Relay> pending = new ConcurrentLinkedQueue<Relay>();
+    /**
+     * Transfers served by the relay. Only used by the relay thread.
+     */
+    private final Set<Relay> relays = new HashSet<Relay>();
+    /**
+     * Limit of the bandwidth of all transfers. Only used by the relay thread.
+     */
+    private final RateLimiter globalLimiter = new RateLimiter(0);
+
+    ProxyRelay() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "File Transfer Proxy Relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts relaying data from the initiator of a transfer to its target. Both channels are
+     * closed once the initiator closed its connection and all its data was sent to the
+     * target, or as soon as an error occurs.
+     *
+     * @param transfer the transfer whose data is relayed.
+     * @param source the connection of the initiator.
+     * @param target the connection of the target.
+     * @param onComplete task to run once the transfer is over.
+     */
+    void relay(DefaultProxyTransfer transfer, SocketChannel source, SocketChannel target,
+            Runnable onComplete) {
+        pending.add(new Relay(transfer, source, target, onComplete));
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the relay and closes the connections of the transfers in progress.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                globalLimiter.setRate(JiveGlobals.getLongProperty("xmpp.proxy.rate", 0));
+                Relay relay;
+                while ((relay = pending.poll()) != null) {
+                    relay.register();
+                }
+                // Resume the transfers whose bandwidth limit allows to read again
+                long now = System.currentTimeMillis();
+                long timeout = 0;
+                for (Relay throttled : new ArrayList<Relay>(relays)) {
+                    if (throttled.resumeAt > 0) {
+                        if (throttled.resumeAt <= now) {
+                            throttled.resumeAt = 0;
+                            throttled.updateInterests();
+                        }
+                        else if (timeout == 0 || throttled.resumeAt - now < timeout) {
+                            timeout = throttled.resumeAt - now;
+                        }
+                    }
+                }
+                selector.select(timeout);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    relay = (Relay) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            relay.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            relay.write();
+                        }
+                    }
+                    catch (IOException e) {
+                        Log.debug("ProxyRelay: Error relaying transfer: " +
+                                relay.transfer.getTransferDigest(), e);
+                        relay.close();
+                    }
+                }
+            }
+            catch (Exception e) {
+                Log.error("ProxyRelay: Error relaying file transfers", e);
+            }
+        }
+        for (Relay relay : new ArrayList<Relay>(relays)) {
+            relay.close();
+        }
+        Relay relay;
+        while ((relay = pending.poll()) != null) {
+            relay.close();
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * A transfer served by the relay. Data read from the source is kept in the buffer until
+     * it could be written to the target, and no more data is read while the buffer is full.
+     */
+    private class Relay {
+
+        private final DefaultProxyTransfer transfer;
+        private final SocketChannel source;
+        private final SocketChannel target;
+        private final Runnable onComplete;
+        private final ByteBuffer buffer;
+        private final RateLimiter limiter;
+        private SelectionKey sourceKey;
+        private SelectionKey targetKey;
+        private boolean eof = false;
+        private boolean closed = false;
+        /**
+         * Time when the transfer may read again or 0 if the transfer is not throttled.
+         */
+        private long resumeAt = 0;
+
+        Relay(DefaultProxyTransfer transfer, SocketChannel source, SocketChannel target,
+                Runnable onComplete) {
+            this.transfer = transfer;
+            this.source = source;
+            this.target = target;
+            this.onComplete = onComplete;
+            this.buffer = ByteBuffer.allocateDirect(
+                    Math.max(1024, JiveGlobals.getIntProperty("xmpp.proxy.buffer.size", 65536)));
+            this.limiter = new RateLimiter(JiveGlobals.getLongProperty("xmpp.proxy.transfer.rate", 0));
+        }
+
+        void register() {
+            try {
+                source.configureBlocking(false);
+                target.configureBlocking(false);
+                sourceKey = source.register(selector, SelectionKey.OP_READ, this);
+                targetKey = target.register(selector, 0, this);
+                relays.add(this);
+            }
+            catch (IOException e) {
+                Log.debug("ProxyRelay: Error starting transfer: " + transfer.getTransferDigest(), e);
+                close();
+            }
+        }
+
+        void read() throws IOException {
+            long now = System.currentTimeMillis();
+            long allowed = Math.min(buffer.remaining(),
+                    Math.min(limiter.available(now), globalLimiter.available(now)));
+            if (allowed <= 0) {
+                resumeAt = now + Math.max(limiter.waitTime(), globalLimiter.waitTime());
+                updateInterests();
+                return;
+            }
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) allowed);
+            int count = source.read(buffer);
+            buffer.limit(limit);
+            if (count < 0) {
+                eof = true;
+            }
+            else {
+                limiter.consume(count);
+                globalLimiter.consume(count);
+            }
+            write();
+        }
+
+        void write() throws IOException {
+            buffer.flip();
+            int count = target.write(buffer);
+            buffer.compact();
+            if (count > 0) {
+                transfer.addAmountTransfered(count);
+                ProxyOutputStream.amountTransfered.addAndGet(count);
+            }
+            updateInterests();
+        }
+
+        void updateInterests() {
+            if (closed) {
+                return;
+            }
+            boolean pendingData = buffer.position() > 0;
+            if (eof && !pendingData) {
+                close();
+                return;
+            }
+            targetKey.interestOps(pendingData ? SelectionKey.OP_WRITE : 0);
+            sourceKey.interestOps(!eof && resumeAt == 0 && buffer.hasRemaining() ?
+                    SelectionKey.OP_READ : 0);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            relays.remove(this);
+            try {
+                source.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+            try {
+                target.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+            try {
+                onComplete.run();
+            }
+            catch (Exception e) {
+                Log.error("ProxyRelay: Error completing transfer: " +
+                        transfer.getTransferDigest(), e);
+            }
+        }
+    }
+
+    /**
+     * Token bucket that limits a bandwidth and allows bursts of up to one second of traffic.
+     */
+    private static class RateLimiter {
+
+        private long rate;
+        private long tokens;
+        private long lastRefill = System.currentTimeMillis();
+
+        RateLimiter(long rate) {
+            setRate(rate);
+        }
+
+        void setRate(long rate) {
+            if (this.rate != rate) {
+                this.rate = rate;
+                this.tokens = rate;
+            }
+        }
+
+        /**
+         * Returns the number of bytes that may be transferred now.
+         */
+        long available(long now) {
+            if (rate <= 0) {
+                return Long.MAX_VALUE;
+            }
+            if (now > lastRefill) {
+                tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000);
+                lastRefill = now;
+            }
+            return tokens;
+        }
+
+        void consume(long count) {
+            if (rate > 0) {
+                tokens -= count;
+            }
+        }
+
+        /**
+         * Returns the time in milliseconds to wait before a reasonable amount of data (a
+         * twentieth of the rate) may be transferred.
+         */
+        long waitTime() {
+            if (rate <= 0 || tokens > 0) {
+                return 0;
+            }
+            return Math.max(1, (rate / 20 - tokens) * 1000 / rate);
+        }
+    }
+}
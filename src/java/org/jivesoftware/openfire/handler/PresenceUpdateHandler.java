@@ -25,6 +25,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.openfire.ChannelHandler;
@@ -46,8 +48,15 @@ import org.jivesoftware.openfire.roster.RosterManager;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.HashedWheelTimer;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -95,6 +104,15 @@ import org.xmpp.packet.Presence;
  * as they are received.  Requires S2S capabilities.
  * </ul>
  *
+ * Presence updates of available sessions are damped so that clients that keep changing
+ * their status do not flood the contacts of their users. Updates identical to the last
+ * broadcast presence of a session are dropped. Each user may broadcast
+ * <tt>xmpp.presence.damping.burst</tt> updates in a row (5 by default), and then one per
+ * <tt>xmpp.presence.damping.window</tt> milliseconds (5000 by default). Updates sent faster
+ * than that are coalesced: only the last one is broadcast when the window expires. Damping
+ * can be disabled with the <tt>xmpp.presence.damping.enabled</tt> property. The initial
+ * presence and unavailable presences are never damped.
+ *
  * @author Iain Shigeoka
  */
 public class PresenceUpdateHandler extends BasicModule implements ChannelHandler, ClusterEventListener {
@@ -116,6 +134,26 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
      * users connected to this JVM.
      */
     private Map<String, Collection<DirectedPresence>> localDirectedPresences;
+    /**
+     * Time spent sending the initial presence of sessions and probing their contacts.
+     */
+    private final LatencyHistogram loginFanOutTime = new LatencyHistogram();
+    /**
+     * Number of contacts that were sent initial presences or probed since the last sample.
+     */
+    private final AtomicLong loginFanOutContacts = new AtomicLong();
+    /**
+     * Damping state of the users that recently updated their presence. Key: username.
+     */
+    private final ConcurrentHashMap<String, Damper> dampers = new ConcurrentHashMap<String, Damper>();
+    /**
+     * Number of updates identical to the last broadcast presence since the last sample.
+     */
+    private final AtomicLong suppressedPresences = new AtomicLong();
+    /**
+     * Number of updates replaced by a later update since the last sample.
+     */
+    private final AtomicLong coalescedPresences = new AtomicLong();
 
     private RoutingTable routingTable;
     private RosterManager rosterManager;
@@ -135,7 +173,7 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
         process((Presence) packet, sessionManager.getSession(packet.getFrom()));
     }
 
-    private void process(Presence presence, ClientSession session) throws UnauthorizedException, PacketException {
+    void process(Presence presence, ClientSession session) throws UnauthorizedException, PacketException {
         try {
             Presence.Type type = presence.getType();
             // Available
@@ -144,12 +182,24 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
                     Log.warn("Rejected available presence: " + presence + " - " + session);
                     return;
                 }
-                broadcastUpdate(presence.createCopy());
-                if (session != null) {
+                if (session != null && !session.isInitialized()) {
+                    // The session becomes available for the first time
+                    long start = System.nanoTime();
                     session.setPresence(presence);
-                    if (!session.isInitialized()) {
-                        initSession(session);
-                        session.setInitialized(true);
+                    int contacts = broadcastInitialPresence(presence.createCopy(), session);
+                    initSession(session);
+                    session.setInitialized(true);
+                    loginFanOutTime.recordSince(start);
+                    loginFanOutContacts.addAndGet(contacts);
+                }
+                else if (session != null && dampUpdate(presence, session)) {
+                    // The update was suppressed or will be broadcast later
+                    return;
+                }
+                else {
+                    broadcastUpdate(presence.createCopy());
+                    if (session != null) {
+                        session.setPresence(presence);
                     }
                 }
                 // Notify the presence manager that the user is now available. The manager may
@@ -157,6 +207,10 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
                 presenceManager.userAvailable(presence);
             }
             else if (Presence.Type.unavailable == type) {
+                if (session != null) {
+                    // Going offline supersedes any update waiting to be broadcast
+                    cancelDampedUpdate(session);
+                }
                 broadcastUpdate(presence.createCopy());
                 broadcastUnavailableForDirectedPresences(presence);
                 if (session != null) {
@@ -188,6 +242,66 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
         }
     }
 
+    /**
+     * Applies damping to a presence update of an available session. The update is dropped if
+     * it is identical to the last broadcast presence of the session, replaces the update of
+     * the session waiting to be broadcast if there is one, or waits to be broadcast if the
+     * user sent too many updates recently.
+     *
+     * @param presence the presence update sent by the session.
+     * @param session the session that sent the update.
+     * @return true if the update must not be broadcast now.
+     */
+    private boolean dampUpdate(Presence presence, ClientSession session) {
+        String username = session.getAddress().getNode();
+        if (username == null || !JiveGlobals.getBooleanProperty("xmpp.presence.damping.enabled", true)) {
+            return false;
+        }
+        while (true) {
+            Damper damper = dampers.get(username);
+            if (damper == null) {
+                damper = new Damper(username);
+                Damper existing = dampers.putIfAbsent(username, damper);
+                damper = existing == null ? damper : existing;
+            }
+            synchronized (damper) {
+                if (damper.removed) {
+                    // The damper was discarded in the meantime
+                    continue;
+                }
+                return damper.damp(presence, session);
+            }
+        }
+    }
+
+    /**
+     * Discards the update of the session waiting to be broadcast, if any.
+     *
+     * @param session the session that became unavailable.
+     */
+    private void cancelDampedUpdate(ClientSession session) {
+        String username = session.getAddress().getNode();
+        Damper damper = username == null ? null : dampers.get(username);
+        if (damper != null) {
+            synchronized (damper) {
+                if (damper.pending.remove(session.getAddress()) != null) {
+                    coalescedPresences.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the content of a presence without the attributes that change with each packet.
+     */
+    private static String getContent(Presence presence) {
+        Presence copy = presence.createCopy();
+        copy.setID(null);
+        copy.setFrom((JID) null);
+        copy.setTo((JID) null);
+        return copy.toXML();
+    }
+
     /**
      * Handle presence updates that affect roster subscriptions.
      *
@@ -227,6 +341,7 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
      * <li>Sending all offline presence subscription requests</li>
      * <li>Sending offline messages</li>
      * </ul>
+     * The presence of the contacts is probed by {@link #broadcastInitialPresence}.
      *
      * @param session The session being updated
      * @throws UserNotFoundException If the user being updated does not exist
@@ -248,10 +363,6 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
                         session.process(createSubscribePresence(item.getJid(),
                                 new JID(session.getAddress().toBareJID()), false));
                     }
-                    if (item.getSubStatus() == RosterItem.SUB_TO
-                            || item.getSubStatus() == RosterItem.SUB_BOTH) {
-                        presenceManager.probePresence(session.getAddress(), item.getJid());
-                    }
                 }
             }
             if (session.canFloodOfflineMessages()) {
@@ -277,6 +388,35 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
         return presence;
     }
 
+    /**
+     * Broadcasts the initial presence of a session to the subscribers of its user and probes
+     * the presence of the contacts the user is subscribed to. Both are done in a single pass
+     * over the roster of the user so that the routes of each contact are only looked up once.
+     *
+     * @param update the initial presence sent by the session.
+     * @param session the session that becomes available.
+     * @return the number of contacts that received the presence or were probed.
+     */
+    private int broadcastInitialPresence(Presence update, ClientSession session) {
+        JID from = session.getAddress();
+        if (!RosterManager.isRosterServiceEnabled() || from.getNode() == null ||
+                !userManager.isRegisteredUser(from.getNode())) {
+            broadcastUpdate(update);
+            return 0;
+        }
+        try {
+            Roster roster = rosterManager.getRoster(from.getNode());
+            return roster.broadcastInitialPresence(update, session);
+        }
+        catch (UserNotFoundException e) {
+            Log.warn("Presence being sent from unknown user " + from.getNode(), e);
+        }
+        catch (PacketException e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+        return 0;
+    }
+
     /**
      * Broadcast the given update to all subscribers. We need to:
      * <ul>
@@ -289,7 +429,7 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
      *
      * @param update The update to broadcast
      */
-    private void broadcastUpdate(Presence update) {
+    void broadcastUpdate(Presence update) {
         if (update.getFrom() == null) {
             return;
         }
@@ -542,6 +682,38 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
         userManager = server.getUserManager();
         routingTable = server.getRoutingTable();
         directedPresencesCache = CacheFactory.createCache(PRESENCE_CACHE_NAME);
+        StatisticsManager.getInstance().addStatistic("presenceLoginFanOutTime",
+                new LatencyStatistic("presence.login_fanout_time", loginFanOutTime));
+        StatisticsManager.getInstance().addStatistic("presenceLoginFanOut",
+                new i18nStatistic("presence.login_fanout", Statistic.Type.count) {
+                    public double sample() {
+                        return loginFanOutContacts.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("presenceSuppressed",
+                new i18nStatistic("presence.suppressed", Statistic.Type.count) {
+                    public double sample() {
+                        return suppressedPresences.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("presenceCoalesced",
+                new i18nStatistic("presence.coalesced", Statistic.Type.count) {
+                    public double sample() {
+                        return coalescedPresences.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
         // TODO Add as route listener (to remove direct presences info for removed routes). Mainly for c2s sessions which is uncommon.
         // Listen to cluster events
         ClusterManager.addListener(this);
@@ -612,4 +784,139 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
     public void markedAsSeniorClusterMember() {
         // Do nothing
     }
+
+    /**
+     * Damping state of a user: a token bucket that limits the updates the user may broadcast
+     * and the last update of each session that exceeded the limit. Updates waiting to be
+     * broadcast are sent when a token is available, and the damper discards itself once
+     * its bucket is full again.
+     */
+    private class Damper implements Runnable {
+
+        private final String username;
+        private final int burst = Math.max(1, JiveGlobals.getIntProperty("xmpp.presence.damping.burst", 5));
+        private final long window = Math.max(1, JiveGlobals.getLongProperty("xmpp.presence.damping.window", 5000));
+        private final Map<JID, HeldUpdate> pending = new HashMap<JID, HeldUpdate>();
+        private double tokens = burst;
+        private long lastRefill = now();
+        private HashedWheelTimer.Timeout timeout;
+        private long runAt;
+        private boolean removed = false;
+
+        Damper(String username) {
+            this.username = username;
+        }
+
+        /**
+         * Returns true if the update must not be broadcast now. Must be called while holding
+         * the lock of the damper.
+         */
+        boolean damp(Presence presence, ClientSession session) {
+            JID address = session.getAddress();
+            if (pending.containsKey(address)) {
+                // Last value wins
+                pending.put(address, new HeldUpdate(session, presence));
+                coalescedPresences.incrementAndGet();
+                return true;
+            }
+            Presence current = session.getPresence();
+            if (current != null && getContent(presence).equals(getContent(current))) {
+                suppressedPresences.incrementAndGet();
+                return true;
+            }
+            refill();
+            if (tokens >= 1) {
+                tokens--;
+                schedule((long) Math.ceil((burst - tokens) * window));
+                return false;
+            }
+            pending.put(address, new HeldUpdate(session, presence));
+            schedule((long) Math.ceil((1 - tokens) * window));
+            return true;
+        }
+
+        public synchronized void run() {
+            timeout = null;
+            refill();
+            // Broadcast while holding the lock so that a newer update or an unavailable presence
+            // of the session waits for the held update to be broadcast instead of overtaking it
+            for (HeldUpdate update : pending.values()) {
+                tokens--;
+                release(update.session, update.presence);
+            }
+            pending.clear();
+            // Discard the damper only once the held updates were broadcast
+            if (tokens >= burst) {
+                removed = true;
+                dampers.remove(username, this);
+            }
+            else {
+                schedule((long) Math.ceil((burst - tokens) * window));
+            }
+        }
+
+        /**
+         * Broadcasts an update that was held. Must be called while holding the lock of
+         * the damper.
+         */
+        private void release(ClientSession session, Presence presence) {
+            if (session.getStatus() == Session.STATUS_CLOSED) {
+                return;
+            }
+            Presence current = session.getPresence();
+            if (current != null && getContent(presence).equals(getContent(current))) {
+                // The session went back to the presence that was broadcast
+                suppressedPresences.incrementAndGet();
+                return;
+            }
+            try {
+                broadcastUpdate(presence.createCopy());
+                session.setPresence(presence);
+                presenceManager.userAvailable(presence);
+            }
+            catch (Exception e) {
+                Log.error(LocaleUtils.getLocalizedString("admin.error") +
+                        ". Triggered by packet: " + presence, e);
+            }
+        }
+
+        /**
+         * Makes the damper run after the specified delay unless it is going to run earlier.
+         */
+        private void schedule(long delay) {
+            long time = now() + delay;
+            if (timeout != null) {
+                if (runAt <= time) {
+                    return;
+                }
+                timeout.cancel();
+            }
+            runAt = time;
+            timeout = HashedWheelTimer.getInstance().schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void refill() {
+            long now = now();
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) / window);
+            lastRefill = now;
+        }
+
+        private long now() {
+            return System.nanoTime() / 1000000;
+        }
+    }
+
+    /**
+     * An update of a session waiting to be broadcast.
+     */
+    private static class HeldUpdate {
+
+        private final ClientSession session;
+        private final Presence presence;
+
+        HeldUpdate(ClientSession session, Presence presence) {
+            this.session = session;
+            this.presence = presence;
+        }
+    }
 }
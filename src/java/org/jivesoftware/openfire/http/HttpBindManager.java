@@ -150,6 +150,7 @@ public final class HttpBindManager {
             // Listen on a specific network interface if it has been set.
             connector.setHost(getBindInterface());
             connector.setPort(port);
+            configureConnector(connector);
             httpConnector = connector;
         }
     }
@@ -188,6 +189,7 @@ public final class HttpBindManager {
                 sslConnector.setKeyPassword(SSLConfig.getKeyPassword());
                 sslConnector.setKeystoreType(SSLConfig.getStoreType());
                 sslConnector.setKeystore(SSLConfig.getKeystoreLocation());
+                configureConnector(sslConnector);
                 httpsConnector = sslConnector;
             }
         }
@@ -196,6 +198,20 @@ public final class HttpBindManager {
         }
     }
 
+    /**
+     * Configures a connector for holding a large number of requests. Requests waiting for a
+     * response are suspended and do not hold a thread, so the number of held requests is
+     * limited by the accept queue and by the number of open sockets rather than by the size
+     * of the thread pool.
+     *
+     * @param connector the connector to configure.
+     */
+    private void configureConnector(SelectChannelConnector connector) {
+        connector.setAcceptors(JiveGlobals.getIntProperty("httpbind.acceptors",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        connector.setAcceptQueueSize(JiveGlobals.getIntProperty("httpbind.acceptqueue.size", 1024));
+    }
+
     private String getBindInterface() {
         String interfaceName = JiveGlobals.getXMLProperty("network.interface");
         String bindInterface = null;
@@ -308,7 +324,8 @@ public final class HttpBindManager {
      */
     private synchronized void configureHttpBindServer(int port, int securePort) {
         httpBindServer = new Server();
-        final QueuedThreadPool tp = new QueuedThreadPool(254);
+        final QueuedThreadPool tp =
+                new QueuedThreadPool(JiveGlobals.getIntProperty("httpbind.threads.max", 254));
         tp.setName("Jetty-QTP-BOSH");
         httpBindServer.setThreadPool(tp);
         
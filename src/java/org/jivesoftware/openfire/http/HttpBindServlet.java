@@ -20,12 +20,16 @@
 package org.jivesoftware.openfire.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -176,14 +180,12 @@ public class HttpBindServlet extends HttpServlet {
         if (session == null) {
             return false;
         }
-        synchronized (session) {
-            try {
-                respond(session, response, session.getResponse((Long) request.getAttribute("request")),
-                        request.getMethod());
-            }
-            catch (HttpBindException e) {
-                sendError(request, response, e.getBindingError(), session);
-            }
+        try {
+            respond(session, request, response,
+                    session.getResponse((HttpConnection) request.getAttribute("request-connection")));
+        }
+        catch (HttpBindException e) {
+            sendError(request, response, e.getBindingError(), session);
         }
         return true;
     }
@@ -198,8 +200,8 @@ public class HttpBindServlet extends HttpServlet {
         try {
         	if ((session.getMajorVersion() == 1 && session.getMinorVersion() >= 6) ||
                 	session.getMajorVersion() > 1) {
-                respond(session, response, createErrorBody(bindingError.getErrorType().getType(),
-                        bindingError.getCondition()), request.getMethod());
+                respond(session, request, response, createErrorBody(bindingError.getErrorType().getType(),
+                        bindingError.getCondition()));
             }
             else {
                 sendLegacyError(response, bindingError);
@@ -240,54 +242,52 @@ public class HttpBindServlet extends HttpServlet {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid SID.");
             return;
         }
-        synchronized (session) {
-            HttpConnection connection;
+        HttpConnection connection;
+        try {
+            connection = sessionManager.forwardRequest(rid, session,
+                    request.isSecure(), rootNode);
+        }
+        catch (HttpBindException e) {
+            sendError(request, response, e.getBindingError(), session);
+            return;
+        }
+        catch (HttpConnectionClosedException nc) {
+            Log.error("Error sending packet to client.", nc);
+            return;
+        }
+
+        String type = rootNode.attributeValue("type");
+        String restartStream = rootNode.attributeValue(new QName("restart", rootNode.getNamespaceForPrefix("xmpp")));
+        int pauseDuration = getIntAttribue(rootNode.attributeValue("pause"), -1);
+
+        if ("terminate".equals(type)) {
+            session.close();
+            respond(session, request, response, createEmptyBody());
+        }
+        else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
             try {
-                connection = sessionManager.forwardRequest(rid, session,
-                        request.isSecure(), rootNode);
+				respond(session, request, response, createSessionRestartResponse(session));
+			}
+			catch (DocumentException e) {
+				Log.error("Error sending session restart response to client.", e);
+			}
+        }
+        else if (pauseDuration > 0 && pauseDuration <= session.getMaxPause()) {
+        	session.pause(pauseDuration);
+            respond(session, request, response, createEmptyBody());
+            session.setLastResponseEmpty(true);
+        }
+        else {
+            session.resetInactivityTimeout();
+            connection.setContinuation(ContinuationSupport.getContinuation(request));
+            request.setAttribute("request-session", connection.getSession());
+            request.setAttribute("request", connection.getRequestId());
+            request.setAttribute("request-connection", connection);
+            try {
+                respond(session, request, response, session.getResponse(connection));
             }
             catch (HttpBindException e) {
                 sendError(request, response, e.getBindingError(), session);
-                return;
-            }
-            catch (HttpConnectionClosedException nc) {
-                Log.error("Error sending packet to client.", nc);
-                return;
-            }
-
-            String type = rootNode.attributeValue("type");
-            String restartStream = rootNode.attributeValue(new QName("restart", rootNode.getNamespaceForPrefix("xmpp")));
-            int pauseDuration = getIntAttribue(rootNode.attributeValue("pause"), -1);
-
-            if ("terminate".equals(type)) {
-                session.close();
-                respond(session, response, createEmptyBody(), request.getMethod());
-            }
-            else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
-                try {
-					respond(session, response, createSessionRestartResponse(session), request.getMethod());
-				}
-				catch (DocumentException e) {
-					Log.error("Error sending session restart response to client.", e);
-				}
-            }
-            else if (pauseDuration > 0 && pauseDuration <= session.getMaxPause()) {
-            	session.pause(pauseDuration);
-                respond(session, response, createEmptyBody(), request.getMethod());
-                session.setLastResponseEmpty(true);
-            }
-            else {
-                session.resetInactivityTimeout();
-                connection.setContinuation(ContinuationSupport.getContinuation(request));
-                request.setAttribute("request-session", connection.getSession());
-                request.setAttribute("request", connection.getRequestId());
-                try {
-                    respond(session, response, session.getResponse(connection.getRequestId()),
-                            request.getMethod());
-                }
-                catch (HttpBindException e) {
-                    sendError(request, response, e.getBindingError(), session);
-                }
             }
         }
     }
@@ -324,7 +324,7 @@ public class HttpBindServlet extends HttpServlet {
             if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
                 System.out.println(new Date()+": HTTP RECV(" + connection.getSession().getStreamID().getID() + "): " + rootNode.asXML());
             }
-            respond(response, connection, request.getMethod());
+            respond(request, response, connection);
         }
         catch (UnauthorizedException e) {
             // Server wasn't initialized yet.
@@ -337,8 +337,8 @@ public class HttpBindServlet extends HttpServlet {
 
     }
 
-    private void respond(HttpServletResponse response, HttpConnection connection, String method)
-            throws IOException
+    private void respond(HttpServletRequest request, HttpServletResponse response,
+            HttpConnection connection) throws IOException
     {
         String content;
         try {
@@ -349,11 +349,12 @@ public class HttpBindServlet extends HttpServlet {
             connection.getSession().setLastResponseEmpty(true);
         }
 
-        respond(connection.getSession(), response, content, method);
+        respond(connection.getSession(), request, response, content);
     }
 
-    private void respond(HttpSession session, HttpServletResponse response, String content, String method)
-            throws IOException {
+    private void respond(HttpSession session, HttpServletRequest request,
+            HttpServletResponse response, String content) throws IOException {
+        String method = request.getMethod();
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("GET".equals(method) ? "text/javascript" : "text/xml");
         response.setCharacterEncoding("UTF-8");
@@ -371,12 +372,65 @@ public class HttpBindServlet extends HttpServlet {
         if (JiveGlobals.getBooleanProperty("log.httpbind.enabled", false)) {
             System.out.println(new Date()+": HTTP SENT(" + session.getStreamID().getID() + "): " + content);
         }
-        byte[] byteContent = content.getBytes("UTF-8");
+        byte[] byteContent = encode(request, response, content.getBytes("UTF-8"));
         response.setContentLength(byteContent.length);
         response.getOutputStream().write(byteContent);
         response.getOutputStream().close();
     }
 
+    /**
+     * Compresses the content of a response with gzip or deflate if the client accepts it and
+     * the content is large enough to be worth it. Compression is controlled by the
+     * <tt>xmpp.httpbind.compression.enabled</tt>, <tt>xmpp.httpbind.compression.level</tt>
+     * (0 to 9) and <tt>xmpp.httpbind.compression.threshold</tt> (minimum size in bytes)
+     * properties.
+     */
+    private byte[] encode(HttpServletRequest request, HttpServletResponse response,
+            byte[] content) throws IOException
+    {
+        if (!JiveGlobals.getBooleanProperty("xmpp.httpbind.compression.enabled", true)) {
+            return content;
+        }
+        response.setHeader("Vary", "Accept-Encoding"); // Handle proxies
+        String acceptEncoding = request.getHeader("accept-encoding");
+        if (acceptEncoding == null ||
+                content.length < JiveGlobals.getIntProperty("xmpp.httpbind.compression.threshold", 256)) {
+            return content;
+        }
+        acceptEncoding = acceptEncoding.toLowerCase();
+        final int level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION,
+                JiveGlobals.getIntProperty("xmpp.httpbind.compression.level", 6)));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+        DeflaterOutputStream out;
+        // Prefer gzip since some browsers do not agree on what deflate means
+        if (acceptEncoding.indexOf("gzip") != -1) {
+            out = new GZIPOutputStream(bytes) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        else if (acceptEncoding.indexOf("deflate") != -1) {
+            out = new DeflaterOutputStream(bytes) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            response.setHeader("Content-Encoding", "deflate");
+        }
+        else {
+            return content;
+        }
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
     private static String createEmptyBody() {
         Element body = DocumentHelper.createElement("body");
         body.addNamespace("", "http://jabber.org/protocol/httpbind");
@@ -29,7 +29,10 @@ import java.security.cert.X509Certificate;
 /**
  * Represents one HTTP connection with a client using the HTTP Binding service. The client will wait
  * on {@link #getResponse()} until the server forwards a message to it or the wait time on the
- * session timesout.
+ * session timesout.<p>
+ *
+ * Delivering a body and waiting for it are synchronized on the connection, so a body that is
+ * delivered before the request was suspended is returned without suspending the request.
  *
  * @author Alexander Wenckus
  */
@@ -45,8 +48,8 @@ public class HttpConnection {
     private String body;
     private HttpSession session;
     private Continuation continuation;
-    private boolean isClosed;
-    private boolean isDelivered = false;
+    private volatile boolean isClosed;
+    private volatile boolean isDelivered = false;
 
     /**
      * Constructs an HTTP Connection.
@@ -110,7 +113,7 @@ public class HttpConnection {
      * @throws HttpConnectionClosedException when this connection to the client has already recieved
      * a deliverable to forward to the client
      */
-    public void deliverBody(String body) throws HttpConnectionClosedException {
+    public synchronized void deliverBody(String body) throws HttpConnectionClosedException {
         if(body == null) {
             throw new IllegalArgumentException("Body cannot be null!");
         }
@@ -123,7 +126,7 @@ public class HttpConnection {
             isClosed = true;
         }
 
-        if (continuation != null) {
+        if (continuation != null && Boolean.TRUE.equals(continuation.getAttribute(SUSPENDED))) {
             continuation.setAttribute("response-body", body);
             continuation.resume();
             session.incrementServerPacketCount();
@@ -141,7 +144,7 @@ public class HttpConnection {
      * @throws HttpBindTimeoutException to indicate that the maximum wait time requested by the
      * client has been surpassed and an empty response should be returned.
      */
-    public String getResponse() throws HttpBindTimeoutException {
+    public synchronized String getResponse() throws HttpBindTimeoutException {
         if (body == null && continuation != null) {
             try {
                 body = waitForResponse();
@@ -193,7 +196,7 @@ public class HttpConnection {
         return sslCertificates;
     }
 
-    void setContinuation(Continuation continuation) {
+    synchronized void setContinuation(Continuation continuation) {
         this.continuation = continuation;
     }
 
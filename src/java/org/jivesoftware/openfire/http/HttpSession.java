@@ -28,13 +28,13 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
@@ -51,6 +51,7 @@ import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.VirtualConnection;
 import org.jivesoftware.openfire.session.LocalClientSession;
+import org.jivesoftware.util.HashedWheelTimer;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
@@ -66,7 +67,13 @@ import org.xmpp.packet.Presence;
  * A session represents a series of interactions with an XMPP client sending packets using the HTTP
  * Binding protocol specified in <a href="http://www.xmpp.org/extensions/xep-0124.html">XEP-0124</a>.
  * A session can have several client connections open simultaneously while awaiting packets bound
- * for the client from the server.
+ * for the client from the server.<p>
+ *
+ * Connections are kept in a fixed-size ring indexed by request ID (RID), so pairing a response
+ * with the next expected request never requires sorting. Stanzas bound for the client are
+ * queued without locking and are paired with a waiting request while holding a lock that is
+ * private to the session. The lock is never held while responses are written to the client or
+ * while undelivered packets are rerouted.
  *
  * @author Alexander Wenckus
  */
@@ -99,9 +106,26 @@ public class HttpSession extends LocalClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = new LinkedList<HttpConnection>();
-    private final List<Deliverable> pendingElements = new ArrayList<Deliverable>();
-    private final List<Delivered> sentElements = new ArrayList<Delivered>();
+    /**
+     * Connections of this session indexed by RID modulo the ring size. Updates to the ring
+     * are guarded by <tt>requestLock</tt> while reads do not require any lock.
+     */
+    private volatile AtomicReferenceArray<HttpConnection> connectionQueue =
+            new AtomicReferenceArray<HttpConnection>(4);
+    /**
+     * Stanzas waiting for a request to be sent on. Any thread may add stanzas to the queue
+     * but only the thread holding <tt>requestLock</tt> takes them out.
+     */
+    private final Queue<Deliverable> pendingElements = new ConcurrentLinkedQueue<Deliverable>();
+    /**
+     * Responses sent on the last requests indexed by RID modulo the ring size. They are
+     * kept for resending responses to repeated requests. Guarded by <tt>requestLock</tt>.
+     */
+    private Delivered[] sentElements = new Delivered[1];
+    /**
+     * Lock that guards pairing requests with responses.
+     */
+    private final Object requestLock = new Object();
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
@@ -109,9 +133,13 @@ public class HttpSession extends LocalClientSession {
     private volatile boolean isClosed;
     private int inactivityTimeout;
     private int defaultInactivityTimeout;
-    private long lastActivity;
-    private long lastRequestID;
-    private boolean lastResponseEmpty;
+    private volatile long lastActivity;
+    /**
+     * Deadline when the inactivity of the session will be checked next.
+     */
+    private volatile HashedWheelTimer.Timeout inactivityDeadline;
+    private volatile long lastRequestID;
+    private volatile boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
     private PacketDeliverer backupDeliverer;
@@ -119,17 +147,10 @@ public class HttpSession extends LocalClientSession {
     private int minorVersion = -1;
     private X509Certificate[] sslCertificates;
 
-    private final Queue<Collection<Element>> packetsToSend = new LinkedList<Collection<Element>>();
+    private final Queue<Collection<Element>> packetsToSend = new ConcurrentLinkedQueue<Collection<Element>>();
     // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
     private SessionPacketRouter router;
 
-    private static final Comparator<HttpConnection> connectionComparator
-            = new Comparator<HttpConnection>() {
-        public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
-        }
-    };
-
     public HttpSession(PacketDeliverer backupDeliverer, String serverName, InetAddress address,
                        StreamID streamID, long rid, HttpConnection connection) {
         super(serverName, null, streamID);
@@ -202,7 +223,7 @@ public class HttpSession extends LocalClientSession {
      * @return true if this session has been closed and no longer activley accepting connections.
      */
     @Override
-	public synchronized boolean isClosed() {
+	public boolean isClosed() {
         return isClosed;
     }
 
@@ -402,7 +423,11 @@ public class HttpSession extends LocalClientSession {
      * inactive and be terminated.
      */
     public void setInactivityTimeout(int inactivityTimeout) {
+        boolean changed = this.inactivityTimeout != inactivityTimeout;
         this.inactivityTimeout = inactivityTimeout;
+        if (changed) {
+            scheduleInactivityCheck();
+        }
     }
 
     /**
@@ -412,7 +437,42 @@ public class HttpSession extends LocalClientSession {
      * @see #pause(int)
      */
     public void resetInactivityTimeout() {
-        this.inactivityTimeout = this.defaultInactivityTimeout;
+        setInactivityTimeout(this.defaultInactivityTimeout);
+    }
+
+    /**
+     * Schedules the next check of the inactivity of this session for when the inactivity
+     * timeout will expire. When the check finds that the session was active in the meantime a
+     * new check is scheduled, so activity does not need to reschedule the check.
+     */
+    private synchronized void scheduleInactivityCheck() {
+        if (isClosed) {
+            return;
+        }
+        long delay = inactivityTimeout * JiveConstants.SECOND -
+                (System.currentTimeMillis() - getLastActivity());
+        HashedWheelTimer.Timeout previous = inactivityDeadline;
+        inactivityDeadline = HashedWheelTimer.getInstance().schedule(new Runnable() {
+            public void run() {
+                checkInactivity();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    private void checkInactivity() {
+        if (isClosed) {
+            return;
+        }
+        long lastActive = System.currentTimeMillis() - getLastActivity();
+        if (lastActive > inactivityTimeout * JiveConstants.SECOND) {
+            close();
+        }
+        else {
+            scheduleInactivityCheck();
+        }
     }
 
     /**
@@ -438,8 +498,10 @@ public class HttpSession extends LocalClientSession {
      */
     public void pause(int duration) {
     	// Respond immediately to all pending requests
-        for (HttpConnection toClose : connectionQueue) {
-            if (!toClose.isClosed()) {
+        synchronized (requestLock) {
+            for (HttpConnection toClose = getConnection(lastRequestID + 1);
+                 toClose != null && !toClose.isClosed();
+                 toClose = getConnection(lastRequestID + 1)) {
                 toClose.close();
                 lastRequestID = toClose.getRequestId();
             }
@@ -454,21 +516,14 @@ public class HttpSession extends LocalClientSession {
      *
      * @return the time in milliseconds since the epoch that this session was last active.
      */
-    public synchronized long getLastActivity() {
-        if (connectionQueue.isEmpty()) {
-            return lastActivity;
-        }
-        else {
-            for (HttpConnection connection : connectionQueue) {
-                // The session is currently active, return the current time.
-                if (!connection.isClosed()) {
-                    return System.currentTimeMillis();
-                }
-            }
-            // We have no currently open connections therefore we can assume that lastActivity is
-            // the last time the client did anything.
-            return lastActivity;
-        }
+    public long getLastActivity() {
+        if (getOpenConnectionCount() > 0) {
+            // The session is currently active, return the current time.
+            return System.currentTimeMillis();
+        }
+        // We have no currently open connections therefore we can assume that lastActivity is
+        // the last time the client did anything.
+        return lastActivity;
     }
 
     /**
@@ -483,11 +538,8 @@ public class HttpSession extends LocalClientSession {
      */
     public long getLastAcknowledged() {
     	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == ack + 1) {
-            	ack++;
-            }
+        while (getConnection(ack + 1) != null) {
+            ack++;
         }
         return ack;
     }
@@ -568,33 +620,48 @@ public class HttpSession extends LocalClientSession {
 	}
 
     public String getResponse(long requestID) throws HttpBindException {
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == requestID) {
-                String response = getResponse(connection);
-
-                // connection needs to be removed after response is returned to maintain idempotence
-                // otherwise if this method is called again, after 'waiting', the InternalError
-                // will be thrown because the connection is no longer in the queue.
-                connectionQueue.remove(connection);
-                fireConnectionClosed(connection);
-                return response;
-            }
+        HttpConnection connection = getConnection(requestID);
+        if (connection == null) {
+            throw new InternalError("Could not locate connection: " + requestID);
         }
-        throw new InternalError("Could not locate connection: " + requestID);
+        return getResponse(connection);
     }
 
-    private String getResponse(HttpConnection connection) throws HttpBindException {
+    /**
+     * Returns the response to the specified request of this session. The request is suspended
+     * until a response is available or until the wait time of the session was exceeded.
+     *
+     * @param connection the connection representing the request.
+     * @return the response to the request.
+     * @throws HttpBindException if the request has violated a facet of the HTTP binding protocol.
+     */
+    String getResponse(HttpConnection connection) throws HttpBindException {
+        String response = getResponseBody(connection);
+
+        // connection needs to be removed after response is returned to maintain idempotence
+        // otherwise if this method is called again, after 'waiting', the InternalError
+        // will be thrown because the connection is no longer in the queue.
+        removeConnection(connection);
+        fireConnectionClosed(connection);
+        return response;
+    }
+
+    private String getResponseBody(HttpConnection connection) throws HttpBindException {
         String response = null;
         try {
             response = connection.getResponse();
         }
         catch (HttpBindTimeoutException e) {
             // This connection timed out we need to increment the request count
-            if (connection.getRequestId() != lastRequestID + 1) {
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
+            synchronized (requestLock) {
+                if (connection.getRequestId() != lastRequestID + 1) {
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                lastRequestID = connection.getRequestId();
             }
-            lastRequestID = connection.getRequestId();
+            // Stanzas may now be sent on the next request
+            deliverPendingElements();
         }
         if (response == null) {
             response = createEmptyBody();
@@ -672,43 +739,100 @@ public class HttpSession extends LocalClientSession {
      * @throws HttpBindException if the connection has violated a facet of the HTTP binding
      * protocol.
      */
-    synchronized HttpConnection createConnection(long rid, Collection<Element> packetsToBeSent,
-                                                 boolean isSecure, boolean isPoll)
+    HttpConnection createConnection(long rid, Collection<Element> packetsToBeSent,
+                                    boolean isSecure, boolean isPoll)
             throws HttpConnectionClosedException, HttpBindException
     {
         HttpConnection connection = new HttpConnection(rid, isSecure, sslCertificates);
-        if (rid <= lastRequestID) {
-            Delivered deliverable = retrieveDeliverable(rid);
-            if (deliverable == null) {
-                Log.warn("Deliverable unavailable for " + rid);
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
+        synchronized (requestLock) {
+            if (rid <= lastRequestID) {
+                Delivered deliverable = retrieveDeliverable(rid);
+                if (deliverable == null) {
+                    Log.warn("Deliverable unavailable for " + rid);
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                connection.deliverBody(createDeliverable(deliverable.deliverables));
+                return connection;
+            }
+            else if (rid > (lastRequestID + maxRequests)) {
+                Log.warn("Request " + rid + " > " + (lastRequestID + maxRequests) + ", ending session.");
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
             }
-            connection.deliverBody(createDeliverable(deliverable.deliverables));
-            return connection;
-        }
-        else if (rid > (lastRequestID + maxRequests)) {
-            Log.warn("Request " + rid + " > " + (lastRequestID + maxRequests) + ", ending session.");
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
-        }
 
-        if (packetsToBeSent.size() > 0) {
-            packetsToSend.add(packetsToBeSent);
+            if (packetsToBeSent.size() > 0) {
+                packetsToSend.add(packetsToBeSent);
+            }
+            addConnection(connection, isPoll);
         }
-        addConnection(connection, isPoll);
+        fireConnectionOpened(connection);
         return connection;
     }
 
     private Delivered retrieveDeliverable(long rid) {
-        for (Delivered delivered : sentElements) {
-            if (delivered.getRequestID() == rid) {
-                return delivered;
-            }
+        Delivered delivered = sentElements[(int) (rid % sentElements.length)];
+        if (delivered != null && delivered.getRequestID() == rid) {
+            return delivered;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the connection of this session with the specified RID or <tt>null</tt> if
+     * the connection was not found.
+     *
+     * @param rid the request ID of the connection.
+     * @return the connection with the specified RID or null if none was found.
+     */
+    private HttpConnection getConnection(long rid) {
+        AtomicReferenceArray<HttpConnection> connections = connectionQueue;
+        HttpConnection connection = connections.get((int) (rid % connections.length()));
+        if (connection != null && connection.getRequestId() == rid) {
+            return connection;
         }
         return null;
     }
 
+    /**
+     * Stores a new connection in the ring of connections. The ring is grown when it is too
+     * small for the number of requests that the session may have open, so a connection that
+     * is still open is never replaced by another connection. Must be called while holding
+     * <tt>requestLock</tt>.
+     */
+    private void putConnection(HttpConnection connection) {
+        AtomicReferenceArray<HttpConnection> connections = connectionQueue;
+        int size = connections.length();
+        int required = 2 * (Math.max(maxRequests, 1) + hold + 1);
+        if (size < required) {
+            while (size < required) {
+                size <<= 1;
+            }
+            AtomicReferenceArray<HttpConnection> resized =
+                    new AtomicReferenceArray<HttpConnection>(size);
+            for (int i = 0; i < connections.length(); i++) {
+                HttpConnection existing = connections.get(i);
+                if (existing != null) {
+                    resized.set((int) (existing.getRequestId() % size), existing);
+                }
+            }
+            connectionQueue = resized;
+            connections = resized;
+        }
+        connections.set((int) (connection.getRequestId() % size), connection);
+    }
+
+    private void removeConnection(HttpConnection connection) {
+        synchronized (requestLock) {
+            AtomicReferenceArray<HttpConnection> connections = connectionQueue;
+            int index = (int) (connection.getRequestId() % connections.length());
+            connections.compareAndSet(index, connection, null);
+        }
+    }
+
+    /**
+     * Adds a new connection to the session. Must be called while holding <tt>requestLock</tt>.
+     */
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
             HttpConnectionClosedException {
         if (connection == null) {
@@ -725,73 +849,92 @@ public class HttpSession extends LocalClientSession {
         sslCertificates = connection.getPeerCertificates();
 
         connection.setSession(this);
+        putConnection(connection);
         // We aren't supposed to hold connections open or we already have some packets waiting
         // to be sent to the client.
-        if (isPollingSession() || (pendingElements.size() > 0 && connection.getRequestId() == lastRequestID + 1)) {
-            deliver(connection, pendingElements);
+        if (isPollingSession() || (!pendingElements.isEmpty() && connection.getRequestId() == lastRequestID + 1)) {
+            deliver(connection, pollPendingElements());
             lastRequestID = connection.getRequestId();
-            pendingElements.clear();
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
-
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
-
             int connectionsToClose;
-            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
+            if(hasNewerConnection(connection.getRequestId())) {
             	// Current connection does not have the greatest rid. That means
             	// requests were received out of order, respond to all.
-            	connectionsToClose = connectionQueue.size();
+            	connectionsToClose = Integer.MAX_VALUE;
             }
             else {
                 // Everything's fine, number of current connections open tells us
             	// how many that we need to close.
             	connectionsToClose = getOpenConnectionCount() - hold;
             }
-            int closed = 0;
-            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-                HttpConnection toClose = connectionQueue.get(i);
-                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-                    if(toClose == connection) {
-                    	// Current connection has no continuation yet, just deliver.
-                    	deliver("");
-                    }
-                    else {
-                        toClose.close();
-                    }
-                    lastRequestID = toClose.getRequestId();
-                    closed++;
+            for (int closed = 0; closed < connectionsToClose; closed++) {
+                HttpConnection toClose = getConnection(lastRequestID + 1);
+                if (toClose == null || toClose.isClosed()) {
+                    break;
+                }
+                if(toClose == connection) {
+                	// Current connection has no continuation yet, just deliver.
+                    deliver(connection, Arrays.asList(new Deliverable("")));
                 }
+                else {
+                    toClose.close();
+                }
+                lastRequestID = toClose.getRequestId();
             }
         }
-        fireConnectionOpened(connection);
+    }
+
+    private boolean hasNewerConnection(long rid) {
+        for (long newer = rid + 1; newer <= rid + maxRequests; newer++) {
+            if (getConnection(newer) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private int getOpenConnectionCount() {
         int count = 0;
-        for (HttpConnection connection : connectionQueue) {
-            if (!connection.isClosed()) {
+        AtomicReferenceArray<HttpConnection> connections = connectionQueue;
+        for (int i = 0; i < connections.length(); i++) {
+            HttpConnection connection = connections.get(i);
+            if (connection != null && !connection.isClosed()) {
                 count++;
             }
         }
         return count;
     }
 
+    /**
+     * Sends a response on the specified connection and keeps it for resending it to repeated
+     * requests. Must be called while holding <tt>requestLock</tt>.
+     */
     private void deliver(HttpConnection connection, Collection<Deliverable> deliverable)
             throws HttpConnectionClosedException {
         connection.deliverBody(createDeliverable(deliverable));
 
         Delivered delivered = new Delivered(deliverable);
         delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > hold) {
-            sentElements.remove(0);
+        if (sentElements.length != hold + 1) {
+            sentElements = new Delivered[hold + 1];
         }
+        sentElements[(int) (connection.getRequestId() % sentElements.length)] = delivered;
+    }
 
-        sentElements.add(delivered);
+    /**
+     * Removes and returns all stanzas waiting to be sent. Must be called while holding
+     * <tt>requestLock</tt>.
+     */
+    private List<Deliverable> pollPendingElements() {
+        List<Deliverable> elements = new ArrayList<Deliverable>();
+        Deliverable deliverable;
+        while ((deliverable = pendingElements.poll()) != null) {
+            elements.add(deliverable);
+        }
+        return elements;
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -812,17 +955,12 @@ public class HttpSession extends LocalClientSession {
      *         protocol.
      */
     private void checkOveractivity(boolean isPoll) throws HttpBindException {
-    	int pendingConnections = 0;
+    	int pendingConnections = getOpenConnectionCount();
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-        for (HttpConnection conn : connectionQueue) {
-            if (!conn.isClosed()) {
-                pendingConnections++;
-            }
-        }
-
         if(pendingConnections >= maxRequests) {
+
         	overactivity = true;
         	errorMessage += ", too many simultaneous requests.";
         }
@@ -850,7 +988,7 @@ public class HttpSession extends LocalClientSession {
         }
     }
 
-    private synchronized void deliver(String text) {
+    private void deliver(String text) {
         if (text == null) {
             // Do nothing if someone asked to send nothing :)
             return;
@@ -858,30 +996,46 @@ public class HttpSession extends LocalClientSession {
         deliver(new Deliverable(text));
     }
 
-    private synchronized void deliver(Packet stanza) {
+    private void deliver(Packet stanza) {
         deliver(new Deliverable(Arrays.asList(stanza)));
     }
 
     private void deliver(Deliverable stanza) {
-        Collection<Deliverable> deliverable = Arrays.asList(stanza);
-        boolean delivered = false;
-        for (HttpConnection connection : connectionQueue) {
-            try {
-                if (connection.getRequestId() == lastRequestID + 1) {
+        pendingElements.add(stanza);
+        deliverPendingElements();
+    }
+
+    /**
+     * Sends the stanzas waiting to be sent on the next request of the session, if the client
+     * has sent that request. Otherwise the stanzas are sent once the request is received.
+     */
+    private void deliverPendingElements() {
+        // Avoid locking when no request is waiting for stanzas. Threads that add requests
+        // or increase the last request ID check again for pending stanzas.
+        HttpConnection connection = getConnection(lastRequestID + 1);
+        if (connection == null || connection.isClosed() || pendingElements.isEmpty()) {
+            return;
+        }
+        synchronized (requestLock) {
+            connection = getConnection(lastRequestID + 1);
+            if (connection == null || pendingElements.isEmpty()) {
+                return;
+            }
+            // A request that is being timed out cannot be closed while stanzas are sent on it
+            synchronized (connection) {
+                if (connection.isClosed()) {
+                    return;
+                }
+                try {
+                    deliver(connection, pollPendingElements());
                     lastRequestID = connection.getRequestId();
-                    deliver(connection, deliverable);
-                    delivered = true;
-                    break;
                 }
-            }
-            catch (HttpConnectionClosedException e) {
-                /* Connection was closed, try the next one */
+                catch (HttpConnectionClosedException e) {
+                    // Should not happen since the connection was known to be open
+                    Log.error("Error delivering stanzas on request " + connection.getRequestId(), e);
+                }
             }
         }
-
-        if (!delivered) {
-            pendingElements.add(stanza);
-        }
     }
 
     private void fireConnectionClosed(HttpConnection connection) {
@@ -909,14 +1063,28 @@ public class HttpSession extends LocalClientSession {
         return builder.toString();
     }
 
-    private synchronized void closeConnection() {
-        if (isClosed) {
-            return;
-        }
-        isClosed = true;
+    private void closeConnection() {
+        List<Collection<Packet>> undelivered = new ArrayList<Collection<Packet>>();
+        List<HttpConnection> closed = new ArrayList<HttpConnection>();
+        synchronized (requestLock) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (inactivityDeadline != null) {
+                inactivityDeadline.cancel();
+            }
 
-        if (pendingElements.size() > 0) {
-            failDelivery();
+            if (!pendingElements.isEmpty()) {
+                failDelivery(undelivered, closed);
+            }
+        }
+        // Reroute packets and notify listeners without holding the lock
+        for (Collection<Packet> packets : undelivered) {
+            failDelivery(packets);
+        }
+        for (HttpConnection toClose : closed) {
+            fireConnectionClosed(toClose);
         }
 
         for (SessionListener listener : listeners) {
@@ -925,19 +1093,28 @@ public class HttpSession extends LocalClientSession {
         this.listeners.clear();
     }
 
-    private void failDelivery() {
-        for (Deliverable deliverable : pendingElements) {
+    /**
+     * Closes the connections of this session and collects the packets that could not be
+     * delivered to the client. Must be called while holding <tt>requestLock</tt>.
+     */
+    private void failDelivery(List<Collection<Packet>> undelivered, List<HttpConnection> closed) {
+        for (Deliverable deliverable : pollPendingElements()) {
             Collection<Packet> packet = deliverable.getPackets();
             if (packet != null) {
-                failDelivery(packet);
+                undelivered.add(packet);
             }
         }
 
-        for (HttpConnection toClose : connectionQueue) {
+        AtomicReferenceArray<HttpConnection> connections = connectionQueue;
+        for (int i = 0; i < connections.length(); i++) {
+            HttpConnection toClose = connections.getAndSet(i, null);
+            if (toClose == null) {
+                continue;
+            }
             if (!toClose.isDelivered()) {
                 Delivered delivered = retrieveDeliverable(toClose.getRequestId());
                 if (delivered != null) {
-                    failDelivery(delivered.getPackets());
+                    undelivered.add(delivered.getPackets());
                 }
                 else {
                     Log.warn("Packets could not be found for session " + getStreamID() + " cannot " +
@@ -945,9 +1122,8 @@ public class HttpSession extends LocalClientSession {
                 }
             }
             toClose.close();
-            fireConnectionClosed(toClose);
+            closed.add(toClose);
         }
-        pendingElements.clear();
     }
 
     private void failDelivery(Collection<Packet> packets) {
@@ -22,12 +22,7 @@ package org.jivesoftware.openfire.http;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
@@ -36,9 +31,7 @@ import org.dom4j.QName;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
-import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,8 +45,6 @@ public class HttpSessionManager {
 
     private SessionManager sessionManager;
     private Map<String, HttpSession> sessionMap = new ConcurrentHashMap<String, HttpSession>();
-    private TimerTask inactivityTask;
-    private Executor sendPacketPool;
     private SessionListener sessionListener = new SessionListener() {
         public void connectionOpened(HttpSession session, HttpConnection connection) {
         }
@@ -71,27 +62,20 @@ public class HttpSessionManager {
      */
     public HttpSessionManager() {
         this.sessionManager = SessionManager.getInstance();
-
-        // Set the executor to use for processing http requests
-        int eventThreads = JiveGlobals.getIntProperty("xmpp.client.processing.threads", 16);
-        sendPacketPool = new ThreadPoolExecutor(
-            eventThreads + 1, eventThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
     }
 
     /**
      * Starts the services used by the HttpSessionManager.
      */
     public void start() {
-        inactivityTask = new HttpSessionReaper();
-        TaskEngine.getInstance().schedule(inactivityTask, 30 * JiveConstants.SECOND,
-                30 * JiveConstants.SECOND);
+        // Inactive sessions are closed by the deadlines that sessions keep in the shared
+        // HashedWheelTimer
     }
 
     /**
      * Stops any services and cleans up any resources used by the HttpSessionManager.
      */
     public void stop() {
-        inactivityTask.cancel();
         for (HttpSession session : sessionMap.values()) {
             session.close();
         }
@@ -292,8 +276,11 @@ public class HttpSessionManager {
     		isPoll = false;
         HttpConnection connection = session.createConnection(rid, elements, isSecure, isPoll);
         if (elements.size() > 0) {
-            // creates the runnable to forward the packets
-            new HttpPacketSender(session).init();
+            // Route the packets on the thread processing the request. Requests waiting for a
+            // response do not hold a thread, so there is no need to hand the packets over to
+            // another thread pool. Packets of a session are routed in the order in which they
+            // were received.
+            session.sendPendingPackets();
         }
         return connection;
     }
@@ -360,38 +347,4 @@ public class HttpSessionManager {
 
         return response.asXML();
     }
-
-    private class HttpSessionReaper extends TimerTask {
-
-        @Override
-		public void run() {
-            long currentTime = System.currentTimeMillis();
-            for (HttpSession session : sessionMap.values()) {
-                long lastActive = currentTime - session.getLastActivity();
-                if (lastActive > session.getInactivityTimeout() * JiveConstants.SECOND) {
-                    session.close();
-                }
-            }
-        }
-    }
-
-    /**
-     * A runner that guarantees that the packets per a session will be sent and
-     * processed in the order in which they were received.
-     */
-    private class HttpPacketSender implements Runnable {
-        private HttpSession session;
-
-        HttpPacketSender(HttpSession session) {
-            this.session = session;
-        }
-
-        public void run() {
-            session.sendPendingPackets();
-        }
-
-        private void init() {
-            sendPacketPool.execute(this);
-        }
-    }
 }
@@ -0,0 +1,41 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+/**
+ * A packet interceptor that is only invoked on the packets accepted by its filter. Packets
+ * that no interceptor is interested in are not passed to any interceptor, so interceptors
+ * that only care about a few packets should implement this interface instead of ignoring
+ * the other packets.
+ *
+ * @see InterceptorManager
+ */
+public interface FilteredPacketInterceptor extends PacketInterceptor {
+
+    /**
+     * Returns the filter of the packets to intercept. The filter is read when the interceptor
+     * is added to the {@link InterceptorManager}, so the interceptor must be added again for
+     * a new filter to be used.
+     *
+     * @return the filter of the packets to intercept.
+     */
+    InterceptorFilter getInterceptorFilter();
+}
@@ -0,0 +1,133 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.dom4j.Element;
+import org.xmpp.packet.Packet;
+
+/**
+ * The packets that a {@link FilteredPacketInterceptor} wants to intercept. A packet is
+ * intercepted if it is an instance of one of the packet types, its direction and processed
+ * flag match and one of its child elements uses one of the namespaces. Criteria that are
+ * not specified match any packet.<p>
+ *
+ * For example, an interceptor that only looks at incoming messages before they are processed
+ * would use:
+ * <pre>
+ * new InterceptorFilter(Collections.&lt;Class&lt;? extends Packet&gt;&gt;singleton(Message.class),
+ *         true, false, null);
+ * </pre>
+ */
+public class InterceptorFilter {
+
+    private final Set<Class<? extends Packet>> packetTypes;
+    private final Boolean incoming;
+    private final Boolean processed;
+    private final Set<String> namespaces;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param packetTypes the classes of the intercepted packets or <tt>null</tt> for any packet.
+     * @param incoming true to intercept packets read by the server, false to intercept packets
+     *        sent by the server or <tt>null</tt> for both.
+     * @param processed true to intercept packets after they were processed, false to intercept
+     *        packets before they are processed or <tt>null</tt> for both.
+     * @param namespaces the namespaces of the child elements of the intercepted packets or
+     *        <tt>null</tt> for any packet.
+     */
+    public InterceptorFilter(Collection<Class<? extends Packet>> packetTypes, Boolean incoming,
+            Boolean processed, Collection<String> namespaces) {
+        this.packetTypes = packetTypes == null ? null :
+                Collections.unmodifiableSet(new HashSet<Class<? extends Packet>>(packetTypes));
+        this.incoming = incoming;
+        this.processed = processed;
+        this.namespaces = namespaces == null ? null :
+                Collections.unmodifiableSet(new HashSet<String>(namespaces));
+    }
+
+    /**
+     * Returns true if the filter may accept packets of the specified class that were read or
+     * sent and processed or not as specified. Packets of the class are only accepted if
+     * {@link #accepts(Packet)} also returns true.
+     *
+     * @param packetType the class of the packets.
+     * @param incoming true if the packets were read by the server.
+     * @param processed true if the packets were processed.
+     * @return true if the filter may accept the packets.
+     */
+    public boolean accepts(Class<? extends Packet> packetType, boolean incoming, boolean processed) {
+        if (this.incoming != null && this.incoming != incoming) {
+            return false;
+        }
+        if (this.processed != null && this.processed != processed) {
+            return false;
+        }
+        if (packetTypes == null) {
+            return true;
+        }
+        for (Class<? extends Packet> type : packetTypes) {
+            // Subclasses (e.g. Roster for IQ) are checked by accepts(Packet)
+            if (type.isAssignableFrom(packetType) || packetType.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the packet is an instance of one of the packet types and uses one
+     * of the namespaces.
+     *
+     * @param packet the packet.
+     * @return true if the filter accepts the packet.
+     */
+    public boolean accepts(Packet packet) {
+        if (packetTypes != null) {
+            boolean accepted = false;
+            for (Class<? extends Packet> type : packetTypes) {
+                if (type.isInstance(packet)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                return false;
+            }
+        }
+        if (namespaces == null) {
+            return true;
+        }
+        for (Iterator<?> it = packet.getElement().elementIterator(); it.hasNext();) {
+            Element child = (Element) it.next();
+            if (namespaces.contains(child.getNamespaceURI())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -20,18 +20,26 @@
 
 package org.jivesoftware.openfire.interceptor;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 /**
  * An InterceptorManager manages the list of global interceptors and per-user
@@ -43,7 +51,14 @@ import org.xmpp.packet.Packet;
  * (when read) may change the original packet or reject the packet by throwing
  * a {@link PacketRejectedException}. If the interceptor rejects a received packet
  * then the sender of the packet receive a
- * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.
+ * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.<p>
+ *
+ * Global interceptors are compiled into one array per kind of packet, direction and
+ * processed flag, so that invoking the interceptors of a packet does not check the
+ * interceptors that are not interested in it. Interceptors declare the packets they are
+ * interested in by implementing {@link FilteredPacketInterceptor}; other interceptors are
+ * invoked for all packets. The time spent by each interceptor is available from
+ * {@link #getInterceptorTime(PacketInterceptor)}.
  *
  * @see PacketInterceptor
  * @author Gaston Dombiak
@@ -52,6 +67,22 @@ public class InterceptorManager {
 
 	private static final Logger Log = LoggerFactory.getLogger(InterceptorManager.class);
 
+    /**
+     * Number of kinds of packets that global interceptors are compiled for: IQs, messages,
+     * presences and other packets.
+     */
+    private static final int PACKET_TYPES = 4;
+
+    /**
+     * Time spent by all the interceptors invoked for a packet.
+     */
+    private static final LatencyHistogram interceptorsTime = new LatencyHistogram();
+
+    static {
+        StatisticsManager.getInstance().addStatistic("interceptorTime",
+                new LatencyStatistic("interceptor.time", interceptorsTime));
+    }
+
     private static InterceptorManager instance = new InterceptorManager();
 
     private XMPPServer server = XMPPServer.getInstance();
@@ -59,6 +90,16 @@ public class InterceptorManager {
             new CopyOnWriteArrayList<PacketInterceptor>();
     private Map<String, List<PacketInterceptor>> usersInterceptors =
             new ConcurrentHashMap<String, List<PacketInterceptor>>();
+    /**
+     * Filter and timing of the installed interceptors, keyed by interceptor.
+     */
+    private final ConcurrentMap<PacketInterceptor, InstalledInterceptor> installedInterceptors =
+            new ConcurrentHashMap<PacketInterceptor, InstalledInterceptor>();
+    /**
+     * Global interceptors interested in each kind of packet, direction and processed flag.
+     * The table is replaced when the global interceptors change.
+     */
+    private volatile InstalledInterceptor[][] dispatchTable = compile();
 
     /**
      * Returns a singleton instance of InterceptorManager.
@@ -85,7 +126,7 @@ public class InterceptorManager {
      *
      * @param interceptor the interceptor to add.
      */
-    public void addInterceptor(PacketInterceptor interceptor) {
+    public synchronized void addInterceptor(PacketInterceptor interceptor) {
         if (interceptor == null) {
             throw new NullPointerException("Parameter interceptor was null.");
         }
@@ -93,7 +134,9 @@ public class InterceptorManager {
         if (globalInterceptors.contains(interceptor)) {
             globalInterceptors.remove(interceptor);
         }
+        install(interceptor);
         globalInterceptors.add(interceptor);
+        dispatchTable = compile();
     }
 
     /**
@@ -103,7 +146,7 @@ public class InterceptorManager {
      * @param index the index in the list to insert the new interceptor at.
      * @param interceptor the interceptor to add.
      */
-    public void addInterceptor(int index, PacketInterceptor interceptor) {
+    public synchronized void addInterceptor(int index, PacketInterceptor interceptor) {
         if (index < 0 || (index > globalInterceptors.size())) {
             throw new IndexOutOfBoundsException("Index " + index + " invalid.");
         }
@@ -119,7 +162,9 @@ public class InterceptorManager {
             globalInterceptors.remove(interceptor);
         }
 
+        install(interceptor);
         globalInterceptors.add(index, interceptor);
+        dispatchTable = compile();
     }
 
     /**
@@ -128,8 +173,13 @@ public class InterceptorManager {
      * @param interceptor the interceptor to remove.
      * @return true if the item was present in the list
      */
-    public boolean removeInterceptor(PacketInterceptor interceptor) {
-        return globalInterceptors.remove(interceptor);
+    public synchronized boolean removeInterceptor(PacketInterceptor interceptor) {
+        boolean answer = globalInterceptors.remove(interceptor);
+        if (answer) {
+            dispatchTable = compile();
+            uninstall(interceptor);
+        }
+        return answer;
     }
 
     /**
@@ -159,7 +209,8 @@ public class InterceptorManager {
      * @param index the index in the list to insert the new interceptor at.
      * @param interceptor the interceptor to add.
      */
-    public void addUserInterceptor(String username, int index, PacketInterceptor interceptor) {
+    public synchronized void addUserInterceptor(String username, int index,
+            PacketInterceptor interceptor) {
         List<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
         if (userInterceptors == null) {
             userInterceptors = new CopyOnWriteArrayList<PacketInterceptor>();
@@ -182,6 +233,7 @@ public class InterceptorManager {
                 userInterceptors.remove(interceptor);
             }
         }
+        install(interceptor);
         userInterceptors.add(index, interceptor);
     }
 
@@ -193,7 +245,8 @@ public class InterceptorManager {
      * @param interceptor the interceptor to remove.
      * @return true if the item was present in the list
      */
-    public boolean removeUserInterceptor(String username, PacketInterceptor interceptor) {
+    public synchronized boolean removeUserInterceptor(String username,
+            PacketInterceptor interceptor) {
         boolean answer = false;
         List<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
         if (userInterceptors != null) {
@@ -202,10 +255,27 @@ public class InterceptorManager {
             if (userInterceptors.isEmpty()) {
                 usersInterceptors.remove(username);
             }
+            if (answer) {
+                uninstall(interceptor);
+            }
         }
         return answer;
     }
 
+    /**
+     * Returns the time spent by an interceptor while intercepting packets or <tt>null</tt>
+     * if the interceptor is not installed. The time is recorded since the interceptor was
+     * installed and is reset when the interceptor is removed.
+     *
+     * @param interceptor the interceptor.
+     * @return the time spent by the interceptor or <tt>null</tt> if the interceptor is
+     *      not installed.
+     */
+    public LatencyHistogram.Snapshot getInterceptorTime(PacketInterceptor interceptor) {
+        InstalledInterceptor installed = installedInterceptors.get(interceptor);
+        return installed == null ? null : installed.time.snapshot();
+    }
+
     /**
      * Invokes all currently-installed interceptors on the specified packet.
      * All global interceptors will be invoked as well as interceptors that
@@ -230,55 +300,189 @@ public class InterceptorManager {
     public void invokeInterceptors(Packet packet, Session session, boolean read, boolean processed)
             throws PacketRejectedException
     {
-        // Invoke the global interceptors for this packet
-        // Checking if collection is empty to prevent creating an iterator of
-        // a CopyOnWriteArrayList that is an expensive operation
-        if (!globalInterceptors.isEmpty()) {
-            for (PacketInterceptor interceptor : globalInterceptors) {
-                try {
-                    interceptor.interceptPacket(packet, session, read, processed);
-                }
-                catch (PacketRejectedException e) {
-                    if (processed) {
-                        Log.error("Post interceptor cannot reject packet.", e);
-                    }
-                    else {
-                        // Throw this exception since we don't really want to catch it
-                        throw e;
-                    }
-                }
-                catch (Throwable e) {
-                    Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
-                }
+        // Interceptors that are not interested in the packet were compiled out of the table
+        InstalledInterceptor[] interceptors =
+                dispatchTable[getDispatchIndex(packet, read, processed)];
+        Collection<PacketInterceptor> userInterceptors = null;
+        if (!usersInterceptors.isEmpty()) {
+            String username = session.getAddress().getNode();
+            if (username != null && server.isLocal(session.getAddress())) {
+                userInterceptors = usersInterceptors.get(username);
             }
         }
-        // Invoke the interceptors that are related to the address of the session
-        if (usersInterceptors.isEmpty()) {
-            // Do nothing
+        if (interceptors.length == 0 && (userInterceptors == null || userInterceptors.isEmpty())) {
             return;
         }
-        String username = session.getAddress().getNode();
-        if (username != null && server.isLocal(session.getAddress())) {
-            Collection<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
+        long start = System.nanoTime();
+        try {
+            // Invoke the global interceptors for this packet
+            for (InstalledInterceptor interceptor : interceptors) {
+                interceptor.invoke(packet, session, read, processed);
+            }
+            // Invoke the interceptors that are related to the address of the session
             if (userInterceptors != null && !userInterceptors.isEmpty()) {
                 for (PacketInterceptor interceptor : userInterceptors) {
-                    try {
-                        interceptor.interceptPacket(packet, session, read, processed);
+                    InstalledInterceptor installed = installedInterceptors.get(interceptor);
+                    if (installed == null) {
+                        // The interceptor was removed while iterating
+                        continue;
                     }
-                    catch (PacketRejectedException e) {
-                        if (processed) {
-                            Log.error("Post interceptor cannot reject packet.", e);
-                        }
-                        else {
-                            // Throw this exception since we don't really want to catch it
-                            throw e;
-                        }
+                    if (installed.accepts(getPacketType(getTypeIndex(packet)), read, processed)) {
+                        installed.invoke(packet, session, read, processed);
                     }
-                    catch (Throwable e) {
-                        Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
+                }
+            }
+        }
+        finally {
+            interceptorsTime.recordSince(start);
+        }
+    }
+
+    /**
+     * Reads the filter of an interceptor that is being added to the global or user
+     * interceptors. The global interceptors are compiled again if the interceptor is
+     * already a global interceptor. Must be called while holding the lock.
+     */
+    private void install(PacketInterceptor interceptor) {
+        InterceptorFilter filter = null;
+        if (interceptor instanceof FilteredPacketInterceptor) {
+            filter = ((FilteredPacketInterceptor) interceptor).getInterceptorFilter();
+        }
+        InstalledInterceptor installed = installedInterceptors.get(interceptor);
+        if (installed == null) {
+            installedInterceptors.put(interceptor, new InstalledInterceptor(interceptor, filter));
+        }
+        else {
+            // Use the new filter but keep the time spent by the interceptor
+            installedInterceptors.put(interceptor,
+                    new InstalledInterceptor(interceptor, filter, installed.time));
+        }
+        if (globalInterceptors.contains(interceptor)) {
+            // The table holds the previous filter of the interceptor
+            dispatchTable = compile();
+        }
+    }
+
+    /**
+     * Forgets an interceptor that was removed unless it is still installed as a global or
+     * user interceptor. Must be called while holding the lock.
+     */
+    private void uninstall(PacketInterceptor interceptor) {
+        if (globalInterceptors.contains(interceptor)) {
+            return;
+        }
+        for (List<PacketInterceptor> userInterceptors : usersInterceptors.values()) {
+            if (userInterceptors.contains(interceptor)) {
+                return;
+            }
+        }
+        installedInterceptors.remove(interceptor);
+    }
+
+    /**
+     * Builds the table of the global interceptors interested in each kind of packet,
+     * direction and processed flag. The order of the interceptors is preserved.
+     */
+    private InstalledInterceptor[][] compile() {
+        InstalledInterceptor[][] table = new InstalledInterceptor[PACKET_TYPES * 4][];
+        for (int type = 0; type < PACKET_TYPES; type++) {
+            for (int direction = 0; direction < 2; direction++) {
+                for (int state = 0; state < 2; state++) {
+                    List<InstalledInterceptor> interceptors = new ArrayList<InstalledInterceptor>();
+                    for (PacketInterceptor interceptor : globalInterceptors) {
+                        InstalledInterceptor installed = installedInterceptors.get(interceptor);
+                        if (installed != null && installed.accepts(getPacketType(type),
+                                direction == 1, state == 1)) {
+                            interceptors.add(installed);
+                        }
                     }
+                    table[type * 4 + direction * 2 + state] =
+                            interceptors.toArray(new InstalledInterceptor[interceptors.size()]);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static int getDispatchIndex(Packet packet, boolean read, boolean processed) {
+        return getTypeIndex(packet) * 4 + (read ? 2 : 0) + (processed ? 1 : 0);
+    }
+
+    private static int getTypeIndex(Packet packet) {
+        if (packet instanceof IQ) {
+            return 0;
+        }
+        else if (packet instanceof Message) {
+            return 1;
+        }
+        else if (packet instanceof Presence) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private static Class<? extends Packet> getPacketType(int typeIndex) {
+        switch (typeIndex) {
+            case 0:
+                return IQ.class;
+            case 1:
+                return Message.class;
+            case 2:
+                return Presence.class;
+            default:
+                return Packet.class;
+        }
+    }
+
+    /**
+     * An installed interceptor with the filter it declared when it was installed and the
+     * time it spent intercepting packets.
+     */
+    private static class InstalledInterceptor {
+
+        private final PacketInterceptor interceptor;
+        private final InterceptorFilter filter;
+        private final LatencyHistogram time;
+
+        InstalledInterceptor(PacketInterceptor interceptor, InterceptorFilter filter) {
+            this(interceptor, filter, new LatencyHistogram());
+        }
+
+        InstalledInterceptor(PacketInterceptor interceptor, InterceptorFilter filter,
+                LatencyHistogram time) {
+            this.interceptor = interceptor;
+            this.filter = filter;
+            this.time = time;
+        }
+
+        boolean accepts(Class<? extends Packet> packetType, boolean read, boolean processed) {
+            return filter == null || filter.accepts(packetType, read, processed);
+        }
+
+        void invoke(Packet packet, Session session, boolean read, boolean processed)
+                throws PacketRejectedException {
+            if (filter != null && !filter.accepts(packet)) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                interceptor.interceptPacket(packet, session, read, processed);
+            }
+            catch (PacketRejectedException e) {
+                if (processed) {
+                    Log.error("Post interceptor cannot reject packet.", e);
+                }
+                else {
+                    // Throw this exception since we don't really want to catch it
+                    throw e;
                 }
             }
+            catch (Throwable e) {
+                Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
+            }
+            finally {
+                time.recordSince(start);
+            }
         }
     }
 }
\ No newline at end of file
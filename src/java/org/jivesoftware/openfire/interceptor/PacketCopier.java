@@ -56,7 +56,7 @@ import org.xmpp.packet.Presence;
  *
  * @author Gaston Dombiak
  */
-public class PacketCopier implements PacketInterceptor, ComponentEventListener {
+public class PacketCopier implements FilteredPacketInterceptor, ComponentEventListener {
 
 	private static final Logger Log = LoggerFactory.getLogger(PacketCopier.class);
 
@@ -130,6 +130,15 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
         subscribers.remove(componentJID.toString());
     }
 
+    public InterceptorFilter getInterceptorFilter() {
+        // Subscribers may only be interested in IQs, messages and presences
+        List<Class<? extends Packet>> packetTypes = new ArrayList<Class<? extends Packet>>(3);
+        packetTypes.add(IQ.class);
+        packetTypes.add(Message.class);
+        packetTypes.add(Presence.class);
+        return new InterceptorFilter(packetTypes, null, null, null);
+    }
+
     public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed)
             throws PacketRejectedException {
         // Queue intercepted packet only if there are subscribers interested
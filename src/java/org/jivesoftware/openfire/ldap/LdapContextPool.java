@@ -0,0 +1,280 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.ldap;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.JiveInitialLdapContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of LDAP contexts that are bound as the admin user and use the same base DN. Contexts
+ * are returned to the pool when they are closed, so the usual pattern of getting a context
+ * from {@link LdapManager#getContext(String)} and closing it in a finally block reuses
+ * connections (including their StartTLS session).<p>
+ *
+ * The pool is configured with the following properties:
+ * <ul>
+ *      <li><tt>ldap.connectionPool.maxSize</tt> -- maximum number of contexts of the pool,
+ *          which is also the maximum number of concurrent requests (10 by default).</li>
+ *      <li><tt>ldap.connectionPool.maxWait</tt> -- milliseconds to wait for a context when
+ *          all of them are in use (10000 by default).</li>
+ *      <li><tt>ldap.connectionPool.validateIdle</tt> -- seconds after which an idle context is
+ *          checked with a base search before being used again (30 by default).</li>
+ *      <li><tt>ldap.connectionPool.maxIdleTime</tt> -- seconds after which an idle context is
+ *          closed (300 by default).</li>
+ * </ul>
+ */
+class LdapContextPool {
+
+    private static final Logger Log = LoggerFactory.getLogger(LdapContextPool.class);
+
+    private final LdapManager manager;
+    private final String baseDN;
+    /**
+     * Idle contexts, the most recently used first.
+     */
+    private final LinkedList<PooledContext> idle = new LinkedList<PooledContext>();
+    /**
+     * Number of contexts of the pool, idle or in use.
+     */
+    private int size = 0;
+    private boolean closed = false;
+
+    LdapContextPool(LdapManager manager, String baseDN) {
+        this.manager = manager;
+        this.baseDN = baseDN;
+    }
+
+    /**
+     * Returns a context of the pool, creating one if none is idle. Waits for a context to be
+     * returned to the pool if the pool is full.
+     *
+     * @return a context that returns to the pool when closed.
+     * @throws NamingException if no context could be created or the wait timed out.
+     */
+    PooledContext borrow() throws NamingException {
+        long start = System.nanoTime();
+        int maxSize = Math.max(1, JiveGlobals.getIntProperty("ldap.connectionPool.maxSize", 10));
+        long maxWait = JiveGlobals.getLongProperty("ldap.connectionPool.maxWait", 10000);
+        long deadline = System.currentTimeMillis() + maxWait;
+        PooledContext context = null;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new ServiceUnavailableException("LDAP connection pool is closed");
+                }
+                closeExpired();
+                if (!idle.isEmpty()) {
+                    context = idle.removeFirst();
+                    break;
+                }
+                if (size < maxSize) {
+                    // Reserve the slot and create the context without holding the lock
+                    size++;
+                    break;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LdapManager.searchWaitTime.recordSince(start);
+                    throw new ServiceUnavailableException(
+                            "Timed out waiting for an LDAP connection to " + baseDN);
+                }
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceUnavailableException(
+                            "Interrupted while waiting for an LDAP connection to " + baseDN);
+                }
+            }
+        }
+        LdapManager.searchWaitTime.recordSince(start);
+        if (context != null && !validate(context)) {
+            context.destroy();
+            context = null;
+        }
+        if (context == null) {
+            try {
+                context = (PooledContext) manager.createContext(baseDN, this);
+            }
+            catch (NamingException e) {
+                discard();
+                throw e;
+            }
+            catch (RuntimeException e) {
+                discard();
+                throw e;
+            }
+        }
+        synchronized (context) {
+            context.borrowed = System.nanoTime();
+        }
+        return context;
+    }
+
+    /**
+     * Returns a context to the pool. Contexts that can no longer be used are closed.
+     */
+    private void release(PooledContext context, long borrowed) {
+        LdapManager.requestTime.recordSince(borrowed);
+        try {
+            // Remove the controls that the last user of the context may have set
+            context.setRequestControls(null);
+        }
+        catch (NamingException e) {
+            context.destroy();
+            discard();
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                context.lastUsed = System.currentTimeMillis();
+                idle.addFirst(context);
+                notify();
+                return;
+            }
+        }
+        context.destroy();
+        discard();
+    }
+
+    /**
+     * Frees the slot of a context that was closed or could not be created.
+     */
+    private synchronized void discard() {
+        size--;
+        notify();
+    }
+
+    /**
+     * Closes the contexts that were idle for too long. Must be called while holding the lock.
+     */
+    private void closeExpired() {
+        long maxIdleTime = JiveGlobals.getIntProperty("ldap.connectionPool.maxIdleTime", 300) * 1000L;
+        long now = System.currentTimeMillis();
+        for (Iterator<PooledContext> it = idle.iterator(); it.hasNext();) {
+            PooledContext context = it.next();
+            if (now - context.lastUsed > maxIdleTime) {
+                it.remove();
+                size--;
+                context.destroy();
+            }
+        }
+    }
+
+    /**
+     * Checks that a context that was idle for a while is still connected by reading the
+     * base entry.
+     */
+    private boolean validate(PooledContext context) {
+        long validateIdle = JiveGlobals.getIntProperty("ldap.connectionPool.validateIdle", 30) * 1000L;
+        if (System.currentTimeMillis() - context.lastUsed < validateIdle) {
+            return true;
+        }
+        try {
+            SearchControls controls = new SearchControls();
+            controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+            controls.setReturningAttributes(new String[0]);
+            NamingEnumeration<SearchResult> answer = context.search("", "(objectClass=*)", controls);
+            answer.close();
+            return true;
+        }
+        catch (NamingException e) {
+            if (Log.isDebugEnabled()) {
+                Log.debug("LdapContextPool: Discarding stale LDAP connection to " + baseDN, e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Closes the idle contexts of the pool and the contexts in use once they are returned.
+     * No more contexts can be borrowed from a closed pool.
+     */
+    void close() {
+        LinkedList<PooledContext> contexts;
+        synchronized (this) {
+            closed = true;
+            contexts = new LinkedList<PooledContext>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledContext context : contexts) {
+            context.destroy();
+        }
+    }
+
+    /**
+     * A context of a pool. Closing the context returns it to the pool.
+     */
+    static class PooledContext extends JiveInitialLdapContext {
+
+        private final LdapContextPool pool;
+        /**
+         * Time when the context was borrowed or 0 if the context is idle.
+         */
+        private long borrowed = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledContext(Hashtable<?, ?> environment, LdapContextPool pool) throws NamingException {
+            super(environment, null);
+            this.pool = pool;
+        }
+
+        @Override
+        public void close() throws NamingException {
+            long borrowedAt;
+            synchronized (this) {
+                borrowedAt = borrowed;
+                borrowed = 0;
+            }
+            // Closing the context more than once returns it only once
+            if (borrowedAt != 0) {
+                pool.release(this, borrowedAt);
+            }
+        }
+
+        /**
+         * Closes the connection of the context.
+         */
+        void destroy() {
+            try {
+                super.close();
+            }
+            catch (NamingException e) {
+                // Ignore
+            }
+        }
+    }
+}
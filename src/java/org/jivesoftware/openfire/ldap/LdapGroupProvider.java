@@ -21,13 +21,24 @@
 package org.jivesoftware.openfire.ldap;
 
 import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TimerTask;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -44,13 +55,25 @@ import org.jivesoftware.openfire.group.GroupProvider;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 /**
  * LDAP implementation of the GroupProvider interface.  All data in the directory is treated as
- * read-only so any set operations will result in an exception.
+ * read-only so any set operations will result in an exception.<p>
+ *
+ * The groups of each user are kept in memory so that finding the groups of a user, which
+ * happens for every roster that is loaded, does not search the directory. The memberships of
+ * all groups are loaded in the background using paged searches when the provider is created.
+ * Every <tt>ldap.groupMembershipCache.refreshInterval</tt> minutes (5 by default) the groups
+ * whose <tt>ldap.groupMembershipCache.timestampField</tt> attribute (modifyTimestamp by
+ * default) changed since the previous refresh are loaded again, and every
+ * <tt>ldap.groupMembershipCache.fullRefreshInterval</tt> minutes (60 by default) all groups
+ * are loaded again to find deleted groups. The directory is searched as before until the
+ * memberships have been loaded or if <tt>ldap.groupMembershipCache.enabled</tt> is false.
  *
  * @author Matt Tucker, Greg Ferguson and Cameron Moore
  */
@@ -58,11 +81,27 @@ public class LdapGroupProvider implements GroupProvider {
 
 	private static final Logger Log = LoggerFactory.getLogger(LdapGroupProvider.class);
 
+    /**
+     * Refresher of the last created provider. Cancelled when a new provider replaces it so
+     * that replaced providers are not kept alive and refreshed forever.
+     */
+    private static TimerTask membershipRefresher;
+
     private LdapManager manager;
     private UserManager userManager;
     private String[] standardAttributes;
     private int groupCount = -1;
     private long expiresStamp = System.currentTimeMillis();
+    /**
+     * Groups of each member. Key: member as stored in the groups (see {@link #getMemberKey}),
+     * Value: sorted names of the groups. The sets are never modified once published.
+     */
+    private final Map<Object, Set<String>> memberGroups = new ConcurrentHashMap<Object, Set<String>>();
+    /**
+     * Members of each group. Only used by the thread that refreshes the memberships.
+     */
+    private final Map<String, Set<Object>> groupMembers = new HashMap<String, Set<Object>>();
+    private volatile boolean membershipsLoaded = false;
 
     /**
      * Constructs a new LDAP group provider.
@@ -74,6 +113,20 @@ public class LdapGroupProvider implements GroupProvider {
         standardAttributes[0] = manager.getGroupNameField();
         standardAttributes[1] = manager.getGroupDescriptionField();
         standardAttributes[2] = manager.getGroupMemberField();
+        synchronized (LdapGroupProvider.class) {
+            // Stop refreshing the memberships of the provider being replaced
+            if (membershipRefresher != null) {
+                TaskEngine.getInstance().cancelScheduledTask(membershipRefresher);
+                membershipRefresher = null;
+            }
+            if (JiveGlobals.getBooleanProperty("ldap.groupMembershipCache.enabled", true)) {
+                long interval = JiveGlobals.getIntProperty(
+                        "ldap.groupMembershipCache.refreshInterval", 5) * JiveConstants.MINUTE;
+                membershipRefresher = new MembershipRefresher();
+                TaskEngine.getInstance().schedule(membershipRefresher, 0,
+                        Math.max(JiveConstants.MINUTE, interval));
+            }
+        }
     }
 
     /**
@@ -207,6 +260,13 @@ public class LdapGroupProvider implements GroupProvider {
         if (username == null || "".equals(username)) {
             return Collections.emptyList();
         }
+        if (membershipsLoaded) {
+            Set<String> groups = memberGroups.get(getMemberKey(username));
+            if (groups == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<String>(groups);
+        }
         StringBuilder filter = new StringBuilder();
         filter.append("(&");
         filter.append(MessageFormat.format(manager.getGroupSearchFilter(), "*"));
@@ -301,6 +361,216 @@ public class LdapGroupProvider implements GroupProvider {
         return true;
     }
 
+    /**
+     * Returns the key of a member of a group in {@link #memberGroups}. DNs are compared
+     * like the directory does, ignoring case and formatting differences.
+     */
+    private Object getMemberKey(String member) {
+        if (!manager.isPosixMode()) {
+            try {
+                return new LdapName(member);
+            }
+            catch (InvalidNameException e) {
+                // Not a valid DN so compare it as a string
+            }
+        }
+        return member.toLowerCase();
+    }
+
+    /**
+     * Returns the values of the member field of a group. Active Directory returns at most
+     * 1500 values of an attribute at a time and then names the attribute after the returned
+     * range (e.g. <tt>member;range=0-1499</tt>), in which case the next ranges are read from
+     * the group entry until the last one (e.g. <tt>member;range=3000-*</tt>) is returned.
+     *
+     * @param groupName the name of the group.
+     * @param attributes the attributes of the group that were read from the directory.
+     * @return the values of the member field of the group.
+     * @throws NamingException if the remaining members could not be read.
+     */
+    private List<String> getMembers(String groupName, Attributes attributes)
+            throws NamingException {
+        String memberField = manager.getGroupMemberField();
+        List<String> members = new ArrayList<String>();
+        Attribute attribute = attributes.get(memberField);
+        if (attribute == null) {
+            attribute = getRangedAttribute(attributes, memberField);
+        }
+        if (attribute == null) {
+            return members;
+        }
+        addValues(attribute, members);
+        if (attribute.getID().equalsIgnoreCase(memberField)) {
+            // All the members were returned
+            return members;
+        }
+        LdapContext ctx = null;
+        try {
+            String baseDN = manager.getGroupsBaseDN(groupName);
+            String groupDN = manager.findGroupDN(groupName, baseDN);
+            ctx = manager.getContext(baseDN);
+            while (attribute != null && !attribute.getID().endsWith("-*")) {
+                String id = attribute.getID();
+                int next = Integer.parseInt(id.substring(id.lastIndexOf('-') + 1)) + 1;
+                Attributes range = ctx.getAttributes(groupDN,
+                        new String[] { memberField + ";range=" + next + "-*" });
+                attribute = getRangedAttribute(range, memberField);
+                if (attribute != null) {
+                    addValues(attribute, members);
+                }
+            }
+        }
+        catch (NamingException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            NamingException ne = new NamingException("Error reading the members of group " +
+                    groupName);
+            ne.setRootCause(e);
+            throw ne;
+        }
+        finally {
+            try {
+                if (ctx != null) {
+                    ctx.setRequestControls(null);
+                    ctx.close();
+                }
+            }
+            catch (Exception ignored) {
+                // Ignore.
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Returns the attribute holding a range of the values of the specified attribute or
+     * <tt>null</tt> if none was returned.
+     */
+    private static Attribute getRangedAttribute(Attributes attributes, String field)
+            throws NamingException {
+        String prefix = field.toLowerCase() + ";range=";
+        NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        try {
+            while (all.hasMore()) {
+                Attribute attribute = all.next();
+                if (attribute.getID().toLowerCase().startsWith(prefix)) {
+                    return attribute;
+                }
+            }
+        }
+        finally {
+            all.close();
+        }
+        return null;
+    }
+
+    private static void addValues(Attribute attribute, List<String> values)
+            throws NamingException {
+        NamingEnumeration<?> all = attribute.getAll();
+        while (all.hasMore()) {
+            values.add((String) all.next());
+        }
+        all.close();
+    }
+
+    /**
+     * Replaces the members of a group in the cached memberships.
+     */
+    private void updateMembers(String groupName, Set<Object> members) {
+        Set<Object> previous = members.isEmpty() ? groupMembers.remove(groupName) :
+                groupMembers.put(groupName, members);
+        if (previous == null) {
+            previous = Collections.emptySet();
+        }
+        for (Object member : previous) {
+            Set<String> current = memberGroups.get(member);
+            if (current != null && !members.contains(member)) {
+                Set<String> groups = new TreeSet<String>(current);
+                groups.remove(groupName);
+                if (groups.isEmpty()) {
+                    memberGroups.remove(member);
+                }
+                else {
+                    memberGroups.put(member, groups);
+                }
+            }
+        }
+        for (Object member : members) {
+            if (!previous.contains(member)) {
+                Set<String> current = memberGroups.get(member);
+                Set<String> groups = current == null ? new TreeSet<String>() : new TreeSet<String>(current);
+                groups.add(groupName);
+                memberGroups.put(member, groups);
+            }
+        }
+    }
+
+    /**
+     * Loads the memberships of the groups that changed since the previous run, or of all
+     * groups when a full refresh is due.
+     */
+    private class MembershipRefresher extends TimerTask {
+
+        private long lastRefresh = 0;
+        private long lastFullRefresh = 0;
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            long fullInterval = JiveGlobals.getIntProperty(
+                    "ldap.groupMembershipCache.fullRefreshInterval", 60) * JiveConstants.MINUTE;
+            boolean full = !membershipsLoaded || start - lastFullRefresh >= fullInterval;
+            String nameField = manager.getGroupNameField();
+            String memberField = manager.getGroupMemberField();
+            String filter = MessageFormat.format(manager.getGroupSearchFilter(), "*");
+            if (!full) {
+                // Allow for some clock difference with the directory server
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                String since = format.format(new Date(lastRefresh - JiveConstants.MINUTE * 5));
+                String timestampField = JiveGlobals.getProperty(
+                        "ldap.groupMembershipCache.timestampField", "modifyTimestamp");
+                filter = "(&" + filter + "(" + timestampField + ">=" + since + "))";
+            }
+            try {
+                Map<String, Set<Object>> groups = new HashMap<String, Set<Object>>();
+                for (Attributes attributes :
+                        manager.retrieveAttributes(filter, new String[] { nameField, memberField })) {
+                    Attribute name = attributes.get(nameField);
+                    if (name == null) {
+                        continue;
+                    }
+                    Set<Object> members = new HashSet<Object>();
+                    for (String member : getMembers((String) name.get(), attributes)) {
+                        members.add(getMemberKey(member));
+                    }
+                    groups.put((String) name.get(), members);
+                }
+                if (full) {
+                    // Forget the groups that no longer exist
+                    for (String groupName : new ArrayList<String>(groupMembers.keySet())) {
+                        if (!groups.containsKey(groupName)) {
+                            updateMembers(groupName, Collections.<Object>emptySet());
+                        }
+                    }
+                    lastFullRefresh = start;
+                }
+                for (Map.Entry<String, Set<Object>> entry : groups.entrySet()) {
+                    updateMembers(entry.getKey(), entry.getValue());
+                }
+                lastRefresh = start;
+                membershipsLoaded = true;
+                if (manager.isDebugEnabled()) {
+                    Log.debug("LdapGroupProvider: Loaded the memberships of " + groups.size() +
+                            " groups in " + (System.currentTimeMillis() - start) + " ms.");
+                }
+            }
+            catch (Exception e) {
+                Log.error("LdapGroupProvider: Error loading group memberships", e);
+            }
+        }
+    }
+
     private Group processGroup(LdapContext ctx, Attributes a) throws NamingException {
         XMPPServer server = XMPPServer.getInstance();
         String serverName = server.getServerInfo().getXMPPDomain();
@@ -336,90 +606,84 @@ public class LdapGroupProvider implements GroupProvider {
             description = "";
         }
         Set<JID> members = new TreeSet<JID>();
-        Attribute memberField = a.get(manager.getGroupMemberField());
-        if (memberField != null) {
-            NamingEnumeration ne = memberField.getAll();
-            while (ne.hasMore()) {
-                String username = (String) ne.next();
-                // If not posix mode, each group member is stored as a full DN.
-                if (!manager.isPosixMode()) {
-                    try {
-                        // Try to find the username with a regex pattern match.
-                        Matcher matcher = pattern.matcher(username);
-                        if (matcher.matches() && matcher.groupCount() == 3) {
-                            // The username is in the DN, no additional search needed
-                            username = matcher.group(2);
-                        }
-                        // The regex pattern match failed. This will happen if the
-                        // the member DN's don't use the standard username field. For
-                        // example, Active Directory has a username field of
-                        // sAMAccountName, but stores group members as "CN=...".
-                        else {
-                            // Create an LDAP name with the full DN.
-                            LdapName ldapName = new LdapName(username);
-                            // Turn the LDAP name into something we can use in a
-                            // search by stripping off the comma.
-                            StringBuilder userFilter = new StringBuilder();
-                            userFilter.append("(&(");
-                            userFilter.append(ldapName.get(ldapName.size() - 1));
-                            userFilter.append(")");
-                            userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
-                            userFilter.append(")");
-                            NamingEnumeration usrAnswer = ctx.search("",
-                                    userFilter.toString(), searchControls);
-                            if (usrAnswer != null && usrAnswer.hasMoreElements()) {
-                                Attribute usernameAttr = ((SearchResult)usrAnswer.next()).getAttributes().get(manager.getUsernameField());
-                                if (usernameAttr != null) {
-                                    username = (String)usernameAttr.get();
-                                }
-                            }
-                            // Close the enumeration.
-                            usrAnswer.close();
-                        }
-                    }
-                    catch (Exception e) {
-                        // TODO: A NPE is occuring here
-                        Log.error(e.getMessage(), e);
-                    }
-                }
-                // A search filter may have been defined in the LdapUserProvider.
-                // Therefore, we have to try to load each user we found to see if
-                // it passes the filter.
+        for (String member : getMembers(name, a)) {
+            String username = member;
+            // If not posix mode, each group member is stored as a full DN.
+            if (!manager.isPosixMode()) {
                 try {
-                    JID userJID;
-                    int position = username.indexOf("@" + serverName);
-                    // Create JID of local user if JID does not match a component's JID
-                    if (position == -1) {
-                        // In order to lookup a username from the manager, the username
-                        // must be a properly escaped JID node.
-                        String escapedUsername = JID.escapeNode(username);
-                        if (!escapedUsername.equals(username)) {
-                            // Check if escaped username is valid
-                            userManager.getUser(escapedUsername);
-                        }
-                        // No exception, so the user must exist. Add the user as a group
-                        // member using the escaped username.
-                        userJID = server.createJID(escapedUsername, null);
+                    // Try to find the username with a regex pattern match.
+                    Matcher matcher = pattern.matcher(username);
+                    if (matcher.matches() && matcher.groupCount() == 3) {
+                        // The username is in the DN, no additional search needed
+                        username = matcher.group(2);
                     }
+                    // The regex pattern match failed. This will happen if the
+                    // the member DN's don't use the standard username field. For
+                    // example, Active Directory has a username field of
+                    // sAMAccountName, but stores group members as "CN=...".
                     else {
-                        // This is a JID of a component or node of a server's component
-                        String node = username.substring(0, position);
-                        String escapedUsername = JID.escapeNode(node);
-                        userJID = new JID(escapedUsername + "@" + serverName);
+                        // Create an LDAP name with the full DN.
+                        LdapName ldapName = new LdapName(username);
+                        // Turn the LDAP name into something we can use in a
+                        // search by stripping off the comma.
+                        StringBuilder userFilter = new StringBuilder();
+                        userFilter.append("(&(");
+                        userFilter.append(ldapName.get(ldapName.size() - 1));
+                        userFilter.append(")");
+                        userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
+                        userFilter.append(")");
+                        NamingEnumeration usrAnswer = ctx.search("",
+                                userFilter.toString(), searchControls);
+                        if (usrAnswer != null && usrAnswer.hasMoreElements()) {
+                            Attribute usernameAttr = ((SearchResult)usrAnswer.next()).getAttributes().get(manager.getUsernameField());
+                            if (usernameAttr != null) {
+                                username = (String)usernameAttr.get();
+                            }
+                        }
+                        // Close the enumeration.
+                        usrAnswer.close();
                     }
-                    members.add(userJID);
                 }
-                catch (UserNotFoundException e) {
-                    // We can safely ignore this error. It likely means that
-                    // the user didn't pass the search filter that's defined.
-                    // So, we want to simply ignore the user as a group member.
-                    if (manager.isDebugEnabled()) {
-                        Log.debug("LdapGroupProvider: User not found: " + username);
+                catch (Exception e) {
+                    // TODO: A NPE is occuring here
+                    Log.error(e.getMessage(), e);
+                }
+            }
+            // A search filter may have been defined in the LdapUserProvider.
+            // Therefore, we have to try to load each user we found to see if
+            // it passes the filter.
+            try {
+                JID userJID;
+                int position = username.indexOf("@" + serverName);
+                // Create JID of local user if JID does not match a component's JID
+                if (position == -1) {
+                    // In order to lookup a username from the manager, the username
+                    // must be a properly escaped JID node.
+                    String escapedUsername = JID.escapeNode(username);
+                    if (!escapedUsername.equals(username)) {
+                        // Check if escaped username is valid
+                        userManager.getUser(escapedUsername);
                     }
+                    // No exception, so the user must exist. Add the user as a group
+                    // member using the escaped username.
+                    userJID = server.createJID(escapedUsername, null);
+                }
+                else {
+                    // This is a JID of a component or node of a server's component
+                    String node = username.substring(0, position);
+                    String escapedUsername = JID.escapeNode(node);
+                    userJID = new JID(escapedUsername + "@" + serverName);
+                }
+                members.add(userJID);
+            }
+            catch (UserNotFoundException e) {
+                // We can safely ignore this error. It likely means that
+                // the user didn't pass the search filter that's defined.
+                // So, we want to simply ignore the user as a group member.
+                if (manager.isDebugEnabled()) {
+                    Log.debug("LdapGroupProvider: User not found: " + username);
                 }
             }
-            // Close the enumeration.
-            ne.close();
         }
         if (manager.isDebugEnabled()) {
             Log.debug("LdapGroupProvider: Adding group \"" + name + "\" with " + members.size() +
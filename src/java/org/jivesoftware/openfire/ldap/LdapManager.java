@@ -26,16 +26,24 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
@@ -50,9 +58,16 @@ import javax.naming.ldap.StartTlsResponse;
 import javax.net.ssl.SSLSession;
 
 import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.JiveInitialLdapContext;
+import org.jivesoftware.util.LatencyHistogram;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,17 +103,54 @@ import org.slf4j.LoggerFactory;
  *      <li>ldap.initialContextFactory --  if this value is not specified,
  *          "com.sun.jndi.ldap.LdapCtxFactory" will be used.</li>
  *      <li>ldap.connectionPoolEnabled -- true if an LDAP connection pool should be used.
- *          False if not set.</li>
+ *          True if not set. See {@link LdapContextPool} for the settings of the pool.</li>
  * </ul>
  *
+ * When several hosts are configured, connections are made to the last host that could be
+ * reached and the other hosts are only tried when that host is down.
+ *
+ * The DNs found by {@link #findUserDN(String)} are cached for <tt>ldap.userDNCache.ttl</tt>
+ * seconds (30 minutes by default), and users that were not found are remembered for
+ * <tt>ldap.userDNCache.negative.ttl</tt> seconds (1 minute by default). The cache can be
+ * disabled by setting <tt>ldap.userDNCache.enabled</tt> to false.
+ *
  * @author Matt Tucker
  */
 public class LdapManager {
 
 	private static final Logger Log = LoggerFactory.getLogger(LdapManager.class);
 
+    /**
+     * Name of the cache that holds the DNs of users.
+     */
+    public static final String USER_DN_CACHE_NAME = "LDAP UserDN Mapping";
+
+    /**
+     * Time spent waiting for a pooled connection.
+     */
+    static final LatencyHistogram searchWaitTime = new LatencyHistogram();
+    /**
+     * Time during which pooled connections are in use.
+     */
+    static final LatencyHistogram requestTime = new LatencyHistogram();
+    private static final LatencyHistogram connectTime = new LatencyHistogram();
+    private static final LatencyHistogram bindWaitTime = new LatencyHistogram();
+    private static final LatencyHistogram bindTime = new LatencyHistogram();
+
     private static LdapManager instance;
     static {
+        StatisticsManager statisticsManager = StatisticsManager.getInstance();
+        statisticsManager.addStatistic("ldapSearchWaitTime",
+                new LatencyStatistic("ldap.search_wait_time", searchWaitTime));
+        statisticsManager.addStatistic("ldapRequestTime",
+                new LatencyStatistic("ldap.request_time", requestTime));
+        statisticsManager.addStatistic("ldapConnectTime",
+                new LatencyStatistic("ldap.connect_time", connectTime));
+        statisticsManager.addStatistic("ldapBindWaitTime",
+                new LatencyStatistic("ldap.bind_wait_time", bindWaitTime));
+        statisticsManager.addStatistic("ldapBindTime",
+                new LatencyStatistic("ldap.bind_time", bindTime));
+
         // Create a special Map implementation to wrap XMLProperties. We only implement
         // the get, put, and remove operations, since those are the only ones used. Using a Map
         // makes it easier to perform LdapManager testing.
@@ -183,6 +235,15 @@ public class LdapManager {
     private boolean encloseGroupDN;
     private boolean startTlsEnabled = false;
 
+    private final ConcurrentMap<String, LdapContextPool> contextPools =
+            new ConcurrentHashMap<String, LdapContextPool>();
+    /**
+     * Index of the host that was last reached.
+     */
+    private volatile int preferredHost = 0;
+    private Semaphore bindPermits;
+    private int bindPermitCount;
+
     private String groupNameField;
     private String groupMemberField;
     private String groupDescriptionField;
@@ -190,6 +251,10 @@ public class LdapManager {
     private String groupSearchFilter = null;
 
     private Map<String, String> properties;
+    /**
+     * Results of user DN searches. Key: base DN and username, Value: the search result.
+     */
+    private volatile Cache<String, DNLookup> userDNCache;
 
     /**
      * Provides singleton access to an instance of the LdapManager class.
@@ -468,6 +533,55 @@ public class LdapManager {
      * @throws NamingException if there is an error making the LDAP connection.
      */
     public LdapContext getContext(String baseDN) throws NamingException {
+        LdapContextPool pool = getContextPool(baseDN);
+        if (pool != null) {
+            return pool.borrow();
+        }
+        return createContext(baseDN, null);
+    }
+
+    /**
+     * Returns the pool of contexts for the specified base DN or <tt>null</tt> if contexts
+     * are not pooled. Only the shared instance pools contexts since other instances are
+     * used for testing settings.
+     */
+    private LdapContextPool getContextPool(String baseDN) {
+        if (this != instance || !connectionPoolEnabled) {
+            return null;
+        }
+        LdapContextPool pool = contextPools.get(baseDN);
+        if (pool == null) {
+            pool = new LdapContextPool(this, baseDN);
+            LdapContextPool existing = contextPools.putIfAbsent(baseDN, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Closes the pooled contexts since they may no longer be valid with the new settings.
+     */
+    private void resetContextPools() {
+        for (Iterator<LdapContextPool> it = contextPools.values().iterator(); it.hasNext();) {
+            LdapContextPool pool = it.next();
+            it.remove();
+            pool.close();
+        }
+    }
+
+    /**
+     * Creates a context bound as the admin user. The configured hosts are tried in order,
+     * starting with the last host that could be reached.
+     *
+     * @param baseDN the base DN to use for the context.
+     * @param pool the pool that the context will belong to or <tt>null</tt> if the context
+     *        will not be pooled.
+     * @return a new connection to the LDAP server.
+     * @throws NamingException if there is an error making the LDAP connection.
+     */
+    LdapContext createContext(String baseDN, LdapContextPool pool) throws NamingException {
         boolean debug = Log.isDebugEnabled();
         if (debug) {
             Log.debug("LdapManager: Creating a DirContext in LdapManager.getContext()...");
@@ -478,7 +592,6 @@ public class LdapManager {
         // Set up the environment for creating the initial context
         Hashtable<String, Object> env = new Hashtable<String, Object>();
         env.put(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
-        env.put(Context.PROVIDER_URL, getProviderURL(baseDN));
 
         // SSL
         if (sslEnabled) {
@@ -507,19 +620,13 @@ public class LdapManager {
         if (ldapDebugEnabled) {
             env.put("com.sun.jndi.ldap.trace.ber", System.err);
         }
-        if (connectionPoolEnabled) { 
-        	if (!startTlsEnabled)
-        		env.put("com.sun.jndi.ldap.connect.pool", "true");
-        	else { 
-        		if (debug) {
-        			// See http://java.sun.com/products/jndi/tutorial/ldap/connect/pool.html
-        			// "When Not to Use Pooling" 
-        			Log.debug("LdapManager: connection pooling was requested but has been disabled because of StartTLS.");
-        		}
-        		env.put("com.sun.jndi.ldap.connect.pool", "false");
-        	}
-        } else
-        	env.put("com.sun.jndi.ldap.connect.pool", "false");
+        // Connections are pooled by LdapContextPool instead of the JNDI pool
+        env.put("com.sun.jndi.ldap.connect.pool", "false");
+        // Specify timeout to be 10 seconds, only on non SSL since SSL connections
+        // break with a timeout.
+        if (!sslEnabled) {
+            env.put("com.sun.jndi.ldap.connect.timeout", "10000");
+        }
 
         if (followReferrals) {
             env.put(Context.REFERRAL, "follow");
@@ -532,7 +639,34 @@ public class LdapManager {
             Log.debug("LdapManager: Created hashtable with context values, attempting to create context...");
         }
         // Create new initial context
-        JiveInitialLdapContext context = new JiveInitialLdapContext(env, null);
+        JiveInitialLdapContext context = null;
+        List<String> hostList = new ArrayList<String>(hosts);
+        if (hostList.isEmpty()) {
+            env.put(Context.PROVIDER_URL, getProviderURL(baseDN));
+            context = newContext(env, pool);
+        }
+        int first = preferredHost;
+        for (int i = 0; context == null; i++) {
+            int index = (first + i) % hostList.size();
+            String host = hostList.get(index);
+            env.put(Context.PROVIDER_URL, getProviderURL(baseDN, Collections.singletonList(host)));
+            try {
+                context = newContext(env, pool);
+                preferredHost = index;
+            }
+            catch (CommunicationException e) {
+                if (i + 1 >= hostList.size()) {
+                    throw e;
+                }
+                Log.warn("LdapManager: Could not connect to LDAP host " + host + ", trying next host.", e);
+            }
+            catch (ServiceUnavailableException e) {
+                if (i + 1 >= hostList.size()) {
+                    throw e;
+                }
+                Log.warn("LdapManager: LDAP host " + host + " is unavailable, trying next host.", e);
+            }
+        }
         
         // TLS http://www.ietf.org/rfc/rfc2830.txt ("1.3.6.1.4.1.1466.20037")
 		if (startTlsEnabled && !sslEnabled) {
@@ -589,15 +723,75 @@ public class LdapManager {
         return context;
     }
 
+    private JiveInitialLdapContext newContext(Hashtable<String, Object> env, LdapContextPool pool)
+            throws NamingException {
+        long start = System.nanoTime();
+        try {
+            return pool == null ? new JiveInitialLdapContext(env, null) :
+                    new LdapContextPool.PooledContext(env, pool);
+        }
+        finally {
+            connectTime.recordSince(start);
+        }
+    }
+
     /**
      * Returns true if the user is able to successfully authenticate against
-     * the LDAP server. The "simple" authentication protocol is used.
+     * the LDAP server. The "simple" authentication protocol is used.<p>
+     *
+     * No more than <tt>ldap.bindPool.maxSize</tt> authentications (10 by default) are
+     * performed at the same time. Authentications wait up to <tt>ldap.bindPool.maxWait</tt>
+     * milliseconds (10000 by default) for another authentication to complete and fail if
+     * none completed in time.
      *
      * @param userDN the user's dn to authenticate (relative to <tt>baseDN</tt>).
      * @param password the user's password.
      * @return true if the user successfully authenticates.
      */
     public boolean checkAuthentication(String userDN, String password) {
+        long start = System.nanoTime();
+        Semaphore permits = getBindPermits();
+        try {
+            if (!permits.tryAcquire(JiveGlobals.getLongProperty("ldap.bindPool.maxWait", 10000),
+                    TimeUnit.MILLISECONDS)) {
+                Log.warn("LdapManager: Timed out waiting to authenticate " + userDN);
+                return false;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            bindWaitTime.recordSince(start);
+        }
+        try {
+            long bindStart = System.nanoTime();
+            boolean authenticated = bind(userDN, password);
+            bindTime.recordSince(bindStart);
+            return authenticated;
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    private Semaphore getBindPermits() {
+        int maxSize = Math.max(1, JiveGlobals.getIntProperty("ldap.bindPool.maxSize", 10));
+        synchronized (this) {
+            if (bindPermits == null || bindPermitCount != maxSize) {
+                // Authentications in progress release the permits of the previous semaphore
+                bindPermits = new Semaphore(maxSize, true);
+                bindPermitCount = maxSize;
+            }
+            return bindPermits;
+        }
+    }
+
+    /**
+     * Binds to the LDAP server as the specified user.
+     */
+    private boolean bind(String userDN, String password) {
         boolean debug = Log.isDebugEnabled();
         if (debug) {
             Log.debug("LdapManager: In LdapManager.checkAuthentication(userDN, password), userDN is: " + userDN + "...");
@@ -926,6 +1120,41 @@ public class LdapManager {
      * @see #findUserDN(String) to search using the default baseDN and alternateBaseDN.
      */
     public String findUserDN(String username, String baseDN) throws Exception {
+        Cache<String, DNLookup> cache = getUserDNCache();
+        if (cache == null) {
+            return searchUserDN(username, baseDN);
+        }
+        String key = baseDN + "/" + username;
+        DNLookup cached = cache.get(key);
+        if (cached != null && System.currentTimeMillis() < cached.expires) {
+            if (cached.dn == null) {
+                throw new UserNotFoundException("Username " + username + usernameSuffix + " not found");
+            }
+            return cached.dn;
+        }
+        try {
+            String userDN = searchUserDN(username, baseDN);
+            long ttl = JiveGlobals.getIntProperty("ldap.userDNCache.ttl", 1800) * 1000L;
+            if (ttl > 0) {
+                cache.put(key, new DNLookup(userDN, ttl));
+            }
+            return userDN;
+        }
+        catch (UserNotFoundException e) {
+            // Remember users that do not exist for a shorter time. Other errors such as
+            // connection failures are not cached.
+            long ttl = JiveGlobals.getIntProperty("ldap.userDNCache.negative.ttl", 60) * 1000L;
+            if (ttl > 0) {
+                cache.put(key, new DNLookup(null, ttl));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Searches the directory for the DN of a user in the specified baseDN.
+     */
+    private String searchUserDN(String username, String baseDN) throws Exception {
         boolean debug = Log.isDebugEnabled();
         //Support for usernameSuffix
         username = username + usernameSuffix;
@@ -1007,6 +1236,34 @@ public class LdapManager {
         }
     }
 
+    /**
+     * Returns the cache of user DNs or <tt>null</tt> if DNs are not cached. Only the shared
+     * instance caches DNs since other instances are used for testing settings.
+     */
+    private Cache<String, DNLookup> getUserDNCache() {
+        if (this != instance || !JiveGlobals.getBooleanProperty("ldap.userDNCache.enabled", true)) {
+            return null;
+        }
+        if (userDNCache == null) {
+            synchronized (this) {
+                if (userDNCache == null) {
+                    userDNCache = CacheFactory.createCache(USER_DN_CACHE_NAME);
+                }
+            }
+        }
+        return userDNCache;
+    }
+
+    /**
+     * Removes the cached user DNs since they may no longer be valid with the new settings.
+     */
+    private void clearUserDNCache() {
+        Cache<String, DNLookup> cache = getUserDNCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     /**
      * Finds a groups's dn using it's group name. Normally, this search will
      * be performed using the field "cn", but this can be changed by setting
@@ -1159,6 +1416,15 @@ public class LdapManager {
      * @return the properly encoded URL for use in as PROVIDER_URL.
      */
     private String getProviderURL(String baseDN) {
+        // Start with the last host that could be reached
+        List<String> hostList = new ArrayList<String>(hosts);
+        if (!hostList.isEmpty()) {
+            Collections.rotate(hostList, -(preferredHost % hostList.size()));
+        }
+        return getProviderURL(baseDN, hostList);
+    }
+
+    private String getProviderURL(String baseDN, Collection<String> hosts) {
         StringBuffer ldapURL = new StringBuffer();
         try {
             baseDN = URLEncoder.encode(baseDN, "UTF-8");
@@ -1212,6 +1478,8 @@ public class LdapManager {
             hostProperty.setLength(hostProperty.length()-1);
         }
         properties.put("ldap.host", hostProperty.toString());
+        preferredHost = 0;
+        resetContextPools();
     }
 
     /**
@@ -1233,6 +1501,7 @@ public class LdapManager {
     public void setPort(int port) {
         this.port = port;
         properties.put("ldap.port", Integer.toString(port));
+        resetContextPools();
     }
 
     /**
@@ -1256,6 +1525,7 @@ public class LdapManager {
     public void setDebugEnabled(boolean debugEnabled) {
         this.ldapDebugEnabled = debugEnabled;
         properties.put("ldap.ldapDebugEnabled", Boolean.toString(debugEnabled));
+        resetContextPools();
     }
 
     /**
@@ -1275,6 +1545,7 @@ public class LdapManager {
     public void setSslEnabled(boolean sslEnabled) {
         this.sslEnabled = sslEnabled;
         properties.put("ldap.sslEnabled", Boolean.toString(sslEnabled));
+        resetContextPools();
     }
 
     /**
@@ -1294,6 +1565,7 @@ public class LdapManager {
     public void setStartTlsEnabled(boolean startTlsEnabled) {
         this.startTlsEnabled = startTlsEnabled;
         properties.put("ldap.startTlsEnabled", Boolean.toString(startTlsEnabled));
+        resetContextPools();
     }
 
     
@@ -1325,6 +1597,7 @@ public class LdapManager {
      *      performed on.
      */
     public void setUsernameField(String usernameField) {
+        clearUserDNCache();
         this.usernameField = usernameField;
         if (usernameField == null) {
             properties.remove("ldap.usernameField");
@@ -1341,6 +1614,7 @@ public class LdapManager {
      * @param usernameSuffix the String to append to usernames for lookups
      */
     public void setUsernameSuffix(String usernameSuffix) {
+        clearUserDNCache();
         this.usernameSuffix = usernameSuffix;
         if (usernameSuffix == null) {
             properties.remove("ldap.usernameSuffix");
@@ -1425,6 +1699,8 @@ public class LdapManager {
      * @param baseDN the starting DN used for performing searches.
      */
     public void setBaseDN(String baseDN) {
+        clearUserDNCache();
+        resetContextPools();
         this.baseDN = baseDN;
         properties.put("ldap.baseDN", baseDN);
     }
@@ -1449,6 +1725,8 @@ public class LdapManager {
      * @param alternateBaseDN the alternate starting DN used for performing searches.
      */
     public void setAlternateBaseDN(String alternateBaseDN) {
+        clearUserDNCache();
+        resetContextPools();
         this.alternateBaseDN = alternateBaseDN;
         if (alternateBaseDN == null) {
             properties.remove("ldap.alternateBaseDN");
@@ -1532,6 +1810,7 @@ public class LdapManager {
     public void setAdminDN(String adminDN) {
         this.adminDN = adminDN;
         properties.put("ldap.adminDN", adminDN);
+        resetContextPools();
     }
 
     /**
@@ -1553,6 +1832,7 @@ public class LdapManager {
     public void setAdminPassword(String adminPassword) {
         this.adminPassword = adminPassword;
         properties.put("ldap.adminPassword", adminPassword);
+        resetContextPools();
     }
 
     /**
@@ -1563,6 +1843,7 @@ public class LdapManager {
     public void setConnectionPoolEnabled(boolean connectionPoolEnabled) {
         this.connectionPoolEnabled = connectionPoolEnabled;
         properties.put("ldap.connectionPoolEnabled", Boolean.toString(connectionPoolEnabled));
+        resetContextPools();
     }
 
     /**
@@ -1599,6 +1880,7 @@ public class LdapManager {
      *      when searching for users.
      */
     public void setSearchFilter(String searchFilter) {
+        clearUserDNCache();
         this.searchFilter = searchFilter;
         properties.put("ldap.searchFilter", searchFilter);
     }
@@ -1626,6 +1908,7 @@ public class LdapManager {
      * @param subTreeSearch true if the entire tree under the base DN will be searched.
      */
     public void setSubTreeSearch(boolean subTreeSearch) {
+        clearUserDNCache();
         this.subTreeSearch = subTreeSearch;
         properties.put("ldap.subTreeSearch", String.valueOf(subTreeSearch));
     }
@@ -1647,6 +1930,7 @@ public class LdapManager {
     public void setFollowReferralsEnabled(boolean followReferrals) {
         this.followReferrals = followReferrals;
         properties.put("ldap.autoFollowReferrals", String.valueOf(followReferrals));
+        resetContextPools();
     }
 
     /**
@@ -1666,6 +1950,7 @@ public class LdapManager {
     public void setFollowAliasReferralsEnabled(boolean followAliasReferrals) {
         this.followAliasReferrals = followAliasReferrals;
         properties.put("ldap.autoFollowAliasReferrals", String.valueOf(followAliasReferrals));
+        resetContextPools();
     }
 
     /**
@@ -2159,6 +2444,98 @@ public class LdapManager {
         return count;
     }
 
+    /**
+     * Retrieves attributes of all the entries that match a filter under the base DN and the
+     * alternate base DN. Results are requested in pages of <tt>ldap.pagedResultsSize</tt>
+     * entries (500 if not set) so that large directories can be read completely even when the
+     * server limits the number of results of a search.
+     *
+     * @param searchFilter filter to use to perform the search. It is used as is.
+     * @param attributes the attributes to retrieve from each entry.
+     * @return the attributes of the entries that match the filter.
+     * @throws NamingException if the search failed.
+     */
+    public List<Attributes> retrieveAttributes(String searchFilter, String[] attributes)
+            throws NamingException {
+        int pageSize = 500;
+        String pageSizeStr = properties.get("ldap.pagedResultsSize");
+        if (pageSizeStr != null) {
+            try {
+                pageSize = Integer.parseInt(pageSizeStr);
+            }
+            catch (NumberFormatException e) {
+                // poorly formatted number, ignoring
+            }
+        }
+        SearchControls searchControls = new SearchControls();
+        // See if recursive searching is enabled. Otherwise, only search one level.
+        if (isSubTreeSearch()) {
+            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        }
+        else {
+            searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        }
+        searchControls.setReturningAttributes(attributes);
+        List<Attributes> results = new ArrayList<Attributes>();
+        retrieveAttributes(baseDN, searchFilter, searchControls, pageSize, results);
+        if (alternateBaseDN != null) {
+            retrieveAttributes(alternateBaseDN, searchFilter, searchControls, pageSize, results);
+        }
+        return results;
+    }
+
+    private void retrieveAttributes(String baseDN, String searchFilter,
+            SearchControls searchControls, int pageSize, List<Attributes> results)
+            throws NamingException {
+        LdapContext ctx = null;
+        try {
+            ctx = getContext(baseDN);
+            if (pageSize > 0) {
+                ctx.setRequestControls(new Control[] {
+                        new PagedResultsControl(pageSize, Control.NONCRITICAL) });
+            }
+            byte[] cookie;
+            // Run through all pages of results (one page is also possible)
+            do {
+                cookie = null;
+                NamingEnumeration<SearchResult> answer = ctx.search("", searchFilter, searchControls);
+                while (answer.hasMoreElements()) {
+                    results.add(answer.next().getAttributes());
+                }
+                answer.close();
+                // Examine the paged results control response
+                Control[] controls = ctx.getResponseControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        }
+                    }
+                }
+                if (cookie != null) {
+                    ctx.setRequestControls(new Control[] {
+                            new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+                }
+            } while (cookie != null);
+        }
+        catch (java.io.IOException e) {
+            NamingException ne = new NamingException("Error requesting paged results");
+            ne.setRootCause(e);
+            throw ne;
+        }
+        finally {
+            try {
+                if (ctx != null) {
+                    ctx.setRequestControls(null);
+                    ctx.close();
+                }
+            }
+            catch (Exception ignored) {
+                // Ignore.
+            }
+        }
+    }
+
     /**
      * Encloses DN values with "
      *
@@ -2184,4 +2561,25 @@ public class LdapManager {
     // Set the pattern to use to wrap DN values with "
     private static Pattern dnPattern;
 
+    /**
+     * Result of the search of a user DN. The DN is <tt>null</tt> if the user was not found.
+     */
+    private static class DNLookup implements Cacheable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String dn;
+        private final long expires;
+
+        DNLookup(String dn, long ttl) {
+            this.dn = dn;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        public int getCachedSize() {
+            return CacheSizes.sizeOfObject() + CacheSizes.sizeOfString(dn) +
+                    CacheSizes.sizeOfLong();
+        }
+    }
+
 }
\ No newline at end of file
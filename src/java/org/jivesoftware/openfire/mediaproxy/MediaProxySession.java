@@ -27,6 +27,7 @@ import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,11 +69,6 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
     protected Channel channelBtoA;
     protected Channel channelBtoAControl;
 
-    protected Thread threadAtoB;
-    protected Thread threadAtoBControl;
-    protected Thread threadBtoA;
-    protected Thread threadBtoAControl;
-
     private Timer idleTimer = null;
     private Timer lifeTimer = null;
 
@@ -206,16 +202,12 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         // Create channels for parties
         createChannels();
 
-        // Start a thread for each channel
-        threadAtoB = new Thread(channelAtoB);
-        threadAtoBControl = new Thread(channelAtoBControl);
-        threadBtoA = new Thread(channelBtoA);
-        threadBtoAControl = new Thread(channelBtoAControl);
-
-        threadAtoB.start();
-        threadAtoBControl.start();
-        threadBtoA.start();
-        threadBtoAControl.start();
+        // Relay each channel in a task that blocks on its socket
+        TaskEngine taskEngine = TaskEngine.getInstance();
+        taskEngine.submitBlocking(channelAtoB);
+        taskEngine.submitBlocking(channelAtoBControl);
+        taskEngine.submitBlocking(channelBtoA);
+        taskEngine.submitBlocking(channelBtoAControl);
 
         // Listen to channel events
         addChannelListeners();
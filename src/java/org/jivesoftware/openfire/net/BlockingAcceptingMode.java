@@ -28,6 +28,7 @@ import java.net.Socket;
 import org.jivesoftware.openfire.ConnectionManager;
 import org.jivesoftware.openfire.ServerPort;
 import org.jivesoftware.util.LocaleUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,10 +60,7 @@ class BlockingAcceptingMode extends SocketAcceptingMode {
                     Log.debug("Connect " + sock.toString());
                     SocketReader reader =
                             connManager.createSocketReader(sock, false, serverPort, true);
-                    Thread thread = new Thread(reader, reader.getName());
-                    thread.setDaemon(true);
-                    thread.setPriority(Thread.NORM_PRIORITY);
-                    thread.start();
+                    TaskEngine.getInstance().submitBlocking(reader);
                 }
             }
             catch (IOException ie) {
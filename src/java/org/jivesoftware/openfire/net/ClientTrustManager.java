@@ -176,6 +176,18 @@ public class ClientTrustManager implements X509TrustManager {
 
     public void checkClientTrusted(X509Certificate[] x509Certificates, String string)
             throws CertificateException {
+        long start = System.nanoTime();
+        try {
+            verifyClientCertificates(x509Certificates, string);
+        }
+        finally {
+            // Keep track of the time spent validating certificates (OCSP requests included)
+            SSLConfig.certificateValidated(start);
+        }
+    }
+
+    private void verifyClientCertificates(X509Certificate[] x509Certificates, String string)
+            throws CertificateException {
         Log.debug("ClientTrustManager: checkClientTrusted(x509Certificates,"+string+") called");
 
         loadCRL();
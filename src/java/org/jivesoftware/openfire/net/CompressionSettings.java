@@ -0,0 +1,106 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.io.OutputStream;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalSession;
+import org.jivesoftware.util.JiveGlobals;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZOutputStream;
+
+/**
+ * Settings of the zlib stream compression (XEP-0138) used for sending data. Client connections
+ * use the <tt>xmpp.client.compression.level</tt> and <tt>xmpp.client.compression.window</tt>
+ * properties, every other connection (servers, components and connection managers) uses the
+ * <tt>xmpp.server.compression.level</tt> and <tt>xmpp.server.compression.window</tt>
+ * properties.<p>
+ *
+ * The level goes from 0 (no compression) to 9 (best compression) and defaults to 6. The window
+ * is expressed in bits, goes from 9 to 15 and defaults to 12. The deflater of a connection
+ * allocates about 128KB plus 4 times the size of the window, so the default window takes
+ * 144KB per connection instead of the 256KB of the largest window. The window used for sending
+ * data does not need to be agreed with the peer since inflaters accept any window size.
+ */
+public class CompressionSettings {
+
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int DEFAULT_WINDOW_BITS = 12;
+
+    private CompressionSettings() {
+    }
+
+    /**
+     * Returns the compression level to use for sending data to the owner of a connection.
+     *
+     * @param session the owner of the connection or <tt>null</tt> if the connection has no
+     *        session yet (e.g. outgoing server connections).
+     * @return the compression level to use, from 0 to 9.
+     */
+    public static int getLevel(LocalSession session) {
+        int level = JiveGlobals.getIntProperty(getPrefix(session) + ".compression.level",
+                DEFAULT_LEVEL);
+        return Math.max(JZlib.Z_NO_COMPRESSION, Math.min(JZlib.Z_BEST_COMPRESSION, level));
+    }
+
+    /**
+     * Returns the base two logarithm of the size of the window to use for sending data to the
+     * owner of a connection.
+     *
+     * @param session the owner of the connection or <tt>null</tt> if the connection has no
+     *        session yet (e.g. outgoing server connections).
+     * @return the size of the window in bits, from 9 to 15.
+     */
+    public static int getWindowBits(LocalSession session) {
+        int bits = JiveGlobals.getIntProperty(getPrefix(session) + ".compression.window",
+                DEFAULT_WINDOW_BITS);
+        return Math.max(9, Math.min(15, bits));
+    }
+
+    /**
+     * Returns a stream that compresses the data written to the specified stream using the
+     * settings of the connection owned by the specified session.
+     *
+     * @param out the stream where compressed data will be written.
+     * @param session the owner of the connection or <tt>null</tt> if the connection has no
+     *        session yet.
+     * @return a stream that compresses the written data.
+     */
+    public static ZOutputStream createOutputStream(OutputStream out, LocalSession session) {
+        final int level = getLevel(session);
+        final int bits = getWindowBits(session);
+        ZOutputStream zOut = new ZOutputStream(out, level) {
+            {
+                // Reinitialize the deflater with the configured window
+                z.deflateEnd();
+                z.deflateInit(level, bits);
+            }
+        };
+        zOut.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+        return zOut;
+    }
+
+    private static String getPrefix(LocalSession session) {
+        return session instanceof ClientSession ? "xmpp.client" : "xmpp.server";
+    }
+}
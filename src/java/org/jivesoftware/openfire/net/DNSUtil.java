@@ -20,7 +20,17 @@
 
 package org.jivesoftware.openfire.net;
 
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,20 +44,36 @@ import javax.naming.directory.InitialDirContext;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Utilty class to perform DNS lookups for XMPP services.
+ * Utilty class to perform DNS lookups for XMPP services.<p>
+ *
+ * Results of SRV lookups are kept in a cache that is shared by the cluster nodes. Since JNDI
+ * does not expose the TTL of DNS records, found records are kept for
+ * <tt>dnsutil.cache.ttl</tt> seconds (1 hour by default) and failed lookups (no record,
+ * unknown domain or timeout) are kept for <tt>dnsutil.cache.negative.ttl</tt> seconds
+ * (5 minutes by default). Records that are used during the last quarter of their lifetime
+ * are refreshed in the background, so domains that are in use never wait for a lookup.
  *
  * @author Matt Tucker
  */
 public class DNSUtil {
 
+    /**
+     * Name of the cache that holds the results of SRV lookups.
+     */
+    public static final String CACHE_NAME = "DNS SRV Records";
+
     private static DirContext context;
 
     private static final Logger logger = LoggerFactory.getLogger(DNSUtil.class);
@@ -58,6 +84,18 @@ public class DNSUtil {
      */
     private static Map<String, HostAddress> dnsOverride;
 
+    /**
+     * Results of SRV lookups. Key: domain, Value: the lookup result.
+     */
+    private static Cache<String, SrvLookup> lookupCache;
+    /**
+     * Domains whose cached lookup is being refreshed.
+     */
+    private static final Set<String> refreshing = Collections.synchronizedSet(new HashSet<String>());
+    private static final LatencyHistogram lookupTime = new LatencyHistogram();
+    private static final AtomicLong cacheHits = new AtomicLong(0);
+    private static final AtomicLong cacheMisses = new AtomicLong(0);
+
     static {
         try {
             Hashtable<String,String> env = new Hashtable<String,String>();
@@ -72,6 +110,21 @@ public class DNSUtil {
         catch (Exception e) {
             logger.error("Can't initialize DNS context!", e);
         }
+
+        StatisticsManager.getInstance().addStatistic("dnsLookupTime",
+                new LatencyStatistic("dns.lookup_time", lookupTime));
+        StatisticsManager.getInstance().addStatistic("dnsCacheHitRatio",
+                new i18nStatistic("dns.hit_ratio", Statistic.Type.count) {
+                    public double sample() {
+                        long hits = cacheHits.getAndSet(0);
+                        long total = hits + cacheMisses.getAndSet(0);
+                        return total == 0 ? 0 : hits * 100.0 / total;
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
     }
 
     /**
@@ -128,10 +181,7 @@ public class DNSUtil {
         }
 
         // Attempt the SRV lookup.
-        results = srvLookup("_xmpp-server._tcp." + domain);
-        if (results == null || results.isEmpty()) {
-            results = srvLookup("_jabber._tcp." + domain);
-        }
+        results = new ArrayList<HostAddress>(cachedSrvLookup(domain));
 
         // Use domain and default port as fallback.
         if (results.isEmpty()) {
@@ -191,7 +241,68 @@ public class DNSUtil {
         return answer;
     }
 
-    private static List<HostAddress> srvLookup(String lookup) {
+    /**
+     * Returns the SRV records of the XMPP service of the specified domain using the cache
+     * when possible. An empty list is returned if no record was found.
+     */
+    private static List<HostAddress> cachedSrvLookup(final String domain) {
+        Cache<String, SrvLookup> cache = getLookupCache();
+        long now = System.currentTimeMillis();
+        SrvLookup cached = cache.get(domain);
+        if (cached != null && now < cached.expires) {
+            cacheHits.incrementAndGet();
+            if (cached.isRefreshDue(now) && refreshing.add(domain)) {
+                // Refresh the record in the background since the domain is still being used
+                TaskEngine.getInstance().submit(new Runnable() {
+                    public void run() {
+                        try {
+                            srvLookup(domain);
+                        }
+                        finally {
+                            refreshing.remove(domain);
+                        }
+                    }
+                });
+            }
+            return cached.hosts;
+        }
+        cacheMisses.incrementAndGet();
+        return srvLookup(domain).hosts;
+    }
+
+    /**
+     * Performs the SRV lookup of the XMPP service of the specified domain and caches the
+     * result.
+     */
+    private static SrvLookup srvLookup(String domain) {
+        long start = System.nanoTime();
+        List<HostAddress> hosts = srvLookupRecords("_xmpp-server._tcp." + domain);
+        if (hosts.isEmpty()) {
+            hosts = srvLookupRecords("_jabber._tcp." + domain);
+        }
+        lookupTime.recordSince(start);
+        long ttl;
+        if (hosts.isEmpty()) {
+            ttl = JiveGlobals.getIntProperty("dnsutil.cache.negative.ttl", 300) * 1000L;
+        }
+        else {
+            ttl = JiveGlobals.getIntProperty("dnsutil.cache.ttl", 3600) * 1000L;
+        }
+        SrvLookup result = new SrvLookup(new ArrayList<HostAddress>(hosts), ttl);
+        if (ttl > 0) {
+            getLookupCache().put(domain, result);
+        }
+        return result;
+    }
+
+    private static synchronized Cache<String, SrvLookup> getLookupCache() {
+        if (lookupCache == null) {
+            lookupCache = CacheFactory.createCache(CACHE_NAME);
+        }
+        return lookupCache;
+    }
+
+    private static List<HostAddress> srvLookupRecords(String lookup) {
         if (lookup == null) {
             throw new NullPointerException("DNS lookup can't be null");
         }
@@ -221,10 +332,46 @@ public class DNSUtil {
         return new ArrayList<HostAddress>();
     }
 
+    /**
+     * Result of the SRV lookup of a domain. The list of hosts is empty if no record was found.
+     */
+    private static class SrvLookup implements Cacheable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<HostAddress> hosts;
+        private final long created;
+        private final long expires;
+
+        SrvLookup(List<HostAddress> hosts, long ttl) {
+            this.hosts = hosts;
+            this.created = System.currentTimeMillis();
+            this.expires = created + ttl;
+        }
+
+        /**
+         * Returns true if the lookup is in the last quarter of its lifetime.
+         */
+        boolean isRefreshDue(long now) {
+            return now > expires - (expires - created) / 4;
+        }
+
+        public int getCachedSize() {
+            int size = CacheSizes.sizeOfObject() + CacheSizes.sizeOfLong() * 2;
+            for (HostAddress host : hosts) {
+                size += CacheSizes.sizeOfObject() + CacheSizes.sizeOfString(host.getHost()) +
+                        CacheSizes.sizeOfInt() * 3;
+            }
+            return size;
+        }
+    }
+
     /**
      * Encapsulates a hostname and port.
      */
-    public static class HostAddress {
+    public static class HostAddress implements Serializable {
+
+        private static final long serialVersionUID = 1L;
 
         private final String host;
         private final int port;
@@ -269,6 +416,8 @@ public class DNSUtil {
      */
     public static class WeightedHostAddress extends HostAddress {
 
+        private static final long serialVersionUID = 1L;
+
         private final int priority;
         private final int weight;
 
@@ -26,18 +26,29 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.security.KeyManagementException;
 import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.CertificateEventListener;
 import org.jivesoftware.util.CertificateManager;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,6 +80,36 @@ public class SSLConfig {
     private static String c2sTrustStoreLocation;
     private static String c2sTrustpass;
 
+    /**
+     * Contexts used for securing connections with STARTTLS. The contexts are shared by all
+     * connections so that TLS sessions can be resumed by reconnecting peers. Contexts are
+     * created when first needed and are discarded when certificates are modified.
+     */
+    private static SSLContext c2sTLSContext;
+    private static SSLContext c2sClientAuthTLSContext;
+    private static SSLContext s2sTLSContext;
+
+    /**
+     * Number of full TLS handshakes and of resumed TLS sessions since the last sample.
+     */
+    private static final AtomicInteger fullHandshakes = new AtomicInteger(0);
+    private static final AtomicInteger resumedHandshakes = new AtomicInteger(0);
+    /**
+     * Number of connections closed since the last sample because the handshake pool was full.
+     */
+    static final AtomicInteger rejectedHandshakes = new AtomicInteger(0);
+
+    /**
+     * Latency of each phase of the TLS handshakes. The time spent waiting for a handshake
+     * thread, the time spent by handshake threads processing TLS records, the time spent
+     * validating certificates of peers (included in the processing time) and the total time
+     * of the handshake.
+     */
+    static final LatencyHistogram handshakeQueueTime = new LatencyHistogram();
+    static final LatencyHistogram handshakeProcessingTime = new LatencyHistogram();
+    static final LatencyHistogram certificateValidationTime = new LatencyHistogram();
+    static final LatencyHistogram handshakeTime = new LatencyHistogram();
+
 
     private SSLConfig() {
     }
@@ -155,6 +196,21 @@ public class SSLConfig {
         }
         resetFactory();
 
+        StatisticsManager.getInstance().addStatistic("tlsHandshakes", new HandshakeTracker(
+                "tls.handshakes", fullHandshakes));
+        StatisticsManager.getInstance().addStatistic("tlsResumptions", new HandshakeTracker(
+                "tls.resumptions", resumedHandshakes));
+        StatisticsManager.getInstance().addStatistic("tlsHandshakesRejected", new HandshakeTracker(
+                "tls.rejected", rejectedHandshakes));
+        StatisticsManager.getInstance().addStatistic("tlsHandshakeQueueTime", new LatencyStatistic(
+                "tls.queue_time", handshakeQueueTime));
+        StatisticsManager.getInstance().addStatistic("tlsHandshakeProcessingTime",
+                new LatencyStatistic("tls.processing_time", handshakeProcessingTime));
+        StatisticsManager.getInstance().addStatistic("tlsCertificateValidationTime",
+                new LatencyStatistic("tls.validation_time", certificateValidationTime));
+        StatisticsManager.getInstance().addStatistic("tlsHandshakeTime", new LatencyStatistic(
+                "tls.handshake_time", handshakeTime));
+
         // Reset SSL factory when certificates are modified
         CertificateManager.addListener(new CertificateEventListener() {
             // Reset SSL factory since keystores have changed
@@ -172,7 +228,11 @@ public class SSLConfig {
         });
     }
 
-    private static void resetFactory() {
+    private static synchronized void resetFactory() {
+        // Discard the contexts used for STARTTLS. They will be recreated when needed
+        c2sTLSContext = null;
+        c2sClientAuthTLSContext = null;
+        s2sTLSContext = null;
         try {
             String algorithm = JiveGlobals.getProperty("xmpp.socket.ssl.algorithm", "TLS");
 
@@ -437,6 +497,103 @@ public class SSLConfig {
         return c2sContext;
     }
 
+    /**
+     * Returns the SSLContext to use for securing c2s connections with STARTTLS. The context is
+     * shared by all c2s connections, so clients may resume their previous TLS session when
+     * reconnecting. The context is reloaded when certificates are modified.
+     *
+     * @param clientAuth true if certificates presented by clients will be verified.
+     * @return the SSLContext for securing c2s connections with STARTTLS.
+     * @throws IOException if the key store or the trust store could not be read.
+     * @throws NoSuchAlgorithmException if TLS is not supported.
+     * @throws KeyManagementException if the context could not be initialized.
+     */
+    public static synchronized SSLContext getc2sTLSContext(boolean clientAuth)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        if (clientAuth) {
+            if (c2sClientAuthTLSContext == null) {
+                // Check if we can trust certificates presented by the client
+                c2sClientAuthTLSContext = createTLSContext(
+                        new TrustManager[]{new ClientTrustManager(getc2sTrustStore())});
+            }
+            return c2sClientAuthTLSContext;
+        }
+        if (c2sTLSContext == null) {
+            c2sTLSContext = createTLSContext(SSLJiveTrustManagerFactory.getTrustManagers(
+                    getc2sTrustStore(), getc2sTrustPassword()));
+        }
+        return c2sTLSContext;
+    }
+
+    /**
+     * Returns the SSLContext to use for securing incoming s2s connections with STARTTLS when
+     * the certificate of the remote server is not verified during the TLS handshake. The
+     * context is shared by all those s2s connections and is reloaded when certificates are
+     * modified.
+     *
+     * @return the SSLContext for securing s2s connections with STARTTLS.
+     * @throws IOException if the key store or the trust store could not be read.
+     * @throws NoSuchAlgorithmException if TLS is not supported.
+     * @throws KeyManagementException if the context could not be initialized.
+     */
+    public static synchronized SSLContext gets2sTLSContext()
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        if (s2sTLSContext == null) {
+            s2sTLSContext = createTLSContext(SSLJiveTrustManagerFactory.getTrustManagers(
+                    gets2sTrustStore(), gets2sTrustPassword()));
+        }
+        return s2sTLSContext;
+    }
+
+    private static SSLContext createTLSContext(TrustManager[] trustManagers)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(SSLJiveKeyManagerFactory.getKeyManagers(getKeyStore(), getKeyPassword()),
+                trustManagers, null);
+        configureSessionCache(context.getServerSessionContext());
+        configureSessionCache(context.getClientSessionContext());
+        return context;
+    }
+
+    private static void configureSessionCache(SSLSessionContext sessionContext) {
+        if (sessionContext == null) {
+            return;
+        }
+        // Number of TLS sessions that can be resumed (0 means no limit)
+        sessionContext.setSessionCacheSize(
+                JiveGlobals.getIntProperty("xmpp.socket.ssl.session.cache.size", 10000));
+        // Seconds during which a TLS session can be resumed (0 means no limit)
+        sessionContext.setSessionTimeout(
+                JiveGlobals.getIntProperty("xmpp.socket.ssl.session.timeout", 3600));
+    }
+
+    /**
+     * Records a completed TLS handshake. Handshakes that resumed a previous TLS session are
+     * counted separately from full handshakes.
+     *
+     * @param sslSession the TLS session negotiated by the handshake.
+     * @param handshakeStart the time in milliseconds when the handshake was started.
+     */
+    public static void handshakeCompleted(SSLSession sslSession, long handshakeStart) {
+        if (sslSession != null && sslSession.getCreationTime() < handshakeStart) {
+            resumedHandshakes.incrementAndGet();
+        }
+        else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the time spent validating the certificates presented by a peer during a TLS
+     * handshake. The validation includes checking the revocation status of the certificates.
+     *
+     * @param startNanos the time when the validation was started as returned by
+     *        {@link System#nanoTime()}.
+     */
+    public static void certificateValidated(long startNanos) {
+        certificateValidationTime.recordSince(startNanos);
+    }
+
     /**
      * Get the SSLServerSocketFactory for s2s connections
      *
@@ -453,4 +610,25 @@ public class SSLConfig {
     public static SSLServerSocketFactory getc2sServerSocketFactory() {
         return c2sFactory;
     }
+
+    /**
+     * Tracks the number of TLS handshakes per second.
+     */
+    private static class HandshakeTracker extends i18nStatistic {
+
+        private final AtomicInteger counter;
+
+        public HandshakeTracker(String resourceKey, AtomicInteger counter) {
+            super(resourceKey, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public double sample() {
+            return counter.getAndSet(0);
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
 }
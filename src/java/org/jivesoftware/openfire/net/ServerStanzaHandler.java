@@ -20,6 +20,7 @@
 package org.jivesoftware.openfire.net;
 
 import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
@@ -46,7 +47,8 @@ import org.xmpp.packet.StreamError;
  * The connection used for receiving packets will use a ServerStanzaHandler since the other
  * connection will not receive packets.<p>
  *
- * TODO Finish migration of s2s to use NIO instead of blocking threads. Migrate from ServerSocketReader.
+ * This handler is used when the s2s listener uses NIO (see the <tt>xmpp.server.socket.nio</tt>
+ * property). Otherwise connections of remote servers are read by a {@link ServerSocketReader}.
  *
  * @author Gaston Dombiak
  */
@@ -58,6 +60,39 @@ public class ServerStanzaHandler extends StanzaHandler {
         super(router, serverName, connection);
     }
 
+    @Override
+    public void process(String stanza, XMPPPacketReader reader) throws Exception {
+        super.process(declareStreamPrefixes(stanza), reader);
+    }
+
+    /**
+     * Declares the namespace of the <tt>db</tt> or <tt>stream</tt> prefix used by the root
+     * element of the specified stanza. Stanzas are parsed independently of the stream header
+     * that declared the prefixes so the declaration is added to the root element.
+     *
+     * @param stanza the stanza received from a remote server.
+     * @return the stanza with the declaration of the namespace of its prefix.
+     */
+    public static String declareStreamPrefixes(String stanza) {
+        if (stanza.startsWith("<db:")) {
+            return declarePrefix(stanza, "db", "jabber:server:dialback");
+        }
+        else if (stanza.startsWith("<stream:") && !stanza.startsWith("<stream:stream")) {
+            return declarePrefix(stanza, "stream", "http://etherx.jabber.org/streams");
+        }
+        return stanza;
+    }
+
+    private static String declarePrefix(String stanza, String prefix, String namespace) {
+        // Find the end of the element name
+        int index = prefix.length() + 2;
+        while (index < stanza.length() && " \t\r\n/>".indexOf(stanza.charAt(index)) < 0) {
+            index++;
+        }
+        return stanza.substring(0, index) + " xmlns:" + prefix + "=\"" + namespace + "\"" +
+                stanza.substring(index);
+    }
+
     @Override
 	boolean processUnknowPacket(Element doc) throws UnauthorizedException {
         // Handle subsequent db:result packets
@@ -95,12 +130,15 @@ public class ServerStanzaHandler extends StanzaHandler {
     @Override
 	boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection)
             throws XmlPullParserException {
-        // TODO Finish implementation
-        /*if ("jabber:server".equals(namespace)) {
+        if ("jabber:server".equals(namespace)) {
             // The connected client is a server so create an IncomingServerSession
-            session = LocalIncomingServerSession.createSession(serverName, reader, connection);
+            session = LocalIncomingServerSession.createSession(serverName, xpp, connection);
+            if (session == null) {
+                // The remote server was not allowed to connect
+                connection.close();
+            }
             return true;
-        }*/
+        }
         return false;
     }
 
@@ -97,6 +97,18 @@ public class ServerTrustManager implements X509TrustManager {
      */
     public void checkServerTrusted(X509Certificate[] x509Certificates, String string)
             throws CertificateException {
+        long start = System.nanoTime();
+        try {
+            verifyServerCertificates(x509Certificates);
+        }
+        finally {
+            // Keep track of the time spent validating certificates
+            SSLConfig.certificateValidated(start);
+        }
+    }
+
+    private void verifyServerCertificates(X509Certificate[] x509Certificates)
+            throws CertificateException {
 
         // Flag that indicates if certificates of the remote server should be validated. Disabling
         // certificate validation is not recommended for production environments.
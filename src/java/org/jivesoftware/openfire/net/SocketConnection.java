@@ -28,11 +28,15 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.channels.Channels;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -51,7 +55,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Packet;
 
-import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZOutputStream;
 
 /**
@@ -70,6 +73,11 @@ public class SocketConnection implements Connection {
      */
     public static final String CHARSET = "UTF-8";
 
+    /**
+     * Max number of packets written before flushing the writer.
+     */
+    private static final int MAX_WRITE_BATCH = 100;
+
     private static Map<SocketConnection, String> instances =
             new ConcurrentHashMap<SocketConnection, String>();
 
@@ -92,6 +100,10 @@ public class SocketConnection implements Connection {
 
     private Writer writer;
     private AtomicBoolean writing = new AtomicBoolean(false);
+    /**
+     * Packets and raw text waiting to be written by the thread that is writing to the socket.
+     */
+    private final Queue<Object> pendingWrites = new ConcurrentLinkedQueue<Object>();
 
     /**
      * Deliverer to use when the connection is closed or was closed when delivering
@@ -195,16 +207,14 @@ public class SocketConnection implements Connection {
 
         try {
             if (tlsStreamHandler == null) {
-                ZOutputStream out = new ZOutputStream(
-                        ServerTrafficCounter.wrapOutputStream(socket.getOutputStream()),
-                        JZlib.Z_BEST_COMPRESSION);
-                out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+                ZOutputStream out = CompressionSettings.createOutputStream(
+                        ServerTrafficCounter.wrapOutputStream(socket.getOutputStream()), session);
                 writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
                 xmlSerializer = new XMLSocketWriter(writer, this);
             }
             else {
-                ZOutputStream out = new ZOutputStream(tlsStreamHandler.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
-                out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+                ZOutputStream out = CompressionSettings.createOutputStream(
+                        tlsStreamHandler.getOutputStream(), session);
                 writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
                 xmlSerializer = new XMLSocketWriter(writer, this);
             }
@@ -584,67 +594,116 @@ public class SocketConnection implements Connection {
             backupDeliverer.deliver(packet);
         }
         else {
-            boolean errorDelivering = false;
-            boolean allowedToWrite = false;
-            try {
-                requestWriting();
-                allowedToWrite = true;
-                xmlSerializer.write(packet.getElement());
-                if (flashClient) {
-                    writer.write('\0');
-                }
-                xmlSerializer.flush();
-            }
-            catch (Exception e) {
-                Log.debug("Error delivering packet" + "\n" + this.toString(), e);
-                errorDelivering = true;
-            }
-            finally {
-                if (allowedToWrite) {
-                    releaseWriting();
-                }
-            }
-            if (errorDelivering) {
-                close();
-                // Retry sending the packet again. Most probably if the packet is a
-                // Message it will be stored offline
-                backupDeliverer.deliver(packet);
-            }
-            else {
-                session.incrementServerPacketCount();
-            }
+            // The packet is written by this thread or by the thread that is currently writing.
+            // Queue a copy since callers may modify the packet once this method returns (e.g.
+            // to send the same packet to several recipients)
+            pendingWrites.add(packet.createCopy());
+            writePending(false);
         }
     }
 
     public void deliverRawText(String text) {
         if (!isClosed()) {
+            pendingWrites.add(text);
+            // Callers expect the text to be sent when this method returns
+            writePending(true);
+        }
+    }
+
+    /**
+     * Writes the queued packets and raw text in batches, flushing the writer once per batch.
+     * A thread that finds another thread writing leaves its data in the queue for that thread
+     * unless <tt>wait</tt> is true, in which case it waits until its data has been written.
+     *
+     * @param wait true if the calling thread must wait until the queued data was written.
+     */
+    private void writePending(boolean wait) {
+        // A waiting thread must get the lock even if its data was taken by the writing thread,
+        // since it is only sent once that thread has flushed the writer
+        while (wait || !pendingWrites.isEmpty()) {
+            if (wait) {
+                try {
+                    requestWriting();
+                }
+                catch (Exception e) {
+                    Log.debug("Error delivering raw text" + "\n" + this.toString(), e);
+                    close();
+                    discardPending();
+                    return;
+                }
+            }
+            else if (!writing.compareAndSet(false, true)) {
+                // The thread that is writing will also write our data
+                return;
+            }
+            List<Packet> written = new ArrayList<Packet>();
             boolean errorDelivering = false;
-            boolean allowedToWrite = false;
             try {
-                requestWriting();
-                allowedToWrite = true;
                 // Register that we started sending data on the connection
                 writeStarted();
-                writer.write(text);
-                if (flashClient) {
-                    writer.write('\0');
+                Object data;
+                for (int i = 0; i < MAX_WRITE_BATCH && (data = pendingWrites.poll()) != null; i++) {
+                    if (data instanceof Packet) {
+                        written.add((Packet) data);
+                        xmlSerializer.write(((Packet) data).getElement());
+                    }
+                    else {
+                        writer.write((String) data);
+                    }
+                    if (flashClient) {
+                        writer.write('\0');
+                    }
                 }
-                writer.flush();
+                xmlSerializer.flush();
             }
             catch (Exception e) {
-                Log.debug("Error delivering raw text" + "\n" + this.toString(), e);
+                Log.debug("Error delivering packet" + "\n" + this.toString(), e);
                 errorDelivering = true;
             }
             finally {
                 // Register that we finished sending data on the connection
                 writeFinished();
-                if (allowedToWrite) {
-                    releaseWriting();
-                }
+                releaseWriting();
             }
             if (errorDelivering) {
                 close();
+                // Retry sending the packets again. Most probably if the packet is a
+                // Message it will be stored offline
+                for (Packet packet : written) {
+                    deliverToBackup(packet);
+                }
+                discardPending();
+                return;
             }
+            for (int i = 0; i < written.size(); i++) {
+                session.incrementServerPacketCount();
+            }
+            // Our data has been written. Keep writing only if nobody else is writing
+            wait = false;
+        }
+    }
+
+    /**
+     * Hands the queued packets to the backup deliverer once the connection is closed.
+     */
+    private void discardPending() {
+        Object data;
+        while ((data = pendingWrites.poll()) != null) {
+            if (data instanceof Packet) {
+                deliverToBackup((Packet) data);
+            }
+        }
+    }
+
+    /**
+     * Hands a packet that could not be written to the backup deliverer.
+     */
+    private void deliverToBackup(Packet packet) {
+        try {
+            backupDeliverer.deliver(packet);
+        }
+        catch (UnauthorizedException e) {
+            Log.error("Error delivering packet to backup deliverer: " + packet, e);
         }
     }
 
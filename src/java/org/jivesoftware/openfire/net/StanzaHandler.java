@@ -31,7 +31,10 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.http.FlashCrossDomainServlet;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
 import org.slf4j.Logger;
@@ -60,6 +63,16 @@ public abstract class StanzaHandler {
      * The utf-8 charset for decoding and encoding Jabber packet streams.
      */
     protected static String CHARSET = "UTF-8";
+
+    /**
+     * Time spent parsing the received stanzas into DOM elements.
+     */
+    private static final LatencyHistogram parseTime = new LatencyHistogram();
+
+    static {
+        StatisticsManager.getInstance().addStatistic("stanzaParseTime",
+                new LatencyStatistic("stanza.parse_time", parseTime));
+    }
     protected Connection connection;
 
     // DANIELE: Indicate if a session is already created
@@ -156,7 +169,9 @@ public abstract class StanzaHandler {
             return;
         }
         // Create DOM object from received stanza
+        long start = System.nanoTime();
         Element doc = reader.read(new StringReader(stanza)).getRootElement();
+        parseTime.recordSince(start);
         if (doc == null) {
             // No document found.
             return;
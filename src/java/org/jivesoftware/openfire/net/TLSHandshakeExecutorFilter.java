@@ -0,0 +1,310 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MINA filter placed right before the {@link SSLFilter} of a session that moves the TLS
+ * handshake off the I/O processor threads. Until the handshake is completed, events of the
+ * session are processed by a bounded pool of handshake threads so that key exchanges and the
+ * validation of certificates (including OCSP requests) do not stall the other sessions served
+ * by the same I/O processor. Events of a session are processed in order and by one thread at
+ * a time. Once the handshake is completed and the pending events were processed, events are
+ * passed to the SSL filter by the I/O processor thread again.<p>
+ *
+ * The size of the pool is defined by the <tt>xmpp.socket.ssl.handshake.threads</tt> property
+ * (a value of 0 disables the pool) and the number of sessions waiting for a handshake thread
+ * is limited by the <tt>xmpp.socket.ssl.handshake.queue.size</tt> property. Sessions that
+ * cannot be admitted to the pool are closed.<p>
+ *
+ * The filter keeps its state in the session, so a single instance can be shared by all
+ * sessions. {@link TLSHandshakeFilter} must be placed after the SSL filter for notifying
+ * the end of the handshake.
+ */
+public class TLSHandshakeExecutorFilter extends IoFilterAdapter {
+
+    private static final Logger Log = LoggerFactory.getLogger(TLSHandshakeExecutorFilter.class);
+
+    private static final String STATE = TLSHandshakeExecutorFilter.class.getName() + ".state";
+
+    private static ThreadPoolExecutor executor;
+
+    @Override
+    public void onPreAdd(IoFilterChain parent, String name, NextFilter nextFilter)
+            throws Exception {
+        IoSession session = parent.getSession();
+        session.setAttribute(STATE, new HandshakeState(getExecutor() == null));
+        // Ask the SSL filter to notify the end of the handshake
+        session.setAttribute(SSLFilter.USE_NOTIFICATION, Boolean.TRUE);
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        fireEvent(session, new Event(EventType.RECEIVED, nextFilter, message));
+    }
+
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        fireEvent(session, new Event(EventType.SENT, nextFilter, message));
+    }
+
+    @Override
+    public void sessionIdle(NextFilter nextFilter, IoSession session, IdleStatus status)
+            throws Exception {
+        fireEvent(session, new Event(EventType.IDLE, nextFilter, status));
+    }
+
+    @Override
+    public void exceptionCaught(NextFilter nextFilter, IoSession session, Throwable cause)
+            throws Exception {
+        fireEvent(session, new Event(EventType.EXCEPTION, nextFilter, cause));
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        fireEvent(session, new Event(EventType.CLOSED, nextFilter, null));
+    }
+
+    /**
+     * Marks the TLS handshake of the session as completed. Events of the session that are
+     * received once the pending events were processed are no longer sent to the handshake
+     * pool.
+     *
+     * @param session the session whose TLS handshake was completed.
+     * @return the time in milliseconds when the handshake was started or -1 if the session
+     *         is not using this filter.
+     */
+    public static long handshakeCompleted(IoSession session) {
+        HandshakeState state = (HandshakeState) session.getAttribute(STATE);
+        if (state == null) {
+            return -1;
+        }
+        synchronized (state) {
+            state.completed = true;
+        }
+        SSLConfig.handshakeTime.recordSince(state.startNanos);
+        return state.startMillis;
+    }
+
+    private void fireEvent(IoSession session, Event event) {
+        HandshakeState state = (HandshakeState) session.getAttribute(STATE);
+        if (state == null) {
+            event.fire(session);
+            return;
+        }
+        boolean queued;
+        boolean submit = false;
+        synchronized (state) {
+            // Once the handshake is over events are processed by the calling thread as soon
+            // as there are no pending events
+            queued = !state.completed || state.running;
+            if (queued) {
+                state.events.add(event);
+                submit = !state.running;
+                state.running = true;
+            }
+        }
+        if (!queued) {
+            event.fire(session);
+            return;
+        }
+        if (!submit) {
+            // A handshake thread is already processing the events of the session
+            return;
+        }
+        try {
+            getExecutor().execute(new HandshakeTask(session, state));
+        }
+        catch (RejectedExecutionException e) {
+            rejected(session, state, event);
+        }
+    }
+
+    /**
+     * Closes a session that could not be admitted to the handshake pool. Events of the
+     * session are no longer sent to the pool.
+     */
+    private void rejected(IoSession session, HandshakeState state, Event event) {
+        synchronized (state) {
+            state.events.clear();
+            state.running = false;
+            state.completed = true;
+        }
+        SSLConfig.rejectedHandshakes.incrementAndGet();
+        if (event.type == EventType.CLOSED) {
+            event.fire(session);
+        }
+        else {
+            Log.debug("TLSHandshakeExecutorFilter: Handshake pool is full. Closing session: " +
+                    session);
+            session.close();
+        }
+    }
+
+    /**
+     * Returns the pool of handshake threads or <tt>null</tt> if handshakes are performed by
+     * the I/O processor threads.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = JiveGlobals.getIntProperty("xmpp.socket.ssl.handshake.threads",
+                    Runtime.getRuntime().availableProcessors());
+            if (threads <= 0) {
+                return null;
+            }
+            int queueSize = JiveGlobals.getIntProperty("xmpp.socket.ssl.handshake.queue.size", 1000);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+
+                final AtomicInteger threadId = new AtomicInteger(0);
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "TLS handshake thread - " + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Processes the pending events of a session in a handshake thread.
+     */
+    private static class HandshakeTask implements Runnable {
+
+        private final IoSession session;
+        private final HandshakeState state;
+
+        HandshakeTask(IoSession session, HandshakeState state) {
+            this.session = session;
+            this.state = state;
+        }
+
+        public void run() {
+            while (true) {
+                Event event;
+                synchronized (state) {
+                    event = state.events.poll();
+                    if (event == null) {
+                        state.running = false;
+                        return;
+                    }
+                }
+                SSLConfig.handshakeQueueTime.recordSince(event.created);
+                long start = System.nanoTime();
+                try {
+                    event.fire(session);
+                }
+                catch (Throwable t) {
+                    Log.error("TLSHandshakeExecutorFilter: Error processing event of session: " +
+                            session, t);
+                }
+                if (event.type == EventType.RECEIVED) {
+                    SSLConfig.handshakeProcessingTime.recordSince(start);
+                }
+            }
+        }
+    }
+
+    /**
+     * TLS handshake state of a session.
+     */
+    private static class HandshakeState {
+
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        /**
+         * Events waiting to be processed by a handshake thread.
+         */
+        private final LinkedList<Event> events = new LinkedList<Event>();
+        /**
+         * True when the handshake is over. Events are no longer sent to the handshake pool
+         * once the pending events were processed.
+         */
+        private boolean completed;
+        /**
+         * True while a handshake thread is processing the events of the session.
+         */
+        private boolean running;
+
+        HandshakeState(boolean completed) {
+            this.completed = completed;
+        }
+    }
+
+    private static enum EventType {
+        RECEIVED, SENT, IDLE, EXCEPTION, CLOSED
+    }
+
+    private static class Event {
+
+        private final EventType type;
+        private final NextFilter nextFilter;
+        private final Object data;
+        private final long created = System.nanoTime();
+
+        Event(EventType type, NextFilter nextFilter, Object data) {
+            this.type = type;
+            this.nextFilter = nextFilter;
+            this.data = data;
+        }
+
+        void fire(IoSession session) {
+            switch (type) {
+                case RECEIVED:
+                    nextFilter.messageReceived(session, data);
+                    break;
+                case SENT:
+                    nextFilter.messageSent(session, data);
+                    break;
+                case IDLE:
+                    nextFilter.sessionIdle(session, (IdleStatus) data);
+                    break;
+                case EXCEPTION:
+                    nextFilter.exceptionCaught(session, (Throwable) data);
+                    break;
+                case CLOSED:
+                    nextFilter.sessionClosed(session);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+
+/**
+ * MINA filter placed right after the {@link SSLFilter} of a session that records the outcome
+ * of the TLS handshake. The SSL filter notifies the end of the handshake when the session
+ * has the {@link SSLFilter#USE_NOTIFICATION} attribute, which is set by the
+ * {@link TLSHandshakeExecutorFilter} placed before the SSL filter. Notifications are consumed
+ * by this filter and are not forwarded to the rest of the filter chain.<p>
+ *
+ * The filter does not keep any state so a single instance can be shared by all sessions.
+ */
+public class TLSHandshakeFilter extends IoFilterAdapter {
+
+    @Override
+	public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        if (message == SSLFilter.SESSION_SECURED) {
+            long handshakeStart = TLSHandshakeExecutorFilter.handshakeCompleted(session);
+            SSLConfig.handshakeCompleted((SSLSession) session.getAttribute(SSLFilter.SSL_SESSION),
+                    handshakeStart);
+        }
+        else if (message != SSLFilter.SESSION_UNSECURED) {
+            super.messageReceived(nextFilter, session, message);
+        }
+    }
+}
@@ -85,32 +85,29 @@ public class TLSWrapper {
 
         // Create/initialize the SSLContext with key material
         try {
-            // First initialize the key and trust material.
-            KeyStore ksKeys = SSLConfig.getKeyStore();
-            String keypass = SSLConfig.getKeyPassword();
-
-            KeyStore ksTrust = (c2sConnection ? SSLConfig.getc2sTrustStore() : SSLConfig.gets2sTrustStore());
-            String trustpass = (c2sConnection ? SSLConfig.getc2sTrustPassword() : SSLConfig.gets2sTrustPassword());
-
-            // KeyManager's decide which key material to use.
-            KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(ksKeys, keypass);
-
-            // TrustManager's decide whether to allow connections.
-            TrustManager[] tm = SSLJiveTrustManagerFactory.getTrustManagers(ksTrust, trustpass);
-            if (clientMode || needClientAuth) {
-                if (c2sConnection) {
-                    // Check if we can trust certificates presented by the client
-                    tm = new TrustManager[]{new ClientTrustManager(ksTrust)};
-                }
-                else {
-                    // Check if we can trust certificates presented by the server
-                    tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust, connection)};
-                }
+            SSLContext tlsContext;
+            if (c2sConnection) {
+                // Use the shared context so that clients can resume their TLS sessions
+                tlsContext = SSLConfig.getc2sTLSContext(clientMode || needClientAuth);
+            }
+            else if (!clientMode && !needClientAuth) {
+                tlsContext = SSLConfig.gets2sTLSContext();
             }
+            else {
+                // First initialize the key and trust material.
+                KeyStore ksTrust = SSLConfig.gets2sTrustStore();
 
-            SSLContext tlsContext = SSLContext.getInstance(PROTOCOL);
+                // KeyManager's decide which key material to use.
+                KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(SSLConfig.getKeyStore(),
+                        SSLConfig.getKeyPassword());
 
-            tlsContext.init(km, tm, null);
+                // Check if we can trust certificates presented by the server
+                TrustManager[] tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust, connection)};
+
+                tlsContext = SSLContext.getInstance(PROTOCOL);
+
+                tlsContext.init(km, tm, null);
+            }
 
             /*
                 * Configure the tlsEngine to act as a server in the SSL/TLS handshake. We're a server,
@@ -87,7 +87,7 @@ public class ClientConnectionHandler extends ConnectionHandler {
     	super.sessionIdle(session, status);
     	
     	final boolean doPing = JiveGlobals.getBooleanProperty("xmpp.client.idle.ping", true);
-        if (doPing && session.getIdleCount(status) == 1) {
+        if (doPing && getIdleCount(session) == 1) {
             final ClientStanzaHandler handler = (ClientStanzaHandler) session.getAttribute(HANDLER);
             final JID entity = handler.getAddress();
             
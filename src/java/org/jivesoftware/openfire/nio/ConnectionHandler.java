@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.nio;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandlerAdapter;
@@ -32,6 +33,10 @@ import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.HashedWheelTimer;
+import org.jivesoftware.util.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -54,6 +59,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     static final String XML_PARSER = "XML-PARSER";
     protected static final String HANDLER = "HANDLER";
     protected static final String CONNECTION = "CONNECTION";
+    private static final String IDLE_DEADLINE = "IDLE-DEADLINE";
 
     protected String serverName;
     private static Map<Integer, XMPPPacketReader> parsers = new ConcurrentHashMap<Integer, XMPPPacketReader>();
@@ -61,8 +67,14 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      * Reuse the same factory for all the connections.
      */
     private static XmlPullParserFactory factory = null;
+    /**
+     * Time spent by the stanza handlers processing the received stanzas.
+     */
+    private static final LatencyHistogram stanzaTime = new LatencyHistogram();
 
     static {
+        StatisticsManager.getInstance().addStatistic("stanzaProcessingTime",
+                new LatencyStatistic("stanza.processing_time", stanzaTime));
         try {
             factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
             factory.setNamespaceAware(true);
@@ -88,15 +100,22 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         // Set the max time a connection can be idle before closing it. This amount of seconds
         // is divided in two, as Openfire will ping idle clients first (at 50% of the max idle time)
         // before disconnecting them (at 100% of the max idle time). This prevents Openfire from
-        // removing connections without warning.
+        // removing connections without warning. Idle connections are detected by the timer
+        // shared by all sessions instead of by the I/O processors checking every connection.
         final int idleTime = getMaxIdleTime() / 2;
         if (idleTime > 0) {
-            session.setIdleTime(IdleStatus.READER_IDLE, idleTime);
+            IdleDeadline deadline = new IdleDeadline(session, idleTime * 1000L);
+            session.setAttribute(IDLE_DEADLINE, deadline);
+            deadline.schedule(idleTime * 1000L);
         }
     }
 
     @Override
 	public void sessionClosed(IoSession session) throws Exception {
+        IdleDeadline deadline = (IdleDeadline) session.getAttribute(IDLE_DEADLINE);
+        if (deadline != null) {
+            deadline.cancel();
+        }
         // Get the connection for this session
         Connection connection = (Connection) session.getAttribute(CONNECTION);
         // Inform the connection that it was closed
@@ -113,14 +132,18 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 	 * invoked, if no IO has occurred between the first and second invocation.
 	 * This allows extensions of this class to use the first invocation to check
 	 * for livelyness of the MINA session (e.g by polling the remote entity, as
-	 * {@link ClientConnectionHandler} does).
+	 * {@link ClientConnectionHandler} does).<p>
+	 *
+	 * Idle sessions are detected by the shared {@link HashedWheelTimer}, so this
+	 * method is invoked by a thread of the timer and {@link #getIdleCount(IoSession)}
+	 * must be used instead of {@link IoSession#getIdleCount(IdleStatus)}.
 	 * 
 	 * @see org.apache.mina.common.IoHandlerAdapter#sessionIdle(org.apache.mina.common.IoSession,
 	 *      org.apache.mina.common.IdleStatus)
 	 */
     @Override
 	public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
-        if (session.getIdleCount(status) > 1) {
+        if (getIdleCount(session) > 1) {
             // Get the connection for this session
             final Connection connection = (Connection) session.getAttribute(CONNECTION);
 	        // Close idle connection
@@ -150,21 +173,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 	public void messageReceived(IoSession session, Object message) throws Exception {
         // Get the stanza handler for this session
         StanzaHandler handler = (StanzaHandler) session.getAttribute(HANDLER);
-        // Get the parser to use to process stanza. For optimization there is going
-        // to be a parser for each running thread. Each Filter will be executed
-        // by the Executor placed as the first Filter. So we can have a parser associated
-        // to each Thread
-        int hashCode = Thread.currentThread().hashCode();
-        XMPPPacketReader parser = parsers.get(hashCode);
-        if (parser == null) {
-            parser = new XMPPPacketReader();
-            parser.setXPPFactory(factory);
-            parsers.put(hashCode, parser);
-        }
+        XMPPPacketReader parser = getPacketReader();
         // Update counter of read btyes
         updateReadBytesCounter(session);
         //System.out.println("RCVD: " + message);
         // Let the stanza handler process the received stanza
+        long start = System.nanoTime();
         try {
             handler.process((String) message, parser);
         } catch (Exception e) {
@@ -172,6 +186,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
             Connection connection = (Connection) session.getAttribute(CONNECTION);
             connection.close();
         }
+        stanzaTime.recordSince(start);
     }
 
     @Override
@@ -182,6 +197,37 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
     }
 
+    /**
+     * Returns the parser to use to process stanzas. For optimization there is going
+     * to be a parser for each running thread. Each Filter will be executed
+     * by the Executor placed as the first Filter. So we can have a parser associated
+     * to each Thread.
+     *
+     * @return the parser of the current thread.
+     */
+    static XMPPPacketReader getPacketReader() {
+        int hashCode = Thread.currentThread().hashCode();
+        XMPPPacketReader parser = parsers.get(hashCode);
+        if (parser == null) {
+            parser = new XMPPPacketReader();
+            parser.setXPPFactory(factory);
+            parsers.put(hashCode, parser);
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the number of consecutive times that the session was reported idle without
+     * reading any data in between.
+     *
+     * @param session the session.
+     * @return the number of consecutive times that the session was reported idle.
+     */
+    static int getIdleCount(IoSession session) {
+        IdleDeadline deadline = (IdleDeadline) session.getAttribute(IDLE_DEADLINE);
+        return deadline == null ? 0 : deadline.idleCount;
+    }
+
     abstract NIOConnection createNIOConnection(IoSession session);
 
     abstract StanzaHandler createStanzaHandler(NIOConnection connection);
@@ -200,7 +246,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that read more bytes from the socket.
      */
-    private void updateReadBytesCounter(IoSession session) {
+    void updateReadBytesCounter(IoSession session) {
         long currentBytes = session.getReadBytes();
         Long prevBytes = (Long) session.getAttribute("_read_bytes");
         long delta;
@@ -233,4 +279,59 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         session.setAttribute("_written_bytes", currentBytes);
         ServerTrafficCounter.incrementOutgoingCounter(delta);
     }
+
+    /**
+     * Idle deadline of a session. When the deadline expires the session is reported idle if
+     * nothing was read since the previous check, otherwise a new deadline is scheduled for
+     * when the session will have been idle for long enough. Reading data does not touch the
+     * deadline.
+     */
+    private class IdleDeadline implements Runnable {
+
+        private final IoSession session;
+        private final long idleTime;
+        private volatile HashedWheelTimer.Timeout timeout;
+        private volatile boolean cancelled = false;
+        private volatile int idleCount = 0;
+
+        IdleDeadline(IoSession session, long idleTime) {
+            this.session = session;
+            this.idleTime = idleTime;
+        }
+
+        void schedule(long delay) {
+            timeout = HashedWheelTimer.getInstance().schedule(this, delay, TimeUnit.MILLISECONDS);
+            if (cancelled) {
+                timeout.cancel();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            HashedWheelTimer.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        public void run() {
+            if (cancelled || !session.isConnected()) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - session.getLastReadTime();
+            if (idle < idleTime) {
+                idleCount = 0;
+                schedule(idleTime - idle);
+                return;
+            }
+            idleCount++;
+            try {
+                sessionIdle(session, IdleStatus.READER_IDLE);
+            }
+            catch (Exception e) {
+                Log.error("Error processing idle session: " + session, e);
+            }
+            schedule(idleTime);
+        }
+    }
 }
@@ -36,21 +36,24 @@ import javax.net.ssl.TrustManager;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoFilterChain;
 import org.apache.mina.common.IoSession;
-import org.apache.mina.filter.CompressionFilter;
 import org.apache.mina.filter.SSLFilter;
 import org.dom4j.io.OutputFormat;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.ConnectionCloseListener;
 import org.jivesoftware.openfire.PacketDeliverer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
-import org.jivesoftware.openfire.net.ClientTrustManager;
+import org.jivesoftware.openfire.net.CompressionSettings;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.SSLJiveKeyManagerFactory;
-import org.jivesoftware.openfire.net.SSLJiveTrustManagerFactory;
 import org.jivesoftware.openfire.net.ServerTrustManager;
+import org.jivesoftware.openfire.net.TLSHandshakeExecutorFilter;
+import org.jivesoftware.openfire.net.TLSHandshakeFilter;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
 import org.jivesoftware.util.XMLWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +76,16 @@ public class NIOConnection implements Connection {
      */
     public static final String CHARSET = "UTF-8";
 
+    /**
+     * Time spent serializing packets and handing them to MINA for writing.
+     */
+    private static final LatencyHistogram deliverTime = new LatencyHistogram();
+
+    static {
+        StatisticsManager.getInstance().addStatistic("connectionDeliverTime",
+                new LatencyStatistic("connection.deliver_time", deliverTime));
+    }
+
     private LocalSession session;
     private IoSession ioSession;
 
@@ -247,6 +260,7 @@ public class NIOConnection implements Connection {
             backupDeliverer.deliver(packet);
         }
         else {
+            long start = System.nanoTime();
             ByteBuffer buffer = ByteBuffer.allocate(4096);
             buffer.setAutoExpand(true);
 
@@ -266,6 +280,7 @@ public class NIOConnection implements Connection {
                 Log.debug("NIOConnection: Error delivering packet" + "\n" + this.toString(), e);
                 errorDelivering = true;
             }
+            deliverTime.recordSince(start);
             if (errorDelivering) {
                 close();
                 // Retry sending the packet again. Most probably if the packet is a
@@ -322,33 +337,30 @@ public class NIOConnection implements Connection {
 
     public void startTLS(boolean clientMode, String remoteServer, ClientAuth authentication) throws Exception {
         boolean c2s = (remoteServer == null);
-        KeyStore ksKeys = SSLConfig.getKeyStore();
-        String keypass = SSLConfig.getKeyPassword();
-
-        KeyStore ksTrust = (c2s ? SSLConfig.getc2sTrustStore() : SSLConfig.gets2sTrustStore() );
-        String trustpass = (c2s ? SSLConfig.getc2sTrustPassword() : SSLConfig.gets2sTrustPassword() );
         if (c2s)  Log.debug("NIOConnection: startTLS: using c2s");
         else Log.debug("NIOConnection: startTLS: using s2s");
-        // KeyManager's decide which key material to use.
-        KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(ksKeys, keypass);
-
-        // TrustManager's decide whether to allow connections.
-        TrustManager[] tm = SSLJiveTrustManagerFactory.getTrustManagers(ksTrust, trustpass);
-
-        if (clientMode || authentication == ClientAuth.needed || authentication == ClientAuth.wanted) {
-            // We might need to verify a certificate from our peer, so get different TrustManager[]'s
-            if(c2s) {
-                // Check if we can trust certificates presented by the client
-                tm = new TrustManager[]{new ClientTrustManager(ksTrust)};
-            } else {
-                // Check if we can trust certificates presented by the server
-                tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust, this)};
-            }
-        }
-
-        SSLContext tlsContext = SSLContext.getInstance("TLS");
 
-        tlsContext.init(km, tm, null);
+        boolean verifyPeer = clientMode || authentication == ClientAuth.needed ||
+                authentication == ClientAuth.wanted;
+        SSLContext tlsContext;
+        if (c2s) {
+            // Use the shared context so that clients can resume their TLS sessions
+            tlsContext = SSLConfig.getc2sTLSContext(verifyPeer);
+        }
+        else if (!verifyPeer) {
+            tlsContext = SSLConfig.gets2sTLSContext();
+        }
+        else {
+            // Check if we can trust certificates presented by the server. The trust manager
+            // depends on the remote server so the context cannot be shared
+            KeyStore ksTrust = SSLConfig.gets2sTrustStore();
+            KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(SSLConfig.getKeyStore(),
+                    SSLConfig.getKeyPassword());
+            TrustManager[] tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust, this)};
+
+            tlsContext = SSLContext.getInstance("TLS");
+            tlsContext.init(km, tm, null);
+        }
 
         SSLFilter filter = new SSLFilter(tlsContext);
         filter.setUseClientMode(clientMode);
@@ -363,11 +375,17 @@ public class NIOConnection implements Connection {
         }
         // TODO Temporary workaround (placing SSLFilter before ExecutorFilter) to avoid deadlock. Waiting for
         // MINA devs feedback
+        // Run the TLS handshake in the handshake pool instead of in the I/O processor thread
+        ioSession.getFilterChain().addBefore("org.apache.mina.common.ExecutorThreadModel", "tlsExecutor",
+                new TLSHandshakeExecutorFilter());
         ioSession.getFilterChain().addBefore("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
         //ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
-        ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
+        // Keep track of full and resumed TLS handshakes
+        ioSession.getFilterChain().addAfter("tls", "tlsHandshake", new TLSHandshakeFilter());
         if (!clientMode) {
-            // Indicate the client that the server is ready to negotiate TLS
+            // Indicate the client that the server is ready to negotiate TLS. The answer must
+            // not be encrypted. In client mode everything sent from now on is encrypted
+            ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
             deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
         }
     }
@@ -378,11 +396,12 @@ public class NIOConnection implements Connection {
         if (chain.contains("tls")) {
             baseFilter = "tls";
         }
-        chain.addAfter(baseFilter, "compression", new CompressionFilter(true, false, CompressionFilter.COMPRESSION_MAX));
+        chain.addAfter(baseFilter, "compression", new ZlibCompressionFilter(false,
+                CompressionSettings.getLevel(session), CompressionSettings.getWindowBits(session)));
     }
 
     public void startCompression() {
-        CompressionFilter ioFilter = (CompressionFilter) ioSession.getFilterChain().get("compression");
+        ZlibCompressionFilter ioFilter = (ZlibCompressionFilter) ioSession.getFilterChain().get("compression");
         ioFilter.setCompressOutbound(true);
     }
 
@@ -0,0 +1,286 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.ExecutorThreadModel;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.DNSUtil;
+import org.jivesoftware.openfire.net.ServerStanzaHandler;
+import org.jivesoftware.openfire.net.StalledSessionsFilter;
+import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.openfire.server.RemoteServerManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConnectionHandler of a connection established by this server with a remote server. Outgoing
+ * connections are only used for sending packets so there is no {@link StanzaHandler}. The
+ * elements sent by the remote server (stream headers, stream features and the answers of the
+ * TLS, SASL and dialback negotiations) are parsed and queued in the
+ * {@link OutgoingServerSocketReader} of the connection, where they are read by the thread
+ * that is establishing the session.<p>
+ *
+ * Stream headers are queued as an empty <tt>stream</tt> element that holds the attributes of
+ * the header.
+ */
+public class OutgoingServerConnectionHandler extends ConnectionHandler {
+
+	private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnectionHandler.class);
+
+    private static SocketConnector connector;
+
+    /**
+     * Closes connections that were established after we gave up on them.
+     */
+    private static final IoFutureListener CLOSE_WHEN_CONNECTED = new IoFutureListener() {
+        public void operationComplete(IoFuture future) {
+            ConnectFuture connectFuture = (ConnectFuture) future;
+            if (connectFuture.isConnected()) {
+                connectFuture.getSession().close();
+            }
+        }
+    };
+
+    private final OutgoingServerSocketReader socketReader;
+    /**
+     * True when the connection lost the race against a connection to another host of the
+     * remote server. Events of abandoned connections are not passed to the socket reader.
+     */
+    private volatile boolean abandoned = false;
+
+    private OutgoingServerConnectionHandler(String serverName, OutgoingServerSocketReader socketReader) {
+        super(serverName);
+        this.socketReader = socketReader;
+    }
+
+    /**
+     * Establishes a TCP connection with a remote server. Elements sent by the remote server
+     * will be queued in the specified socket reader.<p>
+     *
+     * Hosts are tried in order but without waiting for a slow host to fail: if a connection
+     * attempt has not succeeded after <tt>xmpp.server.outgoing.connect.delay</tt> milliseconds
+     * (250 by default) the next host is tried in parallel. The first connection to be
+     * established is returned and the other attempts are abandoned.
+     *
+     * @param hosts the hosts of the remote server as returned by DNS lookup.
+     * @param socketReader the reader where received elements will be queued.
+     * @return the new connection or <tt>null</tt> if the connection could not be established.
+     * @throws InterruptedException if interrupted while waiting for a connection.
+     */
+    public static NIOConnection connect(List<DNSUtil.HostAddress> hosts,
+            OutgoingServerSocketReader socketReader) throws InterruptedException {
+        String serverName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+        long delay = JiveGlobals.getIntProperty("xmpp.server.outgoing.connect.delay", 250);
+        long deadline = System.currentTimeMillis() + RemoteServerManager.getSocketTimeout();
+        final Object lock = new Object();
+        IoFutureListener notifier = new IoFutureListener() {
+            public void operationComplete(IoFuture future) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        };
+        List<ConnectFuture> futures = new ArrayList<ConnectFuture>();
+        List<OutgoingServerConnectionHandler> handlers = new ArrayList<OutgoingServerConnectionHandler>();
+        Iterator<DNSUtil.HostAddress> it = hosts.iterator();
+        long nextAttempt = 0;
+        int winner = -1;
+        try {
+            synchronized (lock) {
+                while (winner < 0) {
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    if (it.hasNext() && now >= nextAttempt) {
+                        DNSUtil.HostAddress address = it.next();
+                        Log.debug("OutgoingServerConnectionHandler: Trying to connect to " +
+                                address.getHost() + ":" + address.getPort());
+                        OutgoingServerConnectionHandler handler =
+                                new OutgoingServerConnectionHandler(serverName, socketReader);
+                        ConnectFuture future = getConnector().connect(
+                                new InetSocketAddress(address.getHost(), address.getPort()), handler);
+                        future.addListener(notifier);
+                        futures.add(future);
+                        handlers.add(handler);
+                        nextAttempt = now + delay;
+                    }
+                    boolean pending = false;
+                    for (int i = 0; i < futures.size(); i++) {
+                        ConnectFuture future = futures.get(i);
+                        if (future.isConnected()) {
+                            winner = i;
+                            break;
+                        }
+                        pending = pending || !future.isReady();
+                    }
+                    if (winner >= 0) {
+                        break;
+                    }
+                    if (!pending) {
+                        if (!it.hasNext()) {
+                            // All hosts failed
+                            break;
+                        }
+                        // Try the next host right away
+                        nextAttempt = now;
+                        continue;
+                    }
+                    lock.wait(Math.max(1, (it.hasNext() ? Math.min(nextAttempt, deadline) : deadline) - now));
+                }
+            }
+        }
+        finally {
+            // Abandon the connections that lost the race
+            for (int i = 0; i < futures.size(); i++) {
+                if (i != winner) {
+                    handlers.get(i).abandoned = true;
+                    futures.get(i).addListener(CLOSE_WHEN_CONNECTED);
+                }
+            }
+        }
+        if (winner < 0) {
+            return null;
+        }
+        return (NIOConnection) futures.get(winner).getSession().getAttribute(CONNECTION);
+    }
+
+    /**
+     * Returns the connector shared by all outgoing server connections.
+     */
+    private static synchronized SocketConnector getConnector() {
+        if (connector == null) {
+            int ioThreads = JiveGlobals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
+            // Set the executor that processors will use. Note that processors will use another executor
+            // for processing events (i.e. incoming traffic)
+            Executor ioExecutor = new ThreadPoolExecutor(
+                ioThreads + 1, ioThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() );
+            connector = new SocketConnector(ioThreads, ioExecutor);
+            // Customize Executor that will be used by processors to process incoming stanzas
+            ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("outgoingServer");
+            int eventThreads = JiveGlobals.getIntProperty("xmpp.server.outgoing.processing.threads", 4);
+            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
+            eventExecutor.setCorePoolSize(eventThreads + 1);
+            eventExecutor.setMaximumPoolSize(eventThreads + 1);
+            eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+            SocketConnectorConfig config = connector.getDefaultConfig();
+            config.setThreadModel(threadModel);
+            config.setConnectTimeout(Math.max(1, RemoteServerManager.getSocketTimeout() / 1000));
+            config.getSessionConfig().setTcpNoDelay(
+                    JiveGlobals.getBooleanProperty("xmpp.socket.tcp-nodelay", true));
+            // Add the XMPP codec filter
+            connector.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+            // Kill sessions whose outgoing queues keep growing and fail to send traffic
+            connector.getFilterChain().addAfter("xmpp", "outCap", new StalledSessionsFilter());
+        }
+        return connector;
+    }
+
+    @Override
+    public void sessionCreated(IoSession session) throws Exception {
+        // Create the connection before the connect future is notified so that it is
+        // available to the thread that is establishing the session
+        super.sessionOpened(session);
+    }
+
+    @Override
+	public void sessionOpened(IoSession session) throws Exception {
+        // Everything was done when the session was created
+    }
+
+    @Override
+	public void sessionClosed(IoSession session) throws Exception {
+        super.sessionClosed(session);
+        if (!abandoned) {
+            socketReader.streamClosed();
+        }
+    }
+
+    @Override
+	public void messageReceived(IoSession session, Object message) throws Exception {
+        String stanza = (String) message;
+        // Update counter of read btyes
+        updateReadBytesCounter(session);
+        if (abandoned || stanza.startsWith("<?xml")) {
+            return;
+        }
+        if (stanza.equals("</stream:stream>")) {
+            socketReader.streamClosed();
+            ((Connection) session.getAttribute(CONNECTION)).close();
+            return;
+        }
+        if (stanza.startsWith("<stream:stream")) {
+            // Parse the attributes of the stream header
+            stanza = stanza + "</stream:stream>";
+        }
+        else {
+            stanza = ServerStanzaHandler.declareStreamPrefixes(stanza);
+        }
+        try {
+            XMPPPacketReader parser = getPacketReader();
+            Element doc = parser.read(new StringReader(stanza)).getRootElement();
+            socketReader.elementReceived(doc);
+        }
+        catch (Exception e) {
+            Log.error("Closing connection due to error while processing message: " + message, e);
+            ((Connection) session.getAttribute(CONNECTION)).close();
+        }
+    }
+
+    @Override
+	NIOConnection createNIOConnection(IoSession session) {
+        return new NIOConnection(session, XMPPServer.getInstance().getPacketDeliverer());
+    }
+
+    @Override
+	StanzaHandler createStanzaHandler(NIOConnection connection) {
+        // Outgoing connections are only used for sending packets
+        return null;
+    }
+
+    @Override
+	int getMaxIdleTime() {
+        // Idle outgoing sessions are closed by the session manager
+        return -1;
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MINA filter placed right after the XMPP codec of client sessions that moves SASL
+ * authentication off the threads processing stanzas. <tt>auth</tt> and <tt>response</tt>
+ * elements are handled by a bounded pool of authentication threads, so that slow
+ * authentication providers (databases, LDAP servers, etc.) do not stall the other sessions
+ * served by the same threads. Reading from a session is suspended until its authentication
+ * step was processed. Events of a session are processed in order and by one thread at a time:
+ * events received while an authentication step is in progress are processed by the
+ * authentication thread once the step is over.<p>
+ *
+ * The size of the pool is defined by the <tt>xmpp.auth.threads</tt> property (a value of 0
+ * disables the pool) and the number of authentication steps waiting for a thread is limited
+ * by the <tt>xmpp.auth.queue.size</tt> property. Authentications that cannot be admitted to
+ * the pool fail with a <tt>temporary-auth-failure</tt> condition so that clients retry later.<p>
+ *
+ * The filter keeps its state in the session, so a single instance can be shared by all
+ * sessions.
+ */
+public class SASLExecutorFilter extends IoFilterAdapter {
+
+    private static final Logger Log = LoggerFactory.getLogger(SASLExecutorFilter.class);
+
+    private static final String STATE = SASLExecutorFilter.class.getName() + ".state";
+
+    /**
+     * Time spent by authentication steps waiting for a thread and processing time of the
+     * authentication steps.
+     */
+    private static final LatencyHistogram queueTime = new LatencyHistogram();
+    private static final LatencyHistogram processingTime = new LatencyHistogram();
+    /**
+     * Number of authentications rejected since the last sample because the pool was full.
+     */
+    private static final AtomicInteger rejected = new AtomicInteger(0);
+
+    private static ThreadPoolExecutor executor;
+
+    static {
+        StatisticsManager.getInstance().addStatistic("saslQueueTime",
+                new LatencyStatistic("sasl.queue_time", queueTime));
+        StatisticsManager.getInstance().addStatistic("saslProcessingTime",
+                new LatencyStatistic("sasl.processing_time", processingTime));
+        StatisticsManager.getInstance().addStatistic("saslQueueSize",
+                new i18nStatistic("sasl.queue_size", Statistic.Type.count) {
+                    public double sample() {
+                        ThreadPoolExecutor pool = executor;
+                        return pool == null ? 0 : pool.getQueue().size();
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("saslRejected",
+                new i18nStatistic("sasl.rejected", Statistic.Type.count) {
+                    public double sample() {
+                        return rejected.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+    }
+
+    @Override
+    public void onPreAdd(IoFilterChain parent, String name, NextFilter nextFilter)
+            throws Exception {
+        parent.getSession().setAttribute(STATE, new AuthenticationState());
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        boolean authentication = message instanceof String &&
+                isAuthentication((String) message);
+        fireEvent(session, new Event(EventType.RECEIVED, nextFilter, message, authentication));
+    }
+
+    @Override
+    public void sessionIdle(NextFilter nextFilter, IoSession session, IdleStatus status)
+            throws Exception {
+        fireEvent(session, new Event(EventType.IDLE, nextFilter, status, false));
+    }
+
+    @Override
+    public void exceptionCaught(NextFilter nextFilter, IoSession session, Throwable cause)
+            throws Exception {
+        fireEvent(session, new Event(EventType.EXCEPTION, nextFilter, cause, false));
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        fireEvent(session, new Event(EventType.CLOSED, nextFilter, null, false));
+    }
+
+    /**
+     * Returns true if the stanza is a SASL element that may require checking credentials.
+     */
+    private static boolean isAuthentication(String stanza) {
+        return isElement(stanza, "<auth") || isElement(stanza, "<response");
+    }
+
+    private static boolean isElement(String stanza, String start) {
+        if (!stanza.startsWith(start) || stanza.length() == start.length()) {
+            return false;
+        }
+        char next = stanza.charAt(start.length());
+        return next == ' ' || next == '>' || next == '/' || Character.isWhitespace(next);
+    }
+
+    private void fireEvent(IoSession session, Event event) {
+        AuthenticationState state = (AuthenticationState) session.getAttribute(STATE);
+        ThreadPoolExecutor pool = event.authentication ? getExecutor() : null;
+        if (state == null) {
+            event.fire(session);
+            return;
+        }
+        boolean queued;
+        boolean submit = false;
+        synchronized (state) {
+            // Events are only queued while an authentication step is in progress
+            queued = state.running || pool != null;
+            if (queued) {
+                state.events.add(event);
+                submit = !state.running;
+                state.running = true;
+            }
+        }
+        if (!queued) {
+            event.fire(session);
+            return;
+        }
+        if (!submit) {
+            // An authentication thread is already processing the events of the session
+            return;
+        }
+        // Stop reading from the session until the authentication step was processed
+        session.suspendRead();
+        try {
+            pool.execute(new AuthenticationTask(session, state));
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (state) {
+                state.events.clear();
+                state.running = false;
+            }
+            session.resumeRead();
+            rejected.incrementAndGet();
+            Log.debug("SASLExecutorFilter: Authentication pool is full. Rejecting authentication of " +
+                    "session: " + session);
+            Connection connection = (Connection) session.getAttribute(ConnectionHandler.CONNECTION);
+            if (connection != null) {
+                connection.deliverRawText("<failure xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\">" +
+                        "<temporary-auth-failure/></failure>");
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of authentication threads or <tt>null</tt> if authentications are
+     * processed by the threads processing stanzas.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = JiveGlobals.getIntProperty("xmpp.auth.threads", 8);
+            if (threads <= 0) {
+                return null;
+            }
+            int queueSize = JiveGlobals.getIntProperty("xmpp.auth.queue.size", 500);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+
+                final AtomicInteger threadId = new AtomicInteger(0);
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "SASL authentication thread - " + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Processes the pending events of a session in an authentication thread.
+     */
+    private static class AuthenticationTask implements Runnable {
+
+        private final IoSession session;
+        private final AuthenticationState state;
+
+        AuthenticationTask(IoSession session, AuthenticationState state) {
+            this.session = session;
+            this.state = state;
+        }
+
+        public void run() {
+            while (true) {
+                Event event;
+                synchronized (state) {
+                    event = state.events.poll();
+                    if (event == null) {
+                        state.running = false;
+                        break;
+                    }
+                }
+                if (event.authentication) {
+                    queueTime.recordSince(event.created);
+                }
+                long start = System.nanoTime();
+                try {
+                    event.fire(session);
+                }
+                catch (Throwable t) {
+                    Log.error("SASLExecutorFilter: Error processing event of session: " +
+                            session, t);
+                }
+                if (event.authentication) {
+                    processingTime.recordSince(start);
+                }
+            }
+            session.resumeRead();
+        }
+    }
+
+    /**
+     * Authentication state of a session.
+     */
+    private static class AuthenticationState {
+
+        /**
+         * Events waiting to be processed by an authentication thread.
+         */
+        private final LinkedList<Event> events = new LinkedList<Event>();
+        /**
+         * True while an authentication thread is processing the events of the session.
+         */
+        private boolean running;
+    }
+
+    private static enum EventType {
+        RECEIVED, IDLE, EXCEPTION, CLOSED
+    }
+
+    private static class Event {
+
+        private final EventType type;
+        private final NextFilter nextFilter;
+        private final Object data;
+        private final boolean authentication;
+        private final long created = System.nanoTime();
+
+        Event(EventType type, NextFilter nextFilter, Object data, boolean authentication) {
+            this.type = type;
+            this.nextFilter = nextFilter;
+            this.data = data;
+            this.authentication = authentication;
+        }
+
+        void fire(IoSession session) {
+            switch (type) {
+                case RECEIVED:
+                    nextFilter.messageReceived(session, data);
+                    break;
+                case IDLE:
+                    nextFilter.sessionIdle(session, (IdleStatus) data);
+                    break;
+                case EXCEPTION:
+                    nextFilter.exceptionCaught(session, (Throwable) data);
+                    break;
+                case CLOSED:
+                    nextFilter.sessionClosed(session);
+                    break;
+            }
+        }
+    }
+}
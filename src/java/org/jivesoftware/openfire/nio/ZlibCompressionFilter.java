@@ -0,0 +1,182 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.IOException;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.CompressionFilter;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * MINA filter that compresses and decompresses the traffic of a session using zlib. Unlike
+ * {@link CompressionFilter} any compression level and window size can be used for the data
+ * sent by the server. Data received from the peer is always inflated with the largest window
+ * since the peer chooses its own window.<p>
+ *
+ * Outbound compression may be enabled after the filter was added, so that the answer that
+ * confirms the use of compression is sent uncompressed.
+ */
+public class ZlibCompressionFilter extends IoFilterAdapter {
+
+    private static final String DEFLATER = ZlibCompressionFilter.class.getName() + ".Deflater";
+    private static final String INFLATER = ZlibCompressionFilter.class.getName() + ".Inflater";
+
+    private final int level;
+    private final int windowBits;
+    private volatile boolean compressOutbound;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param compressOutbound true if data sent to the peer is compressed from the start.
+     * @param level the compression level of the data sent to the peer, from 0 to 9.
+     * @param windowBits the base two logarithm of the window used for compressing the data
+     *        sent to the peer, from 9 to 15.
+     */
+    public ZlibCompressionFilter(boolean compressOutbound, int level, int windowBits) {
+        this.compressOutbound = compressOutbound;
+        this.level = level;
+        this.windowBits = windowBits;
+    }
+
+    public boolean isCompressOutbound() {
+        return compressOutbound;
+    }
+
+    public void setCompressOutbound(boolean compressOutbound) {
+        this.compressOutbound = compressOutbound;
+    }
+
+    @Override
+    public void onPreAdd(IoFilterChain parent, String name, NextFilter nextFilter)
+            throws Exception {
+        if (parent.contains(ZlibCompressionFilter.class)) {
+            throw new IllegalStateException(
+                    "A filter chain cannot contain more than one compression filter.");
+        }
+        ZStream deflater = new ZStream();
+        deflater.deflateInit(level, windowBits);
+        ZStream inflater = new ZStream();
+        inflater.inflateInit();
+        IoSession session = parent.getSession();
+        session.setAttribute(DEFLATER, deflater);
+        session.setAttribute(INFLATER, inflater);
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter)
+            throws Exception {
+        IoSession session = parent.getSession();
+        if (session == null) {
+            return;
+        }
+        ZStream deflater = (ZStream) session.removeAttribute(DEFLATER);
+        if (deflater != null) {
+            deflater.deflateEnd();
+            deflater.free();
+        }
+        ZStream inflater = (ZStream) session.removeAttribute(INFLATER);
+        if (inflater != null) {
+            inflater.inflateEnd();
+            inflater.free();
+        }
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws Exception {
+        ZStream inflater = (ZStream) session.getAttribute(INFLATER);
+        if (inflater == null || !(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        ByteBuffer inBuffer = (ByteBuffer) message;
+        byte[] in = new byte[inBuffer.remaining()];
+        inBuffer.get(in);
+        inBuffer.release();
+        nextFilter.messageReceived(session, process(inflater, in, false));
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest)
+            throws Exception {
+        ZStream deflater = (ZStream) session.getAttribute(DEFLATER);
+        if (!compressOutbound || deflater == null ||
+                !(writeRequest.getMessage() instanceof ByteBuffer)) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        ByteBuffer inBuffer = (ByteBuffer) writeRequest.getMessage();
+        if (!inBuffer.hasRemaining()) {
+            // Ignore empty buffers
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        byte[] in = new byte[inBuffer.remaining()];
+        inBuffer.get(in);
+        inBuffer.release();
+        ByteBuffer outBuffer;
+        // The deflater of a session may be used by several threads writing to the session
+        synchronized (deflater) {
+            outBuffer = process(deflater, in, true);
+        }
+        nextFilter.filterWrite(session, new WriteRequest(outBuffer, writeRequest.getFuture()));
+    }
+
+    /**
+     * Inflates or deflates the specified bytes. Deflated data is flushed so that the peer
+     * can process it right away.
+     */
+    private static ByteBuffer process(ZStream stream, byte[] in, boolean deflate)
+            throws IOException {
+        byte[] out = new byte[deflate ? in.length / 2 + 64 : in.length * 2 + 64];
+        ByteBuffer outBuffer = ByteBuffer.allocate(out.length);
+        outBuffer.setAutoExpand(true);
+        stream.next_in = in;
+        stream.next_in_index = 0;
+        stream.avail_in = in.length;
+        do {
+            stream.next_out = out;
+            stream.next_out_index = 0;
+            stream.avail_out = out.length;
+            int result = deflate ? stream.deflate(JZlib.Z_SYNC_FLUSH) :
+                    stream.inflate(JZlib.Z_SYNC_FLUSH);
+            if (result != JZlib.Z_OK && result != JZlib.Z_BUF_ERROR) {
+                outBuffer.release();
+                throw new IOException((deflate ? "Compression" : "Decompression") +
+                        " failed with return value: " + result +
+                        (stream.msg != null ? " and message: " + stream.msg : ""));
+            }
+            outBuffer.put(out, 0, stream.next_out_index);
+        }
+        // Keep going while there is input left or the output buffer was filled up
+        while (stream.avail_in > 0 || stream.avail_out == 0);
+        stream.next_in = null;
+        stream.next_out = null;
+        return outBuffer.flip();
+    }
+}
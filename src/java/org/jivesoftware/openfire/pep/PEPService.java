@@ -23,12 +23,10 @@ package org.jivesoftware.openfire.pep;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
@@ -49,6 +47,7 @@ import org.jivesoftware.openfire.pubsub.PubSubEngine;
 import org.jivesoftware.openfire.pubsub.PubSubPersistenceManager;
 import org.jivesoftware.openfire.pubsub.PubSubService;
 import org.jivesoftware.openfire.pubsub.PublishedItem;
+import org.jivesoftware.openfire.pubsub.PublishedItemQueue;
 import org.jivesoftware.openfire.pubsub.PublishedItemTask;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.pubsub.models.PublisherModel;
@@ -58,6 +57,7 @@ import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.FastDateFormat;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.cache.Cacheable;
@@ -135,14 +135,33 @@ public class PEPService implements PubSubService, Cacheable {
     private Map<String, Map<String, String>> barePresences = new ConcurrentHashMap<String, Map<String, String>>();
 
     /**
-     * Queue that holds the items that need to be added to the database.
+     * Keep a registry of the nodes that have subscriptions whose notifications
+     * depend on the presence of the subscriber. Note: Key-> bare JID of the
+     * subscriber and Value-> nodes with presence dependent subscriptions of
+     * the subscriber.
      */
-    private Queue<PublishedItem> itemsToAdd = new LinkedBlockingQueue<PublishedItem>(10000);
+    private Map<String, Set<Node>> presenceDependentNodes = new ConcurrentHashMap<String, Set<Node>>();
 
     /**
-     * Queue that holds the items that need to be deleted from the database.
+     * The maximum number of items of all PEP services that may wait to be added to or deleted
+     * from the database. Items that do not fit are not queued, which bounds the memory used
+     * while the database is unavailable.
      */
-    private Queue<PublishedItem> itemsToDelete = new LinkedBlockingQueue<PublishedItem>(10000);
+    private static final int ITEMS_QUEUE_SIZE =
+            JiveGlobals.getIntProperty("xmpp.pep.items.queue.size", 100000);
+
+    /**
+     * Queue that holds the items of all PEP services that need to be added to the database.
+     * The queue is shared so that services can be removed from memory without losing
+     * unsaved items.
+     */
+    private static final PublishedItemQueue itemsToAdd = new PublishedItemQueue(ITEMS_QUEUE_SIZE);
+
+    /**
+     * Queue that holds the items of all PEP services that need to be deleted from the database.
+     */
+    private static final PublishedItemQueue itemsToDelete =
+            new PublishedItemQueue(ITEMS_QUEUE_SIZE);
 
     /**
      * Manager that keeps the list of ad-hoc commands and processing command
@@ -157,14 +176,15 @@ public class PEPService implements PubSubService, Cacheable {
 
     /**
      * The time to elapse between each execution of the maintenance process.
-     * Default is 2 minutes.
+     * Default is 10 seconds.
      */
-    private int items_task_timeout = 2 * 60 * 1000;
+    private static int items_task_timeout =
+            JiveGlobals.getIntProperty("xmpp.pep.items.task.timeout", 10 * 1000);
 
     /**
-     * Task that saves or deletes published items from the database.
+     * Task that saves or deletes the published items of all PEP services from the database.
      */
-    private PublishedItemTask publishedItemTask;
+    private static PublishedItemTask publishedItemTask;
 
     static {
         fastDateFormat = FastDateFormat.getInstance(JiveConstants.XMPP_DATETIME_FORMAT, TimeZone.getTimeZone("UTC"));
@@ -184,13 +204,6 @@ public class PEPService implements PubSubService, Cacheable {
         adHocCommandManager = new AdHocCommandManager();
         adHocCommandManager.addCommand(new PendingSubscriptionsCommand(this));
 
-        // Save or delete published items from the database every 2 minutes
-        // starting in 2 minutes (default values)
-        publishedItemTask = new PublishedItemTask(this) {
-        	
-        };
-        timer.schedule(publishedItemTask, items_task_timeout, items_task_timeout);
-
         // Load default configuration for leaf nodes
         leafDefaultConfiguration = PubSubPersistenceManager.loadDefaultConfiguration(this, true);
         if (leafDefaultConfiguration == null) {
@@ -563,11 +576,15 @@ public class PEPService implements PubSubService, Cacheable {
         return barePresences;
     }
 
-    public Queue<PublishedItem> getItemsToAdd() {
+    public Map<String, Set<Node>> getPresenceDependentNodes() {
+        return presenceDependentNodes;
+    }
+
+    public PublishedItemQueue getItemsToAdd() {
         return itemsToAdd;
     }
 
-    public Queue<PublishedItem> getItemsToDelete() {
+    public PublishedItemQueue getItemsToDelete() {
         return itemsToDelete;
     }
 
@@ -576,11 +593,15 @@ public class PEPService implements PubSubService, Cacheable {
     }
 
     public PublishedItemTask getPublishedItemTask() {
-        return publishedItemTask;
+        synchronized (PEPService.class) {
+            return publishedItemTask;
+        }
     }
 
     public void setPublishedItemTask(PublishedItemTask task) {
-        publishedItemTask = task;
+        synchronized (PEPService.class) {
+            publishedItemTask = task;
+        }
     }
 
     public Timer getTimer() {
@@ -595,6 +616,47 @@ public class PEPService implements PubSubService, Cacheable {
         items_task_timeout = timeout;
     }
 
+    /**
+     * Starts the task that saves or deletes the published items of all PEP services from
+     * the database. A single task is used no matter the number of PEP services.
+     */
+    static synchronized void startMaintenance() {
+        if (publishedItemTask != null) {
+            publishedItemTask.cancel();
+        }
+        publishedItemTask = new PublishedItemTask(itemsToAdd, itemsToDelete);
+        timer.schedule(publishedItemTask, items_task_timeout, items_task_timeout);
+    }
+
+    /**
+     * Stops the task that saves or deletes the published items of all PEP services and
+     * saves the items that are still queued.
+     */
+    static synchronized void stopMaintenance() {
+        if (publishedItemTask != null) {
+            publishedItemTask.cancel();
+            publishedItemTask.flush();
+        }
+    }
+
+    /**
+     * Saves or deletes the queued items of the specified PEP service. Services that were
+     * removed from memory need their queued items to be saved before being loaded again
+     * from the database. Nothing is done if the service has no pending items, which is
+     * the common case.
+     *
+     * @param serviceID the ID (i.e. bare JID of the owner) of the PEP service.
+     */
+    static void flushQueuedItems(String serviceID) {
+        PublishedItemTask task;
+        synchronized (PEPService.class) {
+            task = publishedItemTask;
+        }
+        if (task != null && task.hasPendingItems(serviceID)) {
+            task.flush(serviceID);
+        }
+    }
+
 	public int getCachedSize() {
 		// Rather arbitrary. Don't use this for size-based eviction policies!
 		return 600;
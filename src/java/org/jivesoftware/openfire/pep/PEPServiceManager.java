@@ -74,6 +74,9 @@ public class PEPServiceManager {
 				// lookup in cache
 				pepService = pepServices.get(jid);
 			} else {
+				// save items of the service that may still be queued (e.g. the
+				// service was removed from the cache before its items were saved)
+				PEPService.flushQueuedItems(jid);
 				// lookup in database.
 				pepService = loadPEPServiceFromDB(jid);
 				
@@ -200,12 +203,16 @@ public class PEPServiceManager {
 	public void start() {
 		pubSubEngine = new PubSubEngine(XMPPServer.getInstance()
 				.getPacketRouter());
+		// save or delete published items of all PEP services from the database
+		PEPService.startMaintenance();
 	}
 
 	public void stop() {
 
+		// save items of all PEP services (the services share a single task)
+		PEPService.stopMaintenance();
 		for (PEPService service : pepServices.values()) {
-			pubSubEngine.shutdown(service);
+			pubSubEngine.release(service);
 		}
 
 		pubSubEngine = null;
@@ -219,8 +226,15 @@ public class PEPServiceManager {
 		return pepServices.get(owner) != null;
 	}
 	
-	// mimics Shutdown, without killing the timer.
-	public void unload(PEPService service) {	
-		pubSubEngine.shutdown(service);
+	/**
+	 * Releases the resources of a service that is no longer cached. Published
+	 * items that were not saved yet are kept in the queues shared by all PEP
+	 * services, so they are saved even after the service was unloaded.
+	 * 
+	 * @param service
+	 *            the service to unload.
+	 */
+	public void unload(PEPService service) {
+		service.getManager().stop();
 	}
 }
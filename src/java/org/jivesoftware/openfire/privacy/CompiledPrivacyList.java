@@ -0,0 +1,245 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * The items of a privacy list compiled into lookup tables. Finding the item that applies to
+ * a packet takes a few hash lookups and at most one roster lookup, no matter how many items
+ * the list has, instead of checking every item in order.<p>
+ *
+ * Which items may apply to a packet only depends on the kind of stanza and on whether the
+ * sender or the receiver of the packet is checked, so there is one table per combination.
+ * Each table maps full JIDs, bare JIDs, domains, roster groups and subscription states to the
+ * position of the first item that matches them. Tables are built the first time they are
+ * needed. A compiled list is immutable and is replaced when the items of the list change.
+ */
+class CompiledPrivacyList {
+
+    /**
+     * The kinds of stanzas that privacy items can filter.
+     */
+    static enum StanzaKind {
+        message, iq, presenceIn, presenceOut, other
+    }
+
+    /**
+     * The address of a packet that is checked against the items.
+     */
+    private static enum Target {
+        /**
+         * The sender of a packet received by the user.
+         */
+        from,
+        /**
+         * The receiver of a presence sent by the user.
+         */
+        to,
+        /**
+         * Other packets sent by the user, which only the fall-through items apply to.
+         */
+        none
+    }
+
+    private final List<PrivacyItem> items;
+    private final JID userJID;
+    private final Table[] tables = new Table[StanzaKind.values().length * Target.values().length];
+
+    CompiledPrivacyList(List<PrivacyItem> items, JID userJID) {
+        this.items = items;
+        this.userJID = userJID;
+    }
+
+    /**
+     * Returns the first item of the list that applies to the packet or <tt>null</tt> if
+     * no item applies.
+     *
+     * @param packet the packet sent or received by the user.
+     * @param list the list whose roster is used for group and subscription items.
+     * @return the first item of the list that applies to the packet.
+     */
+    PrivacyItem getMatchingItem(Packet packet, PrivacyList list) {
+        boolean isPresence = packet.getClass().equals(Presence.class);
+        Target target;
+        if (!userJID.toBareJID().equals(packet.getFrom().toBareJID())) {
+            target = Target.from;
+        }
+        else if (isPresence) {
+            target = Target.to;
+        }
+        else {
+            target = Target.none;
+        }
+        StanzaKind kind = getKind(packet);
+        Table table = getTable(kind, target);
+        JID jid = target == Target.from ? packet.getFrom() :
+                target == Target.to ? packet.getTo() : null;
+        int position = table.fallThrough;
+        if (jid != null) {
+            position = Math.min(position, table.lookup(jid, list));
+        }
+        return position < items.size() ? items.get(position) : null;
+    }
+
+    private StanzaKind getKind(Packet packet) {
+        Class packetClass = packet.getClass();
+        if (Message.class.equals(packetClass)) {
+            return StanzaKind.message;
+        }
+        else if (Presence.class.equals(packetClass)) {
+            Presence.Type presenceType = ((Presence) packet).getType();
+            // Only presences of type available or unavailable are filtered
+            // (subscription-related presences are ignored)
+            if (presenceType == null || presenceType == Presence.Type.unavailable) {
+                JID to = packet.getTo();
+                boolean incoming = to != null && to.toBareJID().equals(userJID.toBareJID());
+                return incoming ? StanzaKind.presenceIn : StanzaKind.presenceOut;
+            }
+        }
+        else if (IQ.class.equals(packetClass)) {
+            return StanzaKind.iq;
+        }
+        return StanzaKind.other;
+    }
+
+    private Table getTable(StanzaKind kind, Target target) {
+        int index = kind.ordinal() * Target.values().length + target.ordinal();
+        // Tables are immutable so building the same table twice is harmless
+        Table table = tables[index];
+        if (table == null) {
+            table = new Table(kind, target);
+            tables[index] = table;
+        }
+        return table;
+    }
+
+    /**
+     * Positions of the first items that apply to each address, group and subscription
+     * for a kind of stanza and a checked address.
+     */
+    private class Table {
+
+        private final Map<JID, Integer> fullJIDs = new HashMap<JID, Integer>();
+        private final Map<String, Integer> bareJIDs = new HashMap<String, Integer>();
+        private final Map<String, Integer> domains = new HashMap<String, Integer>();
+        private final Map<String, Integer> groups = new HashMap<String, Integer>();
+        private final Map<RosterItem.SubType, Integer> subscriptions =
+                new HashMap<RosterItem.SubType, Integer>();
+        private final int fallThrough;
+
+        Table(StanzaKind kind, Target target) {
+            int firstFallThrough = Integer.MAX_VALUE;
+            for (int i = 0; i < items.size(); i++) {
+                PrivacyItem item = items.get(i);
+                if (!item.filters(kind)) {
+                    continue;
+                }
+                if (item.isFallThrough()) {
+                    // No item after the first fall-through item can apply
+                    firstFallThrough = i;
+                    break;
+                }
+                if (target == Target.none ||
+                        (target == Target.to && !item.filters(StanzaKind.presenceOut))) {
+                    continue;
+                }
+                JID jidValue = item.getJidValue();
+                if (jidValue != null) {
+                    if (jidValue.getResource() != null) {
+                        // Exact resource match (e.g. <user@domain/resource> or <domain/resource>)
+                        putFirst(fullJIDs, jidValue, i);
+                    }
+                    else if (jidValue.getNode() != null) {
+                        // Any resource matches (e.g. <user@domain>)
+                        putFirst(bareJIDs, jidValue.toBareJID(), i);
+                    }
+                    else {
+                        // Domain match (e.g. <domain>)
+                        putFirst(domains, jidValue.getDomain(), i);
+                    }
+                }
+                else if (item.getGroupValue() != null) {
+                    putFirst(groups, item.getGroupValue(), i);
+                }
+                else if (item.getSubscriptionValue() != null) {
+                    putFirst(subscriptions, item.getSubscriptionValue(), i);
+                }
+            }
+            fallThrough = firstFallThrough;
+        }
+
+        /**
+         * Returns the position of the first item that applies to the specified address or
+         * <tt>Integer.MAX_VALUE</tt> if none applies.
+         */
+        int lookup(JID jid, PrivacyList list) {
+            int position = Integer.MAX_VALUE;
+            position = min(position, fullJIDs.get(jid));
+            position = min(position, bareJIDs.get(jid.toBareJID()));
+            position = min(position, domains.get(jid.getDomain()));
+            if (!groups.isEmpty() || !subscriptions.isEmpty()) {
+                // Resolve the contact once for all the group and subscription items
+                Collection<String> contactGroups = Collections.emptyList();
+                RosterItem.SubType contactSubscription = RosterItem.SUB_NONE;
+                Roster roster = list.getRoster();
+                if (roster != null) {
+                    try {
+                        RosterItem item = roster.getRosterItem(jid);
+                        contactGroups = item.getGroups();
+                        contactSubscription = item.getSubStatus();
+                    }
+                    catch (UserNotFoundException e) {
+                        // Sender is not in the user's roster
+                    }
+                }
+                for (String group : contactGroups) {
+                    position = min(position, groups.get(group));
+                }
+                position = min(position, subscriptions.get(contactSubscription));
+            }
+            return position;
+        }
+
+        private int min(int position, Integer other) {
+            return other != null && other < position ? other : position;
+        }
+
+        private <K> void putFirst(Map<K, Integer> map, K key, int position) {
+            if (!map.containsKey(key)) {
+                map.put(key, position);
+            }
+        }
+    }
+}
@@ -141,6 +141,69 @@ class PrivacyItem implements Cacheable, Comparable {
         return allow;
     }
 
+    /**
+     * Returns true if the item applies to any sender or receiver.
+     *
+     * @return true if this is the "fall-through" item.
+     */
+    boolean isFallThrough() {
+        return type == null;
+    }
+
+    /**
+     * Returns the JID that the item applies to or <tt>null</tt> if the item is not of
+     * type <tt>jid</tt>.
+     *
+     * @return the JID that the item applies to.
+     */
+    JID getJidValue() {
+        return type == Type.jid ? jidValue : null;
+    }
+
+    /**
+     * Returns the roster group that the item applies to or <tt>null</tt> if the item is not
+     * of type <tt>group</tt>.
+     *
+     * @return the roster group that the item applies to.
+     */
+    String getGroupValue() {
+        return type == Type.group ? groupValue : null;
+    }
+
+    /**
+     * Returns the subscription status that the item applies to or <tt>null</tt> if the item
+     * is not of type <tt>subscription</tt>.
+     *
+     * @return the subscription status that the item applies to.
+     */
+    RosterItem.SubType getSubscriptionValue() {
+        return type == Type.subscription ? subscriptionValue : null;
+    }
+
+    /**
+     * Returns true if the item filters the stanzas of the specified kind.
+     *
+     * @param kind the kind of stanza.
+     * @return true if the item filters the stanzas of the specified kind.
+     */
+    boolean filters(CompiledPrivacyList.StanzaKind kind) {
+        if (filterEverything) {
+            return true;
+        }
+        switch (kind) {
+            case message:
+                return filterMessage;
+            case iq:
+                return filterIQ;
+            case presenceIn:
+                return filterPresence_in;
+            case presenceOut:
+                return filterPresence_out;
+            default:
+                return false;
+        }
+    }
+
     private boolean matchesPacketSenderCondition(Packet packet, Roster roster, JID userJID) {
         if (type == null) {
             // This is the "fall-through" case
@@ -92,6 +92,10 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+    /**
+     * Items of the list compiled into lookup tables. Replaced each time the items change.
+     */
+    private volatile CompiledPrivacyList compiledItems;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -161,21 +165,17 @@ public class PrivacyList implements Cacheable, Externalizable {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
-            }
+        // Find the first rule whose condition matches
+        CompiledPrivacyList compiled = compiledItems;
+        PrivacyItem item = compiled == null ? null : compiled.getMatchingItem(packet, this);
+        if (item == null || item.isAllow()) {
+            // If no rule blocked the communication then allow the packet to flow
+            return false;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("PrivacyList: Packet was blocked: " + packet);
         }
-        // If no rule blocked the communication then allow the packet to flow
-        return false;
+        return true;
     }
 
     /**
@@ -232,13 +232,14 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        compiledItems = new CompiledPrivacyList(items, userJID);
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
         }
     }
 
-    private Roster getRoster() {
+    Roster getRoster() {
         try {
             return XMPPServer.getInstance().getRosterManager().getRoster(userJID.getNode());
         } catch (UserNotFoundException e) {
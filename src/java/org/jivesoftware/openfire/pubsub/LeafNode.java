@@ -23,11 +23,8 @@ package org.jivesoftware.openfire.pubsub;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.dom4j.Element;
 import org.jivesoftware.util.LocaleUtils;
@@ -72,12 +69,11 @@ public class LeafNode extends Node {
      */
     private boolean sendItemSubscribe;
     /**
-     * List of items that were published to the node and that are still active. If the node is
-     * not configured to persist items then the last published item will be kept. The list is
-     * sorted cronologically.
+     * Items that were published to the node and that are still active. If the node is
+     * not configured to persist items then the last published item will be kept. Only
+     * the most recent items are kept in memory, older items are loaded from the database.
      */
-    protected final List<PublishedItem> publishedItems = new ArrayList<PublishedItem>();
-    protected Map<String, PublishedItem> itemsByID = new HashMap<String, PublishedItem>();
+    protected final PublishedItemStore publishedItems = new PublishedItemStore(this);
 
     // TODO Add checking of max payload size. Return <not-acceptable> plus a application specific error condition of <payload-too-big/>.
 
@@ -127,9 +123,9 @@ public class LeafNode extends Node {
         }
         synchronized (publishedItems) {
             // Remove stored published items based on the new max items
-            while (!publishedItems.isEmpty() && isMaxItemsReached())
+            while (publishedItems.size() > 0 && isMaxItemsReached())
             {
-                removeItem(0);
+                removeItem(publishedItems.getOldestID());
             }
         }
     }
@@ -175,19 +171,25 @@ public class LeafNode extends Node {
 
     @Override
 	protected void deletingNode() {
-        synchronized (publishedItems) {
-            // Remove stored published items
-            while (!publishedItems.isEmpty()) {
-                removeItem(0);
-            }
+        // Remove stored published items
+        for (PublishedItem removedItem : publishedItems.clear()) {
+            service.queueItemToRemove(removedItem);
         }
     }
 
     void addPublishedItem(PublishedItem item) {
-        synchronized (publishedItems) {
-            publishedItems.add(item);
-            itemsByID.put(item.getID(), item);
-        }
+        publishedItems.add(item);
+    }
+
+    /**
+     * Adds the ID of an item that was published to the node and that exists in the database.
+     * The item itself is loaded from the database when requested.
+     *
+     * @param itemID the ID of the published item.
+     * @param creationDate the creation date of the item in milliseconds.
+     */
+    void addPublishedItemID(String itemID, String creationDate) {
+        publishedItems.addItemID(itemID, creationDate);
     }
 
     public int getMaxPayloadSize() {
@@ -257,7 +259,7 @@ public class LeafNode extends Node {
                     	do {
                     		itemID = StringUtils.randomString(15);
                     	}
-                        while (itemsByID.containsKey(itemID));
+                        while (publishedItems.contains(itemID));
                     }
 
                     // Create a new published item
@@ -268,18 +270,16 @@ public class LeafNode extends Node {
 
                     // Check and remove any existing items that have the matching ID,
                     // generated ID's won't match since we already checked.
-                    PublishedItem duplicate = itemsByID.get(newItem.getID());
-                    
-                    if (duplicate != null)
+                    if (publishedItems.contains(newItem.getID()))
                     {
-                    	removeItem(findIndexById(duplicate.getID()));
+                    	removeItem(newItem.getID());
                     }
 
                     // Add the published item to the list of items to persist (using another thread)
                     // but check that we don't exceed the limit. Remove oldest items if required.
-                    while (!publishedItems.isEmpty() && isMaxItemsReached())
+                    while (publishedItems.size() > 0 && isMaxItemsReached())
                     {
-                        removeItem(0);
+                        removeItem(publishedItems.getOldestID());
                     }
                     
                     addPublishedItem(newItem);
@@ -294,42 +294,41 @@ public class LeafNode extends Node {
         Message message = new Message();
         Element event = message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
         // Broadcast event notification to subscribers and parent node subscribers
-        Set<NodeAffiliate> affiliatesToNotify = new HashSet<NodeAffiliate>(affiliates);
-        // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
-        for (CollectionNode parentNode : getParents()) {
-            for (NodeSubscription subscription : parentNode.getSubscriptions()) {
-                affiliatesToNotify.add(subscription.getAffiliate());
-            }
-        }
         // TODO Use another thread for this (if # of subscribers is > X)????
-        for (NodeAffiliate affiliate : affiliatesToNotify) {
-            affiliate.sendPublishedNotifications(message, event, this, newPublishedItems);
+        for (Node node : getNotifiedNodes()) {
+            for (Map.Entry<JID, List<NodeSubscription>> entry :
+                    node.getDeliverableSubscriptions().entrySet()) {
+                NodeAffiliate affiliate = node.getAffiliate(entry.getKey());
+                if (affiliate != null) {
+                    affiliate.sendPublishedNotifications(message, event, this, newPublishedItems,
+                            entry.getValue());
+                }
+            }
         }
     }
 
-	/**
-     * Must be called from code synchronized on publishedItems
+    /**
+     * Returns this node and the parents in the hierarchy of parent nodes. Subscribers of
+     * these nodes are notified of items published to or deleted from this node.
+     *
+     * @return this node and its parent nodes.
      */
-    private int findIndexById(String id) {
-    	for (int i=0; i<publishedItems.size(); i++)
-    	{
-    		PublishedItem item = publishedItems.get(i);
-    		
-			if (item.getID().equals(id))
-				return i;
-		}
-		return -1;
-	}
+    private List<Node> getNotifiedNodes() {
+        List<Node> nodes = new ArrayList<Node>(getParents());
+        nodes.add(0, this);
+        return nodes;
+    }
 
 	/**
      * Must be called from code synchronized on publishedItems
      */
-	private void removeItem(int index) {
-        PublishedItem removedItem = publishedItems.remove(index);
-		itemsByID.remove(removedItem.getID());
-		// Add the removed item to the queue of items to delete from the database. The
-		// queue is going to be processed by another thread
-		service.queueItemToRemove(removedItem);
+	private void removeItem(String itemID) {
+        PublishedItem removedItem = publishedItems.remove(itemID);
+        if (removedItem != null) {
+            // Add the removed item to the queue of items to delete from the database. The
+            // queue is going to be processed by another thread
+            service.queueItemToRemove(removedItem);
+        }
 	}
 
     /**
@@ -345,13 +344,9 @@ public class LeafNode extends Node {
      * @param toDelete list of items that were deleted from the node.
      */
     public void deleteItems(List<PublishedItem> toDelete) {
-        synchronized (publishedItems) {
-            for (PublishedItem item : toDelete) {
-                // Remove items to delete from memory
-                publishedItems.remove(item);
-                // Update fast look up cache of published items
-                itemsByID.remove(item.getID());
-            }
+        for (PublishedItem item : toDelete) {
+            // Remove items to delete from memory
+            publishedItems.remove(item.getID());
         }
         // Remove deleted items from the database
         for (PublishedItem item : toDelete) {
@@ -365,16 +360,16 @@ public class LeafNode extends Node {
                     message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
             // Send notification that items have been deleted to subscribers and parent node
             // subscribers
-            Set<NodeAffiliate> affiliatesToNotify = new HashSet<NodeAffiliate>(affiliates);
-            // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
-            for (CollectionNode parentNode : getParents()) {
-                for (NodeSubscription subscription : parentNode.getSubscriptions()) {
-                    affiliatesToNotify.add(subscription.getAffiliate());
-                }
-            }
             // TODO Use another thread for this (if # of subscribers is > X)????
-            for (NodeAffiliate affiliate : affiliatesToNotify) {
-                affiliate.sendDeletionNotifications(message, event, this, toDelete);
+            for (Node node : getNotifiedNodes()) {
+                for (Map.Entry<JID, List<NodeSubscription>> entry :
+                        node.getDeliverableSubscriptions().entrySet()) {
+                    NodeAffiliate affiliate = node.getAffiliate(entry.getKey());
+                    if (affiliate != null) {
+                        affiliate.sendDeletionNotifications(message, event, this, toDelete,
+                                entry.getValue());
+                    }
+                }
             }
         }
     }
@@ -390,6 +385,22 @@ public class LeafNode extends Node {
      */
     void sendPublishedItems(IQ originalRequest, List<PublishedItem> publishedItems,
             boolean forceToIncludePayload) {
+        sendPublishedItems(originalRequest, publishedItems, forceToIncludePayload, null);
+    }
+
+    /**
+     * Sends an IQ result with a page of the items published to the node. Item ID and payload
+     * may be included in the result based on the node configuration.
+     *
+     * @param originalRequest the IQ packet sent by a subscriber (or anyone) to get the node items.
+     * @param publishedItems the list of published items to send to the subscriber.
+     * @param forceToIncludePayload true if the item payload should be include if one exists. When
+     *        false the decision is up to the node.
+     * @param resultSet the Result Set Management (XEP-0059) element that describes the page of
+     *        items or <tt>null</tt> if the items were not paged.
+     */
+    void sendPublishedItems(IQ originalRequest, List<PublishedItem> publishedItems,
+            boolean forceToIncludePayload, Element resultSet) {
         IQ result = IQ.createResultIQ(originalRequest);
         Element pubsubElem = result.setChildElement("pubsub", "http://jabber.org/protocol/pubsub");
         Element items = pubsubElem.addElement("items");
@@ -405,6 +416,9 @@ public class LeafNode extends Node {
                 item.add(publishedItem.getPayload().createCopy());
             }
         }
+        if (resultSet != null) {
+            pubsubElem.add(resultSet);
+        }
         // Send the result
         service.send(result);
     }
@@ -414,42 +428,48 @@ public class LeafNode extends Node {
         if (!isItemRequired()) {
             return null;
         }
-        synchronized (publishedItems) {
-            return itemsByID.get(itemID);
-        }
+        return publishedItems.get(itemID);
     }
 
     @Override
 	public List<PublishedItem> getPublishedItems() {
-        synchronized (publishedItems) {
-            return Collections.unmodifiableList(publishedItems);
-        }
+        return Collections.unmodifiableList(publishedItems.getItems(publishedItems.getIDs()));
     }
 
     @Override
 	public List<PublishedItem> getPublishedItems(int recentItems) {
-        synchronized (publishedItems) {
-            int size = publishedItems.size();
-            if (recentItems > size) {
-                // User requested more items than the one the node has so return the current list
-                return Collections.unmodifiableList(publishedItems);
-            }
-            else {
-                // Return the number of recent items the user requested
-                List<PublishedItem> recent = publishedItems.subList(size - recentItems, size);
-                return new ArrayList<PublishedItem>(recent);
-            }
-        }
+        return Collections.unmodifiableList(
+                publishedItems.getItems(publishedItems.getRecentIDs(recentItems)));
+    }
+
+    /**
+     * Returns the published items whose IDs match the specified list of IDs. The returned
+     * list follows the order of the requested IDs and IDs of items that no longer exist
+     * are ignored. Items that are not kept in memory are loaded from the database.
+     *
+     * @param itemIDs the IDs of the items to retrieve sorted chronologically.
+     * @return the published items whose IDs match the specified list of IDs.
+     */
+    public List<PublishedItem> getPublishedItems(List<String> itemIDs) {
+        return Collections.unmodifiableList(publishedItems.getItems(itemIDs));
+    }
+
+    /**
+     * Returns the IDs of the items that were published to the node sorted chronologically.
+     * Unlike {@link #getPublishedItems()} this method does not need to load items from
+     * the database. The returned list is unmodifiable and finds the index of an item
+     * without scanning the list.
+     *
+     * @return the IDs of the items that were published to the node.
+     */
+    public List<String> getPublishedItemIDs() {
+        return publishedItems.getIDs();
     }
 
     @Override
 	public PublishedItem getLastPublishedItem() {
-        synchronized (publishedItems) {
-            if (publishedItems.isEmpty()) {
-                return null;
-            }
-            return publishedItems.get(publishedItems.size()-1);
-        }
+        String itemID = publishedItems.getNewestID();
+        return itemID == null ? null : publishedItems.get(itemID);
     }
 
     /**
@@ -489,13 +509,12 @@ public class LeafNode extends Node {
         synchronized (publishedItems) {
             if (publishedItems.size() > 1) {
                 // Remove all items except the last one
-                toDelete = new ArrayList<PublishedItem>(
-                        publishedItems.subList(0, publishedItems.size() - 1));
-                // Remove items to delete from memory
-                publishedItems.removeAll(toDelete);
-                // Update fast look up cache of published items
-                itemsByID = new HashMap<String, PublishedItem>();
-                itemsByID.put(publishedItems.get(0).getID(), publishedItems.get(0));
+                List<String> itemIDs = publishedItems.getIDs();
+                toDelete = new ArrayList<PublishedItem>(itemIDs.size() - 1);
+                for (String itemID : itemIDs.subList(0, itemIDs.size() - 1)) {
+                    // Remove items to delete from memory
+                    toDelete.add(publishedItems.remove(itemID));
+                }
             }
         }
         if (toDelete != null) {
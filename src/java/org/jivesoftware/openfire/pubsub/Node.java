@@ -34,6 +34,7 @@ import org.xmpp.packet.Message;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * A virtual location to which information can be published and from which event
@@ -161,6 +162,12 @@ public abstract class Node {
      * whitelist then this collection acts as the white list (unless user is an outcast)
      */
     protected Collection<NodeAffiliate> affiliates = new CopyOnWriteArrayList<NodeAffiliate>();
+    /**
+     * Map that contains the affiliates of the node. It is an index of <tt>affiliates</tt>
+     * used for looking up the affiliation of a given entity.
+     * Key: Affiliate JID, Value: the affiliate.
+     */
+    protected Map<JID, NodeAffiliate> affiliatesByJID = new ConcurrentHashMap<JID, NodeAffiliate>();
     /**
      * Map that contains the current subscriptions to the node. A user may have more than one
      * subscription. Each subscription is uniquely identified by its ID.
@@ -177,6 +184,33 @@ public abstract class Node {
      */
     protected Map<String, NodeSubscription> subscriptionsByJID =
             new ConcurrentHashMap<String, NodeSubscription>();
+    /**
+     * Map that contains the current subscriptions to the node grouped by the owner of the
+     * subscriptions. It is an index of <tt>subscriptionsByID</tt> used for looking up the
+     * subscriptions of a given entity. The owner may be a bare or a full JID.
+     * Key: Subscription owner, Value: the subscriptions of the owner.
+     */
+    protected Map<JID, List<NodeSubscription>> subscriptionsByOwner =
+            new ConcurrentHashMap<JID, List<NodeSubscription>>();
+    /**
+     * Map that contains the subscriptions to the node that may be notified of published items
+     * grouped by the owner of the subscriptions. It is an index of <tt>subscriptionsByID</tt>
+     * that leaves out the subscriptions whose notifications depend on the presence of the
+     * subscriber while the last presence of the subscriber does not allow notifications. The
+     * index is updated when presences of subscribers are received so publishing items only
+     * visits subscriptions that may be notified.
+     * Key: Subscription owner, Value: the subscriptions of the owner that may be notified.
+     */
+    protected Map<JID, List<NodeSubscription>> deliverableByOwner =
+            new ConcurrentHashMap<JID, List<NodeSubscription>>();
+    /**
+     * Map that contains the subscriptions to the node whose notifications depend on the
+     * presence of the subscriber grouped by the bare JID of the subscriber. It is used for
+     * updating <tt>deliverableByOwner</tt> when a presence of the subscriber is received.
+     * Key: Subscriber bare JID, Value: the presence dependent subscriptions of the subscriber.
+     */
+    protected Map<String, List<NodeSubscription>> presenceDependentBySubscriber =
+            new ConcurrentHashMap<String, List<NodeSubscription>>();
 
     Node(PubSubService service, CollectionNode parent, String nodeID, JID creator) {
         this.service = service;
@@ -365,6 +399,7 @@ public abstract class Node {
     private void removeAffiliation(NodeAffiliate affiliate) {
         // Remove the existing affiliate from the list in memory
         affiliates.remove(affiliate);
+        affiliatesByJID.remove(affiliate.getJID());
         if (savedToDB) {
             // Remove the affiliate from the database
             PubSubPersistenceManager.removeAffiliation(service, this, affiliate);
@@ -392,13 +427,43 @@ public abstract class Node {
      * @return the list of subscriptions owned by the specified user.
      */
     public Collection<NodeSubscription> getSubscriptions(JID owner) {
-        Collection<NodeSubscription> subscriptions = new ArrayList<NodeSubscription>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
-            if (owner.equals(subscription.getOwner())) {
-                subscriptions.add(subscription);
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(owner);
+        if (subscriptions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(subscriptions);
+    }
+
+    /**
+     * Returns the affiliates that have at least one subscription to the node. Affiliates
+     * without subscriptions (e.g. publishers or outcasts) are not included so the cost
+     * of the returned collection depends only on the number of subscribers.
+     *
+     * @return the affiliates that have at least one subscription to the node.
+     */
+    Collection<NodeAffiliate> getSubscribedAffiliates() {
+        Collection<NodeAffiliate> subscribedAffiliates =
+                new ArrayList<NodeAffiliate>(subscriptionsByOwner.size());
+        for (JID owner : subscriptionsByOwner.keySet()) {
+            NodeAffiliate affiliate = affiliatesByJID.get(owner);
+            if (affiliate != null) {
+                subscribedAffiliates.add(affiliate);
             }
         }
-        return subscriptions;
+        return subscribedAffiliates;
+    }
+
+    /**
+     * Returns the subscriptions to the node that may be notified of published items grouped
+     * by the owner of the subscriptions. Subscriptions whose notifications depend on the
+     * presence of the subscriber are only included while the last presence of the subscriber
+     * allows notifications. Returned subscriptions still need to be checked with
+     * {@link NodeSubscription#canSendPublicationEvent(LeafNode, PublishedItem)}.
+     *
+     * @return the subscriptions to the node that may be notified grouped by owner.
+     */
+    Map<JID, List<NodeSubscription>> getDeliverableSubscriptions() {
+        return Collections.unmodifiableMap(deliverableByOwner);
     }
 
     /**
@@ -419,12 +484,7 @@ public abstract class Node {
      * @return the NodeAffiliate of the specified JID or <tt>null</tt> if none was found.
      */
     public NodeAffiliate getAffiliate(JID jid) {
-        for (NodeAffiliate affiliate : affiliates) {
-            if (jid.equals(affiliate.getJID())) {
-                return affiliate;
-            }
-        }
-        return null;
+        return affiliatesByJID.get(jid);
     }
 
     /**
@@ -692,6 +752,7 @@ public abstract class Node {
 
         // Check if we need to subscribe or unsubscribe from affiliate presences
         if (wasPresenceBased != isPresenceBasedDelivery()) {
+            updateDelivery();
             if (isPresenceBasedDelivery()) {
                 addPresenceSubscriptions();
             }
@@ -1243,16 +1304,14 @@ public abstract class Node {
         Collection<JID> affiliatesJID = new ArrayList<JID>();
         if (presenceBasedDelivery) {
             // Add JID of all affiliates that are susbcribed to the node
-            for (NodeAffiliate affiliate : affiliates) {
-                if (!affiliate.getSubscriptions().isEmpty()) {
-                    affiliatesJID.add(affiliate.getJID());
-                }
+            for (NodeAffiliate affiliate : getSubscribedAffiliates()) {
+                affiliatesJID.add(affiliate.getJID());
             }
         }
         else {
             // Add JID of those affiliates that have a subscription that only wants to be
             // notified based on the subscriber presence
-            for (NodeAffiliate affiliate : affiliates) {
+            for (NodeAffiliate affiliate : getSubscribedAffiliates()) {
                 Collection<NodeSubscription> subscriptions = affiliate.getSubscriptions();
                 for (NodeSubscription subscription : subscriptions) {
                     if (!subscription.getPresenceStates().isEmpty()) {
@@ -1531,6 +1590,7 @@ public abstract class Node {
 
     void setPresenceBasedDelivery(boolean presenceBasedDelivery) {
         this.presenceBasedDelivery = presenceBasedDelivery;
+        updateDelivery();
     }
 
     /**
@@ -1723,11 +1783,158 @@ public abstract class Node {
 
     void addAffiliate(NodeAffiliate affiliate) {
         affiliates.add(affiliate);
+        affiliatesByJID.put(affiliate.getJID(), affiliate);
     }
 
     void addSubscription(NodeSubscription subscription) {
-        subscriptionsByID.put(subscription.getID(), subscription);
+        NodeSubscription previous = subscriptionsByID.put(subscription.getID(), subscription);
         subscriptionsByJID.put(subscription.getJID().toString(), subscription);
+        synchronized (subscriptionsByOwner) {
+            if (previous != null) {
+                removeSubscriptionByOwner(previous);
+                removeDelivery(previous);
+            }
+            List<NodeSubscription> subscriptions = subscriptionsByOwner.get(subscription.getOwner());
+            if (subscriptions == null) {
+                subscriptions = new CopyOnWriteArrayList<NodeSubscription>();
+                subscriptionsByOwner.put(subscription.getOwner(), subscriptions);
+            }
+            subscriptions.add(subscription);
+            addDelivery(subscription);
+        }
+    }
+
+    /**
+     * Removes the subscription from the index of subscriptions by owner. Must be called
+     * from code synchronized on subscriptionsByOwner.
+     *
+     * @param subscription the subscription to remove from the index.
+     */
+    private void removeSubscriptionByOwner(NodeSubscription subscription) {
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(subscription.getOwner());
+        if (subscriptions != null) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty()) {
+                subscriptionsByOwner.remove(subscription.getOwner());
+            }
+        }
+    }
+
+    /**
+     * Adds the subscription to the index of presence dependent subscriptions if its
+     * notifications depend on the presence of the subscriber, and to the index of
+     * subscriptions that may be notified if the presence of the subscriber allows it. Must
+     * be called from code synchronized on subscriptionsByOwner.
+     *
+     * @param subscription the subscription to add to the indexes.
+     */
+    private void addDelivery(NodeSubscription subscription) {
+        if (subscription.isPresenceDependent()) {
+            String subscriber = subscription.getJID().toBareJID();
+            List<NodeSubscription> subscriptions = presenceDependentBySubscriber.get(subscriber);
+            if (subscriptions == null) {
+                subscriptions = new CopyOnWriteArrayList<NodeSubscription>();
+                presenceDependentBySubscriber.put(subscriber, subscriptions);
+                // Register the node so that presences of the subscriber update the node
+                Map<String, Set<Node>> presenceDependentNodes = service.getPresenceDependentNodes();
+                synchronized (presenceDependentNodes) {
+                    Set<Node> nodes = presenceDependentNodes.get(subscriber);
+                    if (nodes == null) {
+                        nodes = new CopyOnWriteArraySet<Node>();
+                        presenceDependentNodes.put(subscriber, nodes);
+                    }
+                    nodes.add(this);
+                }
+            }
+            subscriptions.add(subscription);
+            if (!subscription.isPresenceMatched()) {
+                return;
+            }
+        }
+        List<NodeSubscription> subscriptions = deliverableByOwner.get(subscription.getOwner());
+        if (subscriptions == null) {
+            subscriptions = new CopyOnWriteArrayList<NodeSubscription>();
+            deliverableByOwner.put(subscription.getOwner(), subscriptions);
+        }
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Removes the subscription from the index of presence dependent subscriptions and from
+     * the index of subscriptions that may be notified. Must be called from code synchronized
+     * on subscriptionsByOwner.
+     *
+     * @param subscription the subscription to remove from the indexes.
+     */
+    private void removeDelivery(NodeSubscription subscription) {
+        List<NodeSubscription> subscriptions = deliverableByOwner.get(subscription.getOwner());
+        if (subscriptions != null) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty()) {
+                deliverableByOwner.remove(subscription.getOwner());
+            }
+        }
+        String subscriber = subscription.getJID().toBareJID();
+        subscriptions = presenceDependentBySubscriber.get(subscriber);
+        if (subscriptions != null) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty()) {
+                presenceDependentBySubscriber.remove(subscriber);
+                // Stop updating the node on presences of the subscriber
+                Map<String, Set<Node>> presenceDependentNodes = service.getPresenceDependentNodes();
+                synchronized (presenceDependentNodes) {
+                    Set<Node> nodes = presenceDependentNodes.get(subscriber);
+                    if (nodes != null) {
+                        nodes.remove(this);
+                        if (nodes.isEmpty()) {
+                            presenceDependentNodes.remove(subscriber);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the indexes used for notifying published items after the configuration of the
+     * subscription has changed. Nothing is done if the subscription was cancelled.
+     *
+     * @param subscription the subscription whose configuration has changed.
+     */
+    void updateDelivery(NodeSubscription subscription) {
+        synchronized (subscriptionsByOwner) {
+            if (subscriptionsByID.get(subscription.getID()) == subscription) {
+                removeDelivery(subscription);
+                addDelivery(subscription);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the indexes used for notifying published items of all subscriptions to
+     * the node. Used when the node starts or stops sending notifications based on the
+     * presence of the subscribers.
+     */
+    private void updateDelivery() {
+        for (NodeSubscription subscription : subscriptionsByID.values()) {
+            updateDelivery(subscription);
+        }
+    }
+
+    /**
+     * Updates the subscriptions that may be notified of published items after a presence
+     * of the specified user was received by the service. Only the subscriptions whose
+     * notifications depend on the presence of the user are checked.
+     *
+     * @param subscriber the bare JID of the user that sent the presence.
+     */
+    void presenceChanged(String subscriber) {
+        List<NodeSubscription> subscriptions = presenceDependentBySubscriber.get(subscriber);
+        if (subscriptions != null) {
+            for (NodeSubscription subscription : subscriptions) {
+                updateDelivery(subscription);
+            }
+        }
     }
 
     /**
@@ -1802,8 +2009,18 @@ public abstract class Node {
             service.removeNode(getNodeID());
             // Clear collections in memory (clear them after broadcast was sent)
             affiliates.clear();
+            affiliatesByJID.clear();
             subscriptionsByID.clear();
             subscriptionsByJID.clear();
+            synchronized (subscriptionsByOwner) {
+                for (List<NodeSubscription> subscriptions : presenceDependentBySubscriber.values()) {
+                    for (NodeSubscription subscription : subscriptions) {
+                        removeDelivery(subscription);
+                    }
+                }
+                subscriptionsByOwner.clear();
+                deliverableByOwner.clear();
+            }
             return true;
         }
         return false;
@@ -2063,6 +2280,10 @@ public abstract class Node {
         // Remove subscription from memory
         subscriptionsByID.remove(subscription.getID());
         subscriptionsByJID.remove(subscription.getJID().toString());
+        synchronized (subscriptionsByOwner) {
+            removeSubscriptionByOwner(subscription);
+            removeDelivery(subscription);
+        }
         // Check if user has affiliation of type "none" and there are no more subscriptions
         NodeAffiliate affiliate = subscription.getAffiliate();
         if (affiliate != null && affiliate.getAffiliation() == NodeAffiliate.Affiliation.none &&
@@ -83,13 +83,14 @@ public class NodeAffiliate {
      *        optimization to avoid future look ups.
      * @param leafNode the leaf node where the items where published.
      * @param publishedItems the list of items that were published. Could be an empty list.
+     * @param subscriptions the subscriptions of the affiliate that may be notified.
      */
     void sendPublishedNotifications(Message notification, Element event, LeafNode leafNode,
-            List<PublishedItem> publishedItems) {
+            List<PublishedItem> publishedItems, Collection<NodeSubscription> subscriptions) {
 
         if (!publishedItems.isEmpty()) {
             Map<List<NodeSubscription>, List<PublishedItem>> itemsBySubs =
-                    getItemsBySubscriptions(leafNode, publishedItems);
+                    getItemsBySubscriptions(leafNode, publishedItems, subscriptions);
 
             // Send one notification for published items that affect the same subscriptions
             for (List<NodeSubscription> nodeSubscriptions : itemsBySubs.keySet()) {
@@ -128,7 +129,7 @@ public class NodeAffiliate {
         else {
             // Filter affiliate subscriptions and only use approved and configured ones
             List<NodeSubscription> affectedSubscriptions = new ArrayList<NodeSubscription>();
-            for (NodeSubscription subscription : getSubscriptions()) {
+            for (NodeSubscription subscription : subscriptions) {
                 if (subscription.canSendPublicationEvent(leafNode, null)) {
                     affectedSubscriptions.add(subscription);
                 }
@@ -156,13 +157,14 @@ public class NodeAffiliate {
      *        optimization to avoid future look ups.
      * @param leafNode the leaf node where the items where deleted from.
      * @param publishedItems the list of items that were deleted.
+     * @param subscriptions the subscriptions of the affiliate that may be notified.
      */
     void sendDeletionNotifications(Message notification, Element event, LeafNode leafNode,
-            List<PublishedItem> publishedItems) {
+            List<PublishedItem> publishedItems, Collection<NodeSubscription> subscriptions) {
 
         if (!publishedItems.isEmpty()) {
             Map<List<NodeSubscription>, List<PublishedItem>> itemsBySubs =
-                    getItemsBySubscriptions(leafNode, publishedItems);
+                    getItemsBySubscriptions(leafNode, publishedItems, subscriptions);
 
             // Send one notification for published items that affect the same subscriptions
             for (List<NodeSubscription> nodeSubscriptions : itemsBySubs.keySet()) {
@@ -232,16 +234,26 @@ public class NodeAffiliate {
     }
 
     private Map<List<NodeSubscription>, List<PublishedItem>> getItemsBySubscriptions(
-            LeafNode leafNode, List<PublishedItem> publishedItems) {
+            LeafNode leafNode, List<PublishedItem> publishedItems,
+            Collection<NodeSubscription> candidates) {
         // Identify which subscriptions can receive each item
         Map<PublishedItem, List<NodeSubscription>> subsByItem =
                 new HashMap<PublishedItem, List<NodeSubscription>>();
 
-        // Filter affiliate subscriptions and only use approved and configured ones
-        Collection<NodeSubscription> subscriptions = getSubscriptions();
+        // Filter affiliate subscriptions and only use approved and configured ones. The status
+        // and presence of the subscribers are checked once for all the published items
+        Collection<NodeSubscription> subscriptions = new ArrayList<NodeSubscription>();
+        for (NodeSubscription subscription : candidates) {
+            if (subscription.canSendNodeEvents()) {
+                subscriptions.add(subscription);
+            }
+        }
+        if (subscriptions.isEmpty()) {
+            return Collections.emptyMap();
+        }
         for (PublishedItem publishedItem : publishedItems) {
             for (NodeSubscription subscription : subscriptions) {
-                if (subscription.canSendPublicationEvent(leafNode, publishedItem)) {
+                if (subscription.isPublicationEventMatched(leafNode, publishedItem)) {
                     List<NodeSubscription> nodeSubscriptions = subsByItem.get(publishedItem);
                     if (nodeSubscriptions == null) {
                         nodeSubscriptions = new ArrayList<NodeSubscription>();
@@ -516,6 +516,8 @@ public class NodeSubscription {
             // Update the subscription in the backend store
             PubSubPersistenceManager.saveSubscription(service, node, this, false);
         }
+        // Presence states may have changed so check if the subscription can be notified
+        node.updateDelivery(this);
         // Check if the service needs to subscribe or unsubscribe from the owner presence
         if (!node.isPresenceBasedDelivery() && wasUsingPresence != !presenceStates.isEmpty()) {
             if (presenceStates.isEmpty()) {
@@ -632,9 +634,21 @@ public class NodeSubscription {
      *         published item.
      */
     public boolean canSendPublicationEvent(LeafNode leafNode, PublishedItem publishedItem) {
-        if (!canSendEvents()) {
-            return false;
-        }
+        return canSendEvents() && isPublicationEventMatched(leafNode, publishedItem);
+    }
+
+    /**
+     * Returns true if the specified published item matches the subscription configuration.
+     * Unlike {@link #canSendPublicationEvent(LeafNode, PublishedItem)} the subscription
+     * status and subscriber presence are not checked. Use {@link #canSendNodeEvents()} for
+     * checking them once when sending many items to the same subscription.
+     *
+     * @param leafNode the node that received the publication.
+     * @param publishedItem the published item to send or null if the publication didn't
+     *        contain an item.
+     * @return true if the published item matches the subscription configuration.
+     */
+    boolean isPublicationEventMatched(LeafNode leafNode, PublishedItem publishedItem) {
         // Check that any defined keyword was matched (applies only if an item was published)
         if (publishedItem != null && !isKeywordMatched(publishedItem)) {
             return false;
@@ -717,6 +731,29 @@ public class NodeSubscription {
         if (!shouldDeliverNotifications()) {
             return false;
         }
+        return isPresenceMatched();
+    }
+
+    /**
+     * Returns true if notifications of the subscription depend on the presence of the
+     * subscriber. That is the case when the node only sends notifications to available
+     * users or when the subscription only wants notifications for some presence states.
+     *
+     * @return true if notifications of the subscription depend on the presence of the
+     *         subscriber.
+     */
+    boolean isPresenceDependent() {
+        return node.isPresenceBasedDelivery() || !getPresenceStates().isEmpty();
+    }
+
+    /**
+     * Returns true if the last presence received from the subscriber allows sending
+     * notifications to the subscriber. Subscriptions that do not depend on the presence
+     * of the subscriber are always matched.
+     *
+     * @return true if the presence of the subscriber allows sending notifications.
+     */
+    boolean isPresenceMatched() {
         // Check if delivery is subject to presence-based policy
         if (!getPresenceStates().isEmpty()) {
             Collection<String> shows = service.getShowPresences(jid);
@@ -41,6 +41,7 @@ import org.jivesoftware.openfire.XMPPServerListener;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +52,7 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
+import org.xmpp.resultsetmanagement.ResultSet;
 
 /**
  * A PubSubEngine is responsible for handling packets sent to a pub-sub service.
@@ -259,6 +261,7 @@ public class PubSubEngine {
             }
             Presence.Show show = presence.getShow();
             fullPresences.put(subscriber.toString(), show == null ? "online" : show.name());
+            presenceChanged(service, subscriber);
         }
         else if (presence.getType() == Presence.Type.unavailable) {
             JID subscriber = presence.getFrom();
@@ -268,6 +271,24 @@ public class PubSubEngine {
                 if (fullPresences.isEmpty()) {
                     service.getBarePresences().remove(subscriber.toBareJID());
                 }
+                presenceChanged(service, subscriber);
+            }
+        }
+    }
+
+    /**
+     * Updates the subscriptions that may be notified of published items after a presence
+     * of the subscriber was received. Only nodes that have subscriptions whose notifications
+     * depend on the presence of the subscriber are updated.
+     *
+     * @param service the PubSub service that received the presence.
+     * @param subscriber the JID of the user that sent the presence.
+     */
+    private void presenceChanged(PubSubService service, JID subscriber) {
+        Set<Node> nodes = service.getPresenceDependentNodes().get(subscriber.toBareJID());
+        if (nodes != null) {
+            for (Node node : nodes) {
+                node.presenceChanged(subscriber.toBareJID());
             }
         }
     }
@@ -1039,15 +1060,51 @@ public class PubSubEngine {
                 max_items = null;
             }
         }
+        Element rsmElement = null;
+        Element rsmResult = null;
         if (max_items != null) {
             // Get the N most recent published items
             items = new ArrayList<PublishedItem>(leafNode.getPublishedItems(recentItems));
         }
         else {
             List requestedItems = itemsElement.elements("item");
+            if (itemsElement.getParent() != null) {
+                rsmElement = itemsElement.getParent().element(
+                        QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
+            }
             if (requestedItems.isEmpty()) {
-                // Get all the active items that were published to the node
-                items = new ArrayList<PublishedItem>(leafNode.getPublishedItems());
+                List<String> itemIDs = leafNode.getPublishedItemIDs();
+                int[] page;
+                if (rsmElement != null) {
+                    // Get the page of items that was requested by the user
+                    page = getRequestedPage(itemIDs, rsmElement);
+                    if (page == null) {
+                        // The item used as a reference for the page does not exist
+                        sendErrorPacket(iq, PacketError.Condition.item_not_found, null);
+                        return;
+                    }
+                }
+                else {
+                    // Get all the active items that were published to the node. Items that are
+                    // not in memory are loaded a page at a time, so nodes with more items than
+                    // a page return a truncated result set (XEP-0060 6.5.4)
+                    int maxItems = Math.max(1,
+                            JiveGlobals.getIntProperty("xmpp.pubsub.items.max", 1000));
+                    page = new int[] {0, Math.min(itemIDs.size(), maxItems)};
+                }
+                List<String> pageIDs = itemIDs.subList(page[0], page[1]);
+                items = new ArrayList<PublishedItem>(leafNode.getPublishedItems(pageIDs));
+                if (rsmElement != null || pageIDs.size() < itemIDs.size()) {
+                    rsmResult = DocumentHelper.createElement(
+                            QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
+                    if (!pageIDs.isEmpty()) {
+                        Element first = rsmResult.addElement("first");
+                        first.addAttribute("index", String.valueOf(page[0]));
+                        first.setText(pageIDs.get(0));
+                        rsmResult.addElement("last").setText(pageIDs.get(pageIDs.size() - 1));
+                    }
+                    rsmResult.addElement("count").setText(String.valueOf(itemIDs.size()));
+                }
             }
             else {
                 items = new ArrayList<PublishedItem>();
@@ -1078,7 +1135,65 @@ public class PubSubEngine {
         }
 
         // Send items to the user
-        leafNode.sendPublishedItems(iq, items, forceToIncludePayload);
+        leafNode.sendPublishedItems(iq, items, forceToIncludePayload, rsmResult);
+    }
+
+    /**
+     * Returns the start (inclusive) and end (exclusive) index of the page of items that was
+     * requested using Result Set Management (XEP-0059) or <tt>null</tt> if the item used as
+     * a reference for the page was not found.
+     *
+     * @param itemIDs the IDs of the items of the node sorted chronologically.
+     * @param rsmElement the set element that was included in the request.
+     * @return the start and end index of the requested page or null if the item used as a
+     *         reference for the page was not found.
+     */
+    private int[] getRequestedPage(List<String> itemIDs, Element rsmElement) {
+        int max = itemIDs.size();
+        String maxText = rsmElement.elementTextTrim("max");
+        if (maxText != null && maxText.length() > 0) {
+            try {
+                max = Math.max(0, Integer.parseInt(maxText));
+            }
+            catch (NumberFormatException e) {
+                Log.warn("Assuming that all items were requested", e);
+            }
+        }
+        int start;
+        int end;
+        String after = rsmElement.elementTextTrim("after");
+        Element before = rsmElement.element("before");
+        String index = rsmElement.elementTextTrim("index");
+        // The list of IDs of a leaf node finds the index of an item without scanning it
+        if (after != null && after.length() > 0) {
+            start = itemIDs.indexOf(after) + 1;
+            if (start == 0) {
+                return null;
+            }
+            end = Math.min(itemIDs.size(), start + max);
+        }
+        else if (before != null) {
+            String beforeID = before.getTextTrim();
+            // An empty before element requests the last page
+            end = beforeID.length() == 0 ? itemIDs.size() : itemIDs.indexOf(beforeID);
+            if (end == -1) {
+                return null;
+            }
+            start = Math.max(0, end - max);
+        }
+        else {
+            start = 0;
+            if (index != null && index.length() > 0) {
+                try {
+                    start = Math.min(itemIDs.size(), Math.max(0, Integer.parseInt(index)));
+                }
+                catch (NumberFormatException e) {
+                    Log.warn("Ignoring invalid index of requested page", e);
+                }
+            }
+            end = Math.min(itemIDs.size(), start + max);
+        }
+        return new int[] {start, end};
     }
 
     private void createNode(PubSubService service, IQ iq, Element childElement, Element createElement) {
@@ -1734,21 +1849,19 @@ public class PubSubEngine {
     public void shutdown(PubSubService service) {
         // Stop the maintenance processes
     	service.getPublishedItemTask().cancel();
-        // Delete from the database items contained in the itemsToDelete queue
-        PublishedItem entry;
-        while (!service.getItemsToDelete().isEmpty()) {
-            entry = service.getItemsToDelete().poll();
-            if (entry != null) {
-                PubSubPersistenceManager.removePublishedItem(service, entry);
-            }
-        }
-        // Save to the database items contained in the itemsToAdd queue
-        while (!service.getItemsToAdd().isEmpty()) {
-            entry = service.getItemsToAdd().poll();
-            if (entry != null) {
-                PubSubPersistenceManager.createPublishedItem(service, entry);
-            }
-        }
+        // Delete and save to the database the items contained in the queues
+        service.getPublishedItemTask().flush();
+        release(service);
+    }
+
+    /**
+     * Stops executing ad-hoc commands of the service and releases its nodes. Unlike
+     * {@link #shutdown(PubSubService)} the maintenance task of the service is not stopped,
+     * which is useful when many services share the same task.
+     *
+     * @param service the PubSub service to release.
+     */
+    public void release(PubSubService service) {
         // Stop executing ad-hoc commands
         service.getManager().stop();
         
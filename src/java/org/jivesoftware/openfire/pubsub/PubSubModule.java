@@ -25,11 +25,10 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
@@ -99,15 +98,21 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
      */
     private Map<String, Map<String, String>> barePresences =
             new ConcurrentHashMap<String, Map<String, String>>();
+    /**
+     * Keep a registry of the nodes that have subscriptions whose notifications depend on the
+     * presence of the subscriber. Note: Key-> bare JID of the subscriber and Value-> nodes
+     * with presence dependent subscriptions of the subscriber.
+     */
+    private Map<String, Set<Node>> presenceDependentNodes = new ConcurrentHashMap<String, Set<Node>>();
     
     /**
      * Queue that holds the items that need to be added to the database.
      */
-    private Queue<PublishedItem> itemsToAdd = new LinkedBlockingQueue<PublishedItem>(10000);
+    private PublishedItemQueue itemsToAdd = new PublishedItemQueue(10000);
     /**
      * Queue that holds the items that need to be deleted from the database.
      */
-    private Queue<PublishedItem> itemsToDelete = new LinkedBlockingQueue<PublishedItem>(10000);
+    private PublishedItemQueue itemsToDelete = new PublishedItemQueue(10000);
     
     /**
      * Manager that keeps the list of ad-hoc commands and processing command requests.
@@ -664,6 +669,8 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
             features.add("http://jabber.org/protocol/pubsub#retrieve-default");
             // Item retrieval is supported
             features.add("http://jabber.org/protocol/pubsub#retrieve-items");
+            // Paging of retrieved items is supported
+            features.add("http://jabber.org/protocol/rsm");
             // Retrieval of current subscriptions is supported.
             features.add("http://jabber.org/protocol/pubsub#retrieve-subscriptions");
             // Subscribing and unsubscribing are supported
@@ -747,8 +754,8 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
                 }
                 else {
                     // This is a leaf node so answer the published items which exist on the service
-                    for (PublishedItem publishedItem : pubNode.getPublishedItems()) {
-                        answer.add(new DiscoItem(new JID(serviceDomain), publishedItem.getID(), null, null));
+                    for (String itemID : ((LeafNode) pubNode).getPublishedItemIDs()) {
+                        answer.add(new DiscoItem(new JID(serviceDomain), itemID, null, null));
                     }
                 }
             }
@@ -828,11 +835,15 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
         return barePresences;
     }
 
-    public Queue<PublishedItem> getItemsToAdd() {
+    public Map<String, Set<Node>> getPresenceDependentNodes() {
+        return presenceDependentNodes;
+    }
+
+    public PublishedItemQueue getItemsToAdd() {
         return itemsToAdd;
     }
 
-    public Queue<PublishedItem> getItemsToDelete() {
+    public PublishedItemQueue getItemsToDelete() {
         return itemsToDelete;
     }
 
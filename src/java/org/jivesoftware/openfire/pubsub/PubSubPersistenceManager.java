@@ -29,11 +29,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.dom4j.DocumentException;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
@@ -133,12 +135,15 @@ public class PubSubPersistenceManager {
     private static final String DELETE_SUBSCRIPTIONS =
             "DELETE FROM ofPubsubSubscription WHERE serviceID=? AND nodeID=?";
 
-    private static final String LOAD_ALL_ITEMS =
-            "SELECT id,jid,creationDate,payload,nodeID FROM ofPubsubItem " +
+    private static final String LOAD_ALL_ITEM_IDS =
+            "SELECT id,creationDate,nodeID FROM ofPubsubItem " +
             "WHERE serviceID=? ORDER BY creationDate";
-    private static final String LOAD_ITEMS =
+    private static final String LOAD_ITEMS_BEFORE =
             "SELECT id,jid,creationDate,payload FROM ofPubsubItem " +
-            "WHERE serviceID=? AND nodeID=? ORDER BY creationDate";
+            "WHERE serviceID=? AND nodeID=? AND creationDate<=? ORDER BY creationDate DESC";
+    private static final String LOAD_ITEM =
+            "SELECT id,jid,creationDate,payload FROM ofPubsubItem " +
+            "WHERE serviceID=? AND nodeID=? AND id=?";
     private static final String ADD_ITEM =
             "INSERT INTO ofPubsubItem (serviceID,nodeID,id,jid,creationDate,payload) " +
             "VALUES (?,?,?,?,?,?)";
@@ -530,14 +535,13 @@ public class PubSubPersistenceManager {
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
-            // TODO We may need to optimize memory consumption and load items on-demand
-            // Load published items of all nodes
-            pstmt = con.prepareStatement(LOAD_ALL_ITEMS);
+            // Load the IDs of the published items of all nodes. Payloads are loaded on-demand
+            pstmt = con.prepareStatement(LOAD_ALL_ITEM_IDS);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
-            // Add to each node the correspondiding subscriptions
+            // Add to each node the correspondiding item IDs
             while(rs.next()) {
-                loadItems(nodes, rs);
+                loadItemIDs(nodes, rs);
             }
         }
         catch (SQLException sqle) {
@@ -724,40 +728,20 @@ public class PubSubPersistenceManager {
         }
     }
 
-    private static void loadItems(Map<String, Node> nodes, ResultSet rs) {
-        SAXReader xmlReader = null;
+    private static void loadItemIDs(Map<String, Node> nodes, ResultSet rs) {
         try {
-            // Get a sax reader from the pool
-            xmlReader = xmlReaders.take();
-
-            String nodeID = decodeNodeID(rs.getString(5));
+            String nodeID = decodeNodeID(rs.getString(3));
             LeafNode node = (LeafNode) nodes.get(nodeID);
             if (node == null) {
                 Log.warn("Published Item found for a non-existent node: " + nodeID);
                 return;
             }
-            String itemID = rs.getString(1);
-            JID publisher = new JID(rs.getString(2));
-            Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
-            // Create the item
-            PublishedItem item = new PublishedItem(node, publisher, itemID, creationDate);
-            // Add the extra fields to the published item
-            if (rs.getString(4) != null) {
-                item.setPayload(
-                        xmlReader.read(new StringReader(rs.getString(4))).getRootElement());
-            }
-            // Add the published item to the node
-            node.addPublishedItem(item);
+            // Add the ID of the published item to the node
+            node.addPublishedItemID(rs.getString(1), rs.getString(2).trim());
         }
-        catch (Exception sqle) {
+        catch (SQLException sqle) {
             Log.error(sqle.getMessage(), sqle);
         }
-        finally {
-            // Return the sax reader to the pool
-            if (xmlReader != null) {
-                xmlReaders.add(xmlReader);
-            }
-        }
     }
 
     /**
@@ -944,12 +928,14 @@ public class PubSubPersistenceManager {
     }
 
     /**
-     * Loads and adds the published items to the specified node.
+     * Loads the published item of the specified node whose ID matches the specified ID.
      *
      * @param service the pubsub service that is hosting the node.
-     * @param node the leaf node to load its published items.
+     * @param node the leaf node where the item was published.
+     * @param itemID the ID of the item to load.
+     * @return the loaded published item or <tt>null</tt> if none was found.
      */
-    public static void loadItems(PubSubService service, LeafNode node) {
+    public static PublishedItem loadItem(PubSubService service, LeafNode node, String itemID) {
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -958,25 +944,13 @@ public class PubSubPersistenceManager {
             // Get a sax reader from the pool
             xmlReader = xmlReaders.take();
             con = DbConnectionManager.getConnection();
-            // Get published items of the specified node
-            pstmt = con.prepareStatement(LOAD_ITEMS);
+            pstmt = con.prepareStatement(LOAD_ITEM);
             pstmt.setString(1, service.getServiceID());
             pstmt.setString(2, encodeNodeID(node.getNodeID()));
+            pstmt.setString(3, itemID);
             rs = pstmt.executeQuery();
-            // Rebuild loaded published items
-            while(rs.next()) {
-                String itemID = rs.getString(1);
-                JID publisher = new JID(rs.getString(2));
-                Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
-                // Create the item
-                PublishedItem item = new PublishedItem(node, publisher, itemID, creationDate);
-                // Add the extra fields to the published item
-                if (rs.getString(4) != null) {
-                    item.setPayload(
-                            xmlReader.read(new StringReader(rs.getString(4))).getRootElement());
-                }
-                // Add the published item to the node
-                node.addPublishedItem(item);
+            if (rs.next()) {
+                return createItem(node, rs, xmlReader);
             }
         }
         catch (Exception sqle) {
@@ -989,6 +963,66 @@ public class PubSubPersistenceManager {
             }
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
+        return null;
+    }
+
+    /**
+     * Loads a page of published items of the specified node. Items are returned from the
+     * newest to the oldest starting at the items that were published at the specified date.
+     *
+     * @param service the pubsub service that is hosting the node.
+     * @param node the leaf node where the items were published.
+     * @param creationDate creation date (in milliseconds) of the newest item to load.
+     * @param maxRows the maximum number of items to load.
+     * @return the loaded published items sorted from the newest to the oldest.
+     */
+    public static List<PublishedItem> loadItems(PubSubService service, LeafNode node,
+            String creationDate, int maxRows) {
+        List<PublishedItem> items = new ArrayList<PublishedItem>(maxRows);
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        SAXReader xmlReader = null;
+        try {
+            // Get a sax reader from the pool
+            xmlReader = xmlReaders.take();
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_ITEMS_BEFORE);
+            DbConnectionManager.setMaxRows(pstmt, maxRows);
+            pstmt.setString(1, service.getServiceID());
+            pstmt.setString(2, encodeNodeID(node.getNodeID()));
+            pstmt.setString(3, creationDate);
+            rs = pstmt.executeQuery();
+            while (rs.next() && items.size() < maxRows) {
+                items.add(createItem(node, rs, xmlReader));
+            }
+        }
+        catch (Exception sqle) {
+            Log.error(sqle.getMessage(), sqle);
+        }
+        finally {
+            // Return the sax reader to the pool
+            if (xmlReader != null) {
+                xmlReaders.add(xmlReader);
+            }
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return items;
+    }
+
+    private static PublishedItem createItem(LeafNode node, ResultSet rs, SAXReader xmlReader)
+            throws SQLException, DocumentException {
+        String itemID = rs.getString(1);
+        JID publisher = new JID(rs.getString(2));
+        Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
+        // Create the item
+        PublishedItem item = new PublishedItem(node, publisher, itemID, creationDate);
+        // Add the extra fields to the published item
+        String payload = rs.getString(4);
+        if (payload != null) {
+            item.setPayload(xmlReader.read(new StringReader(payload)).getRootElement());
+        }
+        return item;
     }
 
     /**
@@ -1025,6 +1059,89 @@ public class PubSubPersistenceManager {
         return success;
     }
 
+    /**
+     * Creates and stores the published items in the database using a single batch. The items
+     * may have been published to nodes of different services.
+     *
+     * @param items The published items to save.
+     * @return true if all the items were successfully saved to the database.
+     */
+    public static boolean createPublishedItems(List<PublishedItem> items) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(ADD_ITEM);
+            for (PublishedItem item : items) {
+                pstmt.setString(1, item.getNode().service.getServiceID());
+                pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
+                pstmt.setString(3, item.getID());
+                pstmt.setString(4, item.getPublisher().toString());
+                pstmt.setString(5, StringUtils.dateToMillis(item.getCreationDate()));
+                pstmt.setString(6, item.getPayloadXML());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+        }
+        catch (SQLException sqle) {
+            Log.warn("Failed to save a batch of " + items.size() + " published items", sqle);
+            abortTransaction = true;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+        return !abortTransaction;
+    }
+
+    /**
+     * Removes the specified published items from the DB using a single batch. The items
+     * may have been published to nodes of different services.
+     *
+     * @param items The published items to delete.
+     * @return true if all the items were successfully deleted from the database.
+     */
+    public static boolean removePublishedItems(List<PublishedItem> items) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(DELETE_ITEM);
+            for (PublishedItem item : items) {
+                pstmt.setString(1, item.getNode().service.getServiceID());
+                pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
+                pstmt.setString(3, item.getID());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+        }
+        catch (SQLException sqle) {
+            Log.warn("Failed to delete a batch of " + items.size() + " published items", sqle);
+            abortTransaction = true;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+        return !abortTransaction;
+    }
+
     /**
      * Removes the specified published item from the DB.
      *
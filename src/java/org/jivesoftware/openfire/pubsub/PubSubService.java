@@ -27,7 +27,7 @@ import org.xmpp.packet.Packet;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 
 /**
@@ -75,6 +75,17 @@ public interface PubSubService {
      */
     Map<String, Map<String, String>> getBarePresences();
 
+    /**
+     * Returns a registry of the nodes of the pubsub service that have subscriptions whose
+     * notifications depend on the presence of the subscriber. The registry is used for
+     * updating the subscriptions that may be notified by each node when a presence of the
+     * subscriber is received. Note: Key-> bare JID of the subscriber and Value-> nodes with
+     * presence dependent subscriptions of the subscriber.
+     *
+     * @return a registry of the nodes with presence dependent subscriptions of each user.
+     */
+    Map<String, Set<Node>> getPresenceDependentNodes();
+
     /**
      * Returns true if the pubsub service allows the specified user to create nodes.
      *
@@ -252,14 +263,14 @@ public interface PubSubService {
      * 
      * @return the queue that holds the items that need to be added to the database.
      */
-    Queue<PublishedItem> getItemsToAdd();
+    PublishedItemQueue getItemsToAdd();
 
     /**
      * Gets the queue that holds the items that need to be deleted from the database.
      * 
      * @return the queue that holds the items that need to be deleted from the database.
      */
-    Queue<PublishedItem> getItemsToDelete();
+    PublishedItemQueue getItemsToDelete();
 
     /**
      * Returns the ad-hoc commands manager used for this service.
@@ -0,0 +1,267 @@
+/**
+ * $RCSfile: $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of published items waiting to be saved to or deleted from the database. Besides
+ * the queue order, items are indexed by service and by node so that the queued items of a
+ * service can be removed and a queued item can be looked up by its ID without scanning the
+ * whole queue. This matters when the queue is shared by many services (e.g. all the PEP
+ * services share the same queues).<p>
+ *
+ * Items are compared by identity. All methods are thread-safe.
+ */
+public class PublishedItemQueue extends AbstractQueue<PublishedItem> {
+
+    /**
+     * The queued items in FIFO order.
+     */
+    private final LinkedHashMap<ItemKey, PublishedItem> items =
+            new LinkedHashMap<ItemKey, PublishedItem>();
+
+    /**
+     * The queued items grouped by service ID, in FIFO order.
+     */
+    private final Map<String, LinkedHashMap<ItemKey, PublishedItem>> itemsByService =
+            new HashMap<String, LinkedHashMap<ItemKey, PublishedItem>>();
+
+    /**
+     * The last queued item of each item ID grouped by node.
+     */
+    private final Map<LeafNode, Map<String, PublishedItem>> itemsByNode =
+            new HashMap<LeafNode, Map<String, PublishedItem>>();
+
+    /**
+     * The maximum number of items the queue may hold.
+     */
+    private final int capacity;
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public PublishedItemQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a queue that holds at most the specified number of items.
+     *
+     * @param capacity the maximum number of items the queue may hold.
+     */
+    public PublishedItemQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized boolean offer(PublishedItem item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        ItemKey key = new ItemKey(item);
+        if (items.containsKey(key)) {
+            // The item is already queued
+            return true;
+        }
+        if (items.size() >= capacity) {
+            return false;
+        }
+        items.put(key, item);
+        String serviceID = item.getNode().service.getServiceID();
+        LinkedHashMap<ItemKey, PublishedItem> serviceItems = itemsByService.get(serviceID);
+        if (serviceItems == null) {
+            serviceItems = new LinkedHashMap<ItemKey, PublishedItem>();
+            itemsByService.put(serviceID, serviceItems);
+        }
+        serviceItems.put(key, item);
+        Map<String, PublishedItem> nodeItems = itemsByNode.get(item.getNode());
+        if (nodeItems == null) {
+            nodeItems = new HashMap<String, PublishedItem>();
+            itemsByNode.put(item.getNode(), nodeItems);
+        }
+        nodeItems.put(item.getID(), item);
+        return true;
+    }
+
+    public synchronized PublishedItem poll() {
+        if (items.isEmpty()) {
+            return null;
+        }
+        PublishedItem item = items.values().iterator().next();
+        unlink(item);
+        return item;
+    }
+
+    public synchronized PublishedItem peek() {
+        return items.isEmpty() ? null : items.values().iterator().next();
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        if (!(o instanceof PublishedItem) || !items.containsKey(new ItemKey((PublishedItem) o))) {
+            return false;
+        }
+        unlink((PublishedItem) o);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        return o instanceof PublishedItem && items.containsKey(new ItemKey((PublishedItem) o));
+    }
+
+    @Override
+    public synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * Removes and returns the queued items of the specified service in FIFO order.
+     *
+     * @param serviceID the ID of the service whose items should be removed.
+     * @return the removed items.
+     */
+    public synchronized List<PublishedItem> removeItems(String serviceID) {
+        LinkedHashMap<ItemKey, PublishedItem> serviceItems = itemsByService.get(serviceID);
+        if (serviceItems == null) {
+            return new ArrayList<PublishedItem>(0);
+        }
+        List<PublishedItem> removed = new ArrayList<PublishedItem>(serviceItems.values());
+        for (PublishedItem item : removed) {
+            unlink(item);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns true if the queue holds items of the specified service.
+     *
+     * @param serviceID the ID of the service.
+     * @return true if the queue holds items of the service.
+     */
+    public synchronized boolean hasItems(String serviceID) {
+        return itemsByService.containsKey(serviceID);
+    }
+
+    /**
+     * Returns the last queued item of the specified node with the specified ID or
+     * <tt>null</tt> if none was found.
+     *
+     * @param node the node that contains the item.
+     * @param itemID the ID of the item.
+     * @return the queued item or null if none was found.
+     */
+    public synchronized PublishedItem getItem(LeafNode node, String itemID) {
+        Map<String, PublishedItem> nodeItems = itemsByNode.get(node);
+        return nodeItems == null ? null : nodeItems.get(itemID);
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued items. Removing items using
+     * the iterator removes them from the queue.
+     */
+    @Override
+    public synchronized Iterator<PublishedItem> iterator() {
+        final Iterator<PublishedItem> snapshot = new ArrayList<PublishedItem>(items.values()).iterator();
+        return new Iterator<PublishedItem>() {
+            private PublishedItem last;
+
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            public PublishedItem next() {
+                last = snapshot.next();
+                return last;
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                PublishedItemQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void clear() {
+        items.clear();
+        itemsByService.clear();
+        itemsByNode.clear();
+    }
+
+    /**
+     * Removes the queued item from the queue and the indexes.
+     */
+    private void unlink(PublishedItem item) {
+        ItemKey key = new ItemKey(item);
+        items.remove(key);
+        String serviceID = item.getNode().service.getServiceID();
+        Map<ItemKey, PublishedItem> serviceItems = itemsByService.get(serviceID);
+        if (serviceItems != null) {
+            serviceItems.remove(key);
+            if (serviceItems.isEmpty()) {
+                itemsByService.remove(serviceID);
+            }
+        }
+        Map<String, PublishedItem> nodeItems = itemsByNode.get(item.getNode());
+        if (nodeItems != null && nodeItems.get(item.getID()) == item) {
+            nodeItems.remove(item.getID());
+            if (nodeItems.isEmpty()) {
+                itemsByNode.remove(item.getNode());
+            }
+        }
+    }
+
+    /**
+     * Wraps a published item so that items are compared by identity.
+     */
+    private static class ItemKey {
+
+        private final PublishedItem item;
+
+        ItemKey(PublishedItem item) {
+            this.item = item;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ItemKey && ((ItemKey) o).item == item;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(item);
+        }
+    }
+}
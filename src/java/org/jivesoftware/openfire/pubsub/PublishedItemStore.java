@@ -0,0 +1,473 @@
+/**
+ * $RCSfile: $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
+
+/**
+ * Keeps track of the items published to a {@link LeafNode}. The store keeps in memory the
+ * IDs of all the active items of the node (in chronological order) but only the payloads of
+ * the most recent items. The number of items kept in memory is defined by the
+ * <tt>xmpp.pubsub.item.cache.size</tt> property. Older items are loaded from the database
+ * when requested.<p>
+ *
+ * Items are saved to and deleted from the database by a background task, so items that are
+ * no longer in memory but still waiting to be saved are looked up in the queue of items to
+ * add of the service.
+ */
+class PublishedItemStore {
+
+    /**
+     * The node whose published items are kept by this store.
+     */
+    private final LeafNode node;
+    /**
+     * Every active item of the node keyed by item ID. The entries are linked in
+     * chronological order from <tt>oldest</tt> to <tt>newest</tt>.
+     */
+    private final Map<String, ItemEntry> itemIDs = new HashMap<String, ItemEntry>();
+    /**
+     * The oldest item of the node or <tt>null</tt> if the node has no items.
+     */
+    private ItemEntry oldest;
+    /**
+     * The newest item of the node or <tt>null</tt> if the node has no items.
+     */
+    private ItemEntry newest;
+    /**
+     * The IDs of all items sorted chronologically or <tt>null</tt> if the items were modified
+     * since the list was last requested.
+     */
+    private ItemIDList idList;
+    /**
+     * The most recent published items with their payloads. The window always holds the
+     * newest items of <tt>itemIDs</tt> and is sorted chronologically.
+     */
+    private LinkedHashMap<String, PublishedItem> recentItems =
+            new LinkedHashMap<String, PublishedItem>();
+    /**
+     * Maximum number of items to keep in memory.
+     */
+    private final int windowSize;
+    /**
+     * Counter that is increased each time the list of items is modified. It is used for
+     * detecting modifications that happened while loading items from the database.
+     */
+    private int modCount = 0;
+
+    PublishedItemStore(LeafNode node) {
+        this.node = node;
+        this.windowSize = Math.max(1, JiveGlobals.getIntProperty("xmpp.pubsub.item.cache.size", 50));
+    }
+
+    /**
+     * Registers an item that exists in the database. The item payload is not loaded
+     * until the item is requested.
+     *
+     * @param itemID the ID of the published item.
+     * @param creationDate the creation date of the item in milliseconds.
+     */
+    synchronized void addItemID(String itemID, String creationDate) {
+        link(itemID, creationDate);
+        // The window must only hold the newest items of the node
+        recentItems.clear();
+    }
+
+    /**
+     * Adds a new published item as the most recent item of the node.
+     *
+     * @param item the published item to add.
+     */
+    synchronized void add(PublishedItem item) {
+        String itemID = item.getID();
+        link(itemID, StringUtils.dateToMillis(item.getCreationDate()));
+        recentItems.remove(itemID);
+        recentItems.put(itemID, item);
+        // Evict oldest items from memory. They can still be loaded from the database
+        for (Iterator<String> it = recentItems.keySet().iterator();
+             recentItems.size() > windowSize && it.hasNext();) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes the item with the specified ID from the store. An item that is not in
+     * memory is returned without its payload, which is enough for deleting the item
+     * from the database. Items that are still waiting to be saved to the database are
+     * returned as queued so they can be removed from the queue.
+     *
+     * @param itemID the ID of the item to remove.
+     * @return the removed item or <tt>null</tt> if the item was not found.
+     */
+    synchronized PublishedItem remove(String itemID) {
+        ItemEntry entry = itemIDs.remove(itemID);
+        if (entry == null) {
+            return null;
+        }
+        unlink(entry);
+        PublishedItem item = recentItems.remove(itemID);
+        if (item == null) {
+            item = getQueuedItem(itemID);
+        }
+        if (item == null) {
+            item = new PublishedItem(node, null, itemID,
+                    new Date(Long.parseLong(entry.creationDate)));
+        }
+        return item;
+    }
+
+    /**
+     * Returns the item of the node with the specified ID that is waiting to be saved to
+     * the database or <tt>null</tt> if none was found.
+     */
+    private PublishedItem getQueuedItem(String itemID) {
+        return node.service.getItemsToAdd().getItem(node, itemID);
+    }
+
+    /**
+     * Removes all items from the store.
+     *
+     * @return the removed items. Items that were not in memory are returned without payload.
+     */
+    synchronized List<PublishedItem> clear() {
+        List<PublishedItem> removed = new ArrayList<PublishedItem>(itemIDs.size());
+        for (String itemID : getIDs()) {
+            removed.add(remove(itemID));
+        }
+        return removed;
+    }
+
+    synchronized boolean contains(String itemID) {
+        return itemIDs.containsKey(itemID);
+    }
+
+    synchronized int size() {
+        return itemIDs.size();
+    }
+
+    /**
+     * Returns the ID of the oldest item or <tt>null</tt> if the store is empty.
+     *
+     * @return the ID of the oldest item or null if the store is empty.
+     */
+    synchronized String getOldestID() {
+        return oldest == null ? null : oldest.itemID;
+    }
+
+    /**
+     * Returns the ID of the newest item or <tt>null</tt> if the store is empty.
+     *
+     * @return the ID of the newest item or null if the store is empty.
+     */
+    synchronized String getNewestID() {
+        return newest == null ? null : newest.itemID;
+    }
+
+    /**
+     * Returns an unmodifiable list of the IDs of all items sorted chronologically. The
+     * list is shared until the items are modified and finds the index of an item without
+     * scanning the list.
+     *
+     * @return the IDs of all items sorted chronologically.
+     */
+    synchronized List<String> getIDs() {
+        if (idList == null) {
+            String[] ids = new String[itemIDs.size()];
+            int i = 0;
+            for (ItemEntry entry = oldest; entry != null; entry = entry.next) {
+                ids[i++] = entry.itemID;
+            }
+            idList = new ItemIDList(ids);
+        }
+        return idList;
+    }
+
+    /**
+     * Returns the IDs of the N most recent items sorted chronologically.
+     *
+     * @param recentItems number of recent items.
+     * @return the IDs of the N most recent items sorted chronologically.
+     */
+    synchronized List<String> getRecentIDs(int recentItems) {
+        if (recentItems >= itemIDs.size()) {
+            return getIDs();
+        }
+        String[] ids = new String[Math.max(0, recentItems)];
+        ItemEntry entry = newest;
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = entry.itemID;
+            entry = entry.previous;
+        }
+        return new ItemIDList(ids);
+    }
+
+    /**
+     * Returns the published item whose ID matches the specified ID or <tt>null</tt>
+     * if none was found.
+     *
+     * @param itemID the ID of the item to retrieve.
+     * @return the published item or null if none was found.
+     */
+    PublishedItem get(String itemID) {
+        List<PublishedItem> items = getItems(Collections.singletonList(itemID));
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * Returns the published items whose IDs match the specified list of IDs. IDs are expected
+     * to be sorted chronologically and the returned list follows the same order. Unknown IDs
+     * are ignored.
+     *
+     * @param requestedIDs the IDs of the items to retrieve.
+     * @return the published items whose IDs match the specified list of IDs.
+     */
+    List<PublishedItem> getItems(List<String> requestedIDs) {
+        Map<String, PublishedItem> found = new HashMap<String, PublishedItem>();
+        List<String> missing = new ArrayList<String>();
+        String newestMissingDate = null;
+        int expectedModCount;
+        synchronized (this) {
+            for (String itemID : requestedIDs) {
+                ItemEntry entry = itemIDs.get(itemID);
+                if (entry == null) {
+                    continue;
+                }
+                String creationDate = entry.creationDate;
+                PublishedItem item = recentItems.get(itemID);
+                if (item != null) {
+                    found.put(itemID, item);
+                }
+                else {
+                    missing.add(itemID);
+                    if (newestMissingDate == null || newestMissingDate.compareTo(creationDate) < 0) {
+                        newestMissingDate = creationDate;
+                    }
+                }
+            }
+            expectedModCount = modCount;
+        }
+        if (!missing.isEmpty()) {
+            // Load the missing items from the database (without holding the lock)
+            loadItems(missing, newestMissingDate, found);
+            if (!missing.isEmpty()) {
+                // Items may not have been saved to the database yet
+                PublishedItemQueue itemsToAdd = node.service.getItemsToAdd();
+                for (Iterator<String> it = missing.iterator(); it.hasNext();) {
+                    PublishedItem item = itemsToAdd.getItem(node, it.next());
+                    if (item != null) {
+                        it.remove();
+                        found.put(item.getID(), item);
+                    }
+                }
+            }
+            synchronized (this) {
+                if (expectedModCount == modCount) {
+                    refill(found);
+                }
+            }
+        }
+        List<PublishedItem> answer = new ArrayList<PublishedItem>(found.size());
+        for (String itemID : requestedIDs) {
+            PublishedItem item = found.get(itemID);
+            if (item != null) {
+                answer.add(item);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Loads a page of items from the database starting at the newest missing item. Items that
+     * were loaded are removed from the list of missing items. Items that are not found in the
+     * page are looked up individually.
+     */
+    private void loadItems(List<String> missing, String newestMissingDate,
+            Map<String, PublishedItem> found) {
+        PubSubService service = node.service;
+        if (missing.size() > 1) {
+            for (PublishedItem item : PubSubPersistenceManager
+                    .loadItems(service, node, newestMissingDate, missing.size())) {
+                if (missing.remove(item.getID())) {
+                    found.put(item.getID(), item);
+                }
+            }
+        }
+        for (Iterator<String> it = missing.iterator(); it.hasNext();) {
+            PublishedItem item = PubSubPersistenceManager.loadItem(service, node, it.next());
+            if (item != null) {
+                it.remove();
+                found.put(item.getID(), item);
+            }
+        }
+    }
+
+    /**
+     * Adds loaded items to the window of recent items when they are among the newest items
+     * of the node and the window has free space. Must be called from code synchronized on
+     * this store.
+     */
+    private void refill(Map<String, PublishedItem> loaded) {
+        if (recentItems.size() >= windowSize || recentItems.size() == itemIDs.size()) {
+            return;
+        }
+        // Collect the newest items that are not in memory yet (from newest to oldest)
+        List<PublishedItem> toAdd = new ArrayList<PublishedItem>();
+        List<String> ids = getRecentIDs(windowSize);
+        for (int i = ids.size() - recentItems.size() - 1; i >= 0; i--) {
+            PublishedItem item = loaded.get(ids.get(i));
+            if (item == null) {
+                // The window must only hold the newest items of the node
+                break;
+            }
+            toAdd.add(item);
+        }
+        if (toAdd.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<String, PublishedItem> window = new LinkedHashMap<String, PublishedItem>();
+        for (int i = toAdd.size() - 1; i >= 0; i--) {
+            PublishedItem item = toAdd.get(i);
+            window.put(item.getID(), item);
+        }
+        window.putAll(recentItems);
+        recentItems = window;
+    }
+
+    /**
+     * Registers the item as the newest item of the node. An item with the same ID is
+     * replaced. Must be called from code synchronized on this store.
+     */
+    private void link(String itemID, String creationDate) {
+        ItemEntry entry = new ItemEntry(itemID, creationDate);
+        ItemEntry previous = itemIDs.put(itemID, entry);
+        if (previous != null) {
+            unlink(previous);
+        }
+        entry.previous = newest;
+        if (newest == null) {
+            oldest = entry;
+        }
+        else {
+            newest.next = entry;
+        }
+        newest = entry;
+        modCount++;
+        idList = null;
+    }
+
+    /**
+     * Removes the item from the chronological list of items. Must be called from code
+     * synchronized on this store.
+     */
+    private void unlink(ItemEntry entry) {
+        if (entry.previous == null) {
+            oldest = entry.next;
+        }
+        else {
+            entry.previous.next = entry.next;
+        }
+        if (entry.next == null) {
+            newest = entry.previous;
+        }
+        else {
+            entry.next.previous = entry.previous;
+        }
+        modCount++;
+        idList = null;
+    }
+
+    /**
+     * An active item of the node linked to the previous and next items in chronological
+     * order.
+     */
+    private static class ItemEntry {
+
+        private final String itemID;
+        /**
+         * Creation date in milliseconds, as stored in the database.
+         */
+        private final String creationDate;
+        private ItemEntry previous;
+        private ItemEntry next;
+
+        ItemEntry(String itemID, String creationDate) {
+            this.itemID = itemID;
+            this.creationDate = creationDate;
+        }
+    }
+
+    /**
+     * An immutable list of item IDs that finds the index of an ID using a map.
+     */
+    private static class ItemIDList extends AbstractList<String> implements RandomAccess {
+
+        private final String[] ids;
+        private final Map<String, Integer> positions;
+
+        ItemIDList(String[] ids) {
+            this.ids = ids;
+            this.positions = new HashMap<String, Integer>(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                positions.put(ids[i], i);
+            }
+        }
+
+        @Override
+        public String get(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            Integer index = positions.get(o);
+            return index == null ? -1 : index;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            // Item IDs are unique
+            return indexOf(o);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return positions.containsKey(o);
+        }
+    }
+}
@@ -20,17 +20,22 @@
 
 package org.jivesoftware.openfire.pubsub;
 
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TimerTask;
 
-import org.jivesoftware.openfire.pep.PEPService;
 import org.jivesoftware.util.LocaleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A timed maintenance task that updates the database by adding and/or
- * removing <code>PublishedItem</code>s in regular intervals.
+ * removing <code>PublishedItem</code>s in regular intervals. Items are written
+ * using JDBC batches and the queues may hold items of many services (e.g. all
+ * the PEP services share a single task).
  * 
  * @author Matt Tucker
  */
@@ -41,59 +46,173 @@ public class PublishedItemTask extends TimerTask {
     /**
      * Queue that holds the items that need to be added to the database.
      */
-    private Queue<PublishedItem> itemsToAdd = null;
+    private PublishedItemQueue itemsToAdd = null;
 
     /**
      * Queue that holds the items that need to be deleted from the database.
      */
-    private Queue<PublishedItem> itemsToDelete = null;
+    private PublishedItemQueue itemsToDelete = null;
 
     /**
-     * The service to perform the published item tasks on.
+     * Lock held while items taken from the queues are written to the database. Items of a
+     * batch are no longer queued while they are written so flushing the items of a service
+     * must wait for the batch to complete.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * IDs of the services whose items were taken from a queue and are being written to the
+     * database. Only modified while holding the lock of the queue the items were taken from,
+     * so an item is always either queued or in flight for {@link #hasPendingItems(String)}.
+     */
+    private volatile Set<String> inFlight = Collections.emptySet();
+
+    /**
+     * The service to perform the published item tasks on or <tt>null</tt> if the
+     * queues are shared by many services.
      */
     private PubSubService service = null;
 
     /**
-     * The number of items to save on each run of the maintenance process.
+     * The number of items to save on each database batch.
      */
     private int items_batch_size = 50;
 
     public PublishedItemTask(PubSubService service) {
+        this(service.getItemsToAdd(), service.getItemsToDelete());
         this.service = service;
-        this.itemsToAdd = service.getItemsToAdd();
-        this.itemsToDelete = service.getItemsToDelete();
+    }
+
+    /**
+     * Creates a task that processes queues of items that may belong to many services.
+     *
+     * @param itemsToAdd queue that holds the items that need to be added to the database.
+     * @param itemsToDelete queue that holds the items that need to be deleted from the database.
+     */
+    public PublishedItemTask(PublishedItemQueue itemsToAdd, PublishedItemQueue itemsToDelete) {
+        this.itemsToAdd = itemsToAdd;
+        this.itemsToDelete = itemsToDelete;
     }
 
     @Override
 	public void run() {
         try {
-            PublishedItem entry;
-            boolean success;
-            // Delete from the database items contained in the itemsToDelete queue
-            for (int index = 0; index <= items_batch_size && !itemsToDelete.isEmpty(); index++) {
-                entry = itemsToDelete.poll();
-                if (entry != null) {
-                    success = PubSubPersistenceManager.removePublishedItem(service, entry);
-                    if (!success) {
-                        itemsToDelete.add(entry);
-                    }
+            flush();
+        } catch (Throwable e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+    }
+
+    /**
+     * Deletes and saves all the queued items. Items that could not be processed are
+     * queued again.
+     */
+    public void flush() {
+        // Delete from the database items contained in the itemsToDelete queue
+        while (processBatch(itemsToDelete, false)) {
+            // Keep processing until the queue is empty or the database fails
+        }
+        // Save to the database items contained in the itemsToAdd queue
+        while (processBatch(itemsToAdd, true)) {
+            // Keep processing until the queue is empty or the database fails
+        }
+    }
+
+    /**
+     * Deletes and saves the queued items of the specified service. This is useful before
+     * loading the service from the database (e.g. after it was removed from a cache).
+     * Items of the service that are being written by another thread are saved or deleted
+     * before this method returns.
+     *
+     * @param serviceID the ID of the service whose queued items should be processed.
+     */
+    public void flush(String serviceID) {
+        synchronized (writeLock) {
+            List<PublishedItem> toDelete = itemsToDelete.removeItems(serviceID);
+            List<PublishedItem> toAdd = itemsToAdd.removeItems(serviceID);
+            if (!toDelete.isEmpty()) {
+                process(itemsToDelete, toDelete, false);
+            }
+            if (!toAdd.isEmpty()) {
+                process(itemsToAdd, toAdd, true);
+            }
+        }
+    }
+
+    /**
+     * Returns true if items of the specified service are queued or being written to the
+     * database. Services without pending items do not need to be flushed before being
+     * loaded from the database.
+     *
+     * @param serviceID the ID of the service.
+     * @return true if items of the service are queued or being written.
+     */
+    public boolean hasPendingItems(String serviceID) {
+        return hasPendingItems(itemsToDelete, serviceID) || hasPendingItems(itemsToAdd, serviceID);
+    }
+
+    private boolean hasPendingItems(PublishedItemQueue queue, String serviceID) {
+        synchronized (queue) {
+            return queue.hasItems(serviceID) || inFlight.contains(serviceID);
+        }
+    }
+
+    /**
+     * Processes a batch of items from the specified queue.
+     *
+     * @return true if the queue may have more items to process.
+     */
+    private boolean processBatch(PublishedItemQueue queue, boolean add) {
+        synchronized (writeLock) {
+            List<PublishedItem> batch = new ArrayList<PublishedItem>(items_batch_size);
+            synchronized (queue) {
+                PublishedItem entry;
+                Set<String> serviceIDs = new HashSet<String>();
+                while (batch.size() < items_batch_size && (entry = queue.poll()) != null) {
+                    batch.add(entry);
+                    serviceIDs.add(entry.getNode().service.getServiceID());
+                }
+                if (batch.isEmpty()) {
+                    return false;
                 }
+                inFlight = serviceIDs;
             }
-            // Save to the database items contained in the itemsToAdd queue
-            for (int index = 0; index <= items_batch_size && !itemsToAdd.isEmpty(); index++) {
-                entry = itemsToAdd.poll();
-                if (entry != null) {
-                    success = PubSubPersistenceManager.createPublishedItem(service, entry);
-                    if (!success) {
-                        itemsToAdd.add(entry);
-                    }
+            try {
+                return process(queue, batch, add);
+            }
+            finally {
+                synchronized (queue) {
+                    inFlight = Collections.emptySet();
                 }
             }
-        } catch (Throwable e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
         }
     }
-    
+
+    /**
+     * Saves or deletes the specified items. When the batch fails the items are processed one
+     * by one and the items that could not be processed are queued again.
+     *
+     * @return true if at least one item was processed.
+     */
+    private boolean process(PublishedItemQueue queue, List<PublishedItem> items, boolean add) {
+        if (add ? PubSubPersistenceManager.createPublishedItems(items) :
+                PubSubPersistenceManager.removePublishedItems(items)) {
+            return true;
+        }
+        boolean success = false;
+        for (PublishedItem item : items) {
+            PubSubService itemService = item.getNode().service;
+            if (add ? PubSubPersistenceManager.createPublishedItem(itemService, item) :
+                    PubSubPersistenceManager.removePublishedItem(itemService, item)) {
+                success = true;
+            }
+            else {
+                queue.add(item);
+            }
+        }
+        return success;
+    }
+
 	protected PubSubService getService() {
 		return service;
 	}
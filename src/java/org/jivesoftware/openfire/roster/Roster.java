@@ -74,6 +74,15 @@ public class Roster implements Cacheable, Externalizable {
 
 	private static final Logger Log = LoggerFactory.getLogger(Roster.class);
 
+    /**
+     * Contacts that receive the initial presence of the user.
+     */
+    private static final int BROADCAST = 1;
+    /**
+     * Contacts whose presence is probed when the user becomes available.
+     */
+    private static final int PROBE = 2;
+
     /**
      * Roster item cache - table: key jabberid string; value roster item.
      */
@@ -648,6 +657,116 @@ public class Roster implements Cacheable, Externalizable {
         }
     }
 
+    /**
+     * Sends the initial presence of a session to the subscribers of this user and probes the
+     * presence of the contacts this user is subscribed to, in a single pass over the roster.
+     * Contacts are grouped by domain and each contact is handled once for both phases, even
+     * when it is both in the personal roster and in a shared group. The available sessions of
+     * a local contact are looked up once and used for delivering the presence of this user as
+     * well as for answering the probe.
+     *
+     * @param packet the initial presence sent by the session.
+     * @param session the session that became available.
+     * @return the number of contacts that received the presence or were probed.
+     */
+    public int broadcastInitialPresence(Presence packet, ClientSession session) {
+        if (routingTable == null) {
+            return 0;
+        }
+        // Get the privacy list of this user
+        PrivacyList list = session.getActiveList();
+        list = list == null ? session.getDefaultList() : list;
+        if (list == null) {
+            list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
+        }
+        // Group the contacts by domain and merge what has to be done for each contact
+        Map<String, Map<JID, Integer>> contactsByDomain = new HashMap<String, Map<JID, Integer>>();
+        for (RosterItem item : rosterItems.values()) {
+            RosterItem.SubType subStatus = item.getSubStatus();
+            int actions = 0;
+            if (subStatus == RosterItem.SUB_BOTH || subStatus == RosterItem.SUB_FROM) {
+                actions |= BROADCAST;
+            }
+            if (subStatus == RosterItem.SUB_BOTH || subStatus == RosterItem.SUB_TO) {
+                actions |= PROBE;
+            }
+            if (actions != 0) {
+                JID contact = item.getJid();
+                addContact(contactsByDomain,
+                        new JID(contact.getNode(), contact.getDomain(), null, true), actions);
+            }
+        }
+        // Shared contacts whose subscription status is FROM
+        for (String contact : implicitFrom.keySet()) {
+            if (contact.contains("@")) {
+                String node = contact.substring(0, contact.lastIndexOf("@"));
+                String domain = contact.substring(contact.lastIndexOf("@")+1);
+                node = JID.escapeNode(node);
+                contact = new JID(node, domain, null).toBareJID();
+            }
+            addContact(contactsByDomain, new JID(contact), BROADCAST);
+        }
+
+        JID prober = session.getAddress();
+        int contacts = 0;
+        for (Map<JID, Integer> domainContacts : contactsByDomain.values()) {
+            for (Map.Entry<JID, Integer> entry : domainContacts.entrySet()) {
+                JID contact = entry.getKey();
+                int actions = entry.getValue();
+                contacts++;
+                List<JID> routes = routingTable.getRoutes(contact, null);
+                if ((actions & BROADCAST) != 0) {
+                    packet.setTo(contact);
+                    if (list == null || !list.shouldBlockPacket(packet)) {
+                        for (JID jid : routes) {
+                            if (jid.equals(prober)) {
+                                // The session is not available yet for the other contacts
+                                continue;
+                            }
+                            try {
+                                routingTable.routePacket(jid, packet, false);
+                            }
+                            catch (Exception e) {
+                                // Theoretically only happens if session has been closed.
+                                Log.debug(e.getMessage(), e);
+                            }
+                        }
+                    }
+                }
+                if ((actions & PROBE) != 0) {
+                    if (server.isLocal(contact) && contact.getNode() != null) {
+                        // Answer the probe with the sessions that were already looked up
+                        Collection<ClientSession> sessions = new ArrayList<ClientSession>(routes.size());
+                        for (JID jid : routes) {
+                            ClientSession contactSession = routingTable.getClientRoute(jid);
+                            if (contactSession != null) {
+                                sessions.add(contactSession);
+                            }
+                        }
+                        presenceManager.probePresence(prober, contact, sessions);
+                    }
+                    else {
+                        presenceManager.probePresence(prober, contact);
+                    }
+                }
+            }
+        }
+        // Broadcast presence to other user's resources
+        sessionManager.broadcastPresenceToOtherResources(prober, packet);
+        return contacts;
+    }
+
+    private void addContact(Map<String, Map<JID, Integer>> contactsByDomain, JID contact,
+            int actions) {
+        Map<JID, Integer> domainContacts = contactsByDomain.get(contact.getDomain());
+        if (domainContacts == null) {
+            domainContacts = new HashMap<JID, Integer>();
+            contactsByDomain.put(contact.getDomain(), domainContacts);
+        }
+        Integer previous = domainContacts.get(contact);
+        domainContacts.put(contact, previous == null ? actions : previous | actions);
+    }
+
     /**
      * Returns the list of users that belong ONLY to a shared group of this user. If the contact
      * belongs to the personal roster and a shared group then it wont' be included in the answer.
@@ -28,6 +28,7 @@ import java.util.concurrent.TimeUnit;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.session.OutgoingServerSession;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +39,11 @@ import org.slf4j.LoggerFactory;
  * Authoritative Server verified the key sent by this server).<p>
  *
  * This class is also responsible for closing the outgoing connection if the remote server sent
- * an end of the stream element.
+ * an end of the stream element.<p>
+ *
+ * Readers created with an XMPPPacketReader use a thread for reading the connection. Readers
+ * of NIO connections have no thread and are fed with the elements received by the connection
+ * handler.
  *
  * @author Gaston Dombiak
  */
@@ -59,6 +64,37 @@ public class OutgoingServerSocketReader {
         init();
     }
 
+    /**
+     * Creates a reader of an NIO connection. Received elements are queued by the connection
+     * handler using {@link #elementReceived(Element)}.
+     */
+    public OutgoingServerSocketReader() {
+    }
+
+    /**
+     * Queues an element received by an NIO connection. The session is closed if the queue
+     * is full since the remote server is not expected to send that many elements using
+     * the outgoing connection.
+     *
+     * @param doc the received element.
+     */
+    public void elementReceived(Element doc) {
+        if (!elements.offer(doc)) {
+            Log.warn("Closing outgoing session since too many elements were received: " + session);
+            closeSession();
+        }
+    }
+
+    /**
+     * Closes the session since the remote server has sent an end of stream element or the
+     * NIO connection was closed.
+     */
+    public void streamClosed() {
+        if (open) {
+            closeSession();
+        }
+    }
+
     /**
      * Returns the OutgoingServerSession for which this reader is working for or <tt>null</tt> if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -95,9 +131,8 @@ public class OutgoingServerSocketReader {
     }
 
     private void init() {
-        // Create a thread that will read and store DOM Elements.
-        Thread thread = new Thread("Outgoing Server Reader") {
-            @Override
+        // Create a task that will read and store DOM Elements.
+        TaskEngine.getInstance().submitBlocking(new Runnable() {
 			public void run() {
                 while (open) {
                     Element doc;
@@ -109,8 +144,9 @@ public class OutgoingServerSocketReader {
                             // stream element and probably closed the connection.
                             closeSession();
                         }
-                        else {
-                            elements.add(doc);
+                        else if (!elements.offer(doc)) {
+                            Log.warn("Closing outgoing session since too many elements were received: " + session);
+                            closeSession();
                         }
                     }
                     catch (IOException e) {
@@ -137,9 +173,7 @@ public class OutgoingServerSocketReader {
                     }
                 }
             }
-        };
-        thread.setDaemon(true);
-        thread.start();
+        });
     }
 
     private void closeSession() {
@@ -21,15 +21,17 @@
 package org.jivesoftware.openfire.server;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.openfire.RoutableChannelHandler;
@@ -37,7 +39,13 @@ import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -54,10 +62,17 @@ import org.xmpp.packet.Presence;
  * When looking for a route to a remote server that does not have an existing connection, a session
  * promise is returned.
  *
- * This class will queue packets and process them in another thread. The processing thread will
- * use a pool of thread that will actually do the hard work. The threads in the pool will try
- * to connect to remote servers and deliver the packets. If an error occurred while establishing
- * the connection or sending the packet an error will be returned to the sender of the packet.
+ * Packets are queued per remote domain. The first packet queued for a domain hands the queue
+ * to a pool of threads that will try to connect to the remote server and deliver the queued
+ * packets, so the thread routing the packet never waits for DNS lookups or connections. If an
+ * error occurred while establishing the connection or sending the packet an error will be
+ * returned to the sender of the packet.<p>
+ *
+ * The number of packets queued per domain is limited by the
+ * <tt>xmpp.server.outgoing.domain.queue</tt> property. Once establishing a session with a
+ * domain failed, packets for that domain are discarded (and an error returned to their
+ * senders) for 5 seconds. The period is doubled after each consecutive failure up to
+ * <tt>xmpp.server.outgoing.backoff.max</tt> milliseconds.
  *
  * @author Gaston Dombiak
  */
@@ -65,20 +80,26 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(OutgoingSessionPromise.class);
 
-    private static OutgoingSessionPromise instance = new OutgoingSessionPromise();
+    /**
+     * Time to wait before trying to connect again to a domain that could not be reached.
+     */
+    private static final long MIN_BACKOFF = 5000;
 
     /**
-     * Queue that holds the packets pending to be sent to remote servers.
+     * Time a queue of packets can remain idle before it is discarded.
      */
-    private BlockingQueue<Packet> packets = new LinkedBlockingQueue<Packet>(10000);
+    private static final long MAX_IDLE = 5 * 60 * 1000;
+
+    private static OutgoingSessionPromise instance = new OutgoingSessionPromise();
 
     /**
      * Pool of threads that will create outgoing sessions to remote servers and send
-     * the queued packets.
+     * the queued packets. At most one thread processes the packets of a domain.
      */
     private ThreadPoolExecutor threadPool;
 
-    private Map<String, PacketsProcessor> packetsProcessors = new HashMap<String, PacketsProcessor>();
+    private ConcurrentMap<String, PacketsProcessor> packetsProcessors =
+            new ConcurrentHashMap<String, PacketsProcessor>();
 
     /**
      * Cache (unlimited, never expire) that holds outgoing sessions to remote servers from this server.
@@ -86,10 +107,26 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
      */
     private Cache<String, byte[]> serversCache;
     /**
-     * Flag that indicates if the process that consumed the queued packets should stop.
+     * Flag that indicates if queued packets should no longer be processed.
      */
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
     private RoutingTable routingTable;
+    /**
+     * Max number of packets that can be queued for a remote domain.
+     */
+    private int maxQueueSize;
+    /**
+     * Max time to wait before trying to connect again to a domain that could not be reached.
+     */
+    private long maxBackoff;
+    /**
+     * Total number of packets waiting to be sent to remote servers.
+     */
+    private final AtomicInteger queuedPackets = new AtomicInteger(0);
+    /**
+     * Time spent establishing new sessions with remote servers.
+     */
+    private final LatencyHistogram connectTime = new LatencyHistogram();
 
     private OutgoingSessionPromise() {
         super();
@@ -99,66 +136,44 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     private void init() {
         serversCache = CacheFactory.createCache(RoutingTableImpl.S2S_CACHE_NAME);
         routingTable = XMPPServer.getInstance().getRoutingTable();
-        // Create a pool of threads that will process queued packets.
+        maxQueueSize = JiveGlobals.getIntProperty("xmpp.server.outgoing.domain.queue", 1000);
+        maxBackoff = Math.max(MIN_BACKOFF,
+                JiveGlobals.getIntProperty("xmpp.server.outgoing.backoff.max", 60000));
+        // Create a pool of threads that will process queued packets. There is at most one
+        // task per domain so the queue of the pool is never longer than the number of domains
         int maxThreads = JiveGlobals.getIntProperty("xmpp.server.outgoing.max.threads", 20);
-        int queueSize = JiveGlobals.getIntProperty("xmpp.server.outgoing.queue", 50);
         if (maxThreads < 10) {
             // Ensure that the max number of threads in the pool is at least 10
             maxThreads = 10;
         }
-        threadPool =
-                new ThreadPoolExecutor(maxThreads/4, maxThreads, 60, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(queueSize),
-                        new ThreadPoolExecutor.CallerRunsPolicy());
-
-        // Start the thread that will consume the queued packets. Each pending packet will
-        // be actually processed by a thread of the pool (when available). If an error occurs
-        // while creating the remote session or sending the packet then a packet with error 502
-        // will be sent to the sender of the packet
-        Thread thread = new Thread(new Runnable() {
+        threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+
+        // Discard the queues of domains that are no longer used
+        TaskEngine.getInstance().schedule(new TimerTask() {
+            @Override
             public void run() {
-                while (!shutdown) {
-                    try {
-                        if (threadPool.getActiveCount() < threadPool.getMaximumPoolSize()) {
-                            // Wait until a packet is available
-                            final Packet packet = packets.take();
-
-                            boolean newProcessor = false;
-                            PacketsProcessor packetsProcessor;
-                            String domain = packet.getTo().getDomain();
-                            synchronized (domain.intern()) {
-                                packetsProcessor = packetsProcessors.get(domain);
-                                if (packetsProcessor == null) {
-                                    packetsProcessor =
-                                            new PacketsProcessor(OutgoingSessionPromise.this, domain);
-                                    packetsProcessors.put(domain, packetsProcessor);
-                                    newProcessor = true;
-                                }
-                                packetsProcessor.addPacket(packet);
-                            }
-
-                            if (newProcessor) {
-                                // Process the packet in another thread
-                                threadPool.execute(packetsProcessor);
-                            }
-                        }
-                        else {
-                            // No threads are available so take a nap :)
-                            Thread.sleep(200);
-                        }
-                    }
-                    catch (InterruptedException e) {
-                        // Do nothing
-                    }
-                    catch (Exception e) {
-                        Log.error(e.getMessage(), e);
+                long now = System.currentTimeMillis();
+                for (PacketsProcessor processor : packetsProcessors.values()) {
+                    if (processor.discardIfIdle(now)) {
+                        packetsProcessors.remove(processor.getDomain(), processor);
                     }
                 }
             }
-        }, "Queued Packets Processor");
-        thread.setDaemon(true);
-        thread.start();
+        }, MAX_IDLE, MAX_IDLE);
+
+        StatisticsManager.getInstance().addStatistic("s2sQueuedPackets",
+                new i18nStatistic("s2s.queued_packets", Statistic.Type.count) {
+                    public double sample() {
+                        return queuedPackets.get();
+                    }
 
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("s2sConnectTime",
+                new LatencyStatistic("s2s.connect_time", connectTime));
     }
 
     public static OutgoingSessionPromise getInstance() {
@@ -166,12 +181,11 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     }
 
     /**
-     * Shuts down the thread that consumes the queued packets and also stops the pool
-     * of threads that actually send the packets to the remote servers.
+     * Stops the pool of threads that actually send the packets to the remote servers.
      */
     public void shutdown() {
-        threadPool.shutdown();
         shutdown = true;
+        threadPool.shutdown();
     }
 
     public JID getAddress() {
@@ -180,79 +194,142 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     }
 
     public void process(Packet packet) {
-        // Queue the packet. Another process will process the queued packets.
-        packets.add(packet.createCopy());
-    }
-
-    private void processorDone(PacketsProcessor packetsProcessor) {
-        synchronized(packetsProcessor.getDomain().intern()) {
-            if (packetsProcessor.isDone()) {
-                packetsProcessors.remove(packetsProcessor.getDomain());
+        if (shutdown) {
+            return;
+        }
+        // Queue the packet. A thread of the pool will process the queued packets.
+        Packet copy = packet.createCopy();
+        String domain = packet.getTo().getDomain();
+        while (true) {
+            PacketsProcessor packetsProcessor = packetsProcessors.get(domain);
+            if (packetsProcessor == null) {
+                packetsProcessor = new PacketsProcessor(domain);
+                PacketsProcessor existing = packetsProcessors.putIfAbsent(domain, packetsProcessor);
+                if (existing != null) {
+                    packetsProcessor = existing;
+                }
             }
-            else {
-                threadPool.execute(packetsProcessor);
+            if (packetsProcessor.addPacket(copy)) {
+                return;
             }
+            // The processor was discarded while we were using it so try again
         }
     }
 
+    /**
+     * Returns the remote domains that have a queue of packets.
+     *
+     * @return the remote domains that have a queue of packets.
+     */
+    public Collection<String> getDomains() {
+        return new ArrayList<String>(packetsProcessors.keySet());
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to the specified remote domain.
+     *
+     * @param domain the remote domain.
+     * @return the number of packets waiting to be sent to the domain.
+     */
+    public int getQueueSize(String domain) {
+        PacketsProcessor processor = packetsProcessors.get(domain);
+        return processor == null ? 0 : processor.getQueueSize();
+    }
+
+    /**
+     * Returns the time spent establishing sessions with the specified remote domain or
+     * <tt>null</tt> if no packets were recently sent to the domain.
+     *
+     * @param domain the remote domain.
+     * @return the time spent establishing sessions with the domain or null if no packets
+     *         were recently sent to the domain.
+     */
+    public LatencyHistogram.Snapshot getConnectTime(String domain) {
+        PacketsProcessor processor = packetsProcessors.get(domain);
+        return processor == null ? null : processor.connectTime.snapshot();
+    }
+
     private class PacketsProcessor implements Runnable {
 
-        private OutgoingSessionPromise promise;
-        private String domain;
-        private Queue<Packet> packetQueue = new ConcurrentLinkedQueue<Packet>();
+        private final String domain;
+        private final LinkedList<Packet> packetQueue = new LinkedList<Packet>();
+        private final LatencyHistogram connectTime = new LatencyHistogram();
+        /**
+         * True while a thread of the pool is processing the queued packets.
+         */
+        private boolean running = false;
+        /**
+         * True once the processor was removed from the map of processors.
+         */
+        private boolean discarded = false;
         /**
          * Keep track of the last time s2s failed. Once a packet failed to be sent to a
-         * remote server this stamp will be used so that for the next 5 seconds future packets
-         * for the same domain will automatically fail. After 5 seconds a new attempt to
-         * establish a s2s connection and deliver pendings packets will be performed.
-         * This optimization is good when the server is receiving many packets per second for the
-         * same domain. This will help reduce high CPU consumption.
+         * remote server this stamp will be used so that for the next <tt>backoff</tt>
+         * milliseconds future packets for the same domain will automatically fail. After
+         * that a new attempt to establish a s2s connection and deliver pendings packets will
+         * be performed. This optimization is good when the server is receiving many packets
+         * per second for the same domain. This will help reduce high CPU consumption.
          */
         private long failureTimestamp = -1;
+        private long backoff = 0;
+        private long lastActivity = System.currentTimeMillis();
 
-        public PacketsProcessor(OutgoingSessionPromise promise, String domain) {
-            this.promise = promise;
+        public PacketsProcessor(String domain) {
             this.domain = domain;
         }
 
         public void run() {
-            while (!isDone()) {
-                Packet packet = packetQueue.poll();
-                if (packet != null) {
-                    // Check if s2s already failed
-                    if (failureTimestamp > 0) {
-                        // Check if enough time has passed to attempt a new s2s
-                        if (System.currentTimeMillis() - failureTimestamp < 5000) {
-                            returnErrorToSender(packet);
-                            Log.debug(
-                                    "OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
-                                            packet);
-                            continue;
-                        }
-                        else {
-                            // Reset timestamp of last failure since we are ready to try again doing a s2s
-                            failureTimestamp = -1;
-                        }
+            while (true) {
+                Packet packet;
+                boolean fastDiscard;
+                synchronized (this) {
+                    packet = packetQueue.poll();
+                    if (packet == null || shutdown) {
+                        running = false;
+                        return;
                     }
-                    try {
-                        sendPacket(packet);
+                    fastDiscard = isBackingOff(System.currentTimeMillis());
+                }
+                queuedPackets.decrementAndGet();
+                if (fastDiscard) {
+                    returnErrorToSender(packet);
+                    Log.debug("OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
+                            packet);
+                    continue;
+                }
+                try {
+                    sendPacket(packet);
+                    synchronized (this) {
+                        backoff = 0;
                     }
-                    catch (Exception e) {
-                        returnErrorToSender(packet);
-                        Log.debug(
-                                "OutgoingSessionPromise: Error sending packet to remote server: " + packet,
-                                e);
-                        // Mark the time when s2s failed
+                }
+                catch (Exception e) {
+                    returnErrorToSender(packet);
+                    Log.debug(
+                            "OutgoingSessionPromise: Error sending packet to remote server: " + packet,
+                            e);
+                    synchronized (this) {
+                        // Mark the time when s2s failed and wait longer after each failure
                         failureTimestamp = System.currentTimeMillis();
+                        backoff = Math.min(maxBackoff, backoff == 0 ? MIN_BACKOFF : backoff * 2);
                     }
                 }
             }
-            promise.processorDone(this);
+        }
+
+        /**
+         * Returns true if packets for the domain should fail without trying to connect to
+         * the remote server. Must be called from code synchronized on this processor.
+         */
+        private boolean isBackingOff(long now) {
+            return failureTimestamp > 0 && now - failureTimestamp < backoff;
         }
 
         private void sendPacket(Packet packet) throws Exception {
             // Create a connection to the remote server from the domain where the packet has been sent
             boolean created;
+            boolean existing = routingTable.hasServerRoute(packet.getTo());
+            long start = System.nanoTime();
             // Make sure that only one cluster node is creating the outgoing connection
             // TODO: Evaluate why removing the oss part causes nasty s2s and lockup issues.
             Lock lock = CacheFactory.getLock(domain+"oss", serversCache);
@@ -264,6 +341,10 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
                 lock.unlock();
             }
             if (created) {
+                if (!existing) {
+                    connectTime.recordSince(start);
+                    OutgoingSessionPromise.this.connectTime.recordSince(start);
+                }
                 if (!routingTable.hasServerRoute(packet.getTo())) {
                     throw new Exception("Route created but not found!!!");
                 }
@@ -333,16 +414,81 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             }
         }
 
-        public void addPacket(Packet packet) {
-            packetQueue.add(packet);
+        /**
+         * Queues a packet to be sent to the remote domain. Packets are rejected (and an error
+         * is returned to the sender) while backing off from a failure or when the queue of the
+         * domain is full.
+         *
+         * @param packet the packet to send.
+         * @return false if the processor was discarded and the packet was not queued.
+         */
+        public boolean addPacket(Packet packet) {
+            boolean reject = false;
+            boolean submit = false;
+            synchronized (this) {
+                if (discarded) {
+                    return false;
+                }
+                lastActivity = System.currentTimeMillis();
+                if (isBackingOff(lastActivity) || packetQueue.size() >= maxQueueSize) {
+                    reject = true;
+                }
+                else {
+                    packetQueue.add(packet);
+                    queuedPackets.incrementAndGet();
+                    submit = !running;
+                    running = true;
+                }
+            }
+            if (reject) {
+                returnErrorToSender(packet);
+                Log.debug("OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
+                        packet);
+            }
+            else if (submit) {
+                try {
+                    threadPool.execute(this);
+                }
+                catch (RejectedExecutionException e) {
+                    // The server is shutting down so return an error for the queued packets
+                    List<Packet> pending;
+                    synchronized (this) {
+                        running = false;
+                        pending = new ArrayList<Packet>(packetQueue);
+                        packetQueue.clear();
+                    }
+                    queuedPackets.addAndGet(-pending.size());
+                    for (Packet pendingPacket : pending) {
+                        returnErrorToSender(pendingPacket);
+                        Log.debug("OutgoingSessionPromise: Error sending packet to remote server " +
+                                "(rejected): " + pendingPacket);
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Marks the processor as discarded if it has been idle for a while and is not backing
+         * off from a failure.
+         *
+         * @param now the current time in milliseconds.
+         * @return true if the processor was discarded.
+         */
+        public synchronized boolean discardIfIdle(long now) {
+            if (!running && packetQueue.isEmpty() && !isBackingOff(now) &&
+                    now - lastActivity > MAX_IDLE) {
+                discarded = true;
+            }
+            return discarded;
         }
 
-        public String getDomain() {
-            return domain;
+        public synchronized int getQueueSize() {
+            return packetQueue.size();
         }
 
-        public boolean isDone() {
-            return packetQueue.isEmpty();
+        public String getDomain() {
+            return domain;
         }
     }
 }
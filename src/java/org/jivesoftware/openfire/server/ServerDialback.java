@@ -27,8 +27,13 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -319,62 +324,98 @@ public class ServerDialback {
      */
     public boolean authenticateDomain(OutgoingServerSocketReader socketReader, String domain,
             String hostname, String id) {
+        return authenticateDomains(socketReader, Collections.singletonList(domain), hostname, id)
+                .contains(domain);
+    }
+
+    /**
+     * Authenticates several Originating Server domains with the Receiving Server over the same
+     * connection (piggybacking). The dialback keys of all the domains are sent in one write and
+     * then the answers are collected, so authenticating many domains takes a single round
+     * trip.
+     *
+     * @param socketReader the reader to use for reading the answer from the Receiving Server.
+     * @param domains the domains to authenticate.
+     * @param hostname the hostname of the remote server (i.e. Receiving Server).
+     * @param id the stream id to be used for creating the dialback key.
+     * @return the domains that the Receiving Server authenticated with the Authoritative Server.
+     */
+    public Collection<String> authenticateDomains(OutgoingServerSocketReader socketReader,
+            Collection<String> domains, String hostname, String id) {
         String key = AuthFactory.createDigest(id, getSecretkey());
-        Log.debug("ServerDialback: OS - Sent dialback key to host: " + hostname + " id: " + id + " from domain: " +
-                domain);
+        Set<String> pending = new HashSet<String>(domains);
+        Collection<String> validated = new ArrayList<String>();
+        Log.debug("ServerDialback: OS - Sent dialback key to host: " + hostname + " id: " + id + " from domains: " +
+                pending);
 
         synchronized (socketReader) {
-            // Send a dialback key to the Receiving Server
+            // Send a dialback key to the Receiving Server for each domain
             StringBuilder sb = new StringBuilder();
-            sb.append("<db:result");
-            sb.append(" from=\"").append(domain).append("\"");
-            sb.append(" to=\"").append(hostname).append("\">");
-            sb.append(key);
-            sb.append("</db:result>");
+            for (String domain : pending) {
+                sb.append("<db:result");
+                sb.append(" from=\"").append(domain).append("\"");
+                sb.append(" to=\"").append(hostname).append("\">");
+                sb.append(key);
+                sb.append("</db:result>");
+            }
             connection.deliverRawText(sb.toString());
 
-            // Process the answer from the Receiving Server
+            // Process the answers from the Receiving Server
+            long deadline = System.currentTimeMillis() + RemoteServerManager.getSocketTimeout();
             try {
-            	while (true) {
-	                Element doc = socketReader.getElement(RemoteServerManager.getSocketTimeout(),
-	                        TimeUnit.MILLISECONDS);
-	                if (doc == null) {
-	                    Log.debug("ServerDialback: OS - Time out waiting for answer in validation from: " + hostname +
-	                            " id: " +
-	                            id +
-	                            " for domain: " +
-	                            domain);
-	                    return false;
-	                }
-	                else if ("db".equals(doc.getNamespacePrefix()) && "result".equals(doc.getName())) {
-	                    boolean success = "valid".equals(doc.attributeValue("type"));
-	                    Log.debug("ServerDialback: OS - Validation " + (success ? "GRANTED" : "FAILED") + " from: " +
-	                            hostname +
-	                            " id: " +
-	                            id +
-	                            " for domain: " +
-	                            domain);
-	                    return success;
-	                }
-	                else {
-	                    Log.warn("ServerDialback: OS - Ignoring unexpected answer in validation from: " + hostname + " id: " +
-	                            id +
-	                            " for domain: " +
-	                            domain +
-	                            " answer:" +
-	                            doc.asXML());
-	                }
-            	}
+                while (!pending.isEmpty()) {
+                    Element doc = socketReader.getElement(deadline - System.currentTimeMillis(),
+                            TimeUnit.MILLISECONDS);
+                    if (doc == null) {
+                        Log.debug("ServerDialback: OS - Time out waiting for answer in validation from: " + hostname +
+                                " id: " +
+                                id +
+                                " for domains: " +
+                                pending);
+                        break;
+                    }
+                    else if ("db".equals(doc.getNamespacePrefix()) && "result".equals(doc.getName())) {
+                        String domain = doc.attributeValue("to");
+                        if (domain == null || !pending.contains(domain)) {
+                            if (pending.size() > 1) {
+                                Log.warn("ServerDialback: OS - Ignoring answer for unknown domain from: " +
+                                        hostname + " answer:" + doc.asXML());
+                                continue;
+                            }
+                            // Assume that the answer is for the only domain being validated
+                            domain = pending.iterator().next();
+                        }
+                        pending.remove(domain);
+                        boolean success = "valid".equals(doc.attributeValue("type"));
+                        if (success) {
+                            validated.add(domain);
+                        }
+                        Log.debug("ServerDialback: OS - Validation " + (success ? "GRANTED" : "FAILED") + " from: " +
+                                hostname +
+                                " id: " +
+                                id +
+                                " for domain: " +
+                                domain);
+                    }
+                    else {
+                        Log.warn("ServerDialback: OS - Ignoring unexpected answer in validation from: " + hostname + " id: " +
+                                id +
+                                " for domains: " +
+                                pending +
+                                " answer:" +
+                                doc.asXML());
+                    }
+                }
             }
             catch (InterruptedException e) {
                 Log.debug("ServerDialback: OS - Validation FAILED from: " + hostname +
                         " id: " +
                         id +
-                        " for domain: " +
-                        domain, e);
-                return false;
+                        " for domains: " +
+                        pending, e);
             }
         }
+        return validated;
     }
 
     /**
@@ -0,0 +1,83 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.session;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.SessionResultFilter;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+/**
+ * Task that will be executed in cluster nodes to get the first client sessions hosted by the
+ * cluster node for a given sort field and order. A page of the sessions of the cluster
+ * is made of the first sessions of each cluster node up to the end of the page.
+ */
+public class GetSessionsPageTask implements ClusterTask {
+
+    private static final long serialVersionUID = 1L;
+
+    private int sortField;
+    private int sortOrder;
+    private int numResults;
+    private List<SessionPageEntry> entries;
+
+    public GetSessionsPageTask() {
+    }
+
+    public GetSessionsPageTask(int sortField, int sortOrder, int numResults) {
+        this.sortField = sortField;
+        this.sortOrder = sortOrder;
+        this.numResults = numResults;
+    }
+
+    public Object getResult() {
+        return entries;
+    }
+
+    public void run() {
+        SessionResultFilter filter = new SessionResultFilter();
+        filter.setSortField(sortField);
+        filter.setSortOrder(sortOrder);
+        filter.setNumResults(numResults);
+        entries = new ArrayList<SessionPageEntry>();
+        for (ClientSession session : SessionManager.getInstance().getLocalSessions(filter)) {
+            entries.add(new SessionPageEntry(session, sortField));
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, sortField);
+        ExternalizableUtil.getInstance().writeInt(out, sortOrder);
+        ExternalizableUtil.getInstance().writeInt(out, numResults);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        sortField = ExternalizableUtil.getInstance().readInt(in);
+        sortOrder = ExternalizableUtil.getInstance().readInt(in);
+        numResults = ExternalizableUtil.getInstance().readInt(in);
+    }
+}
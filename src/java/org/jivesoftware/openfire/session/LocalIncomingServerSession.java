@@ -29,14 +29,12 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.SSLConfig;
-import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.server.ServerDialback;
 import org.jivesoftware.util.CertificateManager;
 import org.jivesoftware.util.JiveGlobals;
@@ -92,18 +90,15 @@ public class LocalIncomingServerSession extends LocalSession implements Incoming
      * <tt>null</tt>.<p>
      *
      * @param serverName hostname of this server.
-     * @param reader reader on the new established connection with the remote server.
+     * @param xpp parser positioned on the stream header sent by the remote server.
      * @param connection the new established connection with the remote server.
      * @return a new session that will receive packets or null if a problem occured while
      *         authenticating the remote server or when acting as the Authoritative Server during
      *         a Server Dialback authentication process.
      * @throws org.xmlpull.v1.XmlPullParserException if an error occurs while parsing the XML.
-     * @throws java.io.IOException if an input/output error occurs while using the connection.
      */
-    public static LocalIncomingServerSession createSession(String serverName, XMPPPacketReader reader,
-            SocketConnection connection) throws XmlPullParserException, IOException {
-        XmlPullParser xpp = reader.getXPPParser();
-                
+    public static LocalIncomingServerSession createSession(String serverName, XmlPullParser xpp,
+            Connection connection) throws XmlPullParserException {
         String version = xpp.getAttributeValue("", "version");
         int[] serverVersion = version != null ? decodeVersion(version) : new int[] {0,0};
         
@@ -24,16 +24,18 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLHandshakeException;
 
-import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
@@ -43,8 +45,9 @@ import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.net.DNSUtil;
-import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SocketConnection;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerConfiguration;
 import org.jivesoftware.openfire.server.RemoteServerManager;
@@ -52,6 +55,7 @@ import org.jivesoftware.openfire.server.ServerDialback;
 import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
@@ -96,8 +100,8 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
      */
     private static Pattern pattern = Pattern.compile("[a-zA-Z]");
 
-    private Collection<String> authenticatedDomains = new HashSet<String>();
-    private final Collection<String> hostnames = new HashSet<String>();
+    private Collection<String> authenticatedDomains = new CopyOnWriteArraySet<String>();
+    private final Collection<String> hostnames = new CopyOnWriteArraySet<String>();
     private OutgoingServerSocketReader socketReader;
     /**
      * Flag that indicates if the session was created using server-dialback.
@@ -172,6 +176,7 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
                         session.addHostname(hostname);
                         // Notify the SessionManager that a new session has been created
                         sessionManager.outgoingServerSessionCreated((LocalOutgoingServerSession) session);
+                        ((LocalOutgoingServerSession) session).authenticateLocalDomains();
                         return true;
                     } else {
                         // Ensure that the hostname is not an IP address (i.e. contains chars)
@@ -215,6 +220,7 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
                                 session.addHostname(newHostname);
                                 // Notify the SessionManager that a new session has been created
                                 sessionManager.outgoingServerSessionCreated((LocalOutgoingServerSession) session);
+                                ((LocalOutgoingServerSession) session).authenticateLocalDomains();
                                 return true;
                             } else {
                                 index = hostname.indexOf('.', index + 1);
@@ -244,7 +250,11 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
      * and SASL then the new outgoing connection will be secured with TLS and authenticated
      * using SASL. However, if TLS or SASL is not supported by the remote server or if an
      * error occured while securing or authenticating the connection using SASL then server
-     * dialback method will be used.
+     * dialback method will be used.<p>
+     *
+     * The connection is either a socket read by a thread or a MINA connection whose elements
+     * are parsed by the I/O threads of MINA (see {@link #isNIOEnabled(int)}). Both kinds of
+     * connection are negotiated the same way.
      *
      * @param domain the local domain to authenticate with the remote server.
      * @param hostname the hostname of the remote server.
@@ -261,39 +271,13 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
         }
 
         // Connect to remote server using XMPP 1.0 (TLS + SASL EXTERNAL or TLS + server dialback or server dialback)
-        SocketConnection connection = null;
-        String realHostname = null;
-        int realPort = port;
-        Socket socket = new Socket();
-        // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
-        List<DNSUtil.HostAddress> hosts = DNSUtil.resolveXMPPDomain(hostname, port);
-        for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); it.hasNext();) {
-            try {
-                DNSUtil.HostAddress address = it.next();
-                realHostname = address.getHost();
-                realPort = address.getPort();
-                Log.debug("LocalOutgoingServerSession: OS - Trying to connect to " + hostname + ":" + port +
-                        "(DNS lookup: " + realHostname + ":" + realPort + ")");
-                // Establish a TCP connection to the Receiving Server
-                socket.connect(new InetSocketAddress(realHostname, realPort),
-                        RemoteServerManager.getSocketTimeout());
-                Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
-                break;
-            }
-            catch (Exception e) {
-                Log.warn("Error trying to connect to remote server: " + hostname +
-                        "(DNS lookup: " + realHostname + ":" + realPort + ")", e);
-            }
-        }
-        if (!socket.isConnected()) {
+        OutgoingStream stream = isNIOEnabled(port) ? connectNIO(hostname, port) :
+                connectSocket(hostname, port);
+        if (stream == null) {
             return null;
         }
-
+        Connection connection = stream.getConnection();
         try {
-            connection =
-                    new SocketConnection(XMPPServer.getInstance().getPacketDeliverer(), socket,
-                            false);
-
             // Send the stream header
             StringBuilder openingStream = new StringBuilder();
             openingStream.append("<stream:stream");
@@ -304,35 +288,21 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
             openingStream.append(" version=\"1.0\">");
             connection.deliverRawText(openingStream.toString());
 
-            // Set a read timeout (of 5 seconds) so we don't keep waiting forever
-            int soTimeout = socket.getSoTimeout();
-            socket.setSoTimeout(5000);
-
-            XMPPPacketReader reader = new XMPPPacketReader();
-            reader.getXPPParser().setInput(new InputStreamReader(socket.getInputStream(),
-                    CHARSET));
-            // Get the answer from the Receiving Server
-            XmlPullParser xpp = reader.getXPPParser();
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
-            }
-
-            String serverVersion = xpp.getAttributeValue("", "version");
-            String id = xpp.getAttributeValue("", "id");
+            // Get the answer from the Receiving Server (waiting up to 5 seconds)
+            Element header = stream.readStreamHeader(5000);
+            String serverVersion = header == null ? null : header.attributeValue("version");
 
             // Check if the remote server is XMPP 1.0 compliant
             if (serverVersion != null && decodeVersion(serverVersion)[0] >= 1) {
-                // Restore default timeout
-                socket.setSoTimeout(soTimeout);
+                String id = header.attributeValue("id");
                 // Get the stream features
-                Element features = reader.parseDocument().getRootElement();
+                Element features = stream.readElement();
                 if (features != null) {
                     // Check if TLS is enabled
                     if (useTLS && features.element("starttls") != null) {
                         // Secure the connection with TLS and authenticate using SASL
-                        LocalOutgoingServerSession answer;
-                        answer = secureAndAuthenticate(hostname, connection, reader, openingStream,
-                                domain);
+                        LocalOutgoingServerSession answer = secureAndAuthenticate(hostname, stream,
+                                openingStream, domain);
                         if (answer != null) {
                             // Everything went fine so return the secured and
                             // authenticated connection
@@ -342,20 +312,13 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
                     // Check if we are going to try server dialback (XMPP 1.0)
                     else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
                         Log.debug("LocalOutgoingServerSession: OS - About to try connecting using server dialback XMPP 1.0 with: " + hostname);
-                        ServerDialback method = new ServerDialback(connection, domain);
-                        OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-                        if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
+                        LocalOutgoingServerSession session = attemptDialback(stream, domain,
+                                hostname, id);
+                        if (session != null) {
                             Log.debug("LocalOutgoingServerSession: OS - SERVER DIALBACK XMPP 1.0 with " + hostname + " was successful");
-                            StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
-                            connection.init(session);
-                            // Set the hostname as the address of the session
-                            session.setAddress(new JID(null, hostname, null));
                             return session;
                         }
-                        else {
-                            Log.debug("LocalOutgoingServerSession: OS - Error, SERVER DIALBACK with " + hostname + " failed");
-                        }
+                        Log.debug("LocalOutgoingServerSession: OS - Error, SERVER DIALBACK with " + hostname + " failed");
                     }
                 }
                 else {
@@ -364,252 +327,518 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
             }
             // Something went wrong so close the connection and try server dialback over
             // a plain connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
         catch (SSLHandshakeException e) {
             Log.debug("LocalOutgoingServerSession: Handshake error while creating secured outgoing session to remote " +
-                    "server: " + hostname + "(DNS lookup: " + realHostname + ":" + realPort +
-                    ")", e);
+                    "server: " + hostname + "(DNS lookup: " + stream + ")", e);
             // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
         catch (XmlPullParserException e) {
             Log.warn("Error creating secured outgoing session to remote server: " + hostname +
-                    "(DNS lookup: " + realHostname + ":" + realPort + ")", e);
+                    "(DNS lookup: " + stream + ")", e);
             // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
         catch (Exception e) {
             Log.error("Error creating secured outgoing session to remote server: " + hostname +
-                    "(DNS lookup: " + realHostname + ":" + realPort + ")", e);
+                    "(DNS lookup: " + stream + ")", e);
             // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
 
         if (ServerDialback.isEnabled()) {
             Log.debug("LocalOutgoingServerSession: OS - Going to try connecting using server dialback with: " + hostname);
-            // Use server dialback (pre XMPP 1.0) over a plain connection 
+            // Use server dialback (pre XMPP 1.0) over a plain connection
             return new ServerDialback().createOutgoingSession(domain, hostname, port);
         }
         return null;
     }
 
+    /**
+     * Returns true if connections to the specified port of remote servers use a MINA
+     * connection instead of a socket and a reading thread. The
+     * <tt>xmpp.server.outgoing.nio.[port]</tt> property overrides the
+     * <tt>xmpp.server.outgoing.nio</tt> property for a port.
+     *
+     * @param port the port of the remote servers.
+     * @return true if connections to the port use a MINA connection.
+     */
+    private static boolean isNIOEnabled(int port) {
+        return JiveGlobals.getBooleanProperty("xmpp.server.outgoing.nio." + port,
+                JiveGlobals.getBooleanProperty("xmpp.server.outgoing.nio", false));
+    }
+
+    /**
+     * Establishes a TCP connection to one of the real hostnames found by DNS lookup of the
+     * remote server. Returns <tt>null</tt> if no connection could be established.
+     */
+    private static OutgoingStream connectSocket(String hostname, int port) {
+        String realHostname = null;
+        int realPort = port;
+        Socket socket = new Socket();
+        // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
+        List<DNSUtil.HostAddress> hosts = DNSUtil.resolveXMPPDomain(hostname, port);
+        for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); it.hasNext();) {
+            try {
+                DNSUtil.HostAddress address = it.next();
+                realHostname = address.getHost();
+                realPort = address.getPort();
+                Log.debug("LocalOutgoingServerSession: OS - Trying to connect to " + hostname + ":" + port +
+                        "(DNS lookup: " + realHostname + ":" + realPort + ")");
+                // Establish a TCP connection to the Receiving Server
+                socket.connect(new InetSocketAddress(realHostname, realPort),
+                        RemoteServerManager.getSocketTimeout());
+                Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
+                break;
+            }
+            catch (Exception e) {
+                Log.warn("Error trying to connect to remote server: " + hostname +
+                        "(DNS lookup: " + realHostname + ":" + realPort + ")", e);
+            }
+        }
+        if (!socket.isConnected()) {
+            return null;
+        }
+        try {
+            return new SocketStream(socket, realHostname + ":" + realPort);
+        }
+        catch (Exception e) {
+            Log.warn("Error trying to read from remote server: " + hostname +
+                    "(DNS lookup: " + realHostname + ":" + realPort + ")", e);
+            try {
+                socket.close();
+            }
+            catch (IOException ioe) {
+                // Ignore
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Establishes a MINA connection to one of the real hostnames found by DNS lookup of the
+     * remote server. Returns <tt>null</tt> if no connection could be established.
+     */
+    private static OutgoingStream connectNIO(String hostname, int port) {
+        OutgoingServerSocketReader socketReader = new OutgoingServerSocketReader();
+        NIOConnection connection = null;
+        try {
+            // Establish a TCP connection to one of the real hostnames found by DNS lookup
+            connection = OutgoingServerConnectionHandler.connect(
+                    DNSUtil.resolveXMPPDomain(hostname, port), socketReader);
+        }
+        catch (InterruptedException e) {
+            Log.debug("LocalOutgoingServerSession: OS - Interrupted while connecting to " + hostname, e);
+        }
+        if (connection == null) {
+            Log.warn("Error trying to connect to remote server: " + hostname + ":" + port);
+            return null;
+        }
+        Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
+        return new NIOStream(connection, socketReader);
+    }
+
+    /**
+     * Secures the connection with TLS and authenticates it using SASL EXTERNAL or server
+     * dialback.
+     */
     private static LocalOutgoingServerSession secureAndAuthenticate(String hostname,
-            SocketConnection connection, XMPPPacketReader reader, StringBuilder openingStream,
-            String domain) throws Exception {
-    	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
-        Element features;
+            OutgoingStream stream, StringBuilder openingStream, String domain) throws Exception {
+        final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        Connection connection = stream.getConnection();
+        long timeout = RemoteServerManager.getSocketTimeout();
         log.debug("Indicating we want TLS to " + hostname);
         connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
 
-        MXParser xpp = reader.getXPPParser();
         // Wait for the <proceed> response
-        Element proceed = reader.parseDocument().getRootElement();
-        if (proceed != null && proceed.getName().equals("proceed")) {
-            log.debug("Negotiating TLS...");
-            boolean needed = JiveGlobals.getBooleanProperty("xmpp.server.certificate.verify", true) &&
-                    		 JiveGlobals.getBooleanProperty("xmpp.server.certificate.verify.chain", true) &&
-                    		 !JiveGlobals.getBooleanProperty("xmpp.server.certificate.accept-selfsigned", false);
-            connection.startTLS(true, hostname, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
-            log.debug("TLS negotiation was successful.");
-
-            // TLS negotiation was successful so initiate a new stream
-            connection.deliverRawText(openingStream.toString());
-
-            // Reset the parser to use the new secured reader
-            xpp.setInput(new InputStreamReader(connection.getTLSStreamHandler().getInputStream(), CHARSET));
-            // Skip new stream element
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
-            }
-            // Get the stream ID 
-            String id = xpp.getAttributeValue("", "id");
-            // Get new stream features
-            features = reader.parseDocument().getRootElement();
-            if (features != null && (features.element("mechanisms") != null || features.element("dialback") != null)) {
-                // Check if we can use stream compression
-                String policyName = JiveGlobals.getProperty("xmpp.server.compression.policy", Connection.CompressionPolicy.disabled.toString());
-                Connection.CompressionPolicy compressionPolicy = Connection.CompressionPolicy.valueOf(policyName);
-                if (Connection.CompressionPolicy.optional == compressionPolicy) {
-                    // Verify if the remote server supports stream compression
-                    Element compression = features.element("compression");
-                    if (compression != null) {
-                        boolean zlibSupported = false;
-                        Iterator it = compression.elementIterator("method");
-                        while (it.hasNext()) {
-                            Element method = (Element) it.next();
-                            if ("zlib".equals(method.getTextTrim())) {
-                                zlibSupported = true;
-                            }
-                        }
-                        if (zlibSupported) {
-                            log.debug("Requesting stream compression (zlib).");
-                            connection.deliverRawText("<compress xmlns='http://jabber.org/protocol/compress'><method>zlib</method></compress>");
-                            // Check if we are good to start compression
-                            Element answer = reader.parseDocument().getRootElement();
-                            if ("compressed".equals(answer.getName())) {
-                                // Server confirmed that we can use zlib compression
-                                connection.addCompression();
-                                connection.startCompression();
-                                log.debug("Stream compression was successful.");
-                                // Stream compression was successful so initiate a new stream
-                                connection.deliverRawText(openingStream.toString());
-                                // Reset the parser to use stream compression over TLS
-                                ZInputStream in = new ZInputStream(
-                                        connection.getTLSStreamHandler().getInputStream());
-                                in.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                                xpp.setInput(new InputStreamReader(in, CHARSET));
-                                // Skip the opening stream sent by the server
-                                for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;)
-                                {
-                                    eventType = xpp.next();
-                                }
-                                // Get new stream features
-                                features = reader.parseDocument().getRootElement();
-                                if (features == null || features.element("mechanisms") == null) {
-                                    log.debug("Error, EXTERNAL SASL was not offered.");
-                                    return null;
-                                }
-                            }
-                            else {
-                                log.debug("Stream compression was rejected by " + hostname);
-                            }
+        Element proceed = stream.readElement();
+        if (proceed == null || !proceed.getName().equals("proceed")) {
+            log.debug("Error, <proceed> was not received!");
+            return null;
+        }
+        log.debug("Negotiating TLS...");
+        boolean needed = JiveGlobals.getBooleanProperty("xmpp.server.certificate.verify", true) &&
+                         JiveGlobals.getBooleanProperty("xmpp.server.certificate.verify.chain", true) &&
+                         !JiveGlobals.getBooleanProperty("xmpp.server.certificate.accept-selfsigned", false);
+        connection.startTLS(true, hostname, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+        stream.secured();
+
+        // TLS negotiation was successful so initiate a new stream
+        connection.deliverRawText(openingStream.toString());
+        Element header = stream.readStreamHeader(timeout);
+        if (header == null) {
+            log.debug("Error, TLS negotiation failed or stream was not restarted.");
+            return null;
+        }
+        log.debug("TLS negotiation was successful.");
+        // Get the stream ID
+        String id = header.attributeValue("id");
+        // Get new stream features
+        Element features = stream.readElement();
+        if (features == null || (features.element("mechanisms") == null && features.element("dialback") == null)) {
+            log.debug("Cannot create outgoing server session, as neither SASL mechanisms nor SERVER DIALBACK were offered by " + hostname);
+            return null;
+        }
+        // Check if we can use stream compression
+        String policyName = JiveGlobals.getProperty("xmpp.server.compression.policy", Connection.CompressionPolicy.disabled.toString());
+        Connection.CompressionPolicy compressionPolicy = Connection.CompressionPolicy.valueOf(policyName);
+        if (Connection.CompressionPolicy.optional == compressionPolicy) {
+            // Verify if the remote server supports stream compression
+            Element compression = features.element("compression");
+            if (compression != null) {
+                boolean zlibSupported = false;
+                Iterator it = compression.elementIterator("method");
+                while (it.hasNext()) {
+                    Element method = (Element) it.next();
+                    if ("zlib".equals(method.getTextTrim())) {
+                        zlibSupported = true;
+                    }
+                }
+                if (zlibSupported) {
+                    log.debug("Requesting stream compression (zlib).");
+                    connection.deliverRawText("<compress xmlns='http://jabber.org/protocol/compress'><method>zlib</method></compress>");
+                    // Check if we are good to start compression
+                    Element answer = stream.readElement();
+                    if (answer != null && "compressed".equals(answer.getName())) {
+                        // Server confirmed that we can use zlib compression
+                        connection.addCompression();
+                        connection.startCompression();
+                        stream.compressed();
+                        log.debug("Stream compression was successful.");
+                        // Stream compression was successful so initiate a new stream
+                        connection.deliverRawText(openingStream.toString());
+                        header = stream.readStreamHeader(timeout);
+                        if (header == null) {
+                            log.debug("Error, stream was not restarted after compression.");
+                            return null;
                         }
-                        else {
-                            log.debug("Stream compression found but zlib method is not supported by " + hostname);
+                        id = header.attributeValue("id");
+                        // Get new stream features
+                        features = stream.readElement();
+                        if (features == null || features.element("mechanisms") == null) {
+                            log.debug("Error, EXTERNAL SASL was not offered.");
+                            return null;
                         }
                     }
                     else {
-                        log.debug("Stream compression not supported by " + hostname);
+                        log.debug("Stream compression was rejected by " + hostname);
                     }
                 }
-
-                // Bookkeeping: determine what functionality the remote server offers.
-                boolean saslEXTERNALoffered = false;
-                if (features.element("mechanisms") != null) {
-                    Iterator<Element> it = features.element("mechanisms").elementIterator();
-                    while (it.hasNext()) {
-                        Element mechanism = it.next();
-                        if ("EXTERNAL".equals(mechanism.getTextTrim())) {
-                        	saslEXTERNALoffered = true;
-                        	break;
-                        }
-                    }
-                }
-                final boolean dialbackOffered = features.element("dialback") != null;
-                final boolean usesSelfSigned = connection.isUsingSelfSignedCertificate();
-                
-                log.debug("Offering dialback functionality: {}",dialbackOffered);
-                log.debug("Offering EXTERNAL SASL: {}", saslEXTERNALoffered);
-                log.debug("Is using a self-signed certificate: {}", usesSelfSigned);
-                
-                // Skip SASL EXTERNAL and use server dialback over TLS when using self-signed certificates
-                LocalOutgoingServerSession result = null;
-                if (usesSelfSigned) {
-                	log.debug("As remote server is using self-signed certificate, SASL EXTERNAL is skipped. Attempting dialback over TLS instead.");
-                	result = attemptDialbackOverTLS(connection, reader, domain, hostname, id);
-                } else {
-                	// first, try SASL
-                	if (saslEXTERNALoffered) {
-                		result = attemptSASLexternal(connection, xpp, reader, domain, hostname, id, openingStream);
-                	}
-                	if (result == null) {
-                		// SASL unavailable or failed, try dialback.
-                		result = attemptDialbackOverTLS(connection, reader, domain, hostname, id);
-                	}
+                else {
+                    log.debug("Stream compression found but zlib method is not supported by " + hostname);
                 }
-                
-                return result;
             }
             else {
-                log.debug("Cannot create outgoing server session, as neither SASL mechanisms nor SERVER DIALBACK were offered by " + hostname);
-                return null;
+                log.debug("Stream compression not supported by " + hostname);
             }
         }
-        else {
-            log.debug("Error, <proceed> was not received!");
-            return null;
-        }
-    }
 
-    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, XMPPPacketReader reader, String domain, String hostname, String id) {
-    	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
-        if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
-            log.debug("Trying to connecting using dialback over TLS.");
-            ServerDialback method = new ServerDialback(connection, domain);
-            OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-            if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
-                log.debug("Dialback over TLS was successful.");
-                StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
-                connection.init(session);
-                // Set the hostname as the address of the session
-                session.setAddress(new JID(null, hostname, null));
-                return session;
-            }
-            else {
-                log.debug("Dialback over TLS failed");
-                return null;
+        // Bookkeeping: determine what functionality the remote server offers.
+        boolean saslEXTERNALoffered = false;
+        if (features.element("mechanisms") != null) {
+            Iterator<Element> it = features.element("mechanisms").elementIterator();
+            while (it.hasNext()) {
+                Element mechanism = it.next();
+                if ("EXTERNAL".equals(mechanism.getTextTrim())) {
+                    saslEXTERNALoffered = true;
+                    break;
+                }
             }
         }
-        else {
-            log.debug("Skipping server dialback attempt as it has been disabled by local configuration.");
-            return null;
-        }    	
-    }
-    
-    private static LocalOutgoingServerSession attemptSASLexternal(SocketConnection connection, MXParser xpp, XMPPPacketReader reader, String domain, String hostname, String id, StringBuilder openingStream) throws DocumentException, IOException, XmlPullParserException {
-    	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
-        log.debug("Starting EXTERNAL SASL.");
-        if (doExternalAuthentication(domain, connection, reader)) {
-            log.debug("EXTERNAL SASL was successful.");
-            // SASL was successful so initiate a new stream
-            connection.deliverRawText(openingStream.toString());
+        final boolean dialbackOffered = features.element("dialback") != null;
+        final boolean usesSelfSigned = connection.isUsingSelfSignedCertificate();
 
-            // Reset the parser
-            xpp.resetInput();
-            // Skip the opening stream sent by the server
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
-            }
+        log.debug("Offering dialback functionality: {}", dialbackOffered);
+        log.debug("Offering EXTERNAL SASL: {}", saslEXTERNALoffered);
+        log.debug("Is using a self-signed certificate: {}", usesSelfSigned);
 
-            // SASL authentication was successful so create new OutgoingServerSession
-            id = xpp.getAttributeValue("", "id");
-            StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain,
-                    connection, new OutgoingServerSocketReader(reader), streamID);
-            connection.init(session);
-            // Set the hostname as the address of the session
-            session.setAddress(new JID(null, hostname, null));
-            // Set that the session was created using TLS+SASL (no server dialback)
-            session.usingServerDialback = false;
+        // Skip SASL EXTERNAL and use server dialback over TLS when using self-signed certificates
+        if (usesSelfSigned) {
+            log.debug("As remote server is using self-signed certificate, SASL EXTERNAL is skipped. Attempting dialback over TLS instead.");
+        }
+        else if (saslEXTERNALoffered) {
+            LocalOutgoingServerSession session = attemptSASLexternal(stream, domain, hostname,
+                    openingStream);
+            if (session != null) {
+                return session;
+            }
+        }
+        // SASL unavailable or failed, try dialback.
+        if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+            log.debug("Trying to connecting using dialback over TLS.");
+            LocalOutgoingServerSession session = attemptDialback(stream, domain, hostname, id);
+            log.debug(session != null ? "Dialback over TLS was successful." : "Dialback over TLS failed");
             return session;
         }
-        else {
-            log.debug("EXTERNAL SASL failed.");
-            return null;
-        }  	
+        log.debug("Skipping server dialback attempt as it has been disabled by local configuration.");
+        return null;
     }
-    
-    private static boolean doExternalAuthentication(String domain, SocketConnection connection,
-            XMPPPacketReader reader) throws DocumentException, IOException, XmlPullParserException {
 
+    /**
+     * Authenticates the domain using SASL EXTERNAL and returns the new session or
+     * <tt>null</tt> if the Receiving Server did not authenticate the domain.
+     */
+    private static LocalOutgoingServerSession attemptSASLexternal(OutgoingStream stream,
+            String domain, String hostname, StringBuilder openingStream) throws Exception {
+        final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        Connection connection = stream.getConnection();
+        log.debug("Starting EXTERNAL SASL.");
         StringBuilder sb = new StringBuilder();
         sb.append("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">");
         sb.append(StringUtils.encodeBase64(domain));
         sb.append("</auth>");
         connection.deliverRawText(sb.toString());
 
-        Element response = reader.parseDocument().getRootElement();
-        return response != null && "success".equals(response.getName());
+        Element response = stream.readElement();
+        if (response == null || !"success".equals(response.getName())) {
+            log.debug("EXTERNAL SASL failed.");
+            return null;
+        }
+        log.debug("EXTERNAL SASL was successful.");
+        // SASL was successful so initiate a new stream
+        stream.restarted();
+        connection.deliverRawText(openingStream.toString());
+        Element header = stream.readStreamHeader(RemoteServerManager.getSocketTimeout());
+        if (header == null) {
+            log.debug("Error, stream was not restarted after EXTERNAL SASL.");
+            return null;
+        }
+        // Skip the stream features of the authenticated stream
+        stream.readElement();
+        // SASL authentication was successful so create new OutgoingServerSession
+        LocalOutgoingServerSession session = createSession(stream, domain, hostname,
+                header.attributeValue("id"));
+        // Set that the session was created using TLS+SASL (no server dialback)
+        session.usingServerDialback = false;
+        return session;
+    }
+
+    /**
+     * Authenticates the domain using server dialback and returns the new session or
+     * <tt>null</tt> if the Receiving Server did not authenticate the domain.
+     */
+    private static LocalOutgoingServerSession attemptDialback(OutgoingStream stream,
+            String domain, String hostname, String id) {
+        ServerDialback method = new ServerDialback(stream.getConnection(), domain);
+        if (!method.authenticateDomain(stream.getSocketReader(), domain, hostname, id)) {
+            return null;
+        }
+        return createSession(stream, domain, hostname, id);
+    }
+
+    /**
+     * Creates the session of a negotiated stream.
+     */
+    private static LocalOutgoingServerSession createSession(OutgoingStream stream, String domain,
+            String hostname, String id) {
+        StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
+        LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain,
+                stream.getConnection(), stream.getSocketReader(), streamID);
+        stream.getConnection().init(session);
+        // Set the hostname as the address of the session
+        session.setAddress(new JID(null, hostname, null));
+        return session;
+    }
+
+    /**
+     * A connection to a remote server that is being negotiated and the source of the elements
+     * sent by the remote server. Elements are read by the negotiating thread until the session
+     * is created; after that they are read by the {@link OutgoingServerSocketReader}.
+     */
+    private static abstract class OutgoingStream {
+
+        /**
+         * Returns the connection used for sending data to the remote server.
+         */
+        abstract Connection getConnection();
+
+        /**
+         * Returns the stream header sent by the remote server or <tt>null</tt> if the remote
+         * server sent something else or did not answer in time.
+         */
+        abstract Element readStreamHeader(long timeout) throws Exception;
+
+        /**
+         * Returns the next element sent by the remote server or <tt>null</tt> if the remote
+         * server closed the stream or did not answer in time.
+         */
+        abstract Element readElement() throws Exception;
+
+        /**
+         * Called once TLS was negotiated and before the stream is restarted.
+         */
+        abstract void secured() throws Exception;
+
+        /**
+         * Called once stream compression started and before the stream is restarted.
+         */
+        abstract void compressed() throws Exception;
+
+        /**
+         * Called before the stream is restarted over the same transport (e.g. after SASL).
+         */
+        abstract void restarted() throws Exception;
+
+        /**
+         * Returns the reader of the elements sent by the remote server once the session
+         * is established.
+         */
+        abstract OutgoingServerSocketReader getSocketReader();
+    }
+
+    /**
+     * A socket read by the negotiating thread and then by the reading thread of an
+     * {@link OutgoingServerSocketReader}.
+     */
+    private static class SocketStream extends OutgoingStream {
+
+        private final Socket socket;
+        private final String address;
+        private final SocketConnection connection;
+        private final XMPPPacketReader reader = new XMPPPacketReader();
+        private OutgoingServerSocketReader socketReader;
+
+        SocketStream(Socket socket, String address) throws IOException, XmlPullParserException {
+            this.socket = socket;
+            this.address = address;
+            connection = new SocketConnection(XMPPServer.getInstance().getPacketDeliverer(), socket,
+                    false);
+            reader.getXPPParser().setInput(new InputStreamReader(socket.getInputStream(), CHARSET));
+        }
+
+        @Override
+        Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        Element readStreamHeader(long timeout) throws Exception {
+            // Set a read timeout so we don't keep waiting forever
+            int soTimeout = socket.getSoTimeout();
+            socket.setSoTimeout((int) timeout);
+            try {
+                XmlPullParser xpp = reader.getXPPParser();
+                for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+                    eventType = xpp.next();
+                }
+                Element header = DocumentHelper.createElement("stream");
+                String version = xpp.getAttributeValue("", "version");
+                if (version != null) {
+                    header.addAttribute("version", version);
+                }
+                String id = xpp.getAttributeValue("", "id");
+                if (id != null) {
+                    header.addAttribute("id", id);
+                }
+                return header;
+            }
+            finally {
+                // Restore default timeout
+                socket.setSoTimeout(soTimeout);
+            }
+        }
+
+        @Override
+        Element readElement() throws Exception {
+            return reader.parseDocument().getRootElement();
+        }
+
+        @Override
+        void secured() throws Exception {
+            // Reset the parser to use the new secured reader
+            reader.getXPPParser().setInput(new InputStreamReader(
+                    connection.getTLSStreamHandler().getInputStream(), CHARSET));
+        }
+
+        @Override
+        void compressed() throws Exception {
+            // Reset the parser to use stream compression over TLS
+            ZInputStream in = new ZInputStream(connection.getTLSStreamHandler().getInputStream());
+            in.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+            reader.getXPPParser().setInput(new InputStreamReader(in, CHARSET));
+        }
+
+        @Override
+        void restarted() throws Exception {
+            reader.getXPPParser().resetInput();
+        }
+
+        @Override
+        OutgoingServerSocketReader getSocketReader() {
+            // The reader starts a thread that reads the socket so only one is created
+            if (socketReader == null) {
+                socketReader = new OutgoingServerSocketReader(reader);
+            }
+            return socketReader;
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+    }
+
+    /**
+     * A MINA connection whose elements are parsed by the I/O threads of MINA and read from the
+     * queue of the {@link OutgoingServerSocketReader}, so no thread is kept for reading the
+     * connection.
+     */
+    private static class NIOStream extends OutgoingStream {
+
+        private final NIOConnection connection;
+        private final OutgoingServerSocketReader socketReader;
+
+        NIOStream(NIOConnection connection, OutgoingServerSocketReader socketReader) {
+            this.connection = connection;
+            this.socketReader = socketReader;
+        }
+
+        @Override
+        Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        Element readStreamHeader(long timeout) throws Exception {
+            Element header = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+            if (header == null || !"stream".equals(header.getName())) {
+                return null;
+            }
+            return header;
+        }
+
+        @Override
+        Element readElement() throws Exception {
+            return socketReader.getElement(RemoteServerManager.getSocketTimeout(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void secured() {
+            // The TLS filter was added to the connection
+        }
+
+        @Override
+        void compressed() {
+            // The compression filter was added to the connection
+        }
+
+        @Override
+        void restarted() {
+            // The connection handler parses the new stream header
+        }
+
+        @Override
+        OutgoingServerSocketReader getSocketReader() {
+            return socketReader;
+        }
+
+        @Override
+        public String toString() {
+            return connection.toString();
+        }
     }
 
     public LocalOutgoingServerSession(String serverName, Connection connection,
@@ -650,16 +879,64 @@ public class LocalOutgoingServerSession extends LocalSession implements Outgoing
             addHostname(hostname);
             return true;
         }
-        ServerDialback method = new ServerDialback(getConnection(), domain);
-        if (method.authenticateDomain(socketReader, domain, hostname, getStreamID().getID())) {
-            // Add the validated domain as an authenticated domain
-            addAuthenticatedDomain(domain);
-            addHostname(hostname);
-            return true;
+        synchronized (socketReader) {
+            if (authenticatedDomains.contains(domain) && hostnames.contains(hostname)) {
+                // The domain was authenticated while we were waiting
+                return true;
+            }
+            ServerDialback method = new ServerDialback(getConnection(), domain);
+            if (method.authenticateDomain(socketReader, domain, hostname, getStreamID().getID())) {
+                // Add the validated domain as an authenticated domain
+                addAuthenticatedDomain(domain);
+                addHostname(hostname);
+                return true;
+            }
         }
         return false;
     }
 
+    /**
+     * Authenticates in the background the domain of this server and its subdomains (e.g. the
+     * MUC or pubsub services) with the remote server using piggybacked dialback. The keys of
+     * all the domains are sent at once, so packets sent later by those domains are routed
+     * through this session without waiting for a dialback round trip.<p>
+     *
+     * Each key costs the remote server a verification with this server, and subdomains that
+     * the remote server cannot resolve (e.g. internal components) fail the verification, which
+     * makes some servers close the whole stream. So this is only done when the
+     * <tt>xmpp.server.outgoing.piggyback</tt> property is true. By default subdomains are
+     * authenticated on this session when they first send a packet to the remote server (see
+     * {@link #authenticateSubdomain(String, String)}).
+     */
+    private void authenticateLocalDomains() {
+        if (!usingServerDialback || !JiveGlobals.getBooleanProperty("xmpp.server.outgoing.piggyback", false)) {
+            return;
+        }
+        String serverName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+        final List<String> domains = new ArrayList<String>();
+        if (!authenticatedDomains.contains(serverName)) {
+            domains.add(serverName);
+        }
+        for (String domain : XMPPServer.getInstance().getRoutingTable().getComponentsDomains()) {
+            if (domain.endsWith("." + serverName) && !authenticatedDomains.contains(domain)) {
+                domains.add(domain);
+            }
+        }
+        if (domains.isEmpty()) {
+            return;
+        }
+        final String hostname = getAddress().getDomain();
+        TaskEngine.getInstance().submit(new Runnable() {
+            public void run() {
+                ServerDialback method = new ServerDialback(getConnection(), domains.get(0));
+                for (String domain : method.authenticateDomains(socketReader, domains, hostname,
+                        getStreamID().getID())) {
+                    addAuthenticatedDomain(domain);
+                }
+            }
+        });
+    }
+
     private void returnErrorToSender(Packet packet) {
         RoutingTable routingTable = XMPPServer.getInstance().getRoutingTable();
         try {
@@ -0,0 +1,111 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.session;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Comparator;
+
+import org.jivesoftware.openfire.SessionResultFilter;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.xmpp.packet.JID;
+
+/**
+ * A client session of a page of sessions together with the value of its sort field. Cluster
+ * nodes send the first sessions they host as entries, which are merged into the requested
+ * page without reading the values of the remote sessions one by one.
+ */
+public class SessionPageEntry implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+    private String address;
+    private String username;
+    private long value;
+
+    public SessionPageEntry() {
+    }
+
+    public SessionPageEntry(ClientSession session, int sortField) {
+        address = session.getAddress().toString();
+        username = SessionResultFilter.getSortUsername(session);
+        value = SessionResultFilter.getSortValue(session, sortField);
+    }
+
+    /**
+     * Returns the full JID of the session.
+     *
+     * @return the full JID of the session.
+     */
+    public JID getAddress() {
+        return new JID(address);
+    }
+
+    /**
+     * Returns a comparator that sorts entries like {@link SessionResultFilter#getSortComparator()}
+     * sorts sessions.
+     *
+     * @param sortField the sort field of the entries.
+     * @param sortOrder the sort order.
+     * @return a comparator of entries.
+     */
+    public static Comparator<SessionPageEntry> getComparator(final int sortField, final int sortOrder) {
+        return new Comparator<SessionPageEntry>() {
+            public int compare(SessionPageEntry lhs, SessionPageEntry rhs) {
+                int comparison;
+                if (sortField == SessionResultFilter.SORT_USER) {
+                    comparison = compareUser(lhs, rhs);
+                }
+                else {
+                    comparison = lhs.value < rhs.value ? -1 : (lhs.value == rhs.value ? 0 : 1);
+                }
+                if (sortOrder == SessionResultFilter.DESCENDING) {
+                    comparison *= -1;
+                }
+                if (comparison == 0 && sortField != SessionResultFilter.SORT_USER) {
+                    comparison = compareUser(lhs, rhs);
+                }
+                return comparison;
+            }
+
+            private int compareUser(SessionPageEntry lhs, SessionPageEntry rhs) {
+                int comparison = lhs.username.compareTo(rhs.username);
+                if (comparison == 0) {
+                    comparison = lhs.address.compareTo(rhs.address);
+                }
+                return comparison;
+            }
+        };
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeSafeUTF(out, address);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, username);
+        ExternalizableUtil.getInstance().writeLong(out, value);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        address = ExternalizableUtil.getInstance().readSafeUTF(in);
+        username = ExternalizableUtil.getInstance().readSafeUTF(in);
+        value = ExternalizableUtil.getInstance().readLong(in);
+    }
+}
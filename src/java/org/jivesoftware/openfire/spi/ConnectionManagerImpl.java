@@ -70,9 +70,13 @@ import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.net.SocketReader;
 import org.jivesoftware.openfire.net.SocketSendingTracker;
 import org.jivesoftware.openfire.net.StalledSessionsFilter;
+import org.jivesoftware.openfire.net.TLSHandshakeExecutorFilter;
+import org.jivesoftware.openfire.net.TLSHandshakeFilter;
 import org.jivesoftware.openfire.nio.ClientConnectionHandler;
 import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
 import org.jivesoftware.openfire.nio.MultiplexerConnectionHandler;
+import org.jivesoftware.openfire.nio.SASLExecutorFilter;
+import org.jivesoftware.openfire.nio.ServerConnectionHandler;
 import org.jivesoftware.openfire.nio.XMPPCodecFactory;
 import org.jivesoftware.util.CertificateEventListener;
 import org.jivesoftware.util.CertificateManager;
@@ -89,6 +93,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private SocketAcceptor sslSocketAcceptor;
     private SocketAcceptor componentAcceptor;
     private SocketAcceptThread serverSocketThread;
+    private SocketAcceptor serverSocketAcceptor;
     private SocketAcceptor multiplexerSocketAcceptor;
     private ArrayList<ServerPort> ports;
 
@@ -171,6 +176,24 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void createServerListener(String localIPAddress) {
         // Start servers socket unless it's been disabled.
         if (isServerListenerEnabled()) {
+            if (isServerNIOEnabled(getServerListenerPort())) {
+                // Create SocketAcceptor with correct number of processors
+                serverSocketAcceptor = buildSocketAcceptor();
+                // Customize Executor that will be used by processors to process incoming stanzas
+                ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("server");
+                int eventThreads = JiveGlobals.getIntProperty("xmpp.server.processing.threads", 16);
+                ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
+                eventExecutor.setCorePoolSize(eventThreads + 1);
+                eventExecutor.setMaximumPoolSize(eventThreads + 1);
+                eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+                serverSocketAcceptor.getDefaultConfig().setThreadModel(threadModel);
+                // Add the XMPP codec filter
+                serverSocketAcceptor.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+                // Kill sessions whose outgoing queues keep growing and fail to send traffic
+                serverSocketAcceptor.getFilterChain().addAfter("xmpp", "outCap", new StalledSessionsFilter());
+                return;
+            }
             int port = getServerListenerPort();
             try {
                 serverSocketThread = new SocketAcceptThread(this, new ServerPort(port, serverName,
@@ -191,6 +214,10 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         // Start servers socket unless it's been disabled.
         if (isServerListenerEnabled()) {
             int port = getServerListenerPort();
+            if (serverSocketAcceptor != null) {
+                startServerAcceptor(port);
+                return;
+            }
             try {
                 serverSocketThread.start();
 
@@ -206,7 +233,49 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         }
     }
 
+    /**
+     * Starts accepting connections of remote servers using the NIO acceptor.
+     *
+     * @param port the port to listen on.
+     */
+    private void startServerAcceptor(int port) {
+        try {
+            // Listen on a specific network interface if it has been set.
+            String interfaceName = JiveGlobals.getXMLProperty("network.interface");
+            InetAddress bindInterface = null;
+            if (interfaceName != null) {
+                if (interfaceName.trim().length() > 0) {
+                    bindInterface = InetAddress.getByName(interfaceName);
+                }
+            }
+            // Start accepting connections
+            serverSocketAcceptor
+                    .bind(new InetSocketAddress(bindInterface, port), new ServerConnectionHandler(serverName));
+
+            ports.add(new ServerPort(port, serverName, localIPAddress, false, null, ServerPort.Type.server));
+
+            List<String> params = new ArrayList<String>();
+            params.add(Integer.toString(port));
+            Log.info(LocaleUtils.getLocalizedString("startup.server", params));
+        }
+        catch (Exception e) {
+            System.err.println("Error starting server listener on port " + port + ": " +
+                    e.getMessage());
+            Log.error(LocaleUtils.getLocalizedString("admin.error.socket-setup"), e);
+        }
+    }
+
     private void stopServerListener() {
+        if (serverSocketAcceptor != null) {
+            serverSocketAcceptor.unbindAll();
+            for (ServerPort port : ports) {
+                if (port.isServerPort()) {
+                    ports.remove(port);
+                    break;
+                }
+            }
+            serverSocketAcceptor = null;
+        }
         if (serverSocketThread != null) {
             serverSocketThread.shutdown();
             ports.remove(serverSocketThread.getServerPort());
@@ -359,6 +428,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             socketAcceptor.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
             // Kill sessions whose outgoing queues keep growing and fail to send traffic
             socketAcceptor.getFilterChain().addAfter("xmpp", "outCap", new StalledSessionsFilter());
+            // Authenticate clients in the authentication pool instead of in the processing threads
+            socketAcceptor.getFilterChain().addAfter("xmpp", "saslExecutor", new SASLExecutorFilter());
         }
     }
 
@@ -445,6 +516,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
                 sslSocketAcceptor.getFilterChain().addFirst("threadModel", executorFilter);
                 // Kill sessions whose outgoing queues keep growing and fail to send traffic
                 sslSocketAcceptor.getFilterChain().addAfter("xmpp", "outCap", new StalledSessionsFilter());
+                // Authenticate clients in the authentication pool instead of in the processing threads
+                sslSocketAcceptor.getFilterChain().addAfter("xmpp", "saslExecutor", new SASLExecutorFilter());
 
                 // Add the SSL filter now since sockets are "borned" encrypted in the old ssl method
                 SSLContext sslContext = SSLContext.getInstance(algorithm);
@@ -465,6 +538,9 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
                     sslFilter.setWantClientAuth(true);
                 }
                 sslSocketAcceptor.getFilterChain().addFirst("tls", sslFilter);
+                // Run the TLS handshake in the handshake pool instead of in the I/O processor thread
+                sslSocketAcceptor.getFilterChain().addFirst("tlsExecutor", new TLSHandshakeExecutorFilter());
+                sslSocketAcceptor.getFilterChain().addAfter("tls", "tlsHandshake", new TLSHandshakeFilter());
 
             }
             catch (Exception e) {
@@ -666,6 +742,19 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         return JiveGlobals.getBooleanProperty("xmpp.server.socket.active", true);
     }
 
+    /**
+     * Returns true if connections of remote servers to the specified port are served by MINA
+     * instead of a thread per connection. The <tt>xmpp.server.socket.nio.[port]</tt> property
+     * overrides the <tt>xmpp.server.socket.nio</tt> property for a port.
+     *
+     * @param port the port that remote servers connect to.
+     * @return true if connections of remote servers are served by MINA.
+     */
+    private boolean isServerNIOEnabled(int port) {
+        return JiveGlobals.getBooleanProperty("xmpp.server.socket.nio." + port,
+                JiveGlobals.getBooleanProperty("xmpp.server.socket.nio", false));
+    }
+
     public void enableConnectionManagerListener(boolean enabled) {
         if (enabled == isConnectionManagerListenerEnabled()) {
             // Ignore new setting
@@ -22,6 +22,9 @@ package org.jivesoftware.openfire.spi;
 
 import org.jivesoftware.openfire.*;
 import org.jivesoftware.openfire.container.BasicModule;
+import org.jivesoftware.openfire.stats.LatencyStatistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.LatencyHistogram;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
@@ -31,12 +34,29 @@ import org.xmpp.packet.Presence;
  * An uber router that can handle any packet type.<p>
  *
  * The interface is provided primarily as a convenience for services
- * that must route all packet types (e.g. s2s routing, e2e encryption, etc).
+ * that must route all packet types (e.g. s2s routing, e2e encryption, etc).<p>
+ *
+ * The time spent routing each kind of packet, including the interceptors and the
+ * handlers of the server, is available as the <tt>routerIQTime</tt>,
+ * <tt>routerMessageTime</tt> and <tt>routerPresenceTime</tt> statistics.
  *
  * @author Iain Shigeoka
  */
 public class PacketRouterImpl extends BasicModule implements PacketRouter {
 
+    private static final LatencyHistogram iqRouteTime = new LatencyHistogram();
+    private static final LatencyHistogram messageRouteTime = new LatencyHistogram();
+    private static final LatencyHistogram presenceRouteTime = new LatencyHistogram();
+
+    static {
+        StatisticsManager.getInstance().addStatistic("routerIQTime",
+                new LatencyStatistic("router.iq_time", iqRouteTime));
+        StatisticsManager.getInstance().addStatistic("routerMessageTime",
+                new LatencyStatistic("router.message_time", messageRouteTime));
+        StatisticsManager.getInstance().addStatistic("routerPresenceTime",
+                new LatencyStatistic("router.presence_time", presenceRouteTime));
+    }
+
     private IQRouter iqRouter;
     private PresenceRouter presenceRouter;
     private MessageRouter messageRouter;
@@ -73,15 +93,33 @@ public class PacketRouterImpl extends BasicModule implements PacketRouter {
     }
 
     public void route(IQ packet) {
-        iqRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            iqRouter.route(packet);
+        }
+        finally {
+            iqRouteTime.recordSince(start);
+        }
     }
 
     public void route(Message packet) {
-        messageRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            messageRouter.route(packet);
+        }
+        finally {
+            messageRouteTime.recordSince(start);
+        }
     }
 
     public void route(Presence packet) {
-        presenceRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            presenceRouter.route(packet);
+        }
+        finally {
+            presenceRouteTime.recordSince(start);
+        }
     }
 
     @Override
@@ -352,69 +352,7 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
                 }
                 // If the probee is a local user then don't send a probe to the contact's server.
                 // But instead just send the contact's presence to the prober
-                Collection<ClientSession> sessions = sessionManager.getSessions(probee.getNode());
-                if (sessions.isEmpty()) {
-                    // If the probee is not online then try to retrieve his last unavailable
-                    // presence which may contain particular information and send it to the
-                    // prober
-                    String presenceXML = offlinePresenceCache.get(probee.getNode());
-                    if (presenceXML == null) {
-                        loadOfflinePresence(probee.getNode());
-                    }
-                    presenceXML = offlinePresenceCache.get(probee.getNode());
-                    if (presenceXML != null && !NULL_STRING.equals(presenceXML)) {
-                        try {
-                            // Parse the element
-                            Document element = DocumentHelper.parseText(presenceXML);
-                            // Create the presence from the parsed element
-                            Presence presencePacket = new Presence(element.getRootElement());
-                            presencePacket.setFrom(probee.toBareJID());
-                            // Check if default privacy list of the probee blocks the
-                            // outgoing presence
-                            PrivacyList list = PrivacyListManager.getInstance()
-                                    .getDefaultPrivacyList(probee.getNode());
-                            // Send presence to all prober's resources
-                            for (JID receipient : proberFullJIDs) {
-                                presencePacket.setTo(receipient);
-                                if (list == null || !list.shouldBlockPacket(presencePacket)) {
-                                    // Send the presence to the prober
-                                    deliverer.deliver(presencePacket);
-                                }
-                            }
-                        }
-                        catch (Exception e) {
-                            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-                        }
-                    }
-                }
-                else {
-                    // The contact is online so send to the prober all the resources where the
-                    // probee is connected
-                    for (ClientSession session : sessions) {
-                        // Create presence to send from probee to prober
-                        Presence presencePacket = session.getPresence().createCopy();
-                        presencePacket.setFrom(session.getAddress());
-                        // Check if a privacy list of the probee blocks the outgoing presence
-                        PrivacyList list = session.getActiveList();
-                        list = list == null ? session.getDefaultList() : list;
-                        // Send presence to all prober's resources
-                        for (JID receipient : proberFullJIDs) {
-                            presencePacket.setTo(receipient);
-                            if (list != null) {
-                                if (list.shouldBlockPacket(presencePacket)) {
-                                    // Default list blocked outgoing presence so skip this session
-                                    continue;
-                                }
-                            }
-                            try {
-                                deliverer.deliver(presencePacket);
-                            }
-                            catch (Exception e) {
-                                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-                            }
-                        }
-                    }
-                }
+                sendPresences(proberFullJIDs, probee, sessionManager.getSessions(probee.getNode()));
             }
             else {
                 if (routingTable.hasComponentRoute(probee)) {
@@ -453,6 +391,85 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         }
     }
 
+    public void probePresence(JID prober, JID probee, Collection<ClientSession> probeeSessions) {
+        try {
+            sendPresences(Collections.singletonList(prober), probee, probeeSessions);
+        }
+        catch (Exception e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+    }
+
+    /**
+     * Sends to the resources of the prober the presences of the available sessions of a local
+     * user or, if the user has no available session, the last unavailable presence of the user.
+     */
+    private void sendPresences(Collection<JID> proberFullJIDs, JID probee,
+            Collection<ClientSession> sessions) {
+        if (sessions.isEmpty()) {
+            // If the probee is not online then try to retrieve his last unavailable
+            // presence which may contain particular information and send it to the
+            // prober
+            String presenceXML = offlinePresenceCache.get(probee.getNode());
+            if (presenceXML == null) {
+                loadOfflinePresence(probee.getNode());
+            }
+            presenceXML = offlinePresenceCache.get(probee.getNode());
+            if (presenceXML != null && !NULL_STRING.equals(presenceXML)) {
+                try {
+                    // Parse the element
+                    Document element = DocumentHelper.parseText(presenceXML);
+                    // Create the presence from the parsed element
+                    Presence presencePacket = new Presence(element.getRootElement());
+                    presencePacket.setFrom(probee.toBareJID());
+                    // Check if default privacy list of the probee blocks the
+                    // outgoing presence
+                    PrivacyList list = PrivacyListManager.getInstance()
+                            .getDefaultPrivacyList(probee.getNode());
+                    // Send presence to all prober's resources
+                    for (JID receipient : proberFullJIDs) {
+                        presencePacket.setTo(receipient);
+                        if (list == null || !list.shouldBlockPacket(presencePacket)) {
+                            // Send the presence to the prober
+                            deliverer.deliver(presencePacket);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                }
+            }
+        }
+        else {
+            // The contact is online so send to the prober all the resources where the
+            // probee is connected
+            for (ClientSession session : sessions) {
+                // Create presence to send from probee to prober
+                Presence presencePacket = session.getPresence().createCopy();
+                presencePacket.setFrom(session.getAddress());
+                // Check if a privacy list of the probee blocks the outgoing presence
+                PrivacyList list = session.getActiveList();
+                list = list == null ? session.getDefaultList() : list;
+                // Send presence to all prober's resources
+                for (JID receipient : proberFullJIDs) {
+                    presencePacket.setTo(receipient);
+                    if (list != null) {
+                        if (list.shouldBlockPacket(presencePacket)) {
+                            // Default list blocked outgoing presence so skip this session
+                            continue;
+                        }
+                    }
+                    try {
+                        deliverer.deliver(presencePacket);
+                    }
+                    catch (Exception e) {
+                        Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                    }
+                }
+            }
+        }
+    }
+
     public void sendUnavailableFromSessions(JID recipientJID, JID userJID) {
         if (XMPPServer.getInstance().isLocal(userJID) && userManager.isRegisteredUser(userJID.getNode())) {
             for (ClientSession session : sessionManager.getSessions(userJID.getNode())) {
@@ -0,0 +1,126 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.util.LatencyHistogram;
+import org.jivesoftware.util.LocaleUtils;
+
+/**
+ * Statistic that reports the 99th percentile in milliseconds of the latencies recorded in a
+ * {@link LatencyHistogram} since the previous sample. The histogram itself is never reset, so
+ * the latencies recorded since the server started are also available through the
+ * {@link LatencyStatisticMBean} attributes, which {@link StatisticsManager} exports over JMX.<p>
+ *
+ * The name, description and units of the statistic are read from the <tt>stat.[resourceKey]</tt>
+ * resource keys. An optional argument (e.g. a namespace) is passed to the resources so that
+ * several statistics can share the same keys.
+ */
+public class LatencyStatistic implements Statistic, LatencyStatisticMBean {
+
+    private final String resourceKey;
+    private final List<String> arguments;
+    private final LatencyHistogram histogram;
+    /**
+     * Content of the histogram when the statistic was last sampled.
+     */
+    private LatencyHistogram.Snapshot lastSample;
+
+    public LatencyStatistic(String resourceKey, LatencyHistogram histogram) {
+        this(resourceKey, null, histogram);
+    }
+
+    public LatencyStatistic(String resourceKey, String argument, LatencyHistogram histogram) {
+        this.resourceKey = resourceKey;
+        this.arguments = argument == null ? null : Collections.singletonList(argument);
+        this.histogram = histogram;
+    }
+
+    /**
+     * Returns the histogram that holds the latencies of the statistic.
+     *
+     * @return the histogram that holds the latencies of the statistic.
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public String getName() {
+        return retrieveValue("name");
+    }
+
+    public Type getStatType() {
+        return Statistic.Type.count;
+    }
+
+    public String getDescription() {
+        return retrieveValue("desc");
+    }
+
+    public String getUnits() {
+        return retrieveValue("units");
+    }
+
+    public synchronized double sample() {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        LatencyHistogram.Snapshot latencies = snapshot.since(lastSample);
+        lastSample = snapshot;
+        return latencies.getPercentile(99) / 1000.0;
+    }
+
+    public boolean isPartialSample() {
+        return true;
+    }
+
+    public long getCount() {
+        return histogram.snapshot().getCount();
+    }
+
+    public double getMean() {
+        return histogram.snapshot().getMean() / 1000.0;
+    }
+
+    public double getPercentile50() {
+        return histogram.snapshot().getPercentile(50) / 1000.0;
+    }
+
+    public double getPercentile90() {
+        return histogram.snapshot().getPercentile(90) / 1000.0;
+    }
+
+    public double getPercentile99() {
+        return histogram.snapshot().getPercentile(99) / 1000.0;
+    }
+
+    public double getPercentile999() {
+        return histogram.snapshot().getPercentile(99.9) / 1000.0;
+    }
+
+    private String retrieveValue(String key) {
+        String wholeKey = "stat." + resourceKey + "." + key;
+        if (arguments != null) {
+            return LocaleUtils.getLocalizedString(wholeKey, arguments);
+        }
+        return LocaleUtils.getLocalizedString(wholeKey);
+    }
+}
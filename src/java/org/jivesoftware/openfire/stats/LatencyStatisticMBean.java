@@ -0,0 +1,77 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+/**
+ * JMX view of a {@link LatencyStatistic}. Latencies are in milliseconds and cover everything
+ * recorded since the server started.
+ */
+public interface LatencyStatisticMBean {
+
+    /**
+     * Returns the name of the statistic.
+     *
+     * @return the name of the statistic.
+     */
+    String getName();
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of recorded latencies.
+     */
+    long getCount();
+
+    /**
+     * Returns the average latency in milliseconds.
+     *
+     * @return the average latency in milliseconds.
+     */
+    double getMean();
+
+    /**
+     * Returns the median latency in milliseconds.
+     *
+     * @return the median latency in milliseconds.
+     */
+    double getPercentile50();
+
+    /**
+     * Returns the 90th percentile of the latencies in milliseconds.
+     *
+     * @return the 90th percentile of the latencies in milliseconds.
+     */
+    double getPercentile90();
+
+    /**
+     * Returns the 99th percentile of the latencies in milliseconds.
+     *
+     * @return the 99th percentile of the latencies in milliseconds.
+     */
+    double getPercentile99();
+
+    /**
+     * Returns the 99.9th percentile of the latencies in milliseconds.
+     *
+     * @return the 99.9th percentile of the latencies in milliseconds.
+     */
+    double getPercentile999();
+}
@@ -19,14 +19,26 @@
  */
 package org.jivesoftware.openfire.stats;
 
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Stores statistics being tracked by the server.
+ * Stores statistics being tracked by the server. Latency statistics are also registered
+ * in the platform MBean server as <tt>org.jivesoftware.openfire:type=Latency,name=[statKey]</tt>
+ * so that they can be read over JMX.
  */
 public class StatisticsManager {
 
+    private static final Logger Log = LoggerFactory.getLogger(StatisticsManager.class);
+
     private static StatisticsManager instance = new StatisticsManager();
 
     public static StatisticsManager getInstance() {
@@ -48,7 +60,13 @@ public class StatisticsManager {
      * @param definition the statistic to be tracked.
      */
     public void addStatistic(String statKey, Statistic definition) {
-        statistics.put(statKey, definition);
+        Statistic previous = statistics.put(statKey, definition);
+        if (previous instanceof LatencyStatistic) {
+            unregisterMBean(statKey);
+        }
+        if (definition instanceof LatencyStatistic) {
+            registerMBean(statKey, (LatencyStatistic) definition);
+        }
     }
 
     /**
@@ -94,7 +112,42 @@ public class StatisticsManager {
      * @param statKey The key of the stat to be removed.
      */
     public void removeStatistic(String statKey) {
-        statistics.remove(statKey);
+        Statistic previous = statistics.remove(statKey);
+        if (previous instanceof LatencyStatistic) {
+            unregisterMBean(statKey);
+        }
+    }
+
+    private void registerMBean(String statKey, LatencyStatistic statistic) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName(statKey);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(statistic, name);
+        }
+        catch (JMException e) {
+            Log.warn("Error registering statistic " + statKey + " in the MBean server", e);
+        }
+    }
+
+    private void unregisterMBean(String statKey) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName(statKey);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Error unregistering statistic " + statKey + " from the MBean server", e);
+        }
+    }
+
+    private static ObjectName getObjectName(String statKey) throws JMException {
+        return new ObjectName("org.jivesoftware.openfire:type=Latency,name=" +
+                ObjectName.quote(statKey));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Servlet that lists the statistics of the server in a plain text format that monitoring
+ * systems can scrape. Latency statistics are listed as summaries in milliseconds covering
+ * everything recorded since the server started. Other statistics are listed with their current
+ * value, except the ones whose samples only cover the time since the previous sample (sampling
+ * them would take values away from the statistics collected by the server).<p>
+ *
+ * The servlet is disabled unless the <tt>stats.scrape.secret</tt> property is set. Requests must
+ * include the secret as a bearer token in the <tt>Authorization</tt> header. The secret is not
+ * accepted as a request parameter since parameters end up in access logs and browser history.
+ */
+public class StatisticsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger Log = LoggerFactory.getLogger(StatisticsServlet.class);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String secret = JiveGlobals.getProperty("stats.scrape.secret");
+        if (secret == null || secret.trim().length() == 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!isAuthorized(request, secret)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+
+        Map<String, Statistic> statistics = new TreeMap<String, Statistic>();
+        for (Map.Entry<String, Statistic> entry : StatisticsManager.getInstance().getAllStatistics()) {
+            statistics.put(entry.getKey(), entry.getValue());
+        }
+        out.println("# TYPE openfire_latency_milliseconds summary");
+        for (Map.Entry<String, Statistic> entry : statistics.entrySet()) {
+            if (!(entry.getValue() instanceof LatencyStatistic)) {
+                continue;
+            }
+            String label = "statistic=\"" + escape(entry.getKey()) + "\"";
+            LatencyHistogram.Snapshot snapshot =
+                    ((LatencyStatistic) entry.getValue()).getHistogram().snapshot();
+            for (double quantile : QUANTILES) {
+                out.println("openfire_latency_milliseconds{" + label + ",quantile=\"" + quantile +
+                        "\"} " + snapshot.getPercentile(quantile * 100) / 1000.0);
+            }
+            out.println("openfire_latency_milliseconds_sum{" + label + "} " +
+                    snapshot.getTotal() / 1000.0);
+            out.println("openfire_latency_milliseconds_count{" + label + "} " +
+                    snapshot.getCount());
+        }
+        out.println("# TYPE openfire_statistic gauge");
+        for (Map.Entry<String, Statistic> entry : statistics.entrySet()) {
+            Statistic statistic = entry.getValue();
+            if (statistic instanceof LatencyStatistic || statistic.isPartialSample()) {
+                continue;
+            }
+            try {
+                out.println("openfire_statistic{statistic=\"" + escape(entry.getKey()) + "\"} " +
+                        statistic.sample());
+            }
+            catch (Exception e) {
+                Log.warn("Error sampling statistic " + entry.getKey(), e);
+            }
+        }
+        out.flush();
+    }
+
+    private static boolean isAuthorized(HttpServletRequest request, String secret)
+            throws UnsupportedEncodingException {
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        String provided = authorization.substring("Bearer ".length()).trim();
+        // Compare all the bytes so that the time does not depend on the first difference
+        return MessageDigest.isEqual(secret.getBytes("UTF-8"), provided.getBytes("UTF-8"));
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
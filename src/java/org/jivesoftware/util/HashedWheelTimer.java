@@ -0,0 +1,235 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer for the large number of deadlines kept by sessions (pings, idle connections,
+ * inactive HTTP sessions). Deadlines are kept in a wheel of buckets where each bucket covers
+ * one tick, so scheduling and cancelling a deadline take constant time and a single thread
+ * only looks at the deadlines of the current tick instead of scanning every session. The
+ * price is precision: deadlines expire up to one tick late.<p>
+ *
+ * Expired tasks are run by the {@link TaskEngine} thread pool so that slow tasks do not delay
+ * other deadlines.<p>
+ *
+ * A typical use is to check a session when its deadline expires and to schedule a new deadline
+ * if there was activity in the meantime. That way activity only has to update a timestamp
+ * instead of rescheduling the deadline.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger Log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static HashedWheelTimer instance;
+
+    /**
+     * Returns the timer shared by all sessions. The timer ticks every 500 milliseconds.
+     *
+     * @return the timer shared by all sessions.
+     */
+    public static synchronized HashedWheelTimer getInstance() {
+        if (instance == null) {
+            instance = new HashedWheelTimer("timer-sessions", 500, 512);
+        }
+        return instance;
+    }
+
+    private final long tickDuration;
+    private final List<Set<Timeout>> wheel;
+    private final int mask;
+    private final long startTime = now();
+    /**
+     * Last tick whose bucket was processed. A bucket is only modified while holding its lock,
+     * so a deadline is never added to a bucket after its tick was processed.
+     */
+    private volatile long processedTick = -1;
+    private final Thread worker;
+
+    /**
+     * Creates a new timer with its own thread.
+     *
+     * @param name the name of the thread of the timer.
+     * @param tickDuration the duration of a tick in milliseconds.
+     * @param ticksPerWheel the number of buckets of the wheel, rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        this.tickDuration = tickDuration;
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new ArrayList<Set<Timeout>>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new HashSet<Timeout>());
+        }
+        mask = size - 1;
+        worker = new Thread(new Worker(), name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to be run once after the specified delay.
+     *
+     * @param task the task to run.
+     * @param delay the delay before running the task.
+     * @param unit the unit of the delay.
+     * @return the deadline of the task, which can be used for cancelling it.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = now() + Math.max(0, unit.toMillis(delay));
+        // A tick is processed when it starts, so round up to never expire a deadline early
+        Timeout timeout = new Timeout(task,
+                Math.max(0, (deadline - startTime + tickDuration - 1) / tickDuration));
+        while (true) {
+            // Deadlines of processed ticks go to the next tick to process
+            long tick = Math.max(timeout.tick, processedTick + 1);
+            Set<Timeout> bucket = wheel.get((int) (tick & mask));
+            synchronized (bucket) {
+                if (tick > processedTick) {
+                    timeout.tick = tick;
+                    timeout.bucket = bucket;
+                    bucket.add(timeout);
+                    return timeout;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread of the timer. Pending deadlines are discarded.
+     */
+    public void stop() {
+        worker.interrupt();
+    }
+
+    /**
+     * Returns the current time in milliseconds of a clock that is not affected by changes
+     * of the system time.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Expires the deadlines of the ticks that elapsed since the previous run.
+     */
+    private void expireTimeouts(long currentTick) {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        for (long tick = processedTick + 1; tick <= currentTick; tick++) {
+            Set<Timeout> bucket = wheel.get((int) (tick & mask));
+            synchronized (bucket) {
+                for (Iterator<Timeout> it = bucket.iterator(); it.hasNext();) {
+                    Timeout timeout = it.next();
+                    // Deadlines of later rounds of the wheel stay in the bucket
+                    if (timeout.tick <= tick) {
+                        it.remove();
+                        timeout.bucket = null;
+                        expired.add(timeout);
+                    }
+                }
+                processedTick = tick;
+            }
+        }
+        for (Timeout timeout : expired) {
+            try {
+                TaskEngine.getInstance().submit(timeout.task);
+            }
+            catch (Exception e) {
+                Log.error("Error running expired task: " + timeout.task, e);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                long currentTick = (now() - startTime) / tickDuration;
+                if (currentTick > processedTick) {
+                    expireTimeouts(currentTick);
+                }
+                long sleep = startTime + (processedTick + 1) * tickDuration -
+                        now();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deadline of a task scheduled in a {@link HashedWheelTimer}.
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private long tick;
+        /**
+         * Bucket holding the deadline or null if expired or cancelled. Only modified while
+         * holding the lock of the bucket.
+         */
+        private volatile Set<Timeout> bucket;
+
+        private Timeout(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * Cancels the deadline. The task will not be run unless it was already expired.
+         *
+         * @return true if the deadline was cancelled or false if it was already expired
+         *         or cancelled.
+         */
+        public boolean cancel() {
+            while (true) {
+                Set<Timeout> current = bucket;
+                if (current == null) {
+                    return false;
+                }
+                synchronized (current) {
+                    if (bucket == current) {
+                        bucket = null;
+                        return current.remove(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies that can be updated by many threads without locking. Latencies are
+ * recorded in microseconds. Each range between two powers of two is split in 128 linear
+ * buckets, so a recorded value is known with an error of less than 1% (i.e. two to three
+ * significant digits) while keeping the cost of a recording to a couple of atomic
+ * increments. Latencies lower than 128 microseconds are recorded exactly.<p>
+ *
+ * Use {@link #snapshot()} to read the histogram or {@link #snapshotAndReset()} to read the
+ * latencies recorded since the previous reset.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of a latency that are kept after its highest bit. Each range between
+     * two powers of two is split in 2^SUB_BUCKET_BITS buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Position of the highest bit of the largest latency that is recorded with the same
+     * precision (2^36 microseconds is about 19 hours). The last bucket counts everything else.
+     */
+    private static final int MAX_HIGHEST_BIT = 35;
+
+    /**
+     * Buckets <tt>0</tt> to <tt>SUB_BUCKETS - 1</tt> count latencies of exactly that many
+     * microseconds. Then each group of <tt>SUB_BUCKETS</tt> buckets splits the range between
+     * two powers of two in equal parts. The last bucket counts higher latencies.
+     */
+    private static final int BUCKETS = (MAX_HIGHEST_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong total = new AtomicLong(0);
+
+    /**
+     * Records a latency.
+     *
+     * @param micros the latency in microseconds.
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+    }
+
+    /**
+     * Returns the index of the bucket that counts the specified latency.
+     */
+    static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+        if (highestBit > MAX_HIGHEST_BIT) {
+            return BUCKETS - 1;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS;
+        // The bits that follow the highest bit select the linear bucket of the group
+        int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Records the time elapsed since the specified time.
+     *
+     * @param startNanos the start time as returned by {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Returns a copy of the recorded latencies.
+     *
+     * @return a copy of the recorded latencies.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(copy, count.get(), total.get());
+    }
+
+    /**
+     * Returns a copy of the recorded latencies and resets the histogram. Latencies recorded
+     * while the reset is in progress may be reported in this snapshot or in the next one.
+     *
+     * @return a copy of the latencies recorded since the previous reset.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.getAndSet(i, 0);
+        }
+        return new Snapshot(copy, count.getAndSet(0), total.getAndSet(0));
+    }
+
+    /**
+     * Immutable copy of the content of a histogram.
+     */
+    public static class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long total;
+
+        private Snapshot(long[] buckets, long count, long total) {
+            this.buckets = buckets;
+            this.count = count;
+            this.total = total;
+        }
+
+        /**
+         * Returns the number of recorded latencies.
+         *
+         * @return the number of recorded latencies.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the average latency in microseconds or 0 if nothing was recorded.
+         *
+         * @return the average latency in microseconds.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * Returns the latency in microseconds below which the specified percentage of the
+         * recorded latencies fall. The returned value is the highest latency of the bucket that
+         * holds the percentile, which is less than 1% above the actual latency.
+         *
+         * @param percentile the percentile to return (e.g. 99.0).
+         * @return the latency of the percentile in microseconds or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long sum = 0;
+            for (long bucketCount : buckets) {
+                sum += bucketCount;
+            }
+            if (sum == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(sum * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold && seen > 0) {
+                    return getUpperBound(i) - 1;
+                }
+            }
+            return getUpperBound(buckets.length - 1) - 1;
+        }
+
+        /**
+         * Returns the latencies recorded after an earlier snapshot of the same histogram was
+         * taken. This allows several readers to follow a histogram without resetting it.
+         *
+         * @param earlier an earlier snapshot of the histogram or <tt>null</tt> to return
+         *        this snapshot.
+         * @return the latencies recorded between the two snapshots.
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            long[] difference = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                difference[i] = Math.max(0, buckets[i] - earlier.buckets[i]);
+            }
+            return new Snapshot(difference, Math.max(0, count - earlier.count),
+                    Math.max(0, total - earlier.total));
+        }
+
+        /**
+         * Returns the total of the recorded latencies in microseconds.
+         *
+         * @return the total of the recorded latencies in microseconds.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the number of latencies recorded in each bucket. The upper bound of each
+         * bucket is returned by {@link #getUpperBound(int)}.
+         *
+         * @return the number of latencies recorded in each bucket.
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        /**
+         * Returns the exclusive upper bound in microseconds of the specified bucket.
+         *
+         * @param bucket the index of the bucket.
+         * @return the exclusive upper bound in microseconds of the bucket.
+         */
+        public static long getUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+            if (bucket == BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            return ((long) SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift;
+        }
+
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append("count=").append(count).append(", mean=").append((long) getMean())
+                    .append("us");
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] > 0) {
+                    buf.append(", <").append(getUpperBound(i)).append("us=").append(buckets[i]);
+                }
+            }
+            return buf.toString();
+        }
+    }
+}
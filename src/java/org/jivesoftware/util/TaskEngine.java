@@ -19,6 +19,7 @@
 
 package org.jivesoftware.util;
 
+import java.lang.reflect.Method;
 import java.util.Date;
 import java.util.Map;
 import java.util.Timer;
@@ -26,6 +27,9 @@ import java.util.TimerTask;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Performs tasks using worker threads. It also allows tasks to be scheduled to be
  * run at future dates. This class mimics relevant methods in both
@@ -38,6 +42,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class TaskEngine {
 
+    private static final Logger Log = LoggerFactory.getLogger(TaskEngine.class);
+
     private static TaskEngine instance = new TaskEngine();
 
     /**
@@ -51,6 +57,7 @@ public class TaskEngine {
 
     private Timer timer;
     private ExecutorService executor;
+    private ExecutorService blockingExecutor;
     private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
 
     /**
@@ -92,6 +99,88 @@ public class TaskEngine {
         return executor.submit(task);
     }
 
+    /**
+     * Submits a task that spends most of its time blocked on I/O, such as a task reading
+     * from a socket for the lifetime of a connection. These tasks are run on virtual threads
+     * when the JVM supports them, so thousands of them can be waiting at the same time, or on
+     * a separate pool of threads otherwise.
+     *
+     * @param task the task to submit.
+     * @return a Future representing pending completion of the task.
+     * @see #newBlockingExecutor(String)
+     */
+    public Future<?> submitBlocking(Runnable task) {
+        ExecutorService service;
+        synchronized (this) {
+            if (blockingExecutor == null) {
+                blockingExecutor = newBlockingExecutor("pool-openfire-blocking");
+            }
+            service = blockingExecutor;
+        }
+        return service.submit(task);
+    }
+
+    /**
+     * Creates an executor for tasks that spend most of their time blocked on I/O. The
+     * executor runs each task on a new virtual thread when the JVM supports virtual threads
+     * and the <tt>taskengine.virtualthreads.enabled</tt> property is true (the default).
+     * Otherwise the executor is a pool of daemon threads that grows as needed. The caller is
+     * responsible for shutting down the executor.
+     *
+     * @param name the prefix of the names of the threads of the executor.
+     * @return a new executor for blocking tasks.
+     */
+    public ExecutorService newBlockingExecutor(final String name) {
+        if (JiveGlobals.getBooleanProperty("taskengine.virtualthreads.enabled", true)) {
+            ExecutorService service = newVirtualThreadExecutor(name);
+            if (service != null) {
+                return service;
+            }
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable,
+                        name + "-" + threadNumber.getAndIncrement(), 0);
+                thread.setDaemon(true);
+                if (thread.getPriority() != Thread.NORM_PRIORITY) {
+                    thread.setPriority(Thread.NORM_PRIORITY);
+                }
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task or <tt>null</tt> if
+     * the JVM does not support virtual threads. Reflection is used so that the server still
+     * runs on JVMs that predate virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory")
+                    .invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        }
+        catch (NoSuchMethodException e) {
+            // Virtual threads are not supported by this JVM
+            return null;
+        }
+        catch (Exception e) {
+            Log.warn("Error creating virtual threads. Using platform threads instead.", e);
+            return null;
+        }
+    }
+
     /**
      * Schedules the specified task for execution after the specified delay.
      *
@@ -285,6 +374,13 @@ public class TaskEngine {
             executor = null;
         }
 
+        synchronized (this) {
+            if (blockingExecutor != null) {
+                blockingExecutor.shutdownNow();
+                blockingExecutor = null;
+            }
+        }
+
         if (timer != null) {
             timer.cancel();
             timer = null;
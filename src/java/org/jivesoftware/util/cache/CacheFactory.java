@@ -109,6 +109,8 @@ public class CacheFactory {
         cacheNames.put("File Transfer", "transferProxy");
         cacheNames.put("POP3 Authentication", "pop3");
         cacheNames.put("LDAP Authentication", "ldap");
+        cacheNames.put("LDAP UserDN Mapping", "ldapUserDN");
+        cacheNames.put("Authentication Verifiers", "authVerifiers");
         cacheNames.put("Routing Servers Cache", "routeServer");
         cacheNames.put("Routing Components Cache", "routeComponent");
         cacheNames.put("Routing Users Cache", "routeUser");
@@ -128,6 +130,7 @@ public class CacheFactory {
         cacheNames.put("Entity Capabilities Users", "entityCapabilitiesUsers");
         cacheNames.put("Clearspace SSO Nonce", "clearspaceSSONonce");
         cacheNames.put("PEPServiceManager", "pepServiceManager");
+        cacheNames.put("DNS SRV Records", "dnsRecords");
 
         cacheProps.put("cache.fileTransfer.size", 128 * 1024l);
         cacheProps.put("cache.fileTransfer.maxLifetime", 1000 * 60 * 10l);
@@ -149,6 +152,10 @@ public class CacheFactory {
         cacheProps.put("cache.javascript.maxLifetime", 3600 * 24 * 10l);
         cacheProps.put("cache.ldap.size", 512 * 1024l);
         cacheProps.put("cache.ldap.maxLifetime", JiveConstants.HOUR * 2);
+        cacheProps.put("cache.ldapUserDN.size", 512 * 1024l);
+        cacheProps.put("cache.ldapUserDN.maxLifetime", JiveConstants.HOUR * 2);
+        cacheProps.put("cache.authVerifiers.size", 512 * 1024l);
+        cacheProps.put("cache.authVerifiers.maxLifetime", JiveConstants.HOUR);
         cacheProps.put("cache.listsCache.size", 512 * 1024l);
         cacheProps.put("cache.offlinePresence.size", 512 * 1024l);
         cacheProps.put("cache.lastActivity.size", 128 * 1024l);
@@ -199,6 +206,8 @@ public class CacheFactory {
         cacheProps.put("cache.clearspaceSSONonce.maxLifetime", JiveConstants.MINUTE * 2);
         cacheProps.put("cache.pepServiceManager.size", 1024l * 1024 * 10);
         cacheProps.put("cache.pepServiceManager.maxLifetime", JiveConstants.MINUTE * 30);
+        cacheProps.put("cache.dnsRecords.size", 128 * 1024l);
+        cacheProps.put("cache.dnsRecords.maxLifetime", JiveConstants.DAY);
     }
 
     private CacheFactory() {
@@ -0,0 +1,316 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.test.bosh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A simple client to test how many long-polling BOSH sessions a server can hold. The client
+ * creates the requested number of sessions (at the given rate) and keeps one request of each
+ * session waiting on the server. Each time the server answers a request a new one is sent,
+ * so the server always holds one request per session.<p/>
+ *
+ * Sessions are not authenticated, so the server only needs to have HTTP binding enabled.
+ * All sessions are handled by a single thread using non-blocking sockets, so a single client
+ * machine can open tens of thousands of sessions (subject to the limits on open files and
+ * local ports of the client machine).<p/>
+ *
+ * Statistics are printed every 5 seconds: the number of established sessions, the number of
+ * requests held by the server, the number of responses per second with their average response
+ * time and the number of failed sessions.
+ *
+ * java BoshLoadTest [server] [port] [domain] [sessions] [sessions per second] [wait]
+ */
+public class BoshLoadTest {
+
+    private static final String NAMESPACE = "http://jabber.org/protocol/httpbind";
+    private static final String PATH = "/http-bind/";
+    private static final Pattern SID_PATTERN = Pattern.compile("sid=['\"]([^'\"]+)['\"]");
+    private static final Pattern TERMINATE_PATTERN = Pattern.compile("type=['\"]terminate['\"]");
+
+    private final InetSocketAddress address;
+    private final String hostHeader;
+    private final String domain;
+    private final int sessions;
+    private final int sessionsPerSecond;
+    private final int wait;
+    private final Selector selector;
+    private final Random random = new Random();
+
+    private int opened = 0;
+    private int established = 0;
+    private int heldRequests = 0;
+    private int failed = 0;
+    private int responses = 0;
+    private long responseTime = 0;
+
+    public BoshLoadTest(String server, int port, String domain, int sessions,
+            int sessionsPerSecond, int wait) throws IOException {
+        this.address = new InetSocketAddress(server, port);
+        this.hostHeader = server + ":" + port;
+        this.domain = domain;
+        this.sessions = sessions;
+        this.sessionsPerSecond = sessionsPerSecond;
+        this.wait = wait;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the BOSH load test client.
+     *
+     * @param args application arguments.
+     */
+    public static void main(String [] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: java BoshLoadTest [server] [port] [domain] [sessions] " +
+                    "[sessions per second] [wait]");
+            System.exit(0);
+        }
+        try {
+            BoshLoadTest test = new BoshLoadTest(args[0], Integer.parseInt(args[1]), args[2],
+                    Integer.parseInt(args[3]),
+                    args.length > 4 ? Integer.parseInt(args[4]) : 500,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 60);
+            test.run();
+        }
+        catch (Exception e) {
+            System.out.println("\nError: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens the sessions and processes the responses of the server. This method never returns.
+     *
+     * @throws IOException if an error occurs while waiting for network events.
+     */
+    public void run() throws IOException {
+        long start = System.currentTimeMillis();
+        long lastStats = start;
+        while (true) {
+            long now = System.currentTimeMillis();
+            // Open new sessions at the requested rate
+            long expected = Math.min(sessions, (now - start) * sessionsPerSecond / 1000 + 1);
+            while (opened < expected) {
+                open();
+            }
+
+            selector.select(100);
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                SelectionKey key = it.next();
+                it.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        client.connected();
+                    }
+                    else if (key.isWritable()) {
+                        client.write();
+                    }
+                    else if (key.isReadable()) {
+                        client.read();
+                    }
+                }
+                catch (IOException e) {
+                    client.fail(e.getMessage());
+                }
+            }
+
+            now = System.currentTimeMillis();
+            if (now - lastStats >= 5000) {
+                printStats((now - lastStats) / 1000);
+                lastStats = now;
+            }
+        }
+    }
+
+    private void open() {
+        opened++;
+        Client client = new Client();
+        try {
+            client.open();
+        }
+        catch (IOException e) {
+            client.fail(e.getMessage());
+        }
+    }
+
+    private void printStats(long seconds) {
+        System.out.println("Sessions: " + established + "/" + opened +
+                ", held requests: " + heldRequests +
+                ", responses per second: " + (responses / seconds) +
+                ", average response time: " + (responses == 0 ? 0 : responseTime / responses) + " ms" +
+                ", failed sessions: " + failed);
+        responses = 0;
+        responseTime = 0;
+    }
+
+    /**
+     * A BOSH session using a single HTTP connection. A new request is sent each time the
+     * previous one was answered, so there is at most one request per connection.
+     */
+    private class Client {
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String sid;
+        private long rid = random.nextInt(Integer.MAX_VALUE / 2) + 1;
+        private ByteBuffer output;
+        private ByteArrayOutputStream input = new ByteArrayOutputStream();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+        private long requestTime;
+        private boolean waiting = false;
+        private boolean closed = false;
+
+        void open() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(address)) {
+                connected();
+            }
+        }
+
+        void connected() throws IOException {
+            channel.finishConnect();
+            send("<body rid='" + rid + "' xmlns='" + NAMESPACE + "' to='" + domain +
+                    "' xml:lang='en' wait='" + wait + "' hold='1' ver='1.6' " +
+                    "xmpp:version='1.0' xmlns:xmpp='urn:xmpp:xbosh'/>");
+        }
+
+        void send(String body) throws UnsupportedEncodingException {
+            byte[] content = body.getBytes("UTF-8");
+            byte[] header = ("POST " + PATH + " HTTP/1.1\r\n" +
+                    "Host: " + hostHeader + "\r\n" +
+                    "Content-Type: text/xml; charset=utf-8\r\n" +
+                    "Content-Length: " + content.length + "\r\n\r\n").getBytes("ISO-8859-1");
+            output = ByteBuffer.allocate(header.length + content.length);
+            output.put(header).put(content).flip();
+            requestTime = System.currentTimeMillis();
+            waiting = true;
+            heldRequests++;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            channel.write(output);
+            if (!output.hasRemaining()) {
+                output = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                fail("Connection closed by server");
+                return;
+            }
+            input.write(readBuffer.array(), 0, count);
+            parseResponse();
+        }
+
+        private void parseResponse() throws IOException {
+            String data = input.toString("ISO-8859-1");
+            int headerEnd = data.indexOf("\r\n\r\n");
+            if (headerEnd < 0) {
+                return;
+            }
+            String headers = data.substring(0, headerEnd);
+            int contentLength = 0;
+            for (String line : headers.split("\r\n")) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] bytes = input.toByteArray();
+            int bodyStart = headerEnd + 4;
+            if (bytes.length < bodyStart + contentLength) {
+                // Wait for the rest of the response
+                return;
+            }
+            String body = new String(bytes, bodyStart, contentLength, "UTF-8");
+            input.reset();
+            input.write(bytes, bodyStart + contentLength, bytes.length - bodyStart - contentLength);
+
+            waiting = false;
+            heldRequests--;
+            responses++;
+            responseTime += System.currentTimeMillis() - requestTime;
+
+            if (!headers.startsWith("HTTP/1.1 200") && !headers.startsWith("HTTP/1.0 200")) {
+                fail(headers.substring(0, headers.indexOf("\r\n") < 0 ?
+                        headers.length() : headers.indexOf("\r\n")));
+                return;
+            }
+            if (TERMINATE_PATTERN.matcher(body).find()) {
+                fail("Session terminated by server: " + body);
+                return;
+            }
+            if (sid == null) {
+                Matcher matcher = SID_PATTERN.matcher(body);
+                if (!matcher.find()) {
+                    fail("Session creation response without sid: " + body);
+                    return;
+                }
+                sid = matcher.group(1);
+                established++;
+            }
+            rid++;
+            send("<body rid='" + rid + "' sid='" + sid + "' xmlns='" + NAMESPACE + "'/>");
+        }
+
+        void fail(String reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed++;
+            if (sid != null) {
+                established--;
+            }
+            if (waiting) {
+                heldRequests--;
+            }
+            System.out.println("Session failed: " + reason);
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
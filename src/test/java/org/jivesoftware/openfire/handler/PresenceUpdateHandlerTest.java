@@ -0,0 +1,160 @@
+package org.jivesoftware.openfire.handler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.openfire.PresenceManager;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.Session;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Tests the damping of presence updates of {@link PresenceUpdateHandler}.
+ */
+public class PresenceUpdateHandlerTest extends TestCase {
+
+    private final List<String> broadcasts = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch releasing = new CountDownLatch(1);
+    private final CountDownLatch proceed = new CountDownLatch(1);
+
+    private PresenceUpdateHandler handler;
+    private ClientSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        handler = new PresenceUpdateHandler() {
+            @Override
+            void broadcastUpdate(Presence update) {
+                String status = update.getType() == Presence.Type.unavailable ?
+                        "unavailable" : update.getStatus();
+                broadcasts.add(status);
+                if ("held".equals(status)) {
+                    // Block the release of the held update until the test lets it go
+                    releasing.countDown();
+                    try {
+                        proceed.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        setField("presenceManager", Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] {PresenceManager.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                }));
+        session = createSession(new JID("user", "example.com", "resource"));
+    }
+
+    /**
+     * An unavailable presence received while a held update is being broadcast must be
+     * broadcast after the held update and remain the presence of the session.
+     */
+    public void testUnavailableWhileHeldUpdateIsReleased() throws Exception {
+        // Use all the tokens of the user and hold the next update
+        for (int i = 0; i < 5; i++) {
+            handler.process(createPresence("update " + i), session);
+        }
+        handler.process(createPresence("held"), session);
+        assertEquals(5, broadcasts.size());
+        assertFalse(broadcasts.contains("held"));
+
+        final Runnable damper = (Runnable) ((Map) getField("dampers")).get("user");
+        assertNotNull("Update was not held", damper);
+        Thread releaser = new Thread() {
+            public void run() {
+                damper.run();
+            }
+        };
+        releaser.start();
+        assertTrue("Held update was not released", releasing.await(5, TimeUnit.SECONDS));
+
+        Thread unavailable = new Thread() {
+            public void run() {
+                Presence presence = new Presence(Presence.Type.unavailable);
+                try {
+                    handler.process(presence, session);
+                }
+                catch (Exception e) {
+                    fail(e.getMessage());
+                }
+            }
+        };
+        unavailable.start();
+        // Give the unavailable presence a chance to overtake the held update
+        unavailable.join(500);
+        proceed.countDown();
+        releaser.join(5000);
+        unavailable.join(5000);
+
+        assertEquals("held", broadcasts.get(5));
+        assertEquals("unavailable", broadcasts.get(6));
+        assertEquals(Presence.Type.unavailable, session.getPresence().getType());
+    }
+
+    private static Presence createPresence(String status) {
+        Presence presence = new Presence();
+        presence.setStatus(status);
+        return presence;
+    }
+
+    private static ClientSession createSession(final JID address) {
+        return (ClientSession) Proxy.newProxyInstance(PresenceUpdateHandlerTest.class.getClassLoader(),
+                new Class[] {ClientSession.class}, new InvocationHandler() {
+
+                    private Presence presence;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAddress".equals(name)) {
+                            return address;
+                        }
+                        else if ("getStatus".equals(name)) {
+                            return Session.STATUS_AUTHENTICATED;
+                        }
+                        else if ("isInitialized".equals(name)) {
+                            return true;
+                        }
+                        else if ("getPresence".equals(name)) {
+                            return presence;
+                        }
+                        else if ("setPresence".equals(name)) {
+                            presence = (Presence) args[0];
+                        }
+                        else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        else if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private Object getField(String name) throws Exception {
+        Field field = PresenceUpdateHandler.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(handler);
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = PresenceUpdateHandler.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(handler, value);
+    }
+}
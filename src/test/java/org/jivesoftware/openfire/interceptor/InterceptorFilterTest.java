@@ -0,0 +1,156 @@
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jivesoftware.openfire.session.Session;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+import org.xmpp.packet.Roster;
+
+/**
+ * Tests the packets accepted by {@link InterceptorFilter} and that the
+ * {@link InterceptorManager} only invokes filtered interceptors on those packets.
+ */
+public class InterceptorFilterTest extends TestCase {
+
+    private final List<PacketInterceptor> added = new ArrayList<PacketInterceptor>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (PacketInterceptor interceptor : added) {
+            InterceptorManager.getInstance().removeInterceptor(interceptor);
+        }
+    }
+
+    public void testEmptyFilterAcceptsEverything() {
+        InterceptorFilter filter = new InterceptorFilter(null, null, null, null);
+        assertTrue(filter.accepts(Message.class, true, false));
+        assertTrue(filter.accepts(IQ.class, false, true));
+        assertTrue(filter.accepts(Packet.class, true, true));
+        assertTrue(filter.accepts(new Message()));
+        assertTrue(filter.accepts(new Presence()));
+    }
+
+    public void testDirectionAndProcessed() {
+        InterceptorFilter filter = new InterceptorFilter(null, true, false, null);
+        assertTrue(filter.accepts(Message.class, true, false));
+        assertFalse(filter.accepts(Message.class, false, false));
+        assertFalse(filter.accepts(Message.class, true, true));
+        assertFalse(filter.accepts(Message.class, false, true));
+    }
+
+    public void testPacketTypes() {
+        InterceptorFilter filter = new InterceptorFilter(types(Message.class, Presence.class),
+                null, null, null);
+        assertTrue(filter.accepts(Message.class, true, false));
+        assertTrue(filter.accepts(Presence.class, false, true));
+        assertFalse(filter.accepts(IQ.class, true, false));
+        assertTrue(filter.accepts(new Message()));
+        assertFalse(filter.accepts(new IQ()));
+    }
+
+    public void testPacketSubclasses() {
+        // Packets of unknown classes are dispatched as Packet, subclasses as their superclass
+        InterceptorFilter roster = new InterceptorFilter(types(Roster.class), null, null, null);
+        assertTrue(roster.accepts(IQ.class, true, false));
+        assertTrue(roster.accepts(Packet.class, true, false));
+        assertFalse(roster.accepts(Message.class, true, false));
+        assertTrue(roster.accepts(new Roster()));
+        assertFalse(roster.accepts(new IQ()));
+        InterceptorFilter iq = new InterceptorFilter(types(IQ.class), null, null, null);
+        assertTrue(iq.accepts(new Roster()));
+    }
+
+    public void testNamespaces() {
+        InterceptorFilter filter = new InterceptorFilter(null, null, null,
+                Collections.singleton("jabber:iq:version"));
+        IQ version = new IQ();
+        version.setChildElement("query", "jabber:iq:version");
+        IQ time = new IQ();
+        time.setChildElement("time", "urn:xmpp:time");
+        assertTrue(filter.accepts(version));
+        assertFalse(filter.accepts(time));
+        assertFalse(filter.accepts(new IQ()));
+        Message message = new Message();
+        message.setBody("Hello");
+        message.addChildElement("x", "jabber:iq:version");
+        assertTrue(filter.accepts(message));
+    }
+
+    public void testManagerInvokesAcceptedPackets() throws Exception {
+        RecordingInterceptor messages = new RecordingInterceptor(new InterceptorFilter(
+                types(Message.class), true, false, null));
+        RecordingInterceptor all = new RecordingInterceptor(null);
+        add(messages);
+        add(all);
+        InterceptorManager manager = InterceptorManager.getInstance();
+        Message message = new Message();
+        IQ iq = new IQ();
+        manager.invokeInterceptors(message, null, true, false);
+        manager.invokeInterceptors(message, null, true, true);
+        manager.invokeInterceptors(message, null, false, false);
+        manager.invokeInterceptors(iq, null, true, false);
+        assertEquals(Arrays.<Packet>asList(message), messages.intercepted);
+        assertEquals(Arrays.<Packet>asList(message, message, message, iq), all.intercepted);
+    }
+
+    public void testManagerUsesNewFilterWhenAddedAgain() throws Exception {
+        RecordingInterceptor interceptor = new RecordingInterceptor(new InterceptorFilter(
+                types(Message.class), null, null, null));
+        add(interceptor);
+        InterceptorManager manager = InterceptorManager.getInstance();
+        IQ iq = new IQ();
+        manager.invokeInterceptors(iq, null, true, false);
+        assertTrue(interceptor.intercepted.isEmpty());
+        interceptor.filter = new InterceptorFilter(types(IQ.class), null, null, null);
+        add(interceptor);
+        manager.invokeInterceptors(iq, null, true, false);
+        assertEquals(Arrays.<Packet>asList(iq), interceptor.intercepted);
+    }
+
+    private void add(PacketInterceptor interceptor) {
+        InterceptorManager.getInstance().addInterceptor(interceptor);
+        added.add(interceptor);
+    }
+
+    private static List<Class<? extends Packet>> types(Class<? extends Packet> type) {
+        return Collections.<Class<? extends Packet>>singletonList(type);
+    }
+
+    private static List<Class<? extends Packet>> types(Class<? extends Packet> first,
+            Class<? extends Packet> second) {
+        List<Class<? extends Packet>> types = new ArrayList<Class<? extends Packet>>();
+        types.add(first);
+        types.add(second);
+        return types;
+    }
+
+    /**
+     * Interceptor that records the packets it was invoked on.
+     */
+    private static class RecordingInterceptor implements FilteredPacketInterceptor {
+
+        private final List<Packet> intercepted = new ArrayList<Packet>();
+        private InterceptorFilter filter;
+
+        RecordingInterceptor(InterceptorFilter filter) {
+            this.filter = filter;
+        }
+
+        public InterceptorFilter getInterceptorFilter() {
+            return filter;
+        }
+
+        public void interceptPacket(Packet packet, Session session, boolean incoming,
+                boolean processed) {
+            intercepted.add(packet);
+        }
+    }
+}
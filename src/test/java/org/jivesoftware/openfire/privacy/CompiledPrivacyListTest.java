@@ -0,0 +1,247 @@
+package org.jivesoftware.openfire.privacy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Tests that {@link CompiledPrivacyList} finds the same item as checking every item of the
+ * list in order.
+ */
+public class CompiledPrivacyListTest extends TestCase {
+
+    private static final JID USER = new JID("user", "example.com", "home");
+
+    private static final String[] STANZAS = { "message", "iq", "presence-in", "presence-out" };
+
+    private static final JID[] CONTACTS = {
+            new JID("friend", "example.com", "phone"),
+            new JID("friend", "example.com", "desktop"),
+            new JID("colleague", "example.com", null),
+            new JID("stranger", "other.org", "laptop"),
+            new JID("other.org"),
+            new JID(null, "example.com", "service")
+    };
+
+    private static final String[] GROUPS = { "Friends", "Work", "Family" };
+
+    private final Map<String, RosterItem> contacts = new HashMap<String, RosterItem>();
+    private Roster roster;
+    private PrivacyList list;
+
+    @Override
+    protected void setUp() throws Exception {
+        contacts.put("friend@example.com", new RosterItem(new JID("friend@example.com"),
+                RosterItem.SUB_BOTH, RosterItem.ASK_NONE, RosterItem.RECV_NONE, "Friend",
+                Arrays.asList("Friends", "Family")));
+        contacts.put("colleague@example.com", new RosterItem(new JID("colleague@example.com"),
+                RosterItem.SUB_TO, RosterItem.ASK_NONE, RosterItem.RECV_NONE, "Colleague",
+                Arrays.asList("Work")));
+        roster = new Roster() {
+            @Override
+            public RosterItem getRosterItem(JID user) throws UserNotFoundException {
+                RosterItem item = contacts.get(user.toBareJID());
+                if (item == null) {
+                    throw new UserNotFoundException(user.toBareJID());
+                }
+                return item;
+            }
+        };
+        list = new PrivacyList() {
+            @Override
+            Roster getRoster() {
+                return roster;
+            }
+        };
+    }
+
+    public void testFirstMatchingItemApplies() {
+        List<PrivacyItem> items = createItems(
+                item("jid", "friend@example.com/phone", false, 1, "message"),
+                item("group", "Friends", true, 2, "message"),
+                item("jid", "example.com", false, 3));
+        CompiledPrivacyList compiled = new CompiledPrivacyList(items, USER);
+        assertSame(items.get(0), compiled.getMatchingItem(
+                message(CONTACTS[0], USER), list));
+        assertSame(items.get(1), compiled.getMatchingItem(
+                message(CONTACTS[1], USER), list));
+        assertSame(items.get(2), compiled.getMatchingItem(
+                message(CONTACTS[2], USER), list));
+        assertSame(items.get(2), compiled.getMatchingItem(
+                iq(CONTACTS[0], USER), list));
+        assertNull(compiled.getMatchingItem(message(CONTACTS[3], USER), list));
+    }
+
+    public void testFallThroughStopsTheLookup() {
+        List<PrivacyItem> items = createItems(
+                item("subscription", "to", false, 1, "iq"),
+                item(null, null, true, 2),
+                item("jid", "colleague@example.com", false, 3));
+        CompiledPrivacyList compiled = new CompiledPrivacyList(items, USER);
+        assertSame(items.get(0), compiled.getMatchingItem(iq(CONTACTS[2], USER), list));
+        assertSame(items.get(1), compiled.getMatchingItem(message(CONTACTS[2], USER), list));
+        // Packets sent by the user only match the fall-through item
+        assertSame(items.get(1), compiled.getMatchingItem(message(USER, CONTACTS[2]), list));
+    }
+
+    public void testOutgoingPresenceChecksTheReceiver() {
+        List<PrivacyItem> items = createItems(
+                item("jid", "stranger@other.org", false, 1, "presence-out"),
+                item("jid", "stranger@other.org", true, 2, "presence-in"));
+        CompiledPrivacyList compiled = new CompiledPrivacyList(items, USER);
+        assertSame(items.get(0), compiled.getMatchingItem(
+                presence(USER, CONTACTS[3], null), list));
+        assertSame(items.get(1), compiled.getMatchingItem(
+                presence(CONTACTS[3], USER, Presence.Type.unavailable), list));
+        // Subscription presences are not filtered by stanza specific items
+        assertNull(compiled.getMatchingItem(
+                presence(CONTACTS[3], USER, Presence.Type.subscribe), list));
+    }
+
+    public void testMatchesLinearEvaluation() {
+        Random random = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            List<Element> elements = new ArrayList<Element>();
+            int size = random.nextInt(12);
+            for (int i = 0; i < size; i++) {
+                elements.add(randomItem(random, i));
+            }
+            Collections.shuffle(elements, random);
+            List<PrivacyItem> items = createItems(elements.toArray(new Element[elements.size()]));
+            CompiledPrivacyList compiled = new CompiledPrivacyList(items, USER);
+            for (Packet packet : createPackets()) {
+                assertSame("Items " + elements + ", packet " + packet,
+                        getLinearMatch(items, packet), compiled.getMatchingItem(packet, list));
+            }
+        }
+    }
+
+    /**
+     * Returns the first item that matches the packet by checking every item in order, which
+     * is how privacy lists were evaluated before they were compiled.
+     */
+    private PrivacyItem getLinearMatch(List<PrivacyItem> items, Packet packet) {
+        for (PrivacyItem item : items) {
+            if (item.matchesCondition(packet, roster, USER)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private List<Packet> createPackets() {
+        List<Packet> packets = new ArrayList<Packet>();
+        for (JID contact : CONTACTS) {
+            packets.add(message(contact, USER));
+            packets.add(message(USER, contact));
+            packets.add(iq(contact, USER));
+            packets.add(iq(USER, contact));
+            for (Presence.Type type : new Presence.Type[] {
+                    null, Presence.Type.unavailable, Presence.Type.subscribe }) {
+                packets.add(presence(contact, USER, type));
+                packets.add(presence(USER, contact, type));
+            }
+        }
+        return packets;
+    }
+
+    private static Element randomItem(Random random, int order) {
+        String type;
+        String value;
+        switch (random.nextInt(6)) {
+            case 0:
+                type = "jid";
+                value = CONTACTS[random.nextInt(CONTACTS.length)].toString();
+                break;
+            case 1:
+                type = "jid";
+                value = CONTACTS[random.nextInt(CONTACTS.length)].toBareJID();
+                break;
+            case 2:
+                type = "jid";
+                value = CONTACTS[random.nextInt(CONTACTS.length)].getDomain();
+                break;
+            case 3:
+                type = "group";
+                value = GROUPS[random.nextInt(GROUPS.length)];
+                break;
+            case 4:
+                type = "subscription";
+                value = new String[] { "none", "to", "from", "both" }[random.nextInt(4)];
+                break;
+            default:
+                type = null;
+                value = null;
+        }
+        List<String> stanzas = new ArrayList<String>();
+        for (String stanza : STANZAS) {
+            if (random.nextInt(3) == 0) {
+                stanzas.add(stanza);
+            }
+        }
+        return item(type, value, random.nextBoolean(), order,
+                stanzas.toArray(new String[stanzas.size()]));
+    }
+
+    private static Element item(String type, String value, boolean allow, int order,
+            String... stanzas) {
+        Element item = DocumentHelper.createElement("item");
+        if (type != null) {
+            item.addAttribute("type", type);
+            item.addAttribute("value", value);
+        }
+        item.addAttribute("action", allow ? "allow" : "deny");
+        item.addAttribute("order", String.valueOf(order));
+        for (String stanza : stanzas) {
+            item.addElement(stanza);
+        }
+        return item;
+    }
+
+    private static List<PrivacyItem> createItems(Element... elements) {
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+        for (Element element : elements) {
+            items.add(new PrivacyItem(element));
+        }
+        Collections.sort(items);
+        return items;
+    }
+
+    private static Message message(JID from, JID to) {
+        Message message = new Message();
+        message.setFrom(from);
+        message.setTo(to);
+        return message;
+    }
+
+    private static IQ iq(JID from, JID to) {
+        IQ iq = new IQ(IQ.Type.get);
+        iq.setFrom(from);
+        iq.setTo(to);
+        return iq;
+    }
+
+    private static Presence presence(JID from, JID to, Presence.Type type) {
+        Presence presence = new Presence(type);
+        presence.setFrom(from);
+        presence.setTo(to);
+        return presence;
+    }
+}
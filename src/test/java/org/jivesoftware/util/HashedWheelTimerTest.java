@@ -0,0 +1,146 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the expiry of deadlines of the {@link HashedWheelTimer}.
+ */
+public class HashedWheelTimerTest extends TestCase {
+
+    /**
+     * Duration of a tick in milliseconds. The wheel of the timer has 8 buckets, so a round of
+     * the wheel lasts 80 milliseconds.
+     */
+    private static final long TICK = 10;
+
+    private HashedWheelTimer timer;
+
+    @Override
+    protected void setUp() throws Exception {
+        timer = new HashedWheelTimer("timer-test", TICK, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        timer.stop();
+    }
+
+    public void testExpiresAfterDelay() throws Exception {
+        ExpiryTask task = new ExpiryTask();
+        timer.schedule(task, 30, TimeUnit.MILLISECONDS);
+        assertTrue("Deadline did not expire", task.await());
+        assertNotEarly(30, task.getElapsed());
+    }
+
+    public void testExpiresAcrossWheelRounds() throws Exception {
+        // Both deadlines are kept in the same bucket, two rounds of the wheel apart
+        ExpiryTask first = new ExpiryTask();
+        ExpiryTask later = new ExpiryTask();
+        timer.schedule(first, 20, TimeUnit.MILLISECONDS);
+        timer.schedule(later, 20 + 16 * TICK, TimeUnit.MILLISECONDS);
+        assertTrue("Deadline did not expire", first.await());
+        assertFalse("Deadline of a later round expired early", later.isDone());
+        assertTrue("Deadline of a later round did not expire", later.await());
+        assertNotEarly(20 + 16 * TICK, later.getElapsed());
+    }
+
+    public void testCancel() throws Exception {
+        ExpiryTask cancelled = new ExpiryTask();
+        ExpiryTask other = new ExpiryTask();
+        HashedWheelTimer.Timeout timeout =
+                timer.schedule(cancelled, 50, TimeUnit.MILLISECONDS);
+        timer.schedule(other, 100, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse("Deadline was cancelled twice", timeout.cancel());
+        assertTrue("Deadline did not expire", other.await());
+        assertFalse("Cancelled deadline expired", cancelled.isDone());
+    }
+
+    public void testCancelExpired() throws Exception {
+        ExpiryTask task = new ExpiryTask();
+        HashedWheelTimer.Timeout timeout = timer.schedule(task, 0, TimeUnit.MILLISECONDS);
+        assertTrue("Deadline did not expire", task.await());
+        assertFalse("Expired deadline was cancelled", timeout.cancel());
+    }
+
+    public void testReschedule() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final long start = System.nanoTime();
+        final AtomicLong elapsed = new AtomicLong();
+        timer.schedule(new Runnable() {
+            public void run() {
+                if (runs.incrementAndGet() < 3) {
+                    // Schedule a new deadline from the expired task like sessions do
+                    timer.schedule(this, 30, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    elapsed.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    latch.countDown();
+                }
+            }
+        }, 30, TimeUnit.MILLISECONDS);
+        assertTrue("Rescheduled deadline did not expire", latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, runs.get());
+        assertNotEarly(90, elapsed.get());
+    }
+
+    /**
+     * Deadlines may expire up to a tick late but never early. One millisecond is allowed for
+     * the rounding of the clock of the timer.
+     */
+    private static void assertNotEarly(long delay, long elapsed) {
+        assertTrue("Deadline of " + delay + " ms expired after " + elapsed + " ms",
+                elapsed >= delay - 1);
+    }
+
+    /**
+     * Task that records when it was run.
+     */
+    private static class ExpiryTask implements Runnable {
+
+        private final long start = System.nanoTime();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile long elapsed = -1;
+
+        public void run() {
+            elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        long getElapsed() {
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the buckets, percentiles and snapshots of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBucketBounds() {
+        long[] buckets = new LatencyHistogram().snapshot().getBuckets();
+        long lowerBound = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            long upperBound = LatencyHistogram.Snapshot.getUpperBound(i);
+            assertTrue("Bucket " + i + " is empty", upperBound > lowerBound);
+            assertEquals(i, LatencyHistogram.getBucket(lowerBound));
+            assertEquals(i, LatencyHistogram.getBucket(upperBound - 1));
+            lowerBound = upperBound;
+        }
+        // Everything above the last regular bucket is counted by the last bucket
+        assertEquals(buckets.length - 1, LatencyHistogram.getBucket(lowerBound));
+        assertEquals(buckets.length - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.Snapshot.getUpperBound(buckets.length - 1));
+    }
+
+    public void testBucketPrecision() {
+        for (long micros = 1; micros < 1L << 36; micros = micros * 3 + 1) {
+            int bucket = LatencyHistogram.getBucket(micros);
+            long highest = LatencyHistogram.Snapshot.getUpperBound(bucket) - 1;
+            assertTrue(highest >= micros);
+            assertTrue("Bucket of " + micros + " ends at " + highest,
+                    highest - micros <= micros / 100);
+        }
+    }
+
+    public void testSmallLatenciesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5);
+        histogram.record(7);
+        histogram.record(7);
+        histogram.record(-3);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(19, snapshot.getTotal());
+        assertEquals(0, snapshot.getPercentile(25));
+        assertEquals(5, snapshot.getPercentile(50));
+        assertEquals(7, snapshot.getPercentile(75));
+        assertEquals(7, snapshot.getPercentile(100));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(50000.5, snapshot.getMean(), 0.001);
+        assertPercentile(50000, snapshot.getPercentile(50));
+        assertPercentile(90000, snapshot.getPercentile(90));
+        assertPercentile(99000, snapshot.getPercentile(99));
+        assertPercentile(99900, snapshot.getPercentile(99.9));
+        assertPercentile(100000, snapshot.getPercentile(100));
+    }
+
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0.0, snapshot.getMean());
+        assertEquals(0, snapshot.getPercentile(99));
+    }
+
+    public void testSince() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10000);
+        }
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertSame(snapshot, snapshot.since(null));
+        LatencyHistogram.Snapshot recent = snapshot.since(earlier);
+        assertEquals(10, recent.getCount());
+        assertEquals(1000, recent.getTotal());
+        assertEquals(100, recent.getPercentile(100));
+        // The earlier snapshot is not modified
+        assertEquals(100, earlier.getCount());
+        assertPercentile(10000, earlier.getPercentile(100));
+    }
+
+    public void testSinceReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(50);
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        assertEquals(1, histogram.snapshotAndReset().getCount());
+        histogram.record(20);
+        // Buckets emptied by the reset must not be reported as negative counts
+        LatencyHistogram.Snapshot recent = histogram.snapshot().since(earlier);
+        assertTrue(recent.getCount() >= 0);
+        assertTrue(recent.getTotal() >= 0);
+        for (long bucketCount : recent.getBuckets()) {
+            assertTrue(bucketCount >= 0);
+        }
+    }
+
+    /**
+     * Percentiles are reported as the highest latency of their bucket, which is less than 1%
+     * above the actual latency.
+     */
+    private static void assertPercentile(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 100);
+    }
+}